@@ -48,6 +48,7 @@ import org.sakaiproject.nakamura.lite.storage.spi.DirectCacheAccess;
 import org.sakaiproject.nakamura.lite.storage.spi.Disposable;
 import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.spi.Disposer;
+import org.sakaiproject.nakamura.lite.storage.spi.RowAggregator;
 import org.sakaiproject.nakamura.lite.storage.spi.SparseRow;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClientListener;
@@ -61,6 +62,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -173,6 +176,16 @@ public class CassandraClient extends Client implements StorageClient {
         return row;
     }
 
+    public Map<String, Map<String, Object>> getAll(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        // get_slice is per row, so the rows are loaded one at a time.
+        Map<String, Map<String, Object>> rows = Maps.newLinkedHashMap();
+        for (String key : keys) {
+            rows.put(key, get(keySpace, columnFamily, key));
+        }
+        return rows;
+    }
+
     public void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew)
             throws StorageClientException {
         try {
@@ -445,6 +458,59 @@ public class CassandraClient extends Client implements StorageClient {
     });
   }
 
+    /**
+     * Without a lock on the parent the count could not be kept, so no count is held and the
+     * children are counted each time.
+     */
+    public void insertChild(String keySpace, String columnFamily, String key,
+            Map<String, Object> values, boolean probablyNew, String countProperty)
+            throws StorageClientException {
+        insert(keySpace, columnFamily, key, values, probablyNew);
+    }
+
+    public long recountChildren(String keySpace, String columnFamily, String key,
+            String countProperty) throws StorageClientException {
+        if (!RowAggregator.exists(get(keySpace, columnFamily, key))) {
+            return 0;
+        }
+        return RowAggregator.countExisting(listChildren(keySpace, columnFamily, key, null));
+    }
+
+    public Set<String> getIndexBackfillColumns() {
+        return Collections.emptySet();
+    }
+
+    public long count(String keySpace, String columnFamily, Map<String, Object> properties)
+            throws StorageClientException {
+        return RowAggregator.count(aggregateRows(keySpace, columnFamily, properties));
+    }
+
+    public Map<String, Long> countValues(String keySpace, String columnFamily,
+            Map<String, Object> properties, String property, int limit)
+            throws StorageClientException {
+        return RowAggregator.countValues(aggregateRows(keySpace, columnFamily, properties),
+                property, limit);
+    }
+
+    public Object[] range(String keySpace, String columnFamily, Map<String, Object> properties,
+            String property) throws StorageClientException {
+        return RowAggregator.range(aggregateRows(keySpace, columnFamily, properties), property);
+    }
+
+    /**
+     * The index has no counts, so aggregates are computed over the rows found. There is no
+     * scan of all the rows of a column family, so a search without terms can't be
+     * aggregated.
+     */
+    private DisposableIterator<Map<String, Object>> aggregateRows(String keySpace,
+            String columnFamily, Map<String, Object> properties) throws StorageClientException {
+        if (!RowAggregator.hasTerms(properties)) {
+            throw new StorageClientException("Aggregates over all the rows of " + keySpace
+                    + ":" + columnFamily + " are not supported");
+        }
+        return find(keySpace, columnFamily, properties, null);
+    }
+
     public DisposableIterator<Map<String, Object>> listChildren(String keySpace,
             String columnFamily, String key, DirectCacheAccess cachingManager) throws StorageClientException {
         throw new UnsupportedOperationException();
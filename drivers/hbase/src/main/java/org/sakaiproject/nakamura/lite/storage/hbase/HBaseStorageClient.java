@@ -21,9 +21,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -46,6 +49,7 @@ import org.sakaiproject.nakamura.lite.storage.spi.DirectCacheAccess;
 import org.sakaiproject.nakamura.lite.storage.spi.Disposable;
 import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.spi.Disposer;
+import org.sakaiproject.nakamura.lite.storage.spi.RowAggregator;
 import org.sakaiproject.nakamura.lite.storage.spi.SparseRow;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClientListener;
@@ -164,6 +168,15 @@ public class HBaseStorageClient implements StorageClient {
     return resultRow;
   }
 
+  public Map<String, Map<String, Object>> getAll(String keySpace, String columnFamily,
+      Collection<String> keys) throws StorageClientException {
+    Map<String, Map<String, Object>> rows = new LinkedHashMap<String, Map<String, Object>>();
+    for (String key : keys) {
+      rows.put(key, get(keySpace, columnFamily, key));
+    }
+    return rows;
+  }
+
   public void remove(String keySpace, String columnFamily, String key)
       throws StorageClientException {
     HTableInterface indexTable = null;
@@ -413,6 +426,57 @@ public class HBaseStorageClient implements StorageClient {
     });
   }
 
+  /**
+   * Without a lock on the parent the count could not be kept, so no count is held and the
+   * children are counted each time.
+   */
+  public void insertChild(String keySpace, String columnFamily, String key,
+      Map<String, Object> values, boolean probablyNew, String countProperty)
+      throws StorageClientException {
+    insert(keySpace, columnFamily, key, values, probablyNew);
+  }
+
+  public long recountChildren(String keySpace, String columnFamily, String key,
+      String countProperty) throws StorageClientException {
+    if (!RowAggregator.exists(get(keySpace, columnFamily, key))) {
+      return 0;
+    }
+    return RowAggregator.countExisting(listChildren(keySpace, columnFamily, key, null));
+  }
+
+  public Set<String> getIndexBackfillColumns() {
+    return Collections.emptySet();
+  }
+
+  public long count(String keySpace, String columnFamily, Map<String, Object> properties)
+      throws StorageClientException {
+    return RowAggregator.count(aggregateRows(keySpace, columnFamily, properties));
+  }
+
+  public Map<String, Long> countValues(String keySpace, String columnFamily,
+      Map<String, Object> properties, String property, int limit) throws StorageClientException {
+    return RowAggregator.countValues(aggregateRows(keySpace, columnFamily, properties),
+        property, limit);
+  }
+
+  public Object[] range(String keySpace, String columnFamily, Map<String, Object> properties,
+      String property) throws StorageClientException {
+    return RowAggregator.range(aggregateRows(keySpace, columnFamily, properties), property);
+  }
+
+  /**
+   * The index has no counts, so aggregates are computed over the rows found. There is no
+   * scan of all the rows of a column family, so a search without terms can't be aggregated.
+   */
+  private DisposableIterator<Map<String, Object>> aggregateRows(String keySpace,
+      String columnFamily, Map<String, Object> properties) throws StorageClientException {
+    if (!RowAggregator.hasTerms(properties)) {
+      throw new StorageClientException("Aggregates over all the rows of " + keySpace + ":"
+          + columnFamily + " are not supported");
+    }
+    return find(keySpace, columnFamily, properties, null);
+  }
+
   public DisposableIterator<Map<String, Object>> listChildren(String keySpace,
       String columnFamily, String key, DirectCacheAccess cachingManager) throws StorageClientException {
     throw new UnsupportedOperationException();
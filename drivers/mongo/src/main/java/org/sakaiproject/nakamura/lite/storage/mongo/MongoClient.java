@@ -6,11 +6,15 @@ import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -22,6 +26,7 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.lite.storage.spi.DirectCacheAccess;
 import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.spi.Disposer;
+import org.sakaiproject.nakamura.lite.storage.spi.RowAggregator;
 import org.sakaiproject.nakamura.lite.storage.spi.RowHasher;
 import org.sakaiproject.nakamura.lite.storage.spi.SparseMapRow;
 import org.sakaiproject.nakamura.lite.storage.spi.SparseRow;
@@ -145,6 +150,34 @@ public class MongoClient implements StorageClient, RowHasher {
 		return result;
 	}
 
+	public Map<String, Map<String, Object>> getAll(String keySpace, String columnFamily,
+			Collection<String> keys) throws StorageClientException {
+		columnFamily = columnFamily.toLowerCase();
+		log.debug("getAll {}:{}:{}", new Object[]{keySpace, columnFamily, keys});
+		DBCollection collection = mongodb.getCollection(columnFamily);
+
+		String keyField = MONGO_INTERNAL_SPARSE_UUID_FIELD;
+		if (alternateKeys.containsKey(columnFamily)) {
+			keyField = alternateKeys.get(columnFamily);
+		}
+		Map<String, Map<String, Object>> result = new LinkedHashMap<String, Map<String, Object>>();
+		for (String key : keys) {
+			result.put(key, new HashMap<String, Object>());
+		}
+		DBObject query = new BasicDBObject(keyField,
+				new BasicDBObject(Operators.IN, keys.toArray()));
+		DBCursor cursor = collection.find(query);
+		try {
+			while (cursor.hasNext()) {
+				DBObject dbo = cursor.next();
+				result.put(String.valueOf(dbo.get(keyField)), MongoUtils.convertDBObjectToMap(dbo));
+			}
+		} finally {
+			cursor.close();
+		}
+		return result;
+	}
+
 	public void insert(String keySpace, String columnFamily, String key,
 			Map<String, Object> values, boolean probablyNew)
 	throws StorageClientException {
@@ -249,6 +282,72 @@ public class MongoClient implements StorageClient, RowHasher {
 		return collection.count();
 	}
 
+	/**
+	 * Without a lock on the parent the count could not be kept, so no count is held and the
+	 * children are counted each time.
+	 */
+	public void insertChild(String keySpace, String columnFamily, String key,
+			Map<String, Object> values, boolean probablyNew, String countProperty)
+			throws StorageClientException {
+		insert(keySpace, columnFamily, key, values, probablyNew);
+	}
+
+	public long recountChildren(String keySpace, String columnFamily, String key,
+			String countProperty) throws StorageClientException {
+		if (!RowAggregator.exists(get(keySpace, columnFamily, key))) {
+			return 0;
+		}
+		return RowAggregator.countExisting(listChildren(keySpace, columnFamily, key, null));
+	}
+
+	public Set<String> getIndexBackfillColumns() {
+		return Collections.emptySet();
+	}
+
+	public long count(String keySpace, String columnFamily,
+			Map<String, Object> properties) throws StorageClientException {
+		if (!RowAggregator.hasTerms(properties)) {
+			return allCount(keySpace, columnFamily);
+		}
+		Map<String, Object> countSearch = aggregateTerms(properties);
+		countSearch.put(StorageConstants.CUSTOM_STATEMENT_SET, "countestimate");
+		DisposableIterator<Map<String, Object>> counts = find(keySpace, columnFamily,
+				countSearch, null);
+		try {
+			return ((Number) counts.next().get("1")).longValue();
+		} finally {
+			counts.close();
+		}
+	}
+
+	public Map<String, Long> countValues(String keySpace, String columnFamily,
+			Map<String, Object> properties, String property, int limit)
+			throws StorageClientException {
+		return RowAggregator.countValues(find(keySpace, columnFamily,
+				aggregateTerms(properties), null), property, limit);
+	}
+
+	public Object[] range(String keySpace, String columnFamily,
+			Map<String, Object> properties, String property)
+			throws StorageClientException {
+		return RowAggregator.range(find(keySpace, columnFamily,
+				aggregateTerms(properties), null), property);
+	}
+
+	/**
+	 * Paging and sorting settings would be matched as fields by find, aggregates only use
+	 * the terms, which include internal fields such as the ancestors of content.
+	 */
+	private Map<String, Object> aggregateTerms(Map<String, Object> properties) {
+		Map<String, Object> terms = new LinkedHashMap<String, Object>();
+		for (Entry<String, Object> e : properties.entrySet()) {
+			if (!e.getKey().startsWith("_") || e.getKey().startsWith("_:")) {
+				terms.put(e.getKey(), e.getValue());
+			}
+		}
+		return terms;
+	}
+
 	public InputStream streamBodyOut(String keySpace, String columnFamily,
 			String contentId, String contentBlockId, String streamId,
 			Map<String, Object> content) throws StorageClientException,
@@ -7,6 +7,7 @@ import java.util.Map;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -17,7 +18,10 @@ import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl; // FIXME, SPI impls should not depend in core implementation
-import org.sakaiproject.nakamura.lite.storage.spi.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.spi.AsyncStorageClient;
+import org.sakaiproject.nakamura.lite.storage.spi.AsyncStorageClientAdapter;
+import org.sakaiproject.nakamura.lite.storage.spi.CacheHolderWeigher;
+import org.sakaiproject.nakamura.lite.storage.spi.WeightedLRUMap;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClientPool;
 
@@ -71,10 +75,12 @@ public class MongoClientPool implements StorageClientPool {
 
 	private Map<String,Object> props;
 
-	private ConcurrentLRUMap<String, CacheHolder> sharedCache;
+	private WeightedLRUMap<String, CacheHolder> sharedCache;
 
 	private StorageCacheManager defaultStorageManagerCache;
 
+	private AsyncStorageClientAdapter asyncClient;
+
 	@Activate
 	@Modified
 	public void activate(Map<String,Object> props) throws MongoException, UnknownHostException {
@@ -96,6 +102,17 @@ public class MongoClientPool implements StorageClientPool {
 
         initCache();
         initIndexes();
+        if (asyncClient == null) {
+            asyncClient = new AsyncStorageClientAdapter(this, 10, 1000);
+        }
+	}
+
+	@Deactivate
+	public void deactivate(Map<String,Object> props) {
+		if (asyncClient != null) {
+			asyncClient.shutdown();
+			asyncClient = null;
+		}
 	}
 
 	private void initIndexes() {
@@ -128,7 +145,7 @@ public class MongoClientPool implements StorageClientPool {
 	}
 
 	private void initCache() {
-		this.sharedCache = new ConcurrentLRUMap<String, CacheHolder>(10000);
+		this.sharedCache = new WeightedLRUMap<String, CacheHolder>(32L * 1024L * 1024L, new CacheHolderWeigher());
 		// this is a default cache used where none has been provided.
         this.defaultStorageManagerCache = new StorageCacheManager() {
 			public Map<String, CacheHolder> getContentCache() {
@@ -157,6 +174,10 @@ public class MongoClientPool implements StorageClientPool {
         return defaultStorageManagerCache;
     }
 
+    public AsyncStorageClient getAsyncClient() {
+        return asyncClient;
+    }
+
     public void bindConfiguration(Configuration configuration) {
         this.configuration = configuration;
     }
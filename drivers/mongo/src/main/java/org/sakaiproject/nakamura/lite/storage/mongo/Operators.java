@@ -10,4 +10,5 @@ public class Operators {
 	public static final String SET = "$set";
 	public static final String UNSET = "$unset";
 	public static final String ALL = "$all";
+	public static final String IN = "$in";
 }
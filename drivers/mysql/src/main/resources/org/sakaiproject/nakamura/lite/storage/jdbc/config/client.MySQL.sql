@@ -41,38 +41,61 @@ find.n.lk = select a.rid, a.cid, a.v from lk_css a {0} where {1} 1 = 1 limit {2,
 
 
 block-select-row = select b from css_b where rid = ?
+# Read a row and lock it until the transaction ends, used by maintenance that rewrites rows.
+block-lock-row = select b from css_b where rid = ? for update
+block-select-rows = select rid, b from css_b where rid in ({0})
 block-delete-row = delete from css_b where rid = ?
 block-insert-row = insert into css_b (rid,b) values (?, ?)
 block-update-row = update css_b set b = ? where rid = ?
+# Insert or replace a block row in one statement, parameters are rid then the block. Remove to insert or update with separate statements.
+block-upsert-row = insert into css_b (rid,b) values (?, ?) on duplicate key update b = values(b)
 list-all = select rid, b from css_b
+# Rows after a row id in row id order, used to backfill new index columns in batches.
+list-all-after = select rid, b from css_b where rid > ? order by rid
 list-all-count = select count(*) from css_b
 
 block-select-row.n.ac = select b from ac_css_b where rid = ?
+block-lock-row.n.ac = select b from ac_css_b where rid = ? for update
+block-select-rows.n.ac = select rid, b from ac_css_b where rid in ({0})
 block-delete-row.n.ac = delete from ac_css_b where rid = ?
 block-insert-row.n.ac = insert into ac_css_b (rid,b) values (?, ?)
 block-update-row.n.ac = update ac_css_b set b = ? where rid = ?
+block-upsert-row.n.ac = insert into ac_css_b (rid,b) values (?, ?) on duplicate key update b = values(b)
 list-all.n.ac = select rid, b from ac_css_b
+list-all-after.n.ac = select rid, b from ac_css_b where rid > ? order by rid
 list-all-count.n.ac = select count(*) from ac_css_b
 
 block-select-row.n.cn = select b from cn_css_b where rid = ?
+block-lock-row.n.cn = select b from cn_css_b where rid = ? for update
+block-select-rows.n.cn = select rid, b from cn_css_b where rid in ({0})
 block-delete-row.n.cn = delete from cn_css_b where rid = ?
 block-insert-row.n.cn = insert into cn_css_b (rid,b) values (?, ?)
 block-update-row.n.cn = update cn_css_b set b = ? where rid = ?
+block-upsert-row.n.cn = insert into cn_css_b (rid,b) values (?, ?) on duplicate key update b = values(b)
 list-all.n.cn = select rid, b from cn_css_b
+list-all-after.n.cn = select rid, b from cn_css_b where rid > ? order by rid
 list-all-count.n.cn = select count(*) from cn_css_b
 
 block-select-row.n.au = select b from au_css_b where rid = ?
+block-lock-row.n.au = select b from au_css_b where rid = ? for update
+block-select-rows.n.au = select rid, b from au_css_b where rid in ({0})
 block-delete-row.n.au = delete from au_css_b where rid = ?
 block-insert-row.n.au = insert into au_css_b (rid,b) values (?, ?)
 block-update-row.n.au = update au_css_b set b = ? where rid = ?
+block-upsert-row.n.au = insert into au_css_b (rid,b) values (?, ?) on duplicate key update b = values(b)
 list-all.n.au = select rid, b from au_css_b
+list-all-after.n.au = select rid, b from au_css_b where rid > ? order by rid
 list-all-count.n.au = select count(*) from au_css_b
 
 block-select-row.n.lk = select b from lk_css_b where rid = ?
+block-lock-row.n.lk = select b from lk_css_b where rid = ? for update
+block-select-rows.n.lk = select rid, b from lk_css_b where rid in ({0})
 block-delete-row.n.lk = delete from lk_css_b where rid = ?
 block-insert-row.n.lk = insert into lk_css_b (rid,b) values (?, ?)
 block-update-row.n.lk = update lk_css_b set b = ? where rid = ?
+block-upsert-row.n.lk = insert into lk_css_b (rid,b) values (?, ?) on duplicate key update b = values(b)
 list-all.n.lk = select rid, b from lk_css_b
+list-all-after.n.lk = select rid, b from lk_css_b where rid > ? order by rid
 list-all-count.n.lk = select count(*) from lk_css_b
 
 #
@@ -84,6 +107,16 @@ block-find.n.cn = select distinct a.rid from cn_css a {0} where {1} 1 = 1 {2} li
 block-find.n.ac = select distinct a.rid from ac_css a {0} where {1} 1 = 1 {2} limit {3,number,#} offset {4,number,#};, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 block-find.n.lk = select distinct a.rid from lk_css a {0} where {1} 1 = 1 {2} limit {3,number,#} offset {4,number,#};, lk_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 
+# Seek past the last row of the previous page when a find is continued; where clause for sorted queries, {0} is the sort table, {1} the comparison ; where clause for unsorted queries, {0} is the comparison ; sort element for rows with equal sort values, {0} is the order ; order by clause for unsorted queries, {0} is the order
+block-seek = ( {0}.v, a.rid ) {1} ( ?, ? ) ; a.rid {0} ? ; a.rid {0} ; order by a.rid {0}
+
+# Count the values of a key/value index column, the parameter is the property; for all rows ; for the rows matched by a find, {0} is the table join and {1} the where clause of block-find
+block-aggregate = select g.v, count(*) from css g where g.cid = ? group by g.v order by 2 desc ; select g.v, count(*) from css g where g.cid = ? and g.rid in ( select a.rid from css a {0} where {1} 1 = 1 ) group by g.v order by 2 desc
+block-aggregate.n.au = select g.v, count(*) from au_css g where g.cid = ? group by g.v order by 2 desc ; select g.v, count(*) from au_css g where g.cid = ? and g.rid in ( select a.rid from au_css a {0} where {1} 1 = 1 ) group by g.v order by 2 desc
+block-aggregate.n.cn = select g.v, count(*) from cn_css g where g.cid = ? group by g.v order by 2 desc ; select g.v, count(*) from cn_css g where g.cid = ? and g.rid in ( select a.rid from cn_css a {0} where {1} 1 = 1 ) group by g.v order by 2 desc
+block-aggregate.n.ac = select g.v, count(*) from ac_css g where g.cid = ? group by g.v order by 2 desc ; select g.v, count(*) from ac_css g where g.cid = ? and g.rid in ( select a.rid from ac_css a {0} where {1} 1 = 1 ) group by g.v order by 2 desc
+block-aggregate.n.lk = select g.v, count(*) from lk_css g where g.cid = ? group by g.v order by 2 desc ; select g.v, count(*) from lk_css g where g.cid = ? and g.rid in ( select a.rid from lk_css a {0} where {1} 1 = 1 ) group by g.v order by 2 desc
+
 listchildren = select distinct a.rid from css a {0} where {1} 1 = 1 {2} ;, css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 listchildren.n.au = select distinct a.rid from au_css a {0} where {1} 1 = 1 {2} ;, au_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 listchildren.n.cn = select distinct a.rid from cn_css a {0} where {1} 1 = 1 {2} ;, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
@@ -111,6 +144,9 @@ check-schema = select count(*) from css
 # Index tables and not the content store but it will reduce the number of SQL operations where more than one field is indexed per content item.
 use-batch-inserts = 1
 
+# 1 if index values are compared case sensitively, so terms of a find that match most rows can be checked against the loaded rows rather than in SQL. The utf8_unicode_ci collation is not.
+case-sensitive-compare = 0
+
 # Queries that take longer than these times to execute will be logged with warn and error respectively.
 # Logging is performed against org.sakaiproject.nakamura.lite.storage.spi.jdbc.JDBCStorageClient.SlowQueryLogger
 slow-query-time = 50
@@ -145,6 +181,13 @@ insert-widestring-row.n.cn = insert into cn_css_w ( rid {0} ) values ( ? {1} )
 insert-widestring-row.n.ac = insert into ac_css_w ( rid {0} ) values ( ? {1} )
 insert-widestring-row.n.au = insert into au_css_w ( rid {0} ) values ( ? {1} )
 insert-widestring-row.n.lk = insert into lk_css_w ( rid {0} ) values ( ? {1} )
+
+# Insert or update an index row in one statement; {0} is the column list, {1} the parameters, {2} the set list ; set element for column {0}
+upsert-widestring-row = insert into css_w ( rid {0} ) values ( ? {1} ) on duplicate key update {2}; {0} = values({0})
+upsert-widestring-row.n.cn = insert into cn_css_w ( rid {0} ) values ( ? {1} ) on duplicate key update {2}; {0} = values({0})
+upsert-widestring-row.n.ac = insert into ac_css_w ( rid {0} ) values ( ? {1} ) on duplicate key update {2}; {0} = values({0})
+upsert-widestring-row.n.au = insert into au_css_w ( rid {0} ) values ( ? {1} ) on duplicate key update {2}; {0} = values({0})
+upsert-widestring-row.n.lk = insert into lk_css_w ( rid {0} ) values ( ? {1} ) on duplicate key update {2}; {0} = values({0})
  
 wide-block-find = select a.rid from css_w a where {0} {1} limit {2,number,#} offset {3,number,#} ;a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 wide-block-find.n.cn = select a.rid from cn_css_w a where {0} {1} limit {2,number,#} offset {3,number,#} ;a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
@@ -152,6 +195,9 @@ wide-block-find.n.ac = select a.rid from ac_css_w a where {0} {1} limit {2,numbe
 wide-block-find.n.au = select a.rid from au_css_w a where {0} {1} limit {2,number,#} offset {3,number,#} ;a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 wide-block-find.n.lk = select a.rid from lk_css_w a where {0} {1} limit {2,number,#} offset {3,number,#} ;a.{0} = ?;a.rid in ( select {0}.rid from lk_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 
+# Seek past the last row of the previous page when a find is continued; where clause for sorted queries, {0} is the sort column, {1} the comparison ; where clause for unsorted queries, {0} is the comparison ; sort element for rows with equal sort values, {0} is the order
+wide-block-seek = ( a.{0}, a.rid ) {1} ( ?, ? ) ; a.rid {0} ? ; a.rid {0}
+
 wide-listchildren = select a.rid from css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 wide-listchildren.n.cn = select a.rid from cn_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from cn_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 wide-listchildren.n.ac = select a.rid from ac_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from ac_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
@@ -164,3 +210,23 @@ wide-countestimate.n.ac = select count(*) from ac_css_w a where {0} {1} ;a.{0} =
 wide-countestimate.n.au = select count(*) from au_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from au_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 wide-countestimate.n.lk = select count(*) from lk_css_w a where {0} {1} ;a.{0} = ?;a.rid in ( select {0}.rid from lk_css {0} where {1} );{0}.cid = ? and {0}.v = ?;order by {0};{0} {1}
 
+# Value statistics of a key/value index column used to plan finds, the parameter is the property; rows with a value and distinct values ; values with their row counts, most frequent first
+stats-string-column = select count(*), count(distinct v) from css where cid = ? ; select v, count(*) from css where cid = ? group by v order by 2 desc
+stats-string-column.n.ac = select count(*), count(distinct v) from ac_css where cid = ? ; select v, count(*) from ac_css where cid = ? group by v order by 2 desc
+stats-string-column.n.au = select count(*), count(distinct v) from au_css where cid = ? ; select v, count(*) from au_css where cid = ? group by v order by 2 desc
+stats-string-column.n.cn = select count(*), count(distinct v) from cn_css where cid = ? ; select v, count(*) from cn_css where cid = ? group by v order by 2 desc
+stats-string-column.n.lk = select count(*), count(distinct v) from lk_css where cid = ? ; select v, count(*) from lk_css where cid = ? group by v order by 2 desc
+
+# Value statistics of a wide index column used to plan finds, {0} is the column; rows with a value and distinct values ; values with their row counts, most frequent first
+stats-widestring-column = select count({0}), count(distinct {0}) from css_w ; select {0}, count(*) from css_w where {0} is not null group by {0} order by 2 desc
+stats-widestring-column.n.cn = select count({0}), count(distinct {0}) from cn_css_w ; select {0}, count(*) from cn_css_w where {0} is not null group by {0} order by 2 desc
+stats-widestring-column.n.ac = select count({0}), count(distinct {0}) from ac_css_w ; select {0}, count(*) from ac_css_w where {0} is not null group by {0} order by 2 desc
+stats-widestring-column.n.au = select count({0}), count(distinct {0}) from au_css_w ; select {0}, count(*) from au_css_w where {0} is not null group by {0} order by 2 desc
+stats-widestring-column.n.lk = select count({0}), count(distinct {0}) from lk_css_w ; select {0}, count(*) from lk_css_w where {0} is not null group by {0} order by 2 desc
+
+# Aggregates over the wide index, {0} is the select {1} the where clause {2} the group by ; values with their row counts, {0} is the column ; group by, {0} is the column ; min and max, {0} is the column ; values of an array property with their row counts, the parameter is the property and {0} the where clause
+wide-block-aggregate = select {0} from css_w a where {1} {2} ;a.{0}, count(*) ;group by a.{0} order by 2 desc ;min(a.{0}), max(a.{0}) ;select g.v, count(*) from css g where g.cid = ? and g.rid in ( select a.rid from css_w a where {0} ) group by g.v order by 2 desc
+wide-block-aggregate.n.cn = select {0} from cn_css_w a where {1} {2} ;a.{0}, count(*) ;group by a.{0} order by 2 desc ;min(a.{0}), max(a.{0}) ;select g.v, count(*) from cn_css g where g.cid = ? and g.rid in ( select a.rid from cn_css_w a where {0} ) group by g.v order by 2 desc
+wide-block-aggregate.n.ac = select {0} from ac_css_w a where {1} {2} ;a.{0}, count(*) ;group by a.{0} order by 2 desc ;min(a.{0}), max(a.{0}) ;select g.v, count(*) from ac_css g where g.cid = ? and g.rid in ( select a.rid from ac_css_w a where {0} ) group by g.v order by 2 desc
+wide-block-aggregate.n.au = select {0} from au_css_w a where {1} {2} ;a.{0}, count(*) ;group by a.{0} order by 2 desc ;min(a.{0}), max(a.{0}) ;select g.v, count(*) from au_css g where g.cid = ? and g.rid in ( select a.rid from au_css_w a where {0} ) group by g.v order by 2 desc
+wide-block-aggregate.n.lk = select {0} from lk_css_w a where {1} {2} ;a.{0}, count(*) ;group by a.{0} order by 2 desc ;min(a.{0}), max(a.{0}) ;select g.v, count(*) from lk_css g where g.cid = ? and g.rid in ( select a.rid from lk_css_w a where {0} ) group by g.v order by 2 desc
@@ -0,0 +1,20 @@
+# Stores row ids (rid) as ascii with a binary collation, as created by client.MySQL*.ddl.
+# Row ids are case sensitive base64 hashes, with a utf8 case insensitive collation the rid indexes are
+# 3 times larger than needed and a lookup may match a rid that differs only in case.
+# Existing rids are already ascii, so no data is changed. Each statement rebuilds the indexes of the table.
+
+ALTER TABLE `css` MODIFY `rid` varchar(32) CHARACTER SET ascii COLLATE ascii_bin NOT NULL;
+ALTER TABLE `au_css` MODIFY `rid` varchar(32) CHARACTER SET ascii COLLATE ascii_bin NOT NULL;
+ALTER TABLE `cn_css` MODIFY `rid` varchar(32) CHARACTER SET ascii COLLATE ascii_bin NOT NULL;
+ALTER TABLE `ac_css` MODIFY `rid` varchar(32) CHARACTER SET ascii COLLATE ascii_bin NOT NULL;
+ALTER TABLE `lk_css` MODIFY `rid` varchar(32) CHARACTER SET ascii COLLATE ascii_bin NOT NULL;
+ALTER TABLE `css_w` MODIFY `rid` varchar(32) CHARACTER SET ascii COLLATE ascii_bin NOT NULL;
+ALTER TABLE `ac_css_w` MODIFY `rid` varchar(32) CHARACTER SET ascii COLLATE ascii_bin NOT NULL;
+ALTER TABLE `au_css_w` MODIFY `rid` varchar(32) CHARACTER SET ascii COLLATE ascii_bin NOT NULL;
+ALTER TABLE `cn_css_w` MODIFY `rid` varchar(32) CHARACTER SET ascii COLLATE ascii_bin NOT NULL;
+ALTER TABLE `lk_css_w` MODIFY `rid` varchar(32) CHARACTER SET ascii COLLATE ascii_bin NOT NULL;
+ALTER TABLE `css_b` MODIFY `rid` varchar(32) CHARACTER SET ascii COLLATE ascii_bin NOT NULL;
+ALTER TABLE `cn_css_b` MODIFY `rid` varchar(32) CHARACTER SET ascii COLLATE ascii_bin NOT NULL;
+ALTER TABLE `au_css_b` MODIFY `rid` varchar(32) CHARACTER SET ascii COLLATE ascii_bin NOT NULL;
+ALTER TABLE `ac_css_b` MODIFY `rid` varchar(32) CHARACTER SET ascii COLLATE ascii_bin NOT NULL;
+ALTER TABLE `lk_css_b` MODIFY `rid` varchar(32) CHARACTER SET ascii COLLATE ascii_bin NOT NULL;
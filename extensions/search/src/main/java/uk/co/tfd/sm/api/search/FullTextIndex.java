@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.tfd.sm.api.search;
+
+import java.util.List;
+
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+
+/**
+ * A full text index of content, held locally and updated asynchronously as content
+ * changes, so recent changes may not be found immediately.
+ */
+public interface FullTextIndex {
+
+	/**
+	 * The field that holds the text of all the indexed properties and the body. Queries
+	 * may also name an indexed property as a field, eg title:report.
+	 */
+	public static final String TEXT_FIELD = "text";
+
+	/**
+	 * Search the index, ignoring access control.
+	 * 
+	 * @param query
+	 *            a query in the Lucene query syntax.
+	 * @param offset
+	 *            the number of matches to skip.
+	 * @param limit
+	 *            the maximum number of paths to return.
+	 * @return the paths of the matching content, best match first.
+	 * @throws StorageClientException
+	 *             if the query is invalid or the index can't be read.
+	 */
+	List<String> search(String query, int offset, int limit)
+			throws StorageClientException;
+
+	/**
+	 * Search the index, returning only content the user of the session can read.
+	 * 
+	 * @param session
+	 *            the session of the user searching.
+	 * @param query
+	 *            a query in the Lucene query syntax.
+	 * @param offset
+	 *            the number of readable matches to skip.
+	 * @param limit
+	 *            the maximum number of paths to return.
+	 * @return the paths of the matching content, best match first.
+	 * @throws StorageClientException
+	 *             if the query is invalid or the index can't be read.
+	 */
+	List<String> search(Session session, String query, int offset, int limit)
+			throws StorageClientException;
+
+	/**
+	 * Replace the index with one built from a scan of the store. The content is indexed
+	 * in the background, until that completes searches use the old index.
+	 * 
+	 * @throws StorageClientException
+	 * @throws AccessDeniedException
+	 */
+	void rebuild() throws StorageClientException, AccessDeniedException;
+
+}
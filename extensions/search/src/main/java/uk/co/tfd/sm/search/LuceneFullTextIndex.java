@@ -0,0 +1,563 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.tfd.sm.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.tfd.sm.api.search.FullTextIndex;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * A {@link FullTextIndex} held in a local Lucene index. The index is updated from the
+ * content events the {@link StoreListener} posts, the paths of changed items are queued
+ * and a single thread indexes the current state of each, so updates and deletes are
+ * handled the same way and the order of events does not matter. A path changed again
+ * before it is indexed is only queued once, and if more paths change than the queue
+ * holds the index is rebuilt rather than losing changes.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { FullTextIndex.class, EventHandler.class })
+public class LuceneFullTextIndex implements FullTextIndex, EventHandler {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(LuceneFullTextIndex.class);
+
+	@SuppressWarnings("unused")
+	@Property(value = { StoreListener.TOPIC_BASE + "content/" + StoreListener.ADDED_TOPIC,
+			StoreListener.TOPIC_BASE + "content/" + StoreListener.UPDATED_TOPIC,
+			StoreListener.TOPIC_BASE + "content/" + StoreListener.DELETE_TOPIC })
+	private static final String TOPICS = EventConstants.EVENT_TOPIC;
+
+	@Property(value = "sparse/fulltext")
+	public static final String INDEX_DIRECTORY = "index-directory";
+
+	@Property(value = { "title", "description", "sakai:pooled-content-file-name",
+			"sakai:description", "sakai:tags" })
+	public static final String INDEXED_PROPERTIES = "indexed-properties";
+
+	@Property(value = { "text/" })
+	public static final String BODY_MIME_TYPES = "body-mime-types";
+
+	private static final long DEFAULT_MAX_BODY_SIZE = 1024L * 1024L;
+	@Property(longValue = DEFAULT_MAX_BODY_SIZE)
+	public static final String MAX_BODY_SIZE = "max-body-size";
+
+	private static final int DEFAULT_QUEUE_SIZE = 100000;
+	@Property(intValue = DEFAULT_QUEUE_SIZE)
+	public static final String QUEUE_SIZE = "queue-size";
+
+	/**
+	 * The field that holds the path of the content, one document is held for each path.
+	 */
+	static final String PATH_FIELD = "path";
+
+	/**
+	 * The number of queued paths indexed and committed together.
+	 */
+	private static final int BATCH_SIZE = 100;
+
+	/**
+	 * How often, in ms, the indexing thread checks that it should still run.
+	 */
+	private static final long POLL_INTERVAL = 1000L;
+
+	@Reference
+	protected Repository repository;
+
+	private Directory directory;
+	private Analyzer analyzer;
+	/**
+	 * Guards {@link #writer}, which is replaced when an unfinished rebuild is rolled back.
+	 */
+	private final Object writerLock = new Object();
+	private IndexWriter writer;
+	private IndexReader reader;
+	private boolean readerCurrent;
+	private String[] indexedProperties;
+	private String[] bodyMimeTypes;
+	private long maxBodySize;
+	private int queueSize;
+	/**
+	 * The paths waiting to be indexed, in the order they changed. Guards itself,
+	 * {@link #rebuildRequested} and {@link #indexing}.
+	 */
+	private final Set<String> queue = Sets.newLinkedHashSet();
+	private boolean rebuildRequested;
+	private boolean indexing;
+	private Thread indexer;
+	private volatile boolean running;
+
+	@Activate
+	public void activate(Map<String, Object> properties) throws IOException {
+		File indexDirectory = new File(StorageClientUtils.getSetting(
+				properties.get(INDEX_DIRECTORY), "sparse/fulltext"));
+		indexedProperties = StorageClientUtils.getSetting(properties.get(INDEXED_PROPERTIES),
+				new String[] { "title", "description", "sakai:pooled-content-file-name",
+						"sakai:description", "sakai:tags" });
+		bodyMimeTypes = StorageClientUtils.getSetting(properties.get(BODY_MIME_TYPES),
+				new String[] { "text/" });
+		maxBodySize = StorageClientUtils.getSetting(properties.get(MAX_BODY_SIZE),
+				DEFAULT_MAX_BODY_SIZE);
+		queueSize = StorageClientUtils.getSetting(properties.get(QUEUE_SIZE),
+				DEFAULT_QUEUE_SIZE);
+
+		indexDirectory.mkdirs();
+		directory = FSDirectory.open(indexDirectory);
+		if (IndexWriter.isLocked(directory)) {
+			// only this component writes to the index, the lock was left by a crash.
+			LOGGER.warn("Removing stale lock on full text index {} ", indexDirectory);
+			IndexWriter.unlock(directory);
+		}
+		analyzer = new StandardAnalyzer(Version.LUCENE_30);
+		writer = new IndexWriter(directory, analyzer, IndexWriter.MaxFieldLength.UNLIMITED);
+		// make sure there is an index to search, even if nothing has been indexed.
+		writer.commit();
+		reader = IndexReader.open(directory, true);
+		readerCurrent = true;
+
+		running = true;
+		indexer = new Thread(new Runnable() {
+			public void run() {
+				processQueue();
+			}
+		}, "FullTextIndexer");
+		indexer.setDaemon(true);
+		indexer.start();
+		LOGGER.info("Full text index at {} indexing {} ", indexDirectory,
+				Arrays.toString(indexedProperties));
+	}
+
+	@Deactivate
+	public void deactivate(Map<String, Object> properties) throws IOException {
+		running = false;
+		if (indexer != null) {
+			// not interrupted, an interrupt closes the files of the index if it is writing.
+			try {
+				indexer.join(10000L);
+			} catch (InterruptedException e) {
+				LOGGER.debug(e.getMessage(), e);
+			}
+		}
+		// anything left in the queue is recovered by a rebuild.
+		synchronized (queue) {
+			if (rebuildRequested) {
+				LOGGER.warn("The full text index was not rebuilt, rebuild it again ");
+			} else if (queue.size() > 0) {
+				LOGGER.warn("{} items were not indexed, rebuild the full text index ",
+						queue.size());
+			}
+			queue.clear();
+			rebuildRequested = false;
+		}
+		synchronized (this) {
+			reader.decRef();
+			reader = null;
+		}
+		synchronized (writerLock) {
+			writer.close();
+		}
+		directory.close();
+	}
+
+	/**
+	 * {@inheritDoc} Queues the path of the content for indexing. When the queue is full
+	 * the queued paths are replaced by a rebuild of the index, which indexes them all.
+	 */
+	public void handleEvent(Event event) {
+		String path = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+		if (path == null) {
+			return;
+		}
+		synchronized (queue) {
+			if (rebuildRequested) {
+				// the rebuild has not started, it will read the change.
+				return;
+			}
+			if (queue.size() >= queueSize && !queue.contains(path)) {
+				LOGGER.warn("Full text index queue is full, rebuilding the index ");
+				queue.clear();
+				rebuildRequested = true;
+			} else {
+				queue.add(path);
+			}
+			queue.notifyAll();
+		}
+	}
+
+	public List<String> search(String query, int offset, int limit)
+			throws StorageClientException {
+		return search(null, query, offset, limit);
+	}
+
+	public List<String> search(Session session, String query, int offset, int limit)
+			throws StorageClientException {
+		Query q = parse(query);
+		ContentManager contentManager = session == null ? null : session.getContentManager();
+		List<String> paths = Lists.newArrayList();
+		IndexReader searchReader = getReader();
+		try {
+			IndexSearcher searcher = new IndexSearcher(searchReader);
+			int maxDoc = Math.max(1, searchReader.maxDoc());
+			int skip = offset;
+			int start = 0;
+			int hits = (int) Math.min((long) offset + limit, maxDoc);
+			// when matches are not readable search again for more.
+			while (paths.size() < limit) {
+				TopDocs topDocs = searcher.search(q, hits);
+				ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+				for (int i = start; i < scoreDocs.length && paths.size() < limit; i++) {
+					String path = searcher.doc(scoreDocs[i].doc).get(PATH_FIELD);
+					// exists checks that the user can read the content.
+					if (contentManager == null || contentManager.exists(path)) {
+						if (skip > 0) {
+							skip--;
+						} else {
+							paths.add(path);
+						}
+					}
+				}
+				if (topDocs.totalHits <= hits || hits == maxDoc) {
+					break;
+				}
+				start = hits;
+				hits = (int) Math.min(hits * 2L, maxDoc);
+			}
+			return paths;
+		} catch (IOException e) {
+			throw new StorageClientException(e.getMessage(), e);
+		} finally {
+			releaseReader(searchReader);
+		}
+	}
+
+	/**
+	 * {@inheritDoc} The rebuild replaces anything queued and runs on the indexing thread.
+	 */
+	public void rebuild() throws StorageClientException, AccessDeniedException {
+		synchronized (queue) {
+			queue.clear();
+			rebuildRequested = true;
+			queue.notifyAll();
+		}
+	}
+
+	/**
+	 * Index the current state of the content at each path, removing the paths that no
+	 * longer exist.
+	 */
+	void index(Collection<String> paths) throws StorageClientException,
+			AccessDeniedException, IOException {
+		Session session = repository.loginAdministrative();
+		try {
+			index(session.getContentManager(), paths);
+		} finally {
+			session.logout();
+		}
+	}
+
+	private void index(ContentManager contentManager, Collection<String> paths)
+			throws StorageClientException, AccessDeniedException, IOException {
+		synchronized (writerLock) {
+			update(contentManager, paths);
+			writer.commit();
+		}
+		invalidateReader();
+	}
+
+	/**
+	 * Update the documents of the paths, without committing.
+	 */
+	private void update(ContentManager contentManager, Collection<String> paths)
+			throws StorageClientException, AccessDeniedException, IOException {
+		for (String path : paths) {
+			Term pathTerm = new Term(PATH_FIELD, path);
+			Content content = contentManager.get(path);
+			if (content == null) {
+				writer.deleteDocuments(pathTerm);
+			} else {
+				writer.updateDocument(pathTerm, toDocument(contentManager, content));
+			}
+		}
+	}
+
+	/**
+	 * Replace the index with one built from a scan of the store. Nothing is committed
+	 * until the scan is complete, so searches use the old index while it is rebuilt, and
+	 * a rebuild that fails or is stopped is rolled back leaving the old index in place.
+	 */
+	void rebuildIndex() throws StorageClientException, AccessDeniedException, IOException {
+		LOGGER.info("Rebuilding the full text index ");
+		Session session = repository.loginAdministrative();
+		try {
+			ContentManager contentManager = session.getContentManager();
+			synchronized (writerLock) {
+				boolean committed = false;
+				try {
+					writer.deleteAll();
+					Iterator<String> paths = contentManager.listAllPaths();
+					List<String> batch = Lists.newArrayList();
+					long indexed = 0;
+					while (paths.hasNext()) {
+						batch.add(paths.next());
+						if (batch.size() == BATCH_SIZE || !paths.hasNext()) {
+							update(contentManager, batch);
+							indexed += batch.size();
+							batch.clear();
+							if (!running) {
+								LOGGER.warn("Stopped rebuilding the full text index after {} items, rebuild it again ",
+										indexed);
+								return;
+							}
+						}
+					}
+					writer.commit();
+					committed = true;
+					LOGGER.info("Rebuilt the full text index with {} items ", indexed);
+				} finally {
+					if (!committed) {
+						rollback();
+					}
+				}
+			}
+			invalidateReader();
+		} finally {
+			session.logout();
+		}
+	}
+
+	/**
+	 * Discard the uncommitted changes, which closes the writer, and open a new writer on
+	 * the last commit.
+	 */
+	private void rollback() throws IOException {
+		writer.rollback();
+		writer = new IndexWriter(directory, analyzer, IndexWriter.MaxFieldLength.UNLIMITED);
+	}
+
+	/**
+	 * Wait until the queue is empty and nothing is being indexed.
+	 * 
+	 * @param timeout
+	 *            the longest time to wait, in ms.
+	 * @return true if everything queued has been indexed.
+	 */
+	boolean awaitIndexed(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		synchronized (queue) {
+			while (rebuildRequested || indexing || !queue.isEmpty()) {
+				long wait = end - System.currentTimeMillis();
+				if (wait <= 0) {
+					return false;
+				}
+				queue.wait(wait);
+			}
+			return true;
+		}
+	}
+
+	private void processQueue() {
+		List<String> batch = Lists.newArrayList();
+		while (running) {
+			boolean rebuilding = false;
+			try {
+				synchronized (queue) {
+					if (!rebuildRequested && queue.isEmpty()) {
+						queue.wait(POLL_INTERVAL);
+					}
+					if (rebuildRequested) {
+						rebuildRequested = false;
+						rebuilding = true;
+					} else {
+						Iterator<String> queued = queue.iterator();
+						while (queued.hasNext() && batch.size() < BATCH_SIZE) {
+							batch.add(queued.next());
+							queued.remove();
+						}
+					}
+					indexing = rebuilding || !batch.isEmpty();
+				}
+				if (rebuilding) {
+					rebuildIndex();
+				} else if (!batch.isEmpty()) {
+					index(batch);
+				}
+			} catch (InterruptedException e) {
+				LOGGER.debug("Full text indexer interrupted ");
+			} catch (Exception e) {
+				if (rebuilding) {
+					LOGGER.error("Failed to rebuild the full text index: " + e.getMessage(), e);
+				} else {
+					LOGGER.error("Failed to update the full text index, " + batch.size()
+							+ " items were not indexed: " + e.getMessage(), e);
+				}
+			} finally {
+				batch.clear();
+				synchronized (queue) {
+					indexing = false;
+					// wakes anything waiting for the queue to be indexed.
+					queue.notifyAll();
+				}
+			}
+		}
+	}
+
+	private Document toDocument(ContentManager contentManager, Content content)
+			throws StorageClientException, AccessDeniedException, IOException {
+		Document document = new Document();
+		document.add(new Field(PATH_FIELD, content.getPath(), Field.Store.YES,
+				Field.Index.NOT_ANALYZED));
+		StringBuilder text = new StringBuilder();
+		for (String property : indexedProperties) {
+			Object value = content.getProperty(property);
+			Object[] values = value instanceof Object[] ? (Object[]) value : new Object[] { value };
+			for (Object v : values) {
+				if (v != null) {
+					document.add(new Field(property, v.toString(), Field.Store.NO,
+							Field.Index.ANALYZED));
+					text.append(v).append(' ');
+				}
+			}
+		}
+		String body = getBody(contentManager, content);
+		if (body != null) {
+			text.append(body);
+		}
+		document.add(new Field(TEXT_FIELD, text.toString(), Field.Store.NO,
+				Field.Index.ANALYZED));
+		return document;
+	}
+
+	/**
+	 * @return the body of the content, if it is text and not too large to index.
+	 */
+	private String getBody(ContentManager contentManager, Content content)
+			throws StorageClientException, AccessDeniedException, IOException {
+		String mimeType = (String) content.getProperty(Content.MIMETYPE_FIELD);
+		Object length = content.getProperty(Content.LENGTH_FIELD);
+		if (mimeType == null || !(length instanceof Number)
+				|| ((Number) length).longValue() > maxBodySize) {
+			return null;
+		}
+		for (String bodyMimeType : bodyMimeTypes) {
+			if (mimeType.startsWith(bodyMimeType)) {
+				InputStream in = contentManager.getInputStream(content.getPath());
+				if (in == null) {
+					return null;
+				}
+				try {
+					return IOUtils.toString(in, "UTF-8");
+				} finally {
+					in.close();
+				}
+			}
+		}
+		return null;
+	}
+
+	private Query parse(String query) throws StorageClientException {
+		try {
+			return new QueryParser(Version.LUCENE_30, TEXT_FIELD, analyzer).parse(query);
+		} catch (ParseException e) {
+			throw new StorageClientException("Invalid full text query " + query + ": "
+					+ e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return a reader with all committed changes, which must be released after use.
+	 */
+	private synchronized IndexReader getReader() throws StorageClientException {
+		if (reader == null) {
+			throw new StorageClientException("Full text index is closed");
+		}
+		if (!readerCurrent) {
+			try {
+				IndexReader newReader = reader.reopen();
+				if (newReader != reader) {
+					reader.decRef();
+					reader = newReader;
+				}
+				readerCurrent = true;
+			} catch (IOException e) {
+				throw new StorageClientException(e.getMessage(), e);
+			}
+		}
+		reader.incRef();
+		return reader;
+	}
+
+	private synchronized void releaseReader(IndexReader searchReader)
+			throws StorageClientException {
+		try {
+			searchReader.decRef();
+		} catch (IOException e) {
+			throw new StorageClientException(e.getMessage(), e);
+		}
+	}
+
+	private synchronized void invalidateReader() {
+		readerCurrent = false;
+	}
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package uk.co.tfd.sm.search;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class LuceneFullTextIndexTest {
+
+	private File indexDirectory;
+	private BaseMemoryRepository memoryRepository;
+	private LuceneFullTextIndex fullTextIndex;
+	private Session session;
+	private ContentManager contentManager;
+
+	@Before
+	public void before() throws StorageClientException, AccessDeniedException,
+			ClientPoolException, ClassNotFoundException, IOException {
+		indexDirectory = new File("target/fulltext-" + System.currentTimeMillis());
+		memoryRepository = new BaseMemoryRepository();
+		fullTextIndex = new LuceneFullTextIndex();
+		fullTextIndex.repository = memoryRepository.getRepository();
+		fullTextIndex.activate(ImmutableMap.of(LuceneFullTextIndex.INDEX_DIRECTORY,
+				(Object) indexDirectory.getPath()));
+		session = memoryRepository.getRepository().loginAdministrative();
+		contentManager = session.getContentManager();
+		contentManager.update(new Content("/a", ImmutableMap.of("title",
+				(Object) "Quarterly report")));
+		contentManager.update(new Content("/b", ImmutableMap.of("description",
+				(Object) "The annual report", "sakai:tags", new String[] { "finance",
+						"annual" })));
+		contentManager.update(new Content("/c", ImmutableMap.of(Content.MIMETYPE_FIELD,
+				(Object) "text/plain")));
+		contentManager.writeBody("/c", new ByteArrayInputStream(
+				"the quick brown fox".getBytes("UTF-8")));
+	}
+
+	@After
+	public void after() throws IOException, ClientPoolException {
+		session.logout();
+		fullTextIndex.deactivate(null);
+		memoryRepository.close();
+		FileUtils.deleteDirectory(indexDirectory);
+	}
+
+	@Test
+	public void testSearch() throws Exception {
+		fullTextIndex.index(ImmutableList.of("/a", "/b", "/c"));
+		Assert.assertEquals(2, fullTextIndex.search("report", 0, 10).size());
+		Assert.assertEquals(1, fullTextIndex.search("report", 1, 10).size());
+		Assert.assertEquals(ImmutableList.of("/a"), fullTextIndex.search("title:quarterly", 0, 10));
+		Assert.assertEquals(ImmutableList.of("/b"), fullTextIndex.search("finance", 0, 10));
+		Assert.assertEquals(ImmutableList.of("/c"), fullTextIndex.search("fox", 0, 10));
+		Assert.assertEquals(0, fullTextIndex.search("nothing", 0, 10).size());
+	}
+
+	@Test
+	public void testDelete() throws Exception {
+		fullTextIndex.index(ImmutableList.of("/a", "/b", "/c"));
+		contentManager.delete("/a");
+		// until it is indexed again the deleted item is only found without a session.
+		Assert.assertEquals(ImmutableList.of("/a"), fullTextIndex.search("quarterly", 0, 10));
+		Assert.assertEquals(0, fullTextIndex.search(session, "quarterly", 0, 10).size());
+		fullTextIndex.index(ImmutableList.of("/a"));
+		Assert.assertEquals(0, fullTextIndex.search("quarterly", 0, 10).size());
+	}
+
+	@Test
+	public void testEvents() throws Exception {
+		Dictionary<String, Object> properties = new Hashtable<String, Object>();
+		properties.put(StoreListener.PATH_PROPERTY, "/c");
+		fullTextIndex.handleEvent(new Event(StoreListener.TOPIC_BASE + "content/"
+				+ StoreListener.UPDATED_TOPIC, properties));
+		Assert.assertTrue(fullTextIndex.awaitIndexed(10000L));
+		Assert.assertEquals(ImmutableList.of("/c"), fullTextIndex.search("fox", 0, 10));
+	}
+
+	@Test
+	public void testRebuild() throws Exception {
+		fullTextIndex.rebuild();
+		Assert.assertTrue(fullTextIndex.awaitIndexed(10000L));
+		Assert.assertEquals(2, fullTextIndex.search("report", 0, 10).size());
+		Assert.assertEquals(ImmutableList.of("/c"), fullTextIndex.search("fox", 0, 10));
+	}
+
+	@Test
+	public void testRebuildReplacesIndex() throws Exception {
+		fullTextIndex.index(ImmutableList.of("/a", "/b", "/c"));
+		contentManager.delete("/a");
+		fullTextIndex.rebuild();
+		Assert.assertTrue(fullTextIndex.awaitIndexed(10000L));
+		Assert.assertEquals(ImmutableList.of("/b"), fullTextIndex.search("report", 0, 10));
+		Assert.assertEquals(ImmutableList.of("/c"), fullTextIndex.search("fox", 0, 10));
+	}
+
+	@Test
+	public void testQueueFull() throws Exception {
+		fullTextIndex.deactivate(null);
+		fullTextIndex = new LuceneFullTextIndex();
+		fullTextIndex.repository = memoryRepository.getRepository();
+		fullTextIndex.activate(ImmutableMap.of(LuceneFullTextIndex.INDEX_DIRECTORY,
+				(Object) indexDirectory.getPath(), LuceneFullTextIndex.QUEUE_SIZE, 1));
+		// changes that don't fit in the queue are indexed by a rebuild, not dropped.
+		for (String path : new String[] { "/a", "/b", "/c" }) {
+			Dictionary<String, Object> properties = new Hashtable<String, Object>();
+			properties.put(StoreListener.PATH_PROPERTY, path);
+			fullTextIndex.handleEvent(new Event(StoreListener.TOPIC_BASE + "content/"
+					+ StoreListener.UPDATED_TOPIC, properties));
+		}
+		Assert.assertTrue(fullTextIndex.awaitIndexed(10000L));
+		Assert.assertEquals(2, fullTextIndex.search("report", 0, 10).size());
+		Assert.assertEquals(ImmutableList.of("/c"), fullTextIndex.search("fox", 0, 10));
+	}
+
+	@Test(expected = StorageClientException.class)
+	public void testInvalidQuery() throws StorageClientException {
+		fullTextIndex.search("title:(", 0, 10);
+	}
+}
@@ -24,6 +24,7 @@ public class CacheHolder {
     private Map<String, Object> o;
     private long locker;
     private long ttl;
+    private long loader = -1;
 
     public CacheHolder(Map<String, Object> o) {
         this.o = o;
@@ -50,4 +51,25 @@ public class CacheHolder {
         return (locker == managerId);
     }
 
+    /**
+     * Record the manager that loaded the object from storage.
+     * @param managerId
+     * @return this holder
+     */
+    public CacheHolder loadedBy(long managerId) {
+        this.loader = managerId;
+        return this;
+    }
+
+    /**
+     * @param managerId
+     * @return true if the holder contains an object that the manager loaded from
+     *         storage itself recently enough to be treated as the current state of
+     *         storage, eg as the base of an update. An object loaded by another manager,
+     *         or on another node, may predate writes the manager has not seen.
+     */
+    public boolean isCurrent(long managerId) {
+        return o != null && loader == managerId && System.currentTimeMillis() < ttl;
+    }
+
 }
@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.api.lite;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import org.apache.commons.codec.binary.Base64;
@@ -41,6 +42,7 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -190,6 +192,27 @@ public class StorageClientUtils {
         return res;
     }
 
+    /**
+     * @param objectPath
+     * @return the insecure hashes of all the ancestors of the supplied path, nearest
+     *         first, empty for a root path.
+     * @since 1.5
+     */
+    public static String[] getAncestorHashes(String objectPath) {
+        List<String> ancestors = Lists.newArrayList();
+        String path = objectPath;
+        while (!isRoot(path)) {
+            String parent = getParentObjectPath(path);
+            if (parent.equals(path)) {
+                // a relative root with a trailing /
+                break;
+            }
+            path = parent;
+            ancestors.add(insecureHash(path));
+        }
+        return ancestors.toArray(new String[ancestors.size()]);
+    }
+
     /**
      * @param objectPath
      * @return the name of the supplied path, normally defiend as the last
@@ -32,5 +32,18 @@ public class StorageConstants {
      */
     public static final String RAWRESULTS = "_rawresults";
 
+    /**
+     * If present the query continues after the last item of the previous page rather than
+     * skipping {@link #PAGE} * {@link #ITEMS} rows. The value is the key of the last item
+     * returned, or a String[] of the key and the value of the sort property of that item.
+     * The key of a content item is its id. A null value asks for the first page of a
+     * continued find, which is ordered so that it can be continued. Unsorted finds without
+     * this property are not ordered.
+     * Only the first sort property is used when seeking. Drivers that can't seek ignore
+     * this property and page by {@link #PAGE}.
+     * @since 1.5
+     */
+    public static final String CONTINUATION = "_continuation";
+
 
 }
@@ -22,7 +22,9 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.lite.accesscontrol.PropertyAcl;
 
+import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Sparse Access Control manager that allows management and enforcement of ACLs
@@ -104,6 +106,26 @@ public interface AccessControlManager {
     void check(String objectType, String objectPath, Permission permission)
             throws AccessDeniedException, StorageClientException;
 
+    /**
+     * Check the current user has the permission on each of a number of
+     * objects. The ACLs of the objects are loaded together and permissions
+     * granted or denied by parent objects the objects share are only compiled
+     * once.
+     * 
+     * @param objectType
+     *            the object type @see {@link Security}
+     * @param objectPaths
+     *            the paths to the objects
+     * @param permission
+     *            the permission (may be aggregated) to check.
+     * @return the paths of the objects the user has the permission on, in the
+     *         order supplied.
+     * @throws StorageClientException
+     * @since 1.5
+     */
+    Set<String> checkAll(String objectType, Collection<String> objectPaths, Permission permission)
+            throws StorageClientException;
+
     /**
      * @return the current user ID associated with this AccessControlManager
      */
@@ -59,6 +59,12 @@ public class Authorizable {
      */
     public static final String MEMBERS_FIELD = "members";
 
+    /**
+     * The number of rows the members of a large group are stored in. When
+     * present, the members field is not used.
+     */
+    public static final String MEMBER_CHUNKS_FIELD = "memberChunks";
+
     /**
      * The ID of the authorizable.
      */
@@ -22,6 +22,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  * Service to manage authorizables.
@@ -40,6 +41,19 @@ public interface AuthorizableManager {
     Authorizable findAuthorizable(String authorizableId) throws AccessDeniedException,
             StorageClientException;
 
+    /**
+     * Find an Authorizable by ID without waiting for it, so that several reads can be
+     * made at the same time.
+     *
+     * @param authorizableId
+     *          ID of the authorizable to find.
+     * @return the authorizable object, null if none found, once read. Failures are
+     *         reported by {@link Future#get()} as an ExecutionException caused by the
+     *         exception {@link #findAuthorizable(String)} would have thrown.
+     * @since 1.5
+     */
+    Future<Authorizable> findAuthorizableAsync(String authorizableId);
+
     /**
      * Update an authorizable
      * @param authorizable the authorzable
@@ -33,7 +33,8 @@ import java.util.Set;
 /**
  * A group has a list of members that is maintained in the group. This is
  * reflected as principals in each member, managed by the AuthorizableManager,
- * only updated on save.
+ * only updated on save. The members of large groups are stored in chunks
+ * outside the group and are only loaded when needed.
  * 
  * @author ieb
  * 
@@ -45,6 +46,10 @@ public class Group extends Authorizable {
      */
     public static final String EVERYONE = "everyone";
     public static final Group EVERYONE_GROUP = getEveryone();
+    /**
+     * The members, null if the members are stored in chunks and have not been
+     * loaded.
+     */
     private Set<String> members;
     private Set<String> membersAdded;
     private Set<String> membersRemoved;
@@ -56,13 +61,21 @@ public class Group extends Authorizable {
 
     public Group(Map<String, Object> groupMap, Session session) throws StorageClientException, AccessDeniedException {
         super(groupMap, session);
-        this.members = Sets.newLinkedHashSet(Iterables.of(StringUtils.split(
-                (String) authorizableMap.get(MEMBERS_FIELD), ';')));
+        initMembers();
         this.membersAdded = Sets.newHashSet();
         this.membersRemoved = Sets.newHashSet();
         membersModified = true;
     }
 
+    private void initMembers() {
+        if (isMembersChunked()) {
+            this.members = null;
+        } else {
+            this.members = Sets.newLinkedHashSet(Iterables.of(StringUtils.split(
+                    (String) authorizableMap.get(MEMBERS_FIELD), ';')));
+        }
+    }
+
     private static Group getEveryone() {
         try {
             return new GroupInternal(ImmutableMap.of("id", (Object) EVERYONE), null, false, true);
@@ -87,7 +100,7 @@ public class Group extends Authorizable {
      */
     @Override
     public Map<String, Object> getPropertiesForUpdate() {
-        if (!readOnly && membersModified) {
+        if (!readOnly && membersModified && members != null && !isMembersChunked()) {
             modifiedMap.put(MEMBERS_FIELD, StringUtils.join(members, ';'));
         }
         Map<String, Object> propertiesForUpdate = super.getPropertiesForUpdate();
@@ -100,7 +113,7 @@ public class Group extends Authorizable {
     @Override
     // TODO: Unit test
     public Map<String, Object> getSafeProperties() {
-        if (!readOnly && membersModified) {
+        if (!readOnly && membersModified && members != null && !isMembersChunked()) {
             modifiedMap.put(MEMBERS_FIELD, StringUtils.join(members, ';'));
         }
         return super.getSafeProperties();
@@ -116,13 +129,110 @@ public class Group extends Authorizable {
     }
 
     public String[] getMembers() {
-        return members.toArray(new String[members.size()]);
+        Set<String> m = getMemberSet();
+        return m.toArray(new String[m.size()]);
+    }
+
+    /**
+     * Get a page of members. If the members are stored in chunks, only the
+     * chunks containing the page are loaded.
+     * 
+     * @param start
+     *            the index of the first member.
+     * @param count
+     *            the maximum number of members to return.
+     * @return the members in the page.
+     */
+    public String[] getMembers(int start, int count) {
+        if (members == null && membersAdded.isEmpty() && membersRemoved.isEmpty()) {
+            return loadMembers(start, count);
+        }
+        return page(getMemberSet(), start, count);
+    }
+
+    /**
+     * @param member
+     *            the id of the authorizable.
+     * @return true if the authorizable is a member of this group, including
+     *         unsaved changes. If the members are stored in chunks, only the
+     *         chunk for the member is loaded.
+     */
+    public boolean hasMember(String member) {
+        if (members != null) {
+            return members.contains(member);
+        }
+        if (membersAdded.contains(member)) {
+            return true;
+        }
+        if (membersRemoved.contains(member)) {
+            return false;
+        }
+        return isStoredMember(member);
+    }
+
+    /**
+     * @return true if the members of this group are stored in chunks outside
+     *         the group.
+     */
+    public boolean isMembersChunked() {
+        return authorizableMap.containsKey(MEMBER_CHUNKS_FIELD);
+    }
+
+    /**
+     * Load all the members stored in chunks. Only groups loaded by an
+     * AuthorizableManager can load chunks.
+     * 
+     * @return a mutable set of the stored members.
+     */
+    protected Set<String> loadMembers() {
+        LOGGER.warn("Unable to load the members of {}, they are stored in chunks ", id);
+        return Sets.newLinkedHashSet();
+    }
+
+    /**
+     * Load a page of the members stored in chunks.
+     * 
+     * @param start
+     * @param count
+     * @return the members in the page.
+     */
+    protected String[] loadMembers(int start, int count) {
+        return page(getMemberSet(), start, count);
+    }
+
+    /**
+     * @param member
+     * @return true if the member is in the stored chunks.
+     */
+    protected boolean isStoredMember(String member) {
+        return getMemberSet().contains(member);
+    }
+
+    private Set<String> getMemberSet() {
+        if (members == null) {
+            Set<String> loaded = loadMembers();
+            loaded.removeAll(membersRemoved);
+            loaded.addAll(membersAdded);
+            members = loaded;
+        }
+        return members;
+    }
+
+    private String[] page(Set<String> m, int start, int count) {
+        String[] all = m.toArray(new String[m.size()]);
+        int from = Math.max(0, Math.min(start, all.length));
+        int to = Math.max(from, Math.min(all.length, from + Math.max(0, count)));
+        String[] page = new String[to - from];
+        System.arraycopy(all, from, page, 0, page.length);
+        return page;
     }
 
     public void addMember(String member) {
-        if (!readOnly && !members.contains(member)) {
+        if (!readOnly && !hasMember(member)) {
             LOGGER.debug(" {} adding Member {} to {} ", new Object[] { this, member, members });
-            members.add(member);
+            if (members != null) {
+                members.add(member);
+            }
             membersAdded.add(member);
             membersRemoved.remove(member);
             membersModified = true;
@@ -133,9 +243,11 @@ public class Group extends Authorizable {
     }
 
     public void removeMember(String member) {
-        if (!readOnly && members.contains(member)) {
+        if (!readOnly && hasMember(member)) {
             LOGGER.debug(" {} removing Member {} to {} ", new Object[] { this, member, members });
-            members.remove(member);
+            if (members != null) {
+                members.remove(member);
+            }
             membersAdded.remove(member);
             membersRemoved.add(member);
             membersModified = true;
@@ -157,8 +269,7 @@ public class Group extends Authorizable {
         if (!readOnly) {
             super.reset(newMap);
             LOGGER.debug("{} reset ", new Object[] { this });
-            this.members = Sets.newLinkedHashSet(Iterables.of(StringUtils.split(
-                    (String) authorizableMap.get(MEMBERS_FIELD), ';')));
+            initMembers();
             membersAdded.clear();
             membersRemoved.clear();
             membersModified = false;
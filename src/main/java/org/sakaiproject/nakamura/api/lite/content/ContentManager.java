@@ -26,6 +26,7 @@ import java.io.InputStream;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  * Defines a ContentManager service for operating on content.
@@ -48,6 +49,19 @@ public interface ContentManager {
      */
     Content get(String path) throws StorageClientException, AccessDeniedException;
 
+    /**
+     * Get a content object from the store without waiting for it, so that several
+     * objects can be read at the same time.
+     * 
+     * @param path
+     *            the path to the content object.
+     * @return the content object or null if it doesn't exist, once read. Failures are
+     *         reported by {@link Future#get()} as an ExecutionException caused by the
+     *         exception {@link #get(String)} would have thrown.
+     * @since 1.5
+     */
+    Future<Content> getAsync(String path);
+
     /**
      * Perform a search for content matching the given properties
      * 
@@ -67,6 +81,92 @@ public interface ContentManager {
      */
     int count(Map<String, Object> countSearch) throws StorageClientException;
 
+    /**
+     * Counts the content items with each value of a property, ignoring access control as
+     * {@link #count(Map)} does. Each value of a multi valued property is counted, so this
+     * may be used to build a tag cloud.
+     * @param searchProperties Map the same as the finder, if empty all content is counted.
+     * @param property the property whose values are counted.
+     * @param limit the maximum number of values to return.
+     * @return the values with the number of items that have them, most frequent first.
+     * @since 1.5
+     */
+    Map<String, Long> countValues(Map<String, Object> searchProperties, String property, int limit) throws StorageClientException;
+
+    /**
+     * Finds the smallest and largest value of a property, ignoring access control as
+     * {@link #count(Map)} does.
+     * @param searchProperties Map the same as the finder, if empty all content is used.
+     * @param property the property.
+     * @return the smallest and the largest value, both null if no item has a value.
+     * @since 1.5
+     */
+    Object[] range(Map<String, Object> searchProperties, String property) throws StorageClientException;
+
+    /**
+     * Find the content items below a path, at any depth, with a single query on the
+     * ancestor index rather than a walk of the children.
+     * @param path the path of the subtree, which is not itself included.
+     * @param searchProperties Map the same as the finder, further restricting the items.
+     *        Paging and sorting properties are passed on to the finder.
+     * @return the readable items below the path.
+     * @since 1.5
+     */
+    Iterable<Content> findDescendants(String path, Map<String, Object> searchProperties) throws StorageClientException, AccessDeniedException;
+
+    /**
+     * Counts the content items below a path, at any depth, ignoring access control as
+     * {@link #count(Map)} does.
+     * @param path the path of the subtree, which is not itself counted.
+     * @param searchProperties Map the same as the finder, further restricting the items.
+     * @return the number of items below the path.
+     * @since 1.5
+     */
+    long countDescendants(String path, Map<String, Object> searchProperties) throws StorageClientException;
+
+    /**
+     * Get the number of children of a path, as listed by {@link #listChildPaths(String)}
+     * including links. The count is kept on the path as children are created, deleted,
+     * moved and linked, so the children are only iterated the first time a path saved
+     * before children were counted is read. Access control on the children is ignored as
+     * {@link #count(Map)} does.
+     * @param path the path of the parent.
+     * @return the number of children, 0 if there is no content at the path.
+     * @throws AccessDeniedException if the user can't read the path.
+     * @since 1.5
+     */
+    long getChildCount(String path) throws StorageClientException, AccessDeniedException;
+
+    /**
+     * List one page of the children of a path, sorted and paged by the index rather than
+     * by loading all the children. Links are listed with the content they point to, not
+     * under the parent of the link.
+     * @param path the path of the parent.
+     * @param sort the indexed properties to sort on, as for
+     *        {@link org.sakaiproject.nakamura.api.lite.StorageConstants#SORT}, null if
+     *        the order does not matter.
+     * @param page the page, starting at 0.
+     * @param items the number of children on a page.
+     * @return the readable children on the page.
+     * @since 1.5
+     */
+    Iterator<Content> listChildren(String path, String sort, int page, int items) throws StorageClientException, AccessDeniedException;
+
+    /**
+     * List the page of the children of a path that follows a child, seeking in the index
+     * rather than skipping the earlier pages.
+     * @param path the path of the parent.
+     * @param sort the indexed properties to sort on, as for
+     *        {@link org.sakaiproject.nakamura.api.lite.StorageConstants#SORT}, null if
+     *        the order does not matter.
+     * @param continuation the id of the last child of the previous page, null for the first
+     *        page.
+     * @param items the number of children on a page.
+     * @return the readable children on the page.
+     * @since 1.5
+     */
+    Iterator<Content> listChildren(String path, String sort, String continuation, int items) throws StorageClientException, AccessDeniedException;
+
     /**
      * Save the current version of the content object including metadata and
      * file bodies as a read only snapshot
@@ -335,6 +435,15 @@ public interface ContentManager {
      */
     Iterator<String> listChildPaths(String path) throws StorageClientException;
 
+    /**
+     * Gets a lazy iterator of the paths of all content, read with a scan of the store
+     * rather than by walking the tree. Only the admin user may list all content.
+     * @return
+     * @throws StorageClientException
+     * @throws AccessDeniedException if the user is not the admin user.
+     */
+    Iterator<String> listAllPaths() throws StorageClientException, AccessDeniedException;
+
     /**
      * Get a lazy iterator of child content objects.
      * @param path
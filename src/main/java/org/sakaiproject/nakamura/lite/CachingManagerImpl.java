@@ -19,6 +19,10 @@ package org.sakaiproject.nakamura.lite;
 
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.storage.spi.AsyncStorageClient;
+import org.sakaiproject.nakamura.lite.storage.spi.AsyncStorageClient.ClientTask;
+import org.sakaiproject.nakamura.lite.storage.spi.DeltaWriter;
 import org.sakaiproject.nakamura.lite.storage.spi.DirectCacheAccess;
 import org.sakaiproject.nakamura.lite.storage.spi.Disposable;
 import org.sakaiproject.nakamura.lite.storage.spi.Disposer;
@@ -28,7 +32,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.security.SecureRandom;
+import java.util.Collection;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
 
 /**
  * Extend this class to add caching to a Manager class.
@@ -36,10 +52,25 @@ import java.util.Map;
 public abstract class CachingManagerImpl implements DirectCacheAccess {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CachingManagerImpl.class);
+    /**
+     * How long a thread will wait for another thread to load the same row
+     * before loading it itself.
+     */
+    private static final long MAX_LOAD_WAIT = 10000L;
+    /**
+     * Loads in progress, by shared cache then cache key. Shared caches are
+     * compared by identity.
+     */
+    private static final ConcurrentMap<Map<String, CacheHolder>, ConcurrentMap<String, PendingLoad>> inFlight = new MapMaker()
+            .weakKeys().makeMap();
+    private static final AtomicLong totalLoads = new AtomicLong();
+    private static final AtomicLong totalCoalescedLoads = new AtomicLong();
     private Map<String, CacheHolder> sharedCache;
     private StorageClient client;
+    private AsyncStorageClient asyncClient;
     private int hit;
     private int miss;
+    private int coalesced;
     private long calls;
     private long managerId;
     private static SecureRandom secureRandom = new SecureRandom(); // need to assume that the secure random will be reasonably quick to start up
@@ -55,6 +86,32 @@ public abstract class CachingManagerImpl implements DirectCacheAccess {
         managerId = getManagerId();
     }
 
+    /**
+     * @param asyncClient the client used to run the asynchronous operations of this
+     *            manager, if null they run on the calling thread.
+     */
+    public void setAsyncClient(AsyncStorageClient asyncClient) {
+        this.asyncClient = asyncClient;
+    }
+
+    /**
+     * Run a task against the store without waiting for it. This manager and its client
+     * are only used by one thread, so the task is given a client of its own by the async
+     * client, or runs immediately with the client of this manager if there is none.
+     * @param task
+     * @return the Future result of the task.
+     */
+    protected <T> Future<T> submit(ClientTask<T> task) {
+        if (asyncClient != null) {
+            return asyncClient.submit(task);
+        }
+        try {
+            return Futures.immediateFuture(task.call(client));
+        } catch (Exception e) {
+            return Futures.<T> immediateFailedFuture(e);
+        }
+    }
+
     private long getManagerId() {
         // needs to have a low probability of clashing with any other Cache manager in the cluster.
         // no idea what the probability of a clash is here, although I assume its lowish.
@@ -84,20 +141,219 @@ public abstract class CachingManagerImpl implements DirectCacheAccess {
             }
         }
         if (m == null) {
-            m = client.get(keySpace, columnFamily, key);
-            miss++;
-            if (m != null) {
-                LOGGER.debug("Cache Miss, Found Map {} {}", cacheKey, m);
-            }
-            putToCacheInternal(cacheKey, new CacheHolder(m), true);
+            m = loadCached(keySpace, columnFamily, key, cacheKey);
         }
         calls++;
         if ((calls % 10000) == 0) {
-            getLogger().info("Cache Stats Hits {} Misses {}  hit% {}", new Object[] { hit, miss,
-                    ((100 * hit) / (hit + miss)) });
+            getLogger().info("Cache Stats Hits {} Misses {} Coalesced {} hit% {}", new Object[] { hit, miss,
+                    coalesced, ((100 * hit) / Math.max(1, hit + miss)) });
+        }
+        return m;
+    }
+
+    /**
+     * Get a row from the cache, or read it with the client given if it is not cached.
+     * Neither the cache nor the statistics of this manager are updated, so this can be
+     * used by a task with its own client.
+     */
+    protected Map<String, Object> getCached(StorageClient storageClient, String keySpace,
+            String columnFamily, String key) throws StorageClientException {
+        CacheHolder cacheHolder = getFromCacheInternal(getCacheKey(keySpace, columnFamily, key));
+        if (cacheHolder != null) {
+            Map<String, Object> m = cacheHolder.get();
+            if (m != null) {
+                return m;
+            }
+        }
+        totalLoads.incrementAndGet();
+        return storageClient.get(keySpace, columnFamily, key);
+    }
+
+    /**
+     * Load a row that was not in the cache. If another thread is already
+     * loading the same row into the same cache, wait for its result rather
+     * than load the row again. A load that a write makes stale is neither
+     * cached nor shared.
+     */
+    private Map<String, Object> loadCached(String keySpace, String columnFamily, String key,
+            String cacheKey) throws StorageClientException {
+        if (sharedCache == null) {
+            return load(keySpace, columnFamily, key, cacheKey);
+        }
+        ConcurrentMap<String, PendingLoad> loads = getInFlight(sharedCache);
+        PendingLoad pending = new PendingLoad();
+        PendingLoad existing = loads.putIfAbsent(cacheKey, pending);
+        if (existing != null) {
+            if (existing.await()) {
+                coalesced++;
+                totalCoalescedLoads.incrementAndGet();
+                LOGGER.debug("Cache Miss, Coalesced with load in progress {} ", cacheKey);
+                return existing.result;
+            }
+            // the other load failed, is taking too long or was made stale by a write,
+            // another load may be in progress so dont cache this one.
+            return read(keySpace, columnFamily, key, cacheKey);
+        }
+        try {
+            Map<String, Object> m = read(keySpace, columnFamily, key, cacheKey);
+            if (!pending.isStale()) {
+                CacheHolder cacheHolder = new CacheHolder(m).loadedBy(managerId);
+                putToCacheInternal(cacheKey, cacheHolder, true);
+                if (pending.isStale()) {
+                    // a write completed while the row was being cached, the write removes
+                    // the cached row after marking this load, so it may have missed it.
+                    removeFromCacheInternal(cacheKey, cacheHolder);
+                } else {
+                    pending.loaded(m);
+                }
+            }
+            return m;
+        } finally {
+            loads.remove(cacheKey, pending);
+            pending.release();
+        }
+    }
+
+    private Map<String, Object> load(String keySpace, String columnFamily, String key,
+            String cacheKey) throws StorageClientException {
+        Map<String, Object> m = read(keySpace, columnFamily, key, cacheKey);
+        putToCacheInternal(cacheKey, new CacheHolder(m).loadedBy(managerId), true);
+        return m;
+    }
+
+    private Map<String, Object> read(String keySpace, String columnFamily, String key,
+            String cacheKey) throws StorageClientException {
+        Map<String, Object> m = client.get(keySpace, columnFamily, key);
+        miss++;
+        totalLoads.incrementAndGet();
+        if (m != null) {
+            LOGGER.debug("Cache Miss, Found Map {} {}", cacheKey, m);
         }
         return m;
     }
+
+    /**
+     * Mark any load of the row in progress as stale, so that what it read
+     * before a write is neither cached nor shared with other threads. Must
+     * be called after the write and before the cached row is removed.
+     */
+    private void invalidateLoad(String cacheKey) {
+        PendingLoad pending = getInFlight(sharedCache).get(cacheKey);
+        if (pending != null) {
+            pending.invalidate();
+        }
+    }
+
+    /**
+     * Retrieve a number of objects, loading all those not in the cache in one
+     * operation against the store and adding them to the cache.
+     * @param keySpace the key space we're operating in.
+     * @param columnFamily the column family for the objects
+     * @param keys the object keys
+     * @return a map of key to object, in the order of the keys. Objects that
+     *         don't exist are null or empty.
+     * @throws StorageClientException
+     */
+    protected Map<String, Map<String, Object>> getAllCached(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        Map<String, Map<String, Object>> result = Maps.newLinkedHashMap();
+        Map<String, String> toLoad = Maps.newLinkedHashMap();
+        for (String key : keys) {
+            String cacheKey = getCacheKey(keySpace, columnFamily, key);
+            CacheHolder cacheHolder = getFromCacheInternal(cacheKey);
+            Map<String, Object> m = null;
+            if (cacheHolder != null) {
+                m = cacheHolder.get();
+            }
+            if (m != null) {
+                hit++;
+            } else {
+                toLoad.put(key, cacheKey);
+            }
+            result.put(key, m);
+        }
+        if (toLoad.size() > 0) {
+            Map<String, Map<String, Object>> loaded = client.getAll(keySpace, columnFamily,
+                    toLoad.keySet());
+            for (Entry<String, String> e : toLoad.entrySet()) {
+                Map<String, Object> m = loaded.get(e.getKey());
+                miss++;
+                totalLoads.incrementAndGet();
+                putToCacheInternal(e.getValue(), new CacheHolder(m).loadedBy(managerId), true);
+                result.put(e.getKey(), m);
+            }
+        }
+        return result;
+    }
+
+    private static ConcurrentMap<String, PendingLoad> getInFlight(Map<String, CacheHolder> cache) {
+        ConcurrentMap<String, PendingLoad> loads = inFlight.get(cache);
+        if (loads == null) {
+            loads = new ConcurrentHashMap<String, PendingLoad>();
+            ConcurrentMap<String, PendingLoad> existing = inFlight.putIfAbsent(cache, loads);
+            if (existing != null) {
+                loads = existing;
+            }
+        }
+        return loads;
+    }
+
+    /**
+     * @return the number of rows loaded from storage on a cache miss, by all
+     *         caching managers.
+     */
+    public static long getTotalLoads() {
+        return totalLoads.get();
+    }
+
+    /**
+     * @return the number of cache misses that were satisfied by waiting for
+     *         another thread loading the same row, by all caching managers.
+     */
+    public static long getTotalCoalescedLoads() {
+        return totalCoalescedLoads.get();
+    }
+
+    /**
+     * A load of a row in progress.
+     */
+    private static final class PendingLoad {
+        private final CountDownLatch done = new CountDownLatch(1);
+        // published to other threads by the latch.
+        private Map<String, Object> result;
+        private boolean loaded;
+        private volatile boolean stale;
+
+        private void loaded(Map<String, Object> result) {
+            this.result = result;
+            this.loaded = true;
+        }
+
+        private void release() {
+            done.countDown();
+        }
+
+        private void invalidate() {
+            stale = true;
+        }
+
+        private boolean isStale() {
+            return stale;
+        }
+
+        /**
+         * @return true if the row was loaded, false if the load failed, was
+         *         made stale or did not complete in time.
+         */
+        private boolean await() {
+            try {
+                return done.await(MAX_LOAD_WAIT, TimeUnit.MILLISECONDS) && loaded && !stale;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
     public void putToCache(String cacheKey, CacheHolder cacheHolder) {
         putToCache(cacheKey, cacheHolder, false);
     }
@@ -120,6 +376,18 @@ public abstract class CachingManagerImpl implements DirectCacheAccess {
             sharedCache.put(cacheKey, cacheHolder);
         }
     }
+
+    /**
+     * Remove a cached row, only if it is still the one given.
+     */
+    private void removeFromCacheInternal(String cacheKey, CacheHolder cacheHolder) {
+        if (sharedCache instanceof ConcurrentMap) {
+            ((ConcurrentMap<String, CacheHolder>) sharedCache).remove(cacheKey, cacheHolder);
+        } else if (sharedCache.get(cacheKey) == cacheHolder) {
+            sharedCache.remove(cacheKey);
+        }
+    }
+
     public CacheHolder getFromCache(String cacheKey) {
         if ( client instanceof RowHasher ) {
             return getFromCacheInternal(cacheKey);
@@ -127,7 +395,8 @@ public abstract class CachingManagerImpl implements DirectCacheAccess {
         return null;
     }
     private CacheHolder getFromCacheInternal(String cacheKey) {
-        if (sharedCache != null && sharedCache.containsKey(cacheKey)) {
+        if (sharedCache != null) {
+            // the cache never holds null values, so a single get is enough.
             return sharedCache.get(cacheKey);
         }
         return null;
@@ -143,7 +412,7 @@ public abstract class CachingManagerImpl implements DirectCacheAccess {
      * @return the cache key
      * @throws StorageClientException 
      */
-    private String getCacheKey(String keySpace, String columnFamily, String key) throws StorageClientException {
+    protected String getCacheKey(String keySpace, String columnFamily, String key) throws StorageClientException {
         if ( client instanceof RowHasher) {
             return ((RowHasher) client).rowHash(keySpace, columnFamily, key);
         }
@@ -188,7 +457,10 @@ public abstract class CachingManagerImpl implements DirectCacheAccess {
             }
         }
         client.remove(keySpace, columnFamily, key);
-
+        if (sharedCache != null) {
+            // the deleted marker stops a load in progress caching the row, but it must not be shared either.
+            invalidateLoad(getCacheKey(keySpace, columnFamily, key));
+        }
     }
 
     /**
@@ -203,12 +475,39 @@ public abstract class CachingManagerImpl implements DirectCacheAccess {
     protected void putCached(String keySpace, String columnFamily, String key,
             Map<String, Object> encodedProperties, boolean probablyNew)
             throws StorageClientException {
+        putCached(keySpace, columnFamily, key, encodedProperties, probablyNew, null);
+    }
+
+    /**
+     * Put an object in the cache, keeping the count of the children of its parent.
+     * @param keySpace
+     * @param columnFamily
+     * @param key
+     * @param encodedProperties the object to be stored
+     * @param probablyNew whether or not this object is new.
+     * @param countProperty the property of the parent holding the count, null if the
+     *            parent does not count its children.
+     * @throws StorageClientException
+     * @see StorageClient#insertChild(String, String, String, Map, boolean, String)
+     */
+    protected void putCached(String keySpace, String columnFamily, String key,
+            Map<String, Object> encodedProperties, boolean probablyNew, String countProperty)
+            throws StorageClientException {
         String cacheKey = null;
         if ( sharedCache != null ) {
             cacheKey = getCacheKey(keySpace, columnFamily, key);
         }
+        Map<String, Object> currentRow = null;
         if ( sharedCache != null && !probablyNew ) {
             CacheHolder ch = getFromCacheInternal(cacheKey);
+            if ( ch != null && ch.isCurrent(this.managerId) ) {
+                // this manager loaded the cached copy from storage recently and a write
+                // through any caching manager since would have removed it, so the client
+                // can apply the changes to it rather than read the row again. Copies loaded
+                // by other managers may predate writes this manager has not seen, so the
+                // row is read again for those.
+                currentRow = ch.get();
+            }
             if ( ch != null && ch.isLocked(this.managerId) ) {
                 LOGGER.debug("Is Locked {} ",ch);
                 return; // catch the case where another method creates while something is in the cache.
@@ -233,11 +532,55 @@ public abstract class CachingManagerImpl implements DirectCacheAccess {
         }
         LOGGER.debug("Saving {} {} {} {} ", new Object[] { keySpace, columnFamily, key,
                 encodedProperties });
-        client.insert(keySpace, columnFamily, key, encodedProperties, probablyNew);
+        if ( countProperty != null ) {
+            // the row is read again under the lock on its parent.
+            client.insertChild(keySpace, columnFamily, key, encodedProperties, probablyNew,
+                    countProperty);
+        } else if ( currentRow != null && client instanceof DeltaWriter ) {
+            ((DeltaWriter) client).insert(keySpace, columnFamily, key, encodedProperties,
+                    probablyNew, currentRow);
+        } else {
+            client.insert(keySpace, columnFamily, key, encodedProperties, probablyNew);
+        }
         if ( sharedCache != null ) {
             // if we just added a value in, remove the key so that any stale state (including a previously deleted object is removed)
+            invalidateLoad(cacheKey);
+            sharedCache.remove(cacheKey);
+            if ( countProperty != null && !StorageClientUtils.isRoot(key) ) {
+                // the count on the parent may have changed too.
+                String parentCacheKey = getCacheKey(keySpace, columnFamily,
+                        StorageClientUtils.getParentObjectPath(key));
+                invalidateLoad(parentCacheKey);
+                sharedCache.remove(parentCacheKey);
+            }
+        }
+    }
+
+    /**
+     * Get the number of children held in a property of an object, counting them when the
+     * object has no count yet. The count is read from the store, a cached copy of the row
+     * may have been loaded before the last child was written.
+     * @param keySpace
+     * @param columnFamily
+     * @param key
+     * @param countProperty the property holding the count.
+     * @return the number of children.
+     * @throws StorageClientException
+     * @see StorageClient#recountChildren(String, String, String, String)
+     */
+    protected long countChildrenCached(String keySpace, String columnFamily, String key,
+            String countProperty) throws StorageClientException {
+        Object count = client.get(keySpace, columnFamily, key).get(countProperty);
+        if ( count instanceof Number ) {
+            return ((Number) count).longValue();
+        }
+        long childCount = client.recountChildren(keySpace, columnFamily, key, countProperty);
+        if ( sharedCache != null ) {
+            String cacheKey = getCacheKey(keySpace, columnFamily, key);
+            invalidateLoad(cacheKey);
             sharedCache.remove(cacheKey);
         }
+        return childCount;
     }
 
 }
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Future that converts the result of another when it is first got, on the thread that
+ * gets it, so that the conversion can use objects that belong to that thread, such as
+ * the managers of a session. Failures of the conversion are reported as an
+ * ExecutionException.
+ */
+public abstract class ConvertingFuture<I, O> implements Future<O> {
+
+    private Future<I> future;
+    private boolean converted;
+    private O result;
+
+    public ConvertingFuture(Future<I> future) {
+        this.future = future;
+    }
+
+    /**
+     * @param input the result of the wrapped Future.
+     * @return the converted result.
+     */
+    protected abstract O convert(I input) throws Exception;
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return future.cancel(mayInterruptIfRunning);
+    }
+
+    public boolean isCancelled() {
+        return future.isCancelled();
+    }
+
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    public O get() throws InterruptedException, ExecutionException {
+        return convertOnce(future.get());
+    }
+
+    public O get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        return convertOnce(future.get(timeout, unit));
+    }
+
+    private synchronized O convertOnce(I input) throws ExecutionException {
+        if (!converted) {
+            try {
+                result = convert(input);
+            } catch (Exception e) {
+                throw new ExecutionException(e);
+            }
+            converted = true;
+        }
+        return result;
+    }
+
+}
@@ -117,87 +117,83 @@ public class RepositoryImpl implements Repository {
 
     private Session openSession(String username, String password) throws StorageClientException,
             AccessDeniedException {
-        StorageClient client = null;
+        SessionStorageClient client = new SessionStorageClient(clientPool);
         try {
-            client = clientPool.getClient();
             AuthenticatorImpl authenticatorImpl = new AuthenticatorImpl(client, configuration);
             User currentUser = authenticatorImpl.authenticate(username, password);
             if (currentUser == null) {
                 throw new StorageClientException("User " + username + " cant login with password");
             }
-            return new SessionImpl(this, currentUser, client, configuration,
-                    clientPool.getStorageCacheManager(), storeListener, principalValidatorResolver);
-        } catch (ClientPoolException e) {
-            clientPool.getClient();
-            throw e;
+            return newSession(currentUser, client);
         } catch (StorageClientException e) {
-            clientPool.getClient();
+            client.close();
             throw e;
         } catch (AccessDeniedException e) {
-            clientPool.getClient();
+            client.close();
             throw e;
         } catch (Throwable e) {
-            clientPool.getClient();
+            client.close();
             throw new StorageClientException(e.getMessage(), e);
         }
     }
 
     private Session openSession(String username) throws StorageClientException,
             AccessDeniedException {
-        StorageClient client = null;
+        SessionStorageClient client = new SessionStorageClient(clientPool);
         try {
-            client = clientPool.getClient();
             AuthenticatorImpl authenticatorImpl = new AuthenticatorImpl(client, configuration);
             User currentUser = authenticatorImpl.systemAuthenticate(username);
             if (currentUser == null) {
                 throw new StorageClientException("User " + username
                         + " does not exist, cant login administratively as this user");
             }
-            return new SessionImpl(this, currentUser, client, configuration,
-                    clientPool.getStorageCacheManager(), storeListener, principalValidatorResolver);
-        } catch (ClientPoolException e) {
-            clientPool.getClient();
-            throw e;
+            return newSession(currentUser, client);
         } catch (StorageClientException e) {
-            clientPool.getClient();
+            client.close();
             throw e;
         } catch (AccessDeniedException e) {
-            clientPool.getClient();
+            client.close();
             throw e;
         } catch (Throwable e) {
-            clientPool.getClient();
+            client.close();
             throw new StorageClientException(e.getMessage(), e);
         }
     }
 
     private Session openSessionBypassEnable(String username) throws StorageClientException,
             AccessDeniedException {
-        StorageClient client = null;
+        SessionStorageClient client = new SessionStorageClient(clientPool);
         try {
-            client = clientPool.getClient();
             AuthenticatorImpl authenticatorImpl = new AuthenticatorImpl(client, configuration);
             User currentUser = authenticatorImpl.systemAuthenticateBypassEnable(username);
             if (currentUser == null) {
                 throw new StorageClientException("User " + username
                         + " does not exist, cant login administratively as this user");
             }
-            return new SessionImpl(this, currentUser, client, configuration,
-                    clientPool.getStorageCacheManager(), storeListener, principalValidatorResolver);
-        } catch (ClientPoolException e) {
-            clientPool.getClient();
-            throw e;
+            return newSession(currentUser, client);
         } catch (StorageClientException e) {
-            clientPool.getClient();
+            client.close();
             throw e;
         } catch (AccessDeniedException e) {
-            clientPool.getClient();
+            client.close();
             throw e;
         } catch (Throwable e) {
-            clientPool.getClient();
+            client.close();
             throw new StorageClientException(e.getMessage(), e);
         }
     }
 
+    /**
+     * The session borrows a client from the pool when it first uses the store and gives it
+     * back when it has finished with it, so a client is not held for the whole session.
+     */
+    private Session newSession(User currentUser, SessionStorageClient client)
+            throws StorageClientException, AccessDeniedException {
+        return new SessionImpl(this, currentUser, client, clientPool.getAsyncClient(),
+                configuration, clientPool.getStorageCacheManager(), storeListener,
+                principalValidatorResolver);
+    }
+
     public void setConfiguration(Configuration configuration) {
         this.configuration = configuration;
     }
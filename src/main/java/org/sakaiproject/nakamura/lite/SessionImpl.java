@@ -38,6 +38,7 @@ import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableManagerImpl;
 import org.sakaiproject.nakamura.lite.content.ContentManagerImpl;
 import org.sakaiproject.nakamura.lite.lock.LockManagerImpl;
+import org.sakaiproject.nakamura.lite.storage.spi.AsyncStorageClient;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
 
 import com.google.common.collect.Maps;
@@ -51,85 +52,119 @@ public class SessionImpl implements Session {
     private User currentUser;
     private Repository repository;
     private Exception closedAt;
-    private StorageClient client;
+    private SessionStorageClient client;
     private Authenticator authenticator;
     private StoreListener storeListener;
     private Map<String, CommitHandler> commitHandlers = Maps.newLinkedHashMap();
     private StorageCacheManager storageCacheManager;
     private Configuration configuration;
-
-    public SessionImpl(Repository repository, User currentUser, StorageClient client,
-            Configuration configuration, StorageCacheManager storageCacheManager,
-            StoreListener storeListener, PrincipalValidatorResolver principalValidatorResolver)
-            throws ClientPoolException, StorageClientException, AccessDeniedException {
+    private AsyncStorageClient asyncClient;
+    private PrincipalValidatorResolver principalValidatorResolver;
+
+    /**
+     * The managers are created when first used, since many sessions only use one or two of
+     * them, and share a client that is only borrowed from the pool while it is in use.
+     */
+    SessionImpl(Repository repository, User currentUser, SessionStorageClient client,
+            AsyncStorageClient asyncClient, Configuration configuration,
+            StorageCacheManager storageCacheManager, StoreListener storeListener,
+            PrincipalValidatorResolver principalValidatorResolver) throws ClientPoolException,
+            StorageClientException, AccessDeniedException {
         this.currentUser = currentUser;
         this.repository = repository;
         this.client = client;
-        accessControlManager = new AccessControlManagerImpl(client, currentUser, configuration,
-                BaseColumnFamilyCacheManager.getCache(configuration,
-                        configuration.getAclColumnFamily(), storageCacheManager), storeListener,
-                principalValidatorResolver);
-        authorizableManager = new AuthorizableManagerImpl(currentUser, this, client, configuration,
-                accessControlManager, BaseColumnFamilyCacheManager.getCache(configuration,
-                        configuration.getAuthorizableColumnFamily(), storageCacheManager),
-                storeListener);
-
-        contentManager = new ContentManagerImpl(client, accessControlManager, configuration,
-                BaseColumnFamilyCacheManager.getCache(configuration,
-                        configuration.getContentColumnFamily(), storageCacheManager), storeListener);
-
-        lockManager = new LockManagerImpl(client, configuration, currentUser,
-                BaseColumnFamilyCacheManager.getCache(configuration,
-                        configuration.getLockColumnFamily(), storageCacheManager));
-
-        authenticator = new AuthenticatorImpl(client, configuration);
-
+        this.asyncClient = asyncClient;
         this.storeListener = storeListener;
         this.storageCacheManager = storageCacheManager;
         this.configuration = configuration;
+        this.principalValidatorResolver = principalValidatorResolver;
         storeListener.onLogin(currentUser.getId(), this.toString());
     }
 
     public void logout() throws ClientPoolException {
         if (closedAt == null) {
             commit();
-            accessControlManager.close();
-            authorizableManager.close();
-            contentManager.close();
-            lockManager.close();
-            client.close();
-            accessControlManager = null;
-            authorizableManager = null;
-            contentManager = null;
-            client = null;
-            authenticator = null;
-            closedAt = new Exception("This session was closed at:");
+            synchronized (this) {
+                if (accessControlManager != null) {
+                    accessControlManager.close();
+                }
+                if (authorizableManager != null) {
+                    authorizableManager.close();
+                }
+                if (contentManager != null) {
+                    contentManager.close();
+                }
+                if (lockManager != null) {
+                    lockManager.close();
+                }
+                client.close();
+                accessControlManager = null;
+                authorizableManager = null;
+                contentManager = null;
+                lockManager = null;
+                client = null;
+                authenticator = null;
+                closedAt = new Exception("This session was closed at:");
+            }
             storeListener.onLogout(currentUser.getId(), this.toString());
         }
     }
 
-    public AccessControlManagerImpl getAccessControlManager() throws StorageClientException {
+    public synchronized AccessControlManagerImpl getAccessControlManager() throws StorageClientException {
         check();
+        if (accessControlManager == null) {
+            accessControlManager = new AccessControlManagerImpl(client, currentUser,
+                    configuration, BaseColumnFamilyCacheManager.getCache(configuration,
+                            configuration.getAclColumnFamily(), storageCacheManager),
+                    storeListener, principalValidatorResolver);
+        }
         return accessControlManager;
     }
 
-    public AuthorizableManagerImpl getAuthorizableManager() throws StorageClientException {
+    public synchronized AuthorizableManagerImpl getAuthorizableManager() throws StorageClientException {
         check();
+        if (authorizableManager == null) {
+            try {
+                authorizableManager = new AuthorizableManagerImpl(currentUser, this, client,
+                        configuration, getAccessControlManager(),
+                        BaseColumnFamilyCacheManager.getCache(configuration,
+                                configuration.getAuthorizableColumnFamily(), storageCacheManager),
+                        storeListener);
+            } catch (AccessDeniedException e) {
+                throw new StorageClientException(e.getMessage(), e);
+            }
+            authorizableManager.setAsyncClient(asyncClient);
+        }
         return authorizableManager;
     }
 
-    public ContentManagerImpl getContentManager() throws StorageClientException {
+    public synchronized ContentManagerImpl getContentManager() throws StorageClientException {
         check();
+        if (contentManager == null) {
+            contentManager = new ContentManagerImpl(client, getAccessControlManager(),
+                    configuration, BaseColumnFamilyCacheManager.getCache(configuration,
+                            configuration.getContentColumnFamily(), storageCacheManager),
+                    storeListener);
+            contentManager.setAsyncClient(asyncClient);
+        }
         return contentManager;
     }
 
-    public LockManagerImpl getLockManager() throws StorageClientException {
+    public synchronized LockManagerImpl getLockManager() throws StorageClientException {
         check();
+        if (lockManager == null) {
+            lockManager = new LockManagerImpl(client, configuration, currentUser,
+                    BaseColumnFamilyCacheManager.getCache(configuration,
+                            configuration.getLockColumnFamily(), storageCacheManager));
+        }
         return lockManager;
     }
 
-    public Authenticator getAuthenticator() throws StorageClientException {
+    public synchronized Authenticator getAuthenticator() throws StorageClientException {
         check();
+        if (authenticator == null) {
+            authenticator = new AuthenticatorImpl(client, configuration);
+        }
         return authenticator;
     }
 
@@ -148,8 +183,14 @@ public class SessionImpl implements Session {
         }
     }
 
-    public StorageClient getClient() {
-        return client;
+    /**
+     * @return the client borrowed by this session, which is held until the session is
+     *         logged out.
+     * @throws StorageClientException
+     */
+    public StorageClient getClient() throws StorageClientException {
+        check();
+        return client.pin();
     }
 
     public void addCommitHandler(String key, CommitHandler commitHandler) {
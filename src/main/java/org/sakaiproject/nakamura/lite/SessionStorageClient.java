@@ -0,0 +1,468 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.lite.storage.spi.DeltaWriter;
+import org.sakaiproject.nakamura.lite.storage.spi.DirectCacheAccess;
+import org.sakaiproject.nakamura.lite.storage.spi.Disposable;
+import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
+import org.sakaiproject.nakamura.lite.storage.spi.Disposer;
+import org.sakaiproject.nakamura.lite.storage.spi.RowHasher;
+import org.sakaiproject.nakamura.lite.storage.spi.SparseRow;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClientListener;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClientPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The {@link StorageClient} of a session. A client is borrowed from the pool when the
+ * session first uses the store, and given back when no operation is in progress and no
+ * iterator or stream it returned is still open, so a session only holds a client while it
+ * is using one. Disposables registered with the session are disposed when it is closed.
+ * Row hashes and delta writes are passed to the borrowed client where it supports them, so
+ * the managers of the session cache rows as they would on the client itself.
+ */
+class SessionStorageClient implements StorageClient, RowHasher, DeltaWriter, Disposer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionStorageClient.class);
+    private StorageClientPool clientPool;
+    private StorageClient client;
+    /**
+     * The number of operations in progress and iterators and streams open on the client.
+     */
+    private int references;
+    /**
+     * If true the client is held until the session is closed.
+     */
+    private boolean pinned;
+    private boolean closed;
+    private StorageClientListener storageClientListener;
+    private List<Disposable> toDispose = Lists.newArrayList();
+
+    SessionStorageClient(StorageClientPool clientPool) {
+        this.clientPool = clientPool;
+    }
+
+    /**
+     * Borrow a client if none is held, and reference it until it is released.
+     * @return the client.
+     * @throws StorageClientException
+     */
+    private synchronized StorageClient acquire() throws StorageClientException {
+        if (closed) {
+            throw new StorageClientException("Session client has been closed");
+        }
+        if (client == null) {
+            client = clientPool.getClient();
+            if (storageClientListener != null) {
+                client.setStorageClientListener(storageClientListener);
+            }
+        }
+        references++;
+        return client;
+    }
+
+    /**
+     * Release a reference to a client, giving it back to the pool if it is not referenced.
+     * @param released the client the reference was to, which may have been given back
+     *            already if the session was closed.
+     */
+    private synchronized void release(StorageClient released) {
+        if (released != client) {
+            return;
+        }
+        references--;
+        if (references == 0 && !pinned) {
+            giveBack();
+        }
+    }
+
+    private void giveBack() {
+        if (storageClientListener != null) {
+            client.setStorageClientListener(null);
+        }
+        client.close();
+        client = null;
+        references = 0;
+    }
+
+    /**
+     * @return the client of the session, which is held until the session is closed.
+     * @throws StorageClientException
+     */
+    synchronized StorageClient pin() throws StorageClientException {
+        StorageClient pinnedClient = acquire();
+        pinned = true;
+        references--;
+        return pinnedClient;
+    }
+
+    /**
+     * @return true if a client is borrowed from the pool.
+     */
+    synchronized boolean isBound() {
+        return client != null;
+    }
+
+    /**
+     * Give back the client, closing anything still open on it, and dispose anything
+     * registered with the session.
+     */
+    public void close() {
+        List<Disposable> disposables;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (client != null) {
+                if (references > 0) {
+                    LOGGER.debug("Closing session client with {} iterators or streams open ",
+                            references);
+                }
+                giveBack();
+            }
+            disposables = toDispose;
+            toDispose = Lists.newArrayList();
+        }
+        for (Disposable disposable : disposables) {
+            disposable.close();
+        }
+    }
+
+    public synchronized void unregisterDisposable(Disposable disposable) {
+        toDispose.remove(disposable);
+    }
+
+    public synchronized <T extends Disposable> T registerDisposable(T disposable) {
+        toDispose.add(disposable);
+        disposable.setDisposer(this);
+        return disposable;
+    }
+
+    public synchronized void setStorageClientListener(
+            StorageClientListener storageClientListener) {
+        this.storageClientListener = storageClientListener;
+        if (client != null) {
+            client.setStorageClientListener(storageClientListener);
+        }
+    }
+
+    public Map<String, Object> get(String keySpace, String columnFamily, String key)
+            throws StorageClientException {
+        StorageClient storageClient = acquire();
+        try {
+            return storageClient.get(keySpace, columnFamily, key);
+        } finally {
+            release(storageClient);
+        }
+    }
+
+    public Map<String, Map<String, Object>> getAll(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        StorageClient storageClient = acquire();
+        try {
+            return storageClient.getAll(keySpace, columnFamily, keys);
+        } finally {
+            release(storageClient);
+        }
+    }
+
+    public void insert(String keySpace, String columnFamily, String key,
+            Map<String, Object> values, boolean probablyNew) throws StorageClientException {
+        StorageClient storageClient = acquire();
+        try {
+            storageClient.insert(keySpace, columnFamily, key, values, probablyNew);
+        } finally {
+            release(storageClient);
+        }
+    }
+
+    public void insert(String keySpace, String columnFamily, String key,
+            Map<String, Object> values, boolean probablyNew, Map<String, Object> currentRow)
+            throws StorageClientException {
+        StorageClient storageClient = acquire();
+        try {
+            if (storageClient instanceof DeltaWriter) {
+                ((DeltaWriter) storageClient).insert(keySpace, columnFamily, key, values,
+                        probablyNew, currentRow);
+            } else {
+                storageClient.insert(keySpace, columnFamily, key, values, probablyNew);
+            }
+        } finally {
+            release(storageClient);
+        }
+    }
+
+    public String rowHash(String keySpace, String columnFamily, String key)
+            throws StorageClientException {
+        StorageClient storageClient = acquire();
+        try {
+            if (storageClient instanceof RowHasher) {
+                return ((RowHasher) storageClient).rowHash(keySpace, columnFamily, key);
+            }
+            // the key the caching managers use for clients that don't hash rows.
+            return keySpace + ":" + columnFamily + ":" + key;
+        } finally {
+            release(storageClient);
+        }
+    }
+
+    public void insertChild(String keySpace, String columnFamily, String key,
+            Map<String, Object> values, boolean probablyNew, String countProperty)
+            throws StorageClientException {
+        StorageClient storageClient = acquire();
+        try {
+            storageClient.insertChild(keySpace, columnFamily, key, values, probablyNew,
+                    countProperty);
+        } finally {
+            release(storageClient);
+        }
+    }
+
+    public long recountChildren(String keySpace, String columnFamily, String key,
+            String countProperty) throws StorageClientException {
+        StorageClient storageClient = acquire();
+        try {
+            return storageClient.recountChildren(keySpace, columnFamily, key, countProperty);
+        } finally {
+            release(storageClient);
+        }
+    }
+
+    public Set<String> getIndexBackfillColumns() throws StorageClientException {
+        StorageClient storageClient = acquire();
+        try {
+            return storageClient.getIndexBackfillColumns();
+        } finally {
+            release(storageClient);
+        }
+    }
+
+    public void remove(String keySpace, String columnFamily, String key)
+            throws StorageClientException {
+        StorageClient storageClient = acquire();
+        try {
+            storageClient.remove(keySpace, columnFamily, key);
+        } finally {
+            release(storageClient);
+        }
+    }
+
+    public InputStream streamBodyOut(String keySpace, String columnFamily, String contentId,
+            String contentBlockId, String streamId, Map<String, Object> content)
+            throws StorageClientException, AccessDeniedException, IOException {
+        final StorageClient storageClient = acquire();
+        InputStream in = null;
+        try {
+            in = storageClient.streamBodyOut(keySpace, columnFamily, contentId,
+                    contentBlockId, streamId, content);
+        } finally {
+            if (in == null) {
+                release(storageClient);
+            }
+        }
+        // the client is referenced until the stream is closed.
+        return new FilterInputStream(in) {
+            private boolean open = true;
+
+            @Override
+            public void close() throws IOException {
+                if (open) {
+                    open = false;
+                    try {
+                        super.close();
+                    } finally {
+                        release(storageClient);
+                    }
+                }
+            }
+        };
+    }
+
+    public Map<String, Object> streamBodyIn(String keySpace, String columnFamily,
+            String contentId, String contentBlockId, String streamId,
+            Map<String, Object> content, InputStream in) throws StorageClientException,
+            AccessDeniedException, IOException {
+        StorageClient storageClient = acquire();
+        try {
+            return storageClient.streamBodyIn(keySpace, columnFamily, contentId,
+                    contentBlockId, streamId, content, in);
+        } finally {
+            release(storageClient);
+        }
+    }
+
+    public DisposableIterator<Map<String, Object>> find(String keySpace, String columnFamily,
+            Map<String, Object> properties, DirectCacheAccess cachingManager)
+            throws StorageClientException {
+        StorageClient storageClient = acquire();
+        DisposableIterator<Map<String, Object>> iterator = null;
+        try {
+            iterator = storageClient.find(keySpace, columnFamily, properties, cachingManager);
+        } finally {
+            if (iterator == null) {
+                release(storageClient);
+            }
+        }
+        return track(storageClient, iterator);
+    }
+
+    public long count(String keySpace, String columnFamily, Map<String, Object> properties)
+            throws StorageClientException {
+        StorageClient storageClient = acquire();
+        try {
+            return storageClient.count(keySpace, columnFamily, properties);
+        } finally {
+            release(storageClient);
+        }
+    }
+
+    public Map<String, Long> countValues(String keySpace, String columnFamily,
+            Map<String, Object> properties, String property, int limit)
+            throws StorageClientException {
+        StorageClient storageClient = acquire();
+        try {
+            return storageClient.countValues(keySpace, columnFamily, properties, property,
+                    limit);
+        } finally {
+            release(storageClient);
+        }
+    }
+
+    public Object[] range(String keySpace, String columnFamily,
+            Map<String, Object> properties, String property) throws StorageClientException {
+        StorageClient storageClient = acquire();
+        try {
+            return storageClient.range(keySpace, columnFamily, properties, property);
+        } finally {
+            release(storageClient);
+        }
+    }
+
+    public DisposableIterator<Map<String, Object>> listChildren(String keySpace,
+            String columnFamily, String key, DirectCacheAccess cachingManager)
+            throws StorageClientException {
+        StorageClient storageClient = acquire();
+        DisposableIterator<Map<String, Object>> iterator = null;
+        try {
+            iterator = storageClient.listChildren(keySpace, columnFamily, key, cachingManager);
+        } finally {
+            if (iterator == null) {
+                release(storageClient);
+            }
+        }
+        return track(storageClient, iterator);
+    }
+
+    public boolean hasBody(Map<String, Object> content, String streamId) {
+        StorageClient storageClient;
+        try {
+            storageClient = acquire();
+        } catch (StorageClientException e) {
+            LOGGER.warn("Unable to check for a body: {} ", e.getMessage());
+            return false;
+        }
+        try {
+            return storageClient.hasBody(content, streamId);
+        } finally {
+            release(storageClient);
+        }
+    }
+
+    public DisposableIterator<SparseRow> listAll(String keySpace, String columnFamily)
+            throws StorageClientException {
+        StorageClient storageClient = acquire();
+        DisposableIterator<SparseRow> iterator = null;
+        try {
+            iterator = storageClient.listAll(keySpace, columnFamily);
+        } finally {
+            if (iterator == null) {
+                release(storageClient);
+            }
+        }
+        return track(storageClient, iterator);
+    }
+
+    public long allCount(String keySpace, String columnFamily) throws StorageClientException {
+        StorageClient storageClient = acquire();
+        try {
+            return storageClient.allCount(keySpace, columnFamily);
+        } finally {
+            release(storageClient);
+        }
+    }
+
+    /**
+     * Reference the client until the iterator is closed or has been read to the end.
+     */
+    private <T> DisposableIterator<T> track(final StorageClient storageClient,
+            final DisposableIterator<T> iterator) {
+        return new DisposableIterator<T>() {
+            private boolean open = true;
+
+            public boolean hasNext() {
+                if (!open) {
+                    return false;
+                }
+                boolean hasNext = iterator.hasNext();
+                if (!hasNext) {
+                    close();
+                }
+                return hasNext;
+            }
+
+            public T next() {
+                return iterator.next();
+            }
+
+            public void remove() {
+                iterator.remove();
+            }
+
+            public void close() {
+                if (open) {
+                    open = false;
+                    try {
+                        iterator.close();
+                    } finally {
+                        release(storageClient);
+                    }
+                }
+            }
+
+            public void setDisposer(Disposer disposer) {
+                iterator.setDisposer(disposer);
+            }
+        };
+    }
+
+}
@@ -20,6 +20,9 @@ package org.sakaiproject.nakamura.lite.accesscontrol;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -48,6 +51,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.lite.CachingManagerImpl;
+import org.sakaiproject.nakamura.lite.authorizable.AuthorizableManagerImpl;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -67,6 +71,11 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
     public static final String _KEY = "_aclKey";
     private static final Logger LOGGER = LoggerFactory.getLogger(AccessControlManagerImpl.class);
     private static final Set<String> PROTECTED_PROPERTIES = ImmutableSet.of(_SECRET_KEY);
+    /**
+     * Index in compiled permissions of the flag set when the permissions
+     * depend on proxy principals resolved for the request.
+     */
+    private static final int REQUEST_DEPENDENT = 2;
     private static final Set<String> READ_ONLY_PROPERTIES = ImmutableSet.of(_SECRET_KEY, _PATH, _OBJECT_TYPE, _KEY);
     private User user;
     private String keySpace;
@@ -79,6 +88,8 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
     private SecureRandom secureRandom;
     private AuthorizableManager authorizableManager;
     private Map<String, String[]> principalCache = new ConcurrentHashMap<String, String[]>();
+    private Map<String, String> principalFingerprints = new ConcurrentHashMap<String, String>();
+    private CompiledPermissionCache compiledPermissionCache;
     private ThreadLocal<String> principalRecursionLock = new ThreadLocal<String>();
     private ThreadBoundStackReferenceCounter compilingPermissions = new ThreadBoundStackReferenceCounter();
 
@@ -92,6 +103,7 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
         this.storeListener = storeListener;
         principalTokenValidator = new PrincipalTokenValidator(principalValidatorResolver);
         secureRandom = new SecureRandom();
+        compiledPermissionCache = CompiledPermissionCache.forAclCache(sharedCache);
     }
 
     public Map<String, Object> getAcl(String objectType, String objectPath)
@@ -267,6 +279,10 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
         LOGGER.debug("Updating ACL {} {} ", key, modifications);
         putCached(keySpace, aclColumnFamily, key, modifications, (currentAcl == null || currentAcl.size() == 0));
         storeListener.onUpdate(objectType, objectPath,  getCurrentUserId(), "type:acl", false, null, "op:acl");
+        // clear the compiled permissions shared with other sessions.
+        if (compiledPermissionCache != null) {
+            compiledPermissionCache.invalidate(key);
+        }
         // clear the compiled cache for this session.
         List<String> keys = Lists.newArrayList();
         for ( Entry<String,int[]> e : cache.entrySet()) {
@@ -328,6 +344,38 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
     }
 
 
+    public Set<String> checkAll(String objectType, Collection<String> objectPaths,
+            Permission permission) throws StorageClientException {
+        Set<String> granted = Sets.newLinkedHashSet();
+        if (user.isAdmin() || compilingPermissions.isSet()) {
+            granted.addAll(objectPaths);
+            return granted;
+        }
+        // load the ACLs of the objects not already compiled in one operation,
+        // parents shared by the objects are compiled once and cached.
+        List<String> keys = Lists.newArrayList();
+        for (String objectPath : objectPaths) {
+            String key = getAclKey(objectType, objectPath);
+            if (!cache.containsKey(key)) {
+                keys.add(key);
+            }
+        }
+        if (keys.size() > 1) {
+            getAllCached(keySpace, aclColumnFamily, keys);
+        }
+        for (String objectPath : objectPaths) {
+            if (Security.ZONE_AUTHORIZABLES.equals(objectType) && user.getId().equals(objectPath)) {
+                granted.add(objectPath);
+                continue;
+            }
+            int[] privileges = compilePermission(user, objectType, objectPath, 0);
+            if ((permission.getPermission() & privileges[0]) == permission.getPermission()) {
+                granted.add(objectPath);
+            }
+        }
+        return granted;
+    }
+
     private String getAclKey(String objectType, String objectPath) {
         return objectType + ";" + objectPath;
     }
@@ -347,6 +395,21 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
         } else {
             LOGGER.debug("Cache Miss {} [{}] ", cache, key);
         }
+        // only permissions that do not depend on proxy principals are shared, so
+        // they are valid with or without a request principal resolver.
+        String fingerprint = null;
+        long generation = 0;
+        if (compiledPermissionCache != null) {
+            fingerprint = getPrincipalFingerprint(authorizable);
+            generation = compiledPermissionCache.getGeneration();
+            int[] compiled = compiledPermissionCache.get(key, fingerprint);
+            if (compiled != null) {
+                if (user.getId().equals(authorizable.getId())) {
+                    cache.put(key, compiled);
+                }
+                return compiled;
+            }
+        }
         try {
             // we need to allow the permissions compile to bypass access control as it needs to see everything.
             compilingPermissions.inc();
@@ -356,6 +419,8 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
             int grants = 0;
             int denies = 0;
             if (acl != null) {
+                // every ACL has a secret key, only those with proxy principals depend on the request.
+                boolean requestDependent = hasDynamicPrincipals(acl);
     
                 {
                     String principal = authorizable.getId();
@@ -471,6 +536,9 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
                     int[] parentPriv = compilePermission(authorizable, objectType,
                             StorageClientUtils.getParentObjectPath(objectPath), recursion);
                     if (parentPriv != null) {
+                        if (parentPriv.length > REQUEST_DEPENDENT && parentPriv[REQUEST_DEPENDENT] != 0) {
+                            requestDependent = true;
+                        }
                         /*
                          * Grant permission not denied at this level parentPriv[0]
                          * is permissions granted by the parent ~denies is
@@ -502,10 +570,14 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
                 /*
                  * Keep a cached copy
                  */
+                int[] compiled = new int[] { granted, denied, requestDependent ? 1 : 0 };
                 if (user.getId().equals(authorizable.getId())) {
-                    cache.put(key, new int[] { granted, denied });
+                    cache.put(key, compiled);
+                }
+                if (fingerprint != null && !requestDependent) {
+                    compiledPermissionCache.put(key, fingerprint, compiled, generation);
                 }
-                return new int[] { granted, denied };
+                return new int[] { granted, denied, requestDependent ? 1 : 0 };
     
             }
             if (Security.ZONE_AUTHORIZABLES.equals(objectType)
@@ -527,7 +599,15 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
             return principalCache.get(k);
         }
         Set<String> memberOfSet = Sets.newHashSet(authorizable.getPrincipals());
-        if ( authorizableManager != null ) {
+        if ( authorizableManager instanceof AuthorizableManagerImpl ) {
+            // the full closure is resolved from shared group closures.
+            try {
+                Collections.addAll(memberOfSet,
+                        ((AuthorizableManagerImpl) authorizableManager).getPrincipalClosure(authorizable));
+            } catch (StorageClientException e) {
+                LOGGER.warn("Unable to resolve group membership of {} {} ", k, e.getMessage());
+            }
+        } else if ( authorizableManager != null ) {
             // membership resolution is possible, but we had better turn off recursion
             if ( principalRecursionLock.get() == null ) {
                 principalRecursionLock.set("l");
@@ -547,6 +627,41 @@ public class AccessControlManagerImpl extends CachingManagerImpl implements Acce
     }
 
 
+    /**
+     * @param acl
+     * @return true if the ACL has aces for proxy principals, which are resolved
+     *         against the secret key of the ACL by the request.
+     */
+    private boolean hasDynamicPrincipals(Map<String, Object> acl) {
+        if (acl.get(_SECRET_KEY) == null) {
+            return false;
+        }
+        for (String k : acl.keySet()) {
+            if (k.startsWith(DYNAMIC_PRINCIPAL_STEM)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param authorizable
+     * @return a fingerprint of the authorizable and the principals it holds,
+     *         that identifies the compiled permissions it can share with
+     *         other sessions.
+     */
+    private String getPrincipalFingerprint(Authorizable authorizable) {
+        String k = authorizable.getId();
+        String fingerprint = principalFingerprints.get(k);
+        if (fingerprint == null) {
+            String[] principals = getPrincipals(authorizable).clone();
+            Arrays.sort(principals);
+            fingerprint = StorageClientUtils.insecureHash(k + ";" + StringUtils.join(principals, ';'));
+            principalFingerprints.put(k, fingerprint);
+        }
+        return fingerprint;
+    }
+
     private int toInt(Object object) {
         if ( object instanceof Integer ) {
             return ((Integer) object).intValue();
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * A cache of compiled permissions shared by all the sessions that use the same
+ * ACL cache. Compiled permissions are keyed by the ACL key of the object and a
+ * fingerprint of the user id and the set of principals they were compiled for,
+ * since aces may be granted to the user as well as to its principals. Sessions
+ * of the same user share entries until its principals change. When an ACL
+ * changes, the entries for that object and every object below it are removed.
+ * Changes made on other nodes of a cluster are not seen, so entries expire
+ * after {@link #MAX_AGE} ms.
+ */
+final class CompiledPermissionCache {
+
+    /**
+     * The number of objects that will be held before the least recently used
+     * are removed.
+     */
+    static final int MAX_PATHS = 10000;
+
+    /**
+     * The number of principal sets that will be held for any one object.
+     */
+    static final int MAX_PRINCIPAL_SETS = 256;
+
+    /**
+     * The time in ms a compiled permission is valid for.
+     */
+    static final long MAX_AGE = 60000L;
+
+    private static final ConcurrentMap<Map<String, CacheHolder>, CompiledPermissionCache> caches = new MapMaker()
+            .weakKeys().makeMap();
+
+    private final ConcurrentMap<String, PathEntry> paths = new ConcurrentHashMap<String, PathEntry>();
+    private final AtomicLong generation = new AtomicLong();
+    private final int maxPaths;
+    private Iterator<Entry<String, PathEntry>> hand;
+
+    CompiledPermissionCache(int maxPaths) {
+        this.maxPaths = maxPaths;
+    }
+
+    /**
+     * @param aclCache
+     *            the shared cache of ACL rows.
+     * @return the compiled permission cache for the store behind the ACL
+     *         cache, or null if there is no shared ACL cache.
+     */
+    static CompiledPermissionCache forAclCache(Map<String, CacheHolder> aclCache) {
+        if (aclCache == null) {
+            return null;
+        }
+        CompiledPermissionCache cache = caches.get(aclCache);
+        if (cache == null) {
+            cache = new CompiledPermissionCache(MAX_PATHS);
+            CompiledPermissionCache existing = caches.putIfAbsent(aclCache, cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @return the current generation, which must be captured before a
+     *         permission is compiled and passed to
+     *         {@link #put(String, String, int[], long)}.
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @param aclKey
+     *            the ACL key of the object.
+     * @param fingerprint
+     *            the fingerprint of the user and its principals.
+     * @return the compiled permissions as granted, denied bitmaps, or null if
+     *         not cached.
+     */
+    int[] get(String aclKey, String fingerprint) {
+        PathEntry path = paths.get(aclKey);
+        if (path == null) {
+            return null;
+        }
+        Compiled compiled = path.compiled.get(fingerprint);
+        if (compiled == null) {
+            return null;
+        }
+        if (compiled.expires < System.currentTimeMillis()) {
+            path.compiled.remove(fingerprint, compiled);
+            return null;
+        }
+        path.referenced = true;
+        return compiled.permissions;
+    }
+
+    /**
+     * Cache a compiled permission, unless any ACL has changed since
+     * compilation started.
+     * 
+     * @param aclKey
+     *            the ACL key of the object.
+     * @param fingerprint
+     *            the fingerprint of the user and its principals.
+     * @param permissions
+     *            the granted, denied bitmaps.
+     * @param startGeneration
+     *            the generation when compilation started.
+     */
+    void put(String aclKey, String fingerprint, int[] permissions, long startGeneration) {
+        PathEntry path = paths.get(aclKey);
+        if (path == null) {
+            path = new PathEntry();
+            PathEntry existing = paths.putIfAbsent(aclKey, path);
+            if (existing != null) {
+                path = existing;
+            } else if (paths.size() > maxPaths) {
+                sweep();
+            }
+        }
+        if (path.compiled.size() >= MAX_PRINCIPAL_SETS) {
+            path.compiled.clear();
+        }
+        path.compiled.put(fingerprint, new Compiled(permissions, System.currentTimeMillis()
+                + MAX_AGE));
+        if (generation.get() != startGeneration) {
+            // an ACL changed while compiling, the result may be stale.
+            path.compiled.remove(fingerprint);
+        }
+    }
+
+    /**
+     * Remove all compiled permissions for an object and all the objects below
+     * it.
+     * 
+     * @param aclKey
+     *            the ACL key of the object that changed.
+     */
+    void invalidate(String aclKey) {
+        generation.incrementAndGet();
+        String prefix = aclKey.endsWith("/") ? aclKey : aclKey + "/";
+        for (Iterator<String> i = paths.keySet().iterator(); i.hasNext();) {
+            String k = i.next();
+            if (k.equals(aclKey) || k.startsWith(prefix)) {
+                i.remove();
+            }
+        }
+    }
+
+    int size() {
+        return paths.size();
+    }
+
+    /**
+     * Remove objects that have not been referenced since the last sweep until
+     * the cache is back under 90% of its maximum size.
+     */
+    private synchronized void sweep() {
+        int target = maxPaths - (maxPaths / 10);
+        int limit = 2 * paths.size();
+        for (int i = 0; i < limit && paths.size() > target; i++) {
+            if (hand == null || !hand.hasNext()) {
+                hand = paths.entrySet().iterator();
+                if (!hand.hasNext()) {
+                    return;
+                }
+            }
+            PathEntry path = hand.next().getValue();
+            if (path.referenced) {
+                path.referenced = false;
+            } else {
+                hand.remove();
+            }
+        }
+    }
+
+    private static final class PathEntry {
+        private final ConcurrentMap<String, Compiled> compiled = new ConcurrentHashMap<String, Compiled>();
+        private volatile boolean referenced = true;
+    }
+
+    private static final class Compiled {
+        private final int[] permissions;
+        private final long expires;
+
+        private Compiled(int[] permissions, long expires) {
+            this.permissions = permissions;
+            this.expires = expires;
+        }
+    }
+}
@@ -17,13 +17,16 @@
  */
 package org.sakaiproject.nakamura.lite.authorizable;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -39,8 +42,10 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.sakaiproject.nakamura.lite.CachingManagerImpl;
+import org.sakaiproject.nakamura.lite.ConvertingFuture;
 import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
+import org.sakaiproject.nakamura.lite.storage.spi.AsyncStorageClient.ClientTask;
 import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.spi.SparseRow;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
@@ -52,6 +57,8 @@ import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
 
 /**
  * An Authourizable Manager bound to a user, on creation the user ID specified
@@ -64,13 +71,15 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
 
     private static final String DISABLED_PASSWORD_HASH = "--disabled--";
     private static final Set<String> FILTER_ON_UPDATE = ImmutableSet.of(Authorizable.ID_FIELD,
-            Authorizable.PASSWORD_FIELD, Authorizable.LOGIN_ENABLED_PERIOD_FIELD);
+            Authorizable.PASSWORD_FIELD, Authorizable.LOGIN_ENABLED_PERIOD_FIELD,
+            Authorizable.MEMBER_CHUNKS_FIELD);
     private static final Set<String> FILTER_ON_CREATE = ImmutableSet.of(Authorizable.ID_FIELD,
-            Authorizable.PASSWORD_FIELD, Authorizable.LOGIN_ENABLED_PERIOD_FIELD);
+            Authorizable.PASSWORD_FIELD, Authorizable.LOGIN_ENABLED_PERIOD_FIELD,
+            Authorizable.MEMBER_CHUNKS_FIELD);
     private static final Set<String> ADMIN_FILTER_ON_UPDATE = ImmutableSet.of(Authorizable.ID_FIELD,
-            Authorizable.PASSWORD_FIELD);
+            Authorizable.PASSWORD_FIELD, Authorizable.MEMBER_CHUNKS_FIELD);
     private static final Set<String> ADMIN_FILTER_ON_CREATE = ImmutableSet.of(Authorizable.ID_FIELD,
-            Authorizable.PASSWORD_FIELD);
+            Authorizable.PASSWORD_FIELD, Authorizable.MEMBER_CHUNKS_FIELD);
     private static final Logger LOGGER = LoggerFactory.getLogger(AuthorizableManagerImpl.class);
     private String currentUserId;
     private StorageClient client;
@@ -84,6 +93,8 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
     private Session session;
     private Set<String> filterOnUpdate;
     private Set<String> filterOnCreate;
+    private GroupClosureCache groupClosures;
+    private ChunkedMembers chunkedMembers;
 
     public AuthorizableManagerImpl(User currentUser, Session session, StorageClient client,
             Configuration configuration, AccessControlManagerImpl accessControlManager,
@@ -110,6 +121,24 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
         this.authenticator = new AuthenticatorImpl(client, configuration);
         this.closed = false;
         this.storeListener = storeListener;
+        this.groupClosures = GroupClosureCache.forAuthorizableCache(sharedCache);
+        this.chunkedMembers = new ChunkedMembers() {
+            @Override
+            protected Map<String, Object> getChunk(String chunkId) throws StorageClientException {
+                return getCached(keySpace, authorizableColumnFamily, chunkId);
+            }
+
+            @Override
+            protected void putChunk(String chunkId, Map<String, Object> chunk)
+                    throws StorageClientException {
+                putCached(keySpace, authorizableColumnFamily, chunkId, chunk, false);
+            }
+
+            @Override
+            protected void removeChunk(String chunkId) throws StorageClientException {
+                removeCached(keySpace, authorizableColumnFamily, chunkId);
+            }
+        };
         accessControlManager.setAuthorizableManager(this);
     }
 
@@ -117,6 +146,37 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
         return thisUser;
     }
 
+    /**
+     * {@inheritDoc} Access is checked on the calling thread, the row is read by a task with
+     * its own client and the authorizable is created when the Future is got.
+     */
+    public Future<Authorizable> findAuthorizableAsync(final String authorizableId) {
+        try {
+            checkOpen();
+            if (Group.EVERYONE.equals(authorizableId)) {
+                return Futures.<Authorizable> immediateFuture(Group.EVERYONE_GROUP);
+            }
+            if (!this.currentUserId.equals(authorizableId)) {
+                accessControlManager.check(Security.ZONE_AUTHORIZABLES, authorizableId,
+                        Permissions.CAN_READ);
+            }
+        } catch (Exception e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        Future<Map<String, Object>> row = submit(new ClientTask<Map<String, Object>>() {
+            public Map<String, Object> call(StorageClient storageClient) throws Exception {
+                return getCached(storageClient, keySpace, authorizableColumnFamily,
+                        authorizableId);
+            }
+        });
+        return new ConvertingFuture<Map<String, Object>, Authorizable>(row) {
+            protected Authorizable convert(Map<String, Object> authorizableMap)
+                    throws StorageClientException, AccessDeniedException {
+                return toAuthorizable(authorizableMap);
+            }
+        };
+    }
+
     public Authorizable findAuthorizable(final String authorizableId) throws AccessDeniedException,
             StorageClientException {
         checkOpen();
@@ -128,15 +188,18 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
                     Permissions.CAN_READ);
         }
 
-        Map<String, Object> authorizableMap = getCached(keySpace, authorizableColumnFamily,
-                authorizableId);
+        return toAuthorizable(getCached(keySpace, authorizableColumnFamily, authorizableId));
+    }
+
+    private Authorizable toAuthorizable(Map<String, Object> authorizableMap)
+            throws StorageClientException, AccessDeniedException {
         if (authorizableMap == null || authorizableMap.isEmpty()) {
             return null;
         }
         if (isAUser(authorizableMap)) {
             return new UserInternal(authorizableMap, session, false);
         } else if (isAGroup(authorizableMap)) {
-            return new GroupInternal(authorizableMap, session, false);
+            return new GroupInternal(authorizableMap, session, false, chunkedMembers);
         }
         return null;
     }
@@ -185,6 +248,7 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
         List<String> attributes = Lists.newArrayList();
         String[] membersAdded = null;
         String[] membersRemoved = null;
+        int memberChunks = 0;
 
         if (authorizable instanceof Group) {
             type = "type:group";
@@ -244,6 +308,7 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
                         encodedProperties.put(Authorizable.ID_FIELD, newMember.getId());
                         putCached(keySpace, authorizableColumnFamily, newMember.getId(),
                                 encodedProperties, newMember.isNew());
+                        groupClosures.invalidate(newMember.getId());
                         LOGGER.debug("Updated {} with principal {} {} ",new Object[]{newMember.getId(), group.getId(), encodedProperties});
                         findAuthorizable(newMember.getId());
                         changes++;
@@ -263,6 +328,7 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
                         encodedProperties.put(Authorizable.ID_FIELD, retiredMember.getId());
                         putCached(keySpace, authorizableColumnFamily, retiredMember.getId(),
                                 encodedProperties, retiredMember.isNew());
+                        groupClosures.invalidate(retiredMember.getId());
                         changes++;
                         LOGGER.debug("Update {} and removed principal {} ",retiredMember.getId(), group.getId());
                     } else {
@@ -272,6 +338,8 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
                 }
             }
             LOGGER.debug(" Finished Updating other principals, made {} changes, Saving Changes to {} ", changes, id);
+            memberChunks = chunkedMembers.update(group,
+                    ChunkedMembers.getChunks(group.getOriginalProperties()));
 
             // if there were added or removed members, send them out as event properties for
             // external integration
@@ -294,7 +362,15 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
                     accessControlManager.getCurrentUserId());
         }
         encodedProperties.put(Authorizable.ID_FIELD, id); // make certain the ID is always there.
+        if (memberChunks > 0) {
+            // large groups keep their members in chunks, not in the group.
+            encodedProperties.put(Authorizable.MEMBER_CHUNKS_FIELD, memberChunks);
+            encodedProperties.put(Authorizable.MEMBERS_FIELD, new RemoveProperty());
+        }
         putCached(keySpace, authorizableColumnFamily, id, encodedProperties, authorizable.isNew());
+        if (encodedProperties.containsKey(Authorizable.PRINCIPALS_FIELD)) {
+            groupClosures.invalidate(id);
+        }
 
         authorizable.reset(getCached(keySpace, authorizableColumnFamily, id));
 
@@ -358,6 +434,7 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
         encodedProperties.put(Authorizable.CREATED_BY_FIELD,
                 accessControlManager.getCurrentUserId());
         putCached(keySpace, authorizableColumnFamily, authorizableId, encodedProperties, true);
+        groupClosures.invalidate(authorizableId);
         return true;
     }
 
@@ -410,6 +487,9 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
         Authorizable authorizable = findAuthorizable(authorizableId);
         if (authorizable != null){
             removeCached(keySpace, authorizableColumnFamily, authorizableId);
+            chunkedMembers.remove(authorizableId,
+                    ChunkedMembers.getChunks(authorizable.getOriginalProperties()));
+            groupClosures.invalidate(authorizableId);
             storeListener.onDelete(Security.ZONE_AUTHORIZABLES, authorizableId, accessControlManager.getCurrentUserId(), getType(authorizable), authorizable.getOriginalProperties());
         }
     }
@@ -519,7 +599,7 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
                                 authorizable = new UserInternal(authMap, session, false);
                                 return true;
                             } else if (isAGroup(authMap))
-                                authorizable = new GroupInternal(authMap, session, false);
+                                authorizable = new GroupInternal(authMap, session, false, chunkedMembers);
                             return true;
                         } catch (AccessDeniedException e) {
                             LOGGER.debug("Search result filtered ", e.getMessage());
@@ -563,13 +643,83 @@ public class AuthorizableManagerImpl extends CachingManagerImpl implements Autho
                         .get(Authorizable.AUTHORIZABLE_TYPE_FIELD));
     }
 
+    /**
+     * Get all the principals of an authorizable, including the groups it is a
+     * member of through other groups. Group membership is a property of the
+     * groups, so group rows are read without checking that the current user
+     * can read them. The closure of each group is shared with other sessions
+     * until the membership of a group it depends on changes.
+     * 
+     * @param authorizable
+     * @return the principals of the authorizable, excluding everyone.
+     * @throws StorageClientException
+     */
+    public String[] getPrincipalClosure(Authorizable authorizable) throws StorageClientException {
+        Set<String> principals = Sets.newLinkedHashSet();
+        int[] cycles = new int[1];
+        for (String principal : authorizable.getPrincipals()) {
+            principals.add(principal);
+            GroupClosureCache.Closure closure = getGroupClosure(principal,
+                    Sets.<String> newHashSet(), cycles);
+            if (closure != null) {
+                Collections.addAll(principals, closure.getGroups());
+            }
+        }
+        principals.remove(Group.EVERYONE);
+        return principals.toArray(new String[principals.size()]);
+    }
+
+    private GroupClosureCache.Closure getGroupClosure(String groupId, Set<String> path,
+            int[] cycles) throws StorageClientException {
+        if (Group.EVERYONE.equals(groupId)) {
+            return null;
+        }
+        GroupClosureCache.Closure closure = groupClosures.get(groupId);
+        if (closure != null) {
+            return closure;
+        }
+        long generation = groupClosures.getGeneration();
+        Map<String, Object> groupMap = getCached(keySpace, authorizableColumnFamily, groupId);
+        if (!isAGroup(groupMap)) {
+            return null;
+        }
+        int startCycles = cycles[0];
+        Set<String> groups = Sets.newLinkedHashSet();
+        Set<String> dependsOn = Sets.newHashSet();
+        groups.add(groupId);
+        dependsOn.add(groupId);
+        path.add(groupId);
+        String[] parents = StringUtils.split(
+                (String) groupMap.get(Authorizable.PRINCIPALS_FIELD), ';');
+        if (parents != null) {
+            for (String parent : parents) {
+                dependsOn.add(parent);
+                if (path.contains(parent)) {
+                    LOGGER.warn("Circular group membership between {} and {} ", groupId, parent);
+                    cycles[0]++;
+                    continue;
+                }
+                GroupClosureCache.Closure parentClosure = getGroupClosure(parent, path, cycles);
+                if (parentClosure != null) {
+                    Collections.addAll(groups, parentClosure.getGroups());
+                    Collections.addAll(dependsOn, parentClosure.getDependsOn());
+                }
+            }
+        }
+        path.remove(groupId);
+        closure = new GroupClosureCache.Closure(groups, dependsOn);
+        // closures on a cycle are incomplete and are not shared.
+        if (cycles[0] == startCycles) {
+            groupClosures.put(groupId, closure, generation);
+        }
+        return closure;
+    }
+
     private boolean isCyclicMembership(String groupId, Authorizable newMember) {
         if (newMember.isGroup()) {
             Group newGroupMember = (Group) newMember;
-            for (String memberOfNewMember : newGroupMember.getMembers()) {
-                if (groupId.equals(memberOfNewMember)) {
-                    return true;
-                }
+            if (newGroupMember.hasMember(groupId)) {
+                return true;
             }
         }
         return false;
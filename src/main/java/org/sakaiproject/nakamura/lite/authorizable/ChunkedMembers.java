@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.authorizable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.util.Iterables;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Stores the members of large groups in chunks, so that adding or removing a
+ * member rewrites one chunk rather than the whole member list. Each member is
+ * held in the chunk selected by the hash of its id. Chunks are rows in the
+ * authorizable column family with ids starting with _, which are not valid
+ * authorizable ids. When a chunk grows too large the number of chunks is
+ * doubled. Groups are converted to chunks when they grow above
+ * {@link #CHUNK_THRESHOLD} members, and are not converted back.
+ */
+abstract class ChunkedMembers {
+
+    /**
+     * Groups with more members than this are stored in chunks.
+     */
+    static final int CHUNK_THRESHOLD = 1000;
+
+    /**
+     * The number of members in a chunk when the chunks are created.
+     */
+    static final int CHUNK_SIZE = 256;
+
+    /**
+     * When a chunk contains more members than this, the number of chunks is
+     * doubled.
+     */
+    static final int MAX_CHUNK_SIZE = 1024;
+
+    private static final String CHUNK_ID_PREFIX = "_members/";
+
+    /**
+     * @param chunkId
+     * @return the chunk row or null if it does not exist.
+     * @throws StorageClientException
+     */
+    protected abstract Map<String, Object> getChunk(String chunkId) throws StorageClientException;
+
+    /**
+     * @param chunkId
+     * @param chunk
+     *            the new chunk properties.
+     * @throws StorageClientException
+     */
+    protected abstract void putChunk(String chunkId, Map<String, Object> chunk)
+            throws StorageClientException;
+
+    /**
+     * @param chunkId
+     * @throws StorageClientException
+     */
+    protected abstract void removeChunk(String chunkId) throws StorageClientException;
+
+    static String getChunkId(String groupId, int chunk) {
+        return CHUNK_ID_PREFIX + groupId + "/" + chunk;
+    }
+
+    static int getChunk(String member, int chunks) {
+        return (member.hashCode() & 0x7fffffff) % chunks;
+    }
+
+    /**
+     * @param groupMap
+     *            the stored properties of the group.
+     * @return the number of chunks the members are stored in, 0 if they are
+     *         stored in the group.
+     */
+    static int getChunks(Map<String, Object> groupMap) {
+        if (groupMap == null) {
+            return 0;
+        }
+        return StorageClientUtils.toInt(groupMap.get(Authorizable.MEMBER_CHUNKS_FIELD));
+    }
+
+    static int chunksFor(int members) {
+        int chunks = 1;
+        while (chunks * CHUNK_SIZE < members) {
+            chunks = chunks << 1;
+        }
+        return chunks;
+    }
+
+    /**
+     * @return all the members of the group.
+     * @throws StorageClientException
+     */
+    Set<String> getMembers(String groupId, int chunks) throws StorageClientException {
+        Set<String> members = Sets.newLinkedHashSet();
+        for (int i = 0; i < chunks; i++) {
+            members.addAll(loadChunk(groupId, i));
+        }
+        return members;
+    }
+
+    /**
+     * @return a page of members, reading only the chunks that contain the
+     *         page.
+     * @throws StorageClientException
+     */
+    String[] getMembers(String groupId, int chunks, int start, int count)
+            throws StorageClientException {
+        List<String> page = Lists.newArrayList();
+        int skip = Math.max(0, start);
+        for (int i = 0; i < chunks && page.size() < count; i++) {
+            Set<String> chunk = loadChunk(groupId, i);
+            if (skip >= chunk.size()) {
+                skip = skip - chunk.size();
+                continue;
+            }
+            for (String member : chunk) {
+                if (skip > 0) {
+                    skip--;
+                } else if (page.size() < count) {
+                    page.add(member);
+                }
+            }
+        }
+        return page.toArray(new String[page.size()]);
+    }
+
+    /**
+     * @return true if the member is stored in the chunk for that member.
+     * @throws StorageClientException
+     */
+    boolean isMember(String groupId, int chunks, String member) throws StorageClientException {
+        return loadChunk(groupId, getChunk(member, chunks)).contains(member);
+    }
+
+    /**
+     * Save the membership changes of a group.
+     * 
+     * @param group
+     *            the group being saved.
+     * @param chunks
+     *            the number of chunks the members are currently stored in, 0
+     *            if stored in the group.
+     * @return the number of chunks the members are now stored in, 0 if they
+     *         remain in the group.
+     * @throws StorageClientException
+     */
+    int update(Group group, int chunks) throws StorageClientException {
+        String groupId = group.getId();
+        if (chunks == 0) {
+            String[] members = group.getMembers();
+            if (members.length <= CHUNK_THRESHOLD) {
+                return 0;
+            }
+            int newChunks = chunksFor(members.length);
+            write(groupId, newChunks, Lists.newArrayList(members));
+            return newChunks;
+        }
+        String[] added = group.getMembersAdded();
+        String[] removed = group.getMembersRemoved();
+        if (added.length == 0 && removed.length == 0) {
+            return chunks;
+        }
+        Map<Integer, Set<String>> changed = Maps.newHashMap();
+        for (String member : added) {
+            getChangedChunk(changed, groupId, getChunk(member, chunks)).add(member);
+        }
+        for (String member : removed) {
+            getChangedChunk(changed, groupId, getChunk(member, chunks)).remove(member);
+        }
+        int largest = 0;
+        for (Map.Entry<Integer, Set<String>> e : changed.entrySet()) {
+            putChunk(getChunkId(groupId, e.getKey()), ImmutableMap.of(Authorizable.MEMBERS_FIELD,
+                    (Object) StringUtils.join(e.getValue(), ';')));
+            largest = Math.max(largest, e.getValue().size());
+        }
+        if (largest > MAX_CHUNK_SIZE) {
+            Set<String> members = getMembers(groupId, chunks);
+            int newChunks = Math.max(chunks << 1, chunksFor(members.size()));
+            write(groupId, newChunks, Lists.newArrayList(members));
+            return newChunks;
+        }
+        return chunks;
+    }
+
+    /**
+     * Remove all the chunks of a group.
+     * 
+     * @throws StorageClientException
+     */
+    void remove(String groupId, int chunks) throws StorageClientException {
+        for (int i = 0; i < chunks; i++) {
+            removeChunk(getChunkId(groupId, i));
+        }
+    }
+
+    private Set<String> getChangedChunk(Map<Integer, Set<String>> changed, String groupId,
+            int chunk) throws StorageClientException {
+        Set<String> members = changed.get(chunk);
+        if (members == null) {
+            members = loadChunk(groupId, chunk);
+            changed.put(chunk, members);
+        }
+        return members;
+    }
+
+    private void write(String groupId, int chunks, List<String> members)
+            throws StorageClientException {
+        List<List<String>> split = Lists.newArrayList();
+        for (int i = 0; i < chunks; i++) {
+            split.add(Lists.<String> newArrayList());
+        }
+        for (String member : members) {
+            split.get(getChunk(member, chunks)).add(member);
+        }
+        for (int i = 0; i < chunks; i++) {
+            putChunk(getChunkId(groupId, i), ImmutableMap.of(Authorizable.MEMBERS_FIELD,
+                    (Object) StringUtils.join(split.get(i), ';')));
+        }
+    }
+
+    private Set<String> loadChunk(String groupId, int chunk) throws StorageClientException {
+        Map<String, Object> chunkMap = getChunk(getChunkId(groupId, chunk));
+        if (chunkMap == null) {
+            return Sets.newLinkedHashSet();
+        }
+        return Sets.newLinkedHashSet(Iterables.of(StringUtils.split(
+                (String) chunkMap.get(Authorizable.MEMBERS_FIELD), ';')));
+    }
+}
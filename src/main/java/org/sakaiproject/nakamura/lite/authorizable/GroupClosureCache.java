@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.authorizable;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+
+/**
+ * Holds the transitive closure of group membership for groups, shared by all
+ * sessions that use the same authorizable cache. The closure of a group is the
+ * group and every group it is a member of, directly or through other groups.
+ * Each closure records the ids it was computed from, so that when the
+ * membership of one group changes only the closures that depended on it are
+ * removed. Changes made on other nodes of a cluster are not seen, so closures
+ * expire after {@link #MAX_AGE} ms.
+ */
+final class GroupClosureCache {
+
+    /**
+     * The number of closures that will be held before the cache is cleared.
+     */
+    static final int MAX_GROUPS = 10000;
+
+    /**
+     * The time in ms a closure is valid for.
+     */
+    static final long MAX_AGE = 60000L;
+
+    private static final ConcurrentMap<Map<String, CacheHolder>, GroupClosureCache> caches = new MapMaker()
+            .weakKeys().makeMap();
+
+    private final ConcurrentMap<String, Closure> closures = new ConcurrentHashMap<String, Closure>();
+    private final ConcurrentMap<String, Set<String>> dependents = new ConcurrentHashMap<String, Set<String>>();
+    private final AtomicLong generation = new AtomicLong();
+    private final int maxGroups;
+
+    GroupClosureCache(int maxGroups) {
+        this.maxGroups = maxGroups;
+    }
+
+    /**
+     * @param authorizableCache
+     *            the shared cache of authorizable rows.
+     * @return the closure cache for the store behind the authorizable cache.
+     *         If there is no shared cache, a new closure cache is returned.
+     */
+    static GroupClosureCache forAuthorizableCache(Map<String, CacheHolder> authorizableCache) {
+        if (authorizableCache == null) {
+            return new GroupClosureCache(MAX_GROUPS);
+        }
+        GroupClosureCache cache = caches.get(authorizableCache);
+        if (cache == null) {
+            cache = new GroupClosureCache(MAX_GROUPS);
+            GroupClosureCache existing = caches.putIfAbsent(authorizableCache, cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @return the current generation, which must be captured before a closure
+     *         is computed and passed to {@link #put(String, Closure, long)}.
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @param groupId
+     * @return the closure of the group or null if not cached.
+     */
+    Closure get(String groupId) {
+        Closure closure = closures.get(groupId);
+        if (closure != null && closure.expires < System.currentTimeMillis()) {
+            closures.remove(groupId, closure);
+            return null;
+        }
+        return closure;
+    }
+
+    /**
+     * Cache the closure of a group, unless any membership has changed since
+     * the closure was computed.
+     * 
+     * @param groupId
+     *            the group.
+     * @param closure
+     *            the closure.
+     * @param startGeneration
+     *            the generation when the computation started.
+     */
+    void put(String groupId, Closure closure, long startGeneration) {
+        if (closures.size() >= maxGroups || dependents.size() >= 4 * maxGroups) {
+            clear();
+        }
+        for (String id : closure.dependsOn) {
+            Set<String> d = dependents.get(id);
+            if (d == null) {
+                d = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                Set<String> existing = dependents.putIfAbsent(id, d);
+                if (existing != null) {
+                    d = existing;
+                }
+            }
+            d.add(groupId);
+        }
+        closures.put(groupId, closure);
+        if (generation.get() != startGeneration) {
+            // membership changed while computing, the closure may be stale.
+            closures.remove(groupId, closure);
+        }
+    }
+
+    /**
+     * Remove the closure of an authorizable whose membership has changed, and
+     * all the closures that were computed from it.
+     * 
+     * @param id
+     *            the id of the authorizable that changed.
+     */
+    void invalidate(String id) {
+        generation.incrementAndGet();
+        closures.remove(id);
+        Set<String> d = dependents.remove(id);
+        if (d != null) {
+            for (String groupId : d) {
+                closures.remove(groupId);
+            }
+        }
+    }
+
+    int size() {
+        return closures.size();
+    }
+
+    private void clear() {
+        generation.incrementAndGet();
+        closures.clear();
+        dependents.clear();
+    }
+
+    static final class Closure {
+        private final String[] groups;
+        private final String[] dependsOn;
+        private final long expires;
+
+        /**
+         * @param groups
+         *            the group and all the groups it is a member of.
+         * @param dependsOn
+         *            all the ids that were read to compute the closure,
+         *            including ids that did not exist.
+         */
+        Closure(Collection<String> groups, Collection<String> dependsOn) {
+            this.groups = groups.toArray(new String[groups.size()]);
+            this.dependsOn = dependsOn.toArray(new String[dependsOn.size()]);
+            this.expires = System.currentTimeMillis() + MAX_AGE;
+        }
+
+        /**
+         * @return the group and all the groups it is a member of.
+         */
+        String[] getGroups() {
+            return groups;
+        }
+
+        /**
+         * @return the ids the closure was computed from.
+         */
+        String[] getDependsOn() {
+            return dependsOn;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.sakaiproject.nakamura.lite.authorizable;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
 
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -8,15 +9,24 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 
 import java.util.Map;
+import java.util.Set;
 
 public class GroupInternal extends Group {
 
+    private ChunkedMembers chunkedMembers;
+
     public GroupInternal(Map<String, Object> groupMap, Session session, boolean objectIsNew)
             throws StorageClientException, AccessDeniedException {
         super(groupMap, session);
         setObjectNew(objectIsNew);
     }
 
+    GroupInternal(Map<String, Object> groupMap, Session session, boolean objectIsNew,
+            ChunkedMembers chunkedMembers) throws StorageClientException, AccessDeniedException {
+        this(groupMap, session, objectIsNew);
+        this.chunkedMembers = chunkedMembers;
+    }
+
     public GroupInternal(ImmutableMap<String, Object> groupMap, Session session,
             boolean objectIsNew, boolean readOnly) throws StorageClientException,
             AccessDeniedException {
@@ -25,5 +35,48 @@ public class GroupInternal extends Group {
         setReadOnly(readOnly);
     }
 
+    @Override
+    protected Set<String> loadMembers() {
+        if (chunkedMembers == null) {
+            return super.loadMembers();
+        }
+        try {
+            return chunkedMembers.getMembers(getId(),
+                    ChunkedMembers.getChunks(getOriginalProperties()));
+        } catch (StorageClientException e) {
+            LOGGER.warn("Unable to load members of {} {} ", getId(), e.getMessage());
+            return Sets.newLinkedHashSet();
+        }
+    }
+
+    @Override
+    protected String[] loadMembers(int start, int count) {
+        if (chunkedMembers == null) {
+            return super.loadMembers(start, count);
+        }
+        try {
+            return chunkedMembers.getMembers(getId(),
+                    ChunkedMembers.getChunks(getOriginalProperties()), start, count);
+        } catch (StorageClientException e) {
+            LOGGER.warn("Unable to load members of {} {} ", getId(), e.getMessage());
+            return new String[0];
+        }
+    }
+
+    @Override
+    protected boolean isStoredMember(String member) {
+        if (chunkedMembers == null) {
+            return super.isStoredMember(member);
+        }
+        try {
+            return chunkedMembers.isMember(getId(),
+                    ChunkedMembers.getChunks(getOriginalProperties()), member);
+        } catch (StorageClientException e) {
+            LOGGER.warn("Unable to check member {} of {} {} ",
+                    new Object[] { member, getId(), e.getMessage() });
+            return false;
+        }
+    }
+
 
 }
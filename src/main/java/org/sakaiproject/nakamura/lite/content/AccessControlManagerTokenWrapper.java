@@ -11,7 +11,9 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.lite.accesscontrol.PropertyAcl;
 
+import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
 
 public class AccessControlManagerTokenWrapper implements AccessControlManager {
 
@@ -64,6 +66,16 @@ public class AccessControlManagerTokenWrapper implements AccessControlManager {
         }
     }
 
+    public Set<String> checkAll(String objectType, Collection<String> objectPaths,
+            Permission permission) throws StorageClientException {
+        try {
+            delegate.setRequestPrincipalResolver(principalTokenResovler);
+            return delegate.checkAll(objectType, objectPaths, permission);
+        } finally {
+            delegate.clearRequestPrincipalResolver();
+        }
+    }
+
     public String getCurrentUserId() {
         return delegate.getCurrentUserId();
     }
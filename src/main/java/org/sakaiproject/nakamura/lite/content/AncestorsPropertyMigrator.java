@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.content;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.lite.PropertyMigrator;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Adds the ancestors and parent of content saved before they were indexed, so that
+ * {@link ContentManagerImpl#findDescendants(String, Map)} finds it. Only the content
+ * rows, which hold the path but not the id of the content in a structure row, are
+ * migrated, previous versions and deleted content are not below their ancestors.
+ * Stores that ran this before the parent was indexed get it from
+ * {@link ParentPropertyMigrator}.
+ */
+@Component(immediate = true)
+@Service(value = PropertyMigrator.class)
+public class AncestorsPropertyMigrator implements PropertyMigrator {
+
+    private static final String[] NO_DEPENDENCIES = new String[0];
+    private static final Map<String, String> OPTIONS = ImmutableMap.of(
+            PropertyMigrator.OPTION_RUNONCE, "true");
+
+    public boolean migrate(String rid, Map<String, Object> properties) {
+        if (!isCurrentContent(properties)) {
+            return false;
+        }
+        String[] ancestors = StorageClientUtils.getAncestorHashes((String) properties
+                .get(InternalContent.PATH_FIELD));
+        Object current = properties.get(InternalContent.ANCESTORS_FIELD);
+        Object parent = ancestors.length > 0 ? ancestors[0] : null;
+        if (current instanceof String[] && Arrays.equals(ancestors, (String[]) current)
+                && ObjectUtils.equals(parent, properties.get(InternalContent.PARENT_FIELD))) {
+            return false;
+        }
+        properties.put(InternalContent.ANCESTORS_FIELD, ancestors);
+        if (parent != null) {
+            properties.put(InternalContent.PARENT_FIELD, parent);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the row is the current content at a path, rather than a structure
+     *         row, a previous version or deleted content.
+     */
+    static boolean isCurrentContent(Map<String, Object> properties) {
+        return properties.get(InternalContent.PATH_FIELD) instanceof String
+                && properties.containsKey(InternalContent.UUID_FIELD)
+                && !properties.containsKey(InternalContent.STRUCTURE_UUID_FIELD)
+                && !InternalContent.TRUE.equals(properties.get(InternalContent.READONLY_FIELD))
+                && !InternalContent.TRUE.equals(properties.get(InternalContent.DELETED_FIELD));
+    }
+
+    public String[] getDependencies() {
+        return NO_DEPENDENCIES;
+    }
+
+    public String getName() {
+        return getClass().getName();
+    }
+
+    public Map<String, String> getOptions() {
+        return OPTIONS;
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.content;
+
+import java.util.Map;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.lite.PropertyMigrator;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Removes the child counts stored before they were kept under a lock on the parent, which
+ * concurrent writers could have left wrong. A structure row without a count is counted
+ * again under its lock by the next {@link ContentManagerImpl#getChildCount(String)}.
+ */
+@Component(immediate = true)
+@Service(value = PropertyMigrator.class)
+public class ChildCountMigrator implements PropertyMigrator {
+
+    private static final String[] NO_DEPENDENCIES = new String[0];
+    private static final Map<String, String> OPTIONS = ImmutableMap.of(
+            PropertyMigrator.OPTION_RUNONCE, "true");
+
+    public boolean migrate(String rid, Map<String, Object> properties) {
+        if (!properties.containsKey(InternalContent.STRUCTURE_UUID_FIELD)
+                || !properties.containsKey(InternalContent.CHILD_COUNT_FIELD)) {
+            return false;
+        }
+        properties.put(InternalContent.CHILD_COUNT_FIELD, new RemoveProperty());
+        return true;
+    }
+
+    public String[] getDependencies() {
+        return NO_DEPENDENCIES;
+    }
+
+    public String getName() {
+        return getClass().getName();
+    }
+
+    public Map<String, String> getOptions() {
+        return OPTIONS;
+    }
+
+}
@@ -17,11 +17,13 @@
  */
 package org.sakaiproject.nakamura.lite.content;
 
+import static org.sakaiproject.nakamura.lite.content.InternalContent.ANCESTORS_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.BLOCKID_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.BODY_CREATED_BY_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.BODY_CREATED_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.BODY_LAST_MODIFIED_BY_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.BODY_LAST_MODIFIED_FIELD;
+import static org.sakaiproject.nakamura.lite.content.InternalContent.CHILD_COUNT_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.COPIED_DEEP_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.COPIED_FROM_ID_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.COPIED_FROM_PATH_FIELD;
@@ -33,6 +35,7 @@ import static org.sakaiproject.nakamura.lite.content.InternalContent.LASTMODIFIE
 import static org.sakaiproject.nakamura.lite.content.InternalContent.LENGTH_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.LINKED_PATH_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.NEXT_VERSION_FIELD;
+import static org.sakaiproject.nakamura.lite.content.InternalContent.PARENT_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.PATH_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.PREVIOUS_BLOCKID_FIELD;
 import static org.sakaiproject.nakamura.lite.content.InternalContent.PREVIOUS_VERSION_UUID_FIELD;
@@ -52,8 +55,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import com.google.common.collect.Ordering;
+import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.RemoveProperty;
@@ -72,6 +77,8 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.sakaiproject.nakamura.lite.CachingManagerImpl;
+import org.sakaiproject.nakamura.lite.ConvertingFuture;
+import org.sakaiproject.nakamura.lite.storage.spi.AsyncStorageClient.ClientTask;
 import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.spi.SparseRow;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
@@ -84,6 +91,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
 
 /**
  * <pre>
@@ -155,6 +163,11 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
                                                                         UUID_FIELD,
                                                                         PATH_FIELD);
 
+    /**
+     * The number of children or search results checked for read access in one
+     * operation.
+     */
+    private static final int CHECK_BATCH_SIZE = 100;
 
     /**
      * Storage Client
@@ -218,6 +231,50 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
     public Content get(String path) throws StorageClientException, AccessDeniedException {
         checkOpen();
         accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_READ);
+        return internalGet(path);
+    }
+
+    /**
+     * {@inheritDoc} Access is checked on the calling thread, the rows are read by a task
+     * with its own client and the content is created when the Future is got.
+     */
+    public Future<Content> getAsync(final String path) {
+        try {
+            checkOpen();
+            accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_READ);
+        } catch (Exception e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        Future<Map<String, Object>> row = submit(new ClientTask<Map<String, Object>>() {
+            public Map<String, Object> call(StorageClient storageClient) throws Exception {
+                Map<String, Object> structure = getCached(storageClient, keySpace,
+                        contentColumnFamily, path);
+                if (exists(structure)) {
+                    Map<String, Object> content = getCached(storageClient, keySpace,
+                            contentColumnFamily, (String) structure.get(STRUCTURE_UUID_FIELD));
+                    if (exists(content)) {
+                        return content;
+                    }
+                }
+                return null;
+            }
+        });
+        return new ConvertingFuture<Map<String, Object>, Content>(row) {
+            protected Content convert(Map<String, Object> content) {
+                if (content == null) {
+                    return null;
+                }
+                Content contentObject = new Content(path, content);
+                ((InternalContent) contentObject).internalize(ContentManagerImpl.this, false);
+                return contentObject;
+            }
+        };
+    }
+
+    /**
+     * Load content the current user has already been checked for read access on.
+     */
+    private Content internalGet(String path) throws StorageClientException {
         Map<String, Object> structure = getCached(keySpace, contentColumnFamily, path);
         if (exists(structure)) {
             String contentId = (String)structure.get(STRUCTURE_UUID_FIELD);
@@ -232,6 +289,49 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
 
     }
 
+    /**
+     * Read the next batch of structure objects and check read access on all of
+     * them in one operation. If the batch can't be checked, each path is
+     * checked on its own.
+     * 
+     * @param structures
+     *            structure objects.
+     * @return the paths in the batch the current user can read.
+     */
+    private Iterator<String> nextReadablePaths(Iterator<Map<String, Object>> structures) {
+        List<String> paths = Lists.newArrayList();
+        while (paths.size() < CHECK_BATCH_SIZE && structures.hasNext()) {
+            Map<String, Object> structureMap = structures.next();
+            LOGGER.debug("Loaded Next as {} ", structureMap);
+            if (exists(structureMap)) {
+                paths.add((String) structureMap.get(PATH_FIELD));
+            }
+        }
+        if (paths.size() == 0) {
+            return Collections.<String> emptyList().iterator();
+        }
+        try {
+            return accessControlManager
+                    .checkAll(Security.ZONE_CONTENT, paths, Permissions.CAN_READ).iterator();
+        } catch (StorageClientException e) {
+            LOGGER.warn("Unable to check access on a batch of {} paths, checking each path: {} ",
+                    paths.size(), e.getMessage());
+            LOGGER.debug(e.getMessage(), e);
+        }
+        List<String> readable = Lists.newArrayList();
+        for (String path : paths) {
+            try {
+                accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_READ);
+                readable.add(path);
+            } catch (AccessDeniedException e) {
+                LOGGER.debug(e.getMessage(), e);
+            } catch (StorageClientException e) {
+                LOGGER.warn("Unable to check access on {}: {} ", path, e.getMessage());
+                LOGGER.debug(e.getMessage(), e);
+            }
+        }
+        return readable.iterator();
+    }
 
     public Iterator<Content> listChildren(String path) throws StorageClientException {
         final DisposableIterator<Map<String, Object>> childContent = client.listChildren(keySpace,
@@ -239,20 +339,21 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
         return new PreemptiveIterator<Content>() {
 
             private Content content;
+            private Iterator<String> readable;
 
             @Override
             protected boolean internalHasNext() {
                 content = null;
-                while(content == null && childContent.hasNext()) {
-                    try {
-                        Map<String, Object> structureMap = childContent.next();
-                        LOGGER.debug("Loaded Next as {} ", structureMap);
-                        if ( exists(structureMap) ) {
-                            String path = (String) structureMap.get(PATH_FIELD);
-                            content = get(path);
+                while(content == null) {
+                    if (readable == null || !readable.hasNext()) {
+                        if (!childContent.hasNext()) {
+                            break;
                         }
-                    } catch (AccessDeniedException e) {
-                        LOGGER.debug(e.getMessage(),e);
+                        readable = nextReadablePaths(childContent);
+                        continue;
+                    }
+                    try {
+                        content = internalGet(readable.next());
                     } catch (StorageClientException e) {
                         LOGGER.debug(e.getMessage(),e);
                     }
@@ -279,28 +380,20 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
         return new PreemptiveIterator<String>() {
 
             private String childPath;
+            private Iterator<String> readable;
 
             @Override
             protected boolean internalHasNext() {
-                while(childContent.hasNext()) {
-                    try {
-                        Map<String, Object> structureMap = childContent.next();
-                        LOGGER.debug("Loaded Next child of {} as {} ", path, structureMap);
-                        if ( exists(structureMap) ) {
-                            String testChildPath = (String) structureMap.get(PATH_FIELD);
-                                accessControlManager.check(Security.ZONE_CONTENT, testChildPath, Permissions.CAN_READ);
-                                childPath = testChildPath;
-                                // this is not that efficient since it requires the map is
-                                // loaded, at the moment I don't have a way round this with the
-                                // underlying index structure.
-                                LOGGER.debug("Got Next Child of {} as {} ", path, childPath);
-                                return true;
-                        }
-                    } catch (AccessDeniedException e) {
-                        LOGGER.debug(e.getMessage(),e);
-                    } catch (StorageClientException e) {
-                        LOGGER.debug(e.getMessage(),e);
+                while (true) {
+                    if (readable != null && readable.hasNext()) {
+                        childPath = readable.next();
+                        LOGGER.debug("Got Next Child of {} as {} ", path, childPath);
+                        return true;
                     }
+                    if (!childContent.hasNext()) {
+                        break;
+                    }
+                    readable = nextReadablePaths(childContent);
                 }
                 LOGGER.debug("No more");
                 childPath = null;
@@ -315,6 +408,180 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
         };
     }
     
+    public Iterator<String> listAllPaths() throws StorageClientException,
+            AccessDeniedException {
+        checkOpen();
+        if (!User.ADMIN_USER.equals(accessControlManager.getCurrentUserId())) {
+            throw new AccessDeniedException(Security.ZONE_CONTENT, "/", "list all content",
+                    accessControlManager.getCurrentUserId());
+        }
+        final DisposableIterator<SparseRow> all = client.listAll(keySpace, contentColumnFamily);
+        return new PreemptiveIterator<String>() {
+
+            private String path;
+
+            @Override
+            protected boolean internalHasNext() {
+                while (all.hasNext()) {
+                    Map<String, Object> c = all.next().getProperties();
+                    if (c.containsKey(PATH_FIELD) && !c.containsKey(STRUCTURE_UUID_FIELD)) {
+                        path = (String) c.get(PATH_FIELD);
+                        return true;
+                    }
+                }
+                path = null;
+                close();
+                return false;
+            }
+
+            @Override
+            protected String internalNext() {
+                return path;
+            }
+
+            @Override
+            public void close() {
+                all.close();
+                super.close();
+            }
+        };
+    }
+
+    public long getChildCount(String path) throws StorageClientException,
+            AccessDeniedException {
+        checkOpen();
+        accessControlManager.check(Security.ZONE_CONTENT, path, Permissions.CAN_READ);
+        Map<String, Object> structure = getCached(keySpace, contentColumnFamily, path);
+        if (!exists(structure)) {
+            return 0;
+        }
+        // saved before children were counted, counted once and kept from now on.
+        return countChildrenCached(keySpace, contentColumnFamily, path, CHILD_COUNT_FIELD);
+    }
+
+    public Iterator<Content> listChildren(String path, String sort, int page, int items)
+            throws StorageClientException, AccessDeniedException {
+        if (!isParentIndexed()) {
+            return listStructureChildren(path, sort, page * items, null, items);
+        }
+        Map<String, Object> childSearch = getChildSearch(path, sort, items);
+        childSearch.put(StorageConstants.PAGE, page);
+        return find(childSearch).iterator();
+    }
+
+    public Iterator<Content> listChildren(String path, String sort, String continuation,
+            int items) throws StorageClientException, AccessDeniedException {
+        if (!isParentIndexed()) {
+            return listStructureChildren(path, sort, 0, continuation, items);
+        }
+        Map<String, Object> childSearch = getChildSearch(path, sort, items);
+        // the first page is ordered so that it can be continued.
+        childSearch.put(StorageConstants.CONTINUATION, continuation);
+        return find(childSearch).iterator();
+    }
+
+    /**
+     * @return true once content can be found by its parent, false while the parent
+     *         column of the index is being backfilled.
+     */
+    private boolean isParentIndexed() throws StorageClientException {
+        return !client.getIndexBackfillColumns().contains(
+                contentColumnFamily + ":" + PARENT_FIELD);
+    }
+
+    /**
+     * List a page of children from the structure rows and sort it in memory, in the order
+     * the index would, for when the children can't yet be found by their parent. Only the
+     * first sort property is used to continue after a child that is no longer listed.
+     * 
+     * @param skip
+     *            the number of children to skip.
+     * @param continuation
+     *            the id of the child to continue after, null to start at skip.
+     */
+    private Iterator<Content> listStructureChildren(String path, String sort, int skip,
+            String continuation, int items) throws StorageClientException {
+        final String[] sorts = sort == null ? new String[0] : StringUtils.split(sort);
+        List<Content> children = Lists.newArrayList();
+        Iterator<Content> listed = listChildren(path);
+        while (listed.hasNext()) {
+            Content child = listed.next();
+            // links are listed with the content they point to, as the index lists them.
+            if (path.equals(StorageClientUtils.getParentObjectPath((String) child
+                    .getProperty(PATH_FIELD)))) {
+                children.add(child);
+            }
+        }
+        // ties are in the order of the row ids, in the direction of the first sort, as the
+        // index has them.
+        final Map<String, String> rowIds = Maps.newHashMap();
+        for (Content child : children) {
+            rowIds.put(child.getId(), getCacheKey(keySpace, contentColumnFamily, child.getId()));
+        }
+        Collections.sort(children, new Comparator<Content>() {
+            public int compare(Content c1, Content c2) {
+                for (int i = 0; i < sorts.length; i += 2) {
+                    int c = compareSortValues(c1.getProperty(sorts[i]),
+                            c2.getProperty(sorts[i]), sorts, i);
+                    if (c != 0) {
+                        return c;
+                    }
+                }
+                return compareSortValues(rowIds.get(c1.getId()), rowIds.get(c2.getId()), sorts,
+                        0);
+            }
+        });
+        int start = Math.min(skip, children.size());
+        if (continuation != null) {
+            start = children.size();
+            Map<String, Object> last = getCached(keySpace, contentColumnFamily, continuation);
+            Object lastValue = sorts.length > 0 && last != null ? last.get(sorts[0]) : null;
+            String lastRowId = getCacheKey(keySpace, contentColumnFamily, continuation);
+            for (int i = 0; i < children.size(); i++) {
+                Content child = children.get(i);
+                int c = sorts.length > 0 ? compareSortValues(child.getProperty(sorts[0]),
+                        lastValue, sorts, 0) : 0;
+                if (c == 0) {
+                    c = compareSortValues(rowIds.get(child.getId()), lastRowId, sorts, 0);
+                }
+                if (c > 0) {
+                    start = i;
+                    break;
+                }
+            }
+        }
+        return children.subList(start, Math.min(children.size(), start + items)).iterator();
+    }
+
+    /**
+     * Compare two values of the sort property at index i of sorts, nulls first, in the
+     * direction that follows the property.
+     */
+    @SuppressWarnings("unchecked")
+    private static int compareSortValues(Object v1, Object v2, String[] sorts, int i) {
+        int c = 0;
+        if (v1 == null || v2 == null) {
+            c = v1 == null ? (v2 == null ? 0 : -1) : 1;
+        } else if (v1 instanceof Number && v2 instanceof Number) {
+            c = Double.compare(((Number) v1).doubleValue(), ((Number) v2).doubleValue());
+        } else if (v1 instanceof Comparable && v1.getClass().equals(v2.getClass())) {
+            c = ((Comparable<Object>) v1).compareTo(v2);
+        } else {
+            c = String.valueOf(v1).compareTo(String.valueOf(v2));
+        }
+        return i + 1 < sorts.length && "desc".equalsIgnoreCase(sorts[i + 1]) ? -c : c;
+    }
+
+    private Map<String, Object> getChildSearch(String path, String sort, int items) {
+        Map<String, Object> childSearch = Maps.newLinkedHashMap();
+        childSearch.put(PARENT_FIELD, StorageClientUtils.insecureHash(path));
+        if (sort != null) {
+            childSearch.put(StorageConstants.SORT, sort);
+        }
+        childSearch.put(StorageConstants.ITEMS, items);
+        return childSearch;
+    }
+
     public void triggerRefresh(String path) throws StorageClientException, AccessDeniedException {
         Content c = get(path);
         if ( c != null ) {
@@ -403,6 +670,7 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
             // if the user is admin we allow overwriting of protected fields. This should allow content migration.
             toSave.put(UUID_FIELD, id);
             toSave.put(PATH_FIELD, path);
+            putPathIndexes(toSave, path);
             toSave.put(CREATED_FIELD, System.currentTimeMillis());
             toSave.put(CREATED_BY_FIELD, accessControlManager.getCurrentUserId());
             toSave.put(LASTMODIFIED_FIELD, System.currentTimeMillis());
@@ -420,6 +688,8 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
             }
 
             id = (String)toSave.get(UUID_FIELD);
+            // content saved before the path was indexed gets the indexes on its next update.
+            putPathIndexes(toSave, path);
             toSave.put(LASTMODIFIED_FIELD, System.currentTimeMillis());
             toSave.put(LASTMODIFIED_BY_FIELD,
                     accessControlManager.getCurrentUserId());
@@ -440,7 +710,8 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
         if (content.isNew()) {
             isnew = true;
             putCached(keySpace, contentColumnFamily, path,
-                    ImmutableMap.of(STRUCTURE_UUID_FIELD, (Object)id, PATH_FIELD, path, DELETED_FIELD, new RemoveProperty()), true);
+                    ImmutableMap.of(STRUCTURE_UUID_FIELD, (Object)id, PATH_FIELD, path, DELETED_FIELD, new RemoveProperty()), true,
+                    CHILD_COUNT_FIELD);
         } else {
             // get the structure field to see if we need to update that
             Map<String, Object> structure = getCached(keySpace, contentColumnFamily, path);
@@ -448,7 +719,8 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
                 // rewrite the structure field resetting the deleted field.
                 isnew = true;
                 putCached(keySpace, contentColumnFamily, path,
-                        ImmutableMap.of(STRUCTURE_UUID_FIELD, (Object)id, PATH_FIELD, path, DELETED_FIELD, new RemoveProperty()), true);                
+                        ImmutableMap.of(STRUCTURE_UUID_FIELD, (Object)id, PATH_FIELD, path, DELETED_FIELD, new RemoveProperty()), true,
+                        CHILD_COUNT_FIELD);
             }
             
             
@@ -473,13 +745,15 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
             if ( exists(content)) {
                 Map<String, Object> contentBeforeDelete = ImmutableMap.copyOf(content);
                 String resourceType = (String) content.get("sling:resourceType");
+                // deleted content is no longer below its parent and ancestors.
                 putCached(keySpace, contentColumnFamily, uuid,
-                        ImmutableMap.of(DELETED_FIELD, (Object) TRUE), false);
+                        ImmutableMap.of(DELETED_FIELD, (Object) TRUE, ANCESTORS_FIELD,
+                                new RemoveProperty(), PARENT_FIELD, new RemoveProperty()), false);
                 eventListener.onDelete(Security.ZONE_CONTENT, path, accessControlManager.getCurrentUserId(), resourceType, contentBeforeDelete);
             }
             // at 1.4 the deleted field was not on the structure object, this will auto migrate content.
             putCached(keySpace, contentColumnFamily, path,
-                    ImmutableMap.of(DELETED_FIELD, (Object) TRUE), false);
+                    ImmutableMap.of(DELETED_FIELD, (Object) TRUE), false, CHILD_COUNT_FIELD);
         }
     }
 
@@ -487,6 +761,20 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
         return map != null && map.size() > 0 && !TRUE.equals(map.get(DELETED_FIELD));
     }
 
+    /**
+     * Put the hashes of the parent and ancestors of a path, used to find the content at the
+     * path as a child or descendant.
+     */
+    private void putPathIndexes(Map<String, Object> properties, String path) {
+        String[] ancestors = StorageClientUtils.getAncestorHashes(path);
+        properties.put(ANCESTORS_FIELD, ancestors);
+        if (ancestors.length > 0) {
+            properties.put(PARENT_FIELD, ancestors[0]);
+        } else {
+            properties.put(PARENT_FIELD, new RemoveProperty());
+        }
+    }
+
 
     public long writeBody(String path, InputStream in) throws StorageClientException,
             AccessDeniedException, IOException {
@@ -688,15 +976,20 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
 
         }
         // update the content data to reflect the new primary location.
-        putCached(keySpace, contentColumnFamily, idStore,
-                ImmutableMap.of(PATH_FIELD, (Object)to), false);
+        Map<String, Object> moved = Maps.newHashMap();
+        moved.put(PATH_FIELD, to);
+        putPathIndexes(moved, to);
+        putCached(keySpace, contentColumnFamily, idStore, moved, false);
 
         // insert the new to Structure and remove the from
         fromStructure.put(PATH_FIELD, to);
-        putCached(keySpace, contentColumnFamily, to, fromStructure, true);
+        // the children stay below from until they are moved, they are counted at to on arrival.
+        fromStructure.remove(CHILD_COUNT_FIELD);
+        putCached(keySpace, contentColumnFamily, to, fromStructure, true, CHILD_COUNT_FIELD);
 
         // remove the old from.
-        putCached(keySpace, contentColumnFamily, from, ImmutableMap.of(DELETED_FIELD, (Object)TRUE), false);
+        putCached(keySpace, contentColumnFamily, from, ImmutableMap.of(DELETED_FIELD, (Object)TRUE), false,
+                CHILD_COUNT_FIELD);
         // move does not add resourceTypes to events.
         eventListener.onDelete(Security.ZONE_CONTENT, from, accessControlManager.getCurrentUserId(), null, null, "op:move");
         eventListener.onUpdate(Security.ZONE_CONTENT, to, accessControlManager.getCurrentUserId(), null, true, null, "op:move");
@@ -764,7 +1057,8 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
 
         // create the new object for the path, pointing to the Object
         putCached(keySpace, contentColumnFamily, from, ImmutableMap.of(STRUCTURE_UUID_FIELD,
-                idStore, PATH_FIELD, from, LINKED_PATH_FIELD, to, DELETED_FIELD, new RemoveProperty()), true);
+                idStore, PATH_FIELD, from, LINKED_PATH_FIELD, to, DELETED_FIELD, new RemoveProperty()), true,
+                CHILD_COUNT_FIELD);
 
     }
 
@@ -780,6 +1074,8 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
         if (!exists(saveVersion)) {
             throw new StorageClientException("Item "+path+" does not exist");
         }
+        // rows from the cache are shared and immutable.
+        saveVersion = Maps.newHashMap(saveVersion);
 
         // versionHistoryId is the UUID of the version history for this node.
 
@@ -810,6 +1106,9 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
 
         saveVersion.put(NEXT_VERSION_FIELD, newVersionId);
         saveVersion.put(READONLY_FIELD, TRUE);
+        // only the current version is found below its parent and ancestors.
+        saveVersion.put(ANCESTORS_FIELD, new RemoveProperty());
+        saveVersion.put(PARENT_FIELD, new RemoveProperty());
         Object versionNumber = System.currentTimeMillis();
         saveVersion.put(VERSION_NUMBER_FIELD, versionNumber);
 
@@ -841,8 +1140,8 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
                 String versionHistoryId = (String)content
                         .get(VERSION_HISTORY_ID_FIELD);
                 if (versionHistoryId != null) {
-                    final Map<String, Object> versionHistory = getCached(keySpace,
-                            contentColumnFamily, versionHistoryId);
+                    final Map<String, Object> versionHistory = Maps.newHashMap(getCached(keySpace,
+                            contentColumnFamily, versionHistoryId));
                     LOGGER.debug("Loaded Version History  {} {} ", versionHistoryId, versionHistory);
                     versionHistory.remove(UUID_FIELD);
                   return Ordering.from(new Comparator<String>() {
@@ -949,19 +1248,20 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
               final DisposableIterator<Map<String,Object>> clientSearchKeysIterator = client.find(keySpace, contentColumnFamily, finalSearchProperties, ContentManagerImpl.this);
               contentResultsIterator = new PreemptiveIterator<Content>() {
                   Content contentResult;
+                  Iterator<String> readable;
 
                   protected boolean internalHasNext() {
                       contentResult = null;
-                      while (contentResult == null && clientSearchKeysIterator.hasNext()) {
-                          try {
-                              Map<String, Object> structureMap = clientSearchKeysIterator.next();
-                              LOGGER.debug("Loaded Next as {} ", structureMap);
-                              if ( exists(structureMap) ) {
-                                  String path = (String) structureMap.get(PATH_FIELD);
-                                  contentResult = get(path);
+                      while (contentResult == null) {
+                          if (readable == null || !readable.hasNext()) {
+                              if (!clientSearchKeysIterator.hasNext()) {
+                                  break;
                               }
-                          } catch (AccessDeniedException e) {
-                              LOGGER.debug(e.getMessage(),e);
+                              readable = nextReadablePaths(clientSearchKeysIterator);
+                              continue;
+                          }
+                          try {
+                              contentResult = internalGet(readable.next());
                           } catch (StorageClientException e) {
                               LOGGER.debug(e.getMessage(),e);
                           }
@@ -1007,6 +1307,34 @@ public class ContentManagerImpl extends CachingManagerImpl implements ContentMan
         }
     }
 
+    public Iterable<Content> findDescendants(String path, Map<String, Object> searchProperties)
+            throws StorageClientException, AccessDeniedException {
+        return find(getDescendantsSearch(path, searchProperties));
+    }
+
+    public long countDescendants(String path, Map<String, Object> searchProperties)
+            throws StorageClientException {
+        return client.count(keySpace, contentColumnFamily,
+                getDescendantsSearch(path, searchProperties));
+    }
+
+    private Map<String, Object> getDescendantsSearch(String path,
+            Map<String, Object> searchProperties) {
+        Map<String, Object> descendantsSearch = Maps.newLinkedHashMap(searchProperties);
+        descendantsSearch.put(ANCESTORS_FIELD, StorageClientUtils.insecureHash(path));
+        return descendantsSearch;
+    }
+
+    public Map<String, Long> countValues(Map<String, Object> searchProperties, String property,
+            int limit) throws StorageClientException {
+        return client.countValues(keySpace, contentColumnFamily, searchProperties, property, limit);
+    }
+
+    public Object[] range(Map<String, Object> searchProperties, String property)
+            throws StorageClientException {
+        return client.range(keySpace, contentColumnFamily, searchProperties, property);
+    }
+
 
     public boolean hasBody(String path, String streamId) throws StorageClientException, AccessDeniedException {
         Content content = get(path);
@@ -30,6 +30,7 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.spi.types.LazyRowMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,6 +63,27 @@ public class InternalContent {
      */
     public static final String PARENT_HASH_FIELD = INTERNAL_FIELD_PREFIX + "parenthash";
 
+    /**
+     * The hashes of the ancestor paths of a content item, held on the content row so
+     * that a subtree can be found with one query.
+     * @since 1.5
+     */
+    public static final String ANCESTORS_FIELD = INTERNAL_FIELD_PREFIX + "ancestors";
+
+    /**
+     * The hash of the parent path of a content item, held on the content row so that
+     * children can be sorted and paged on their properties.
+     * @since 1.5
+     */
+    public static final String PARENT_FIELD = INTERNAL_FIELD_PREFIX + "parent";
+
+    /**
+     * The number of children of a content item, held on its structure row and kept under
+     * a lock on that row as children are written.
+     * @since 1.5
+     */
+    public static final String CHILD_COUNT_FIELD = INTERNAL_FIELD_PREFIX + "childCount";
+
     /**
      * content item ID referenced by a Structure item
      */
@@ -218,9 +240,9 @@ public class InternalContent {
             + "versionSavedBy";
 
     /**
-     * Map of the content object itself.
+     * Map of the content object itself, immutable.
      */
-    private ImmutableMap<String, Object> content;
+    private Map<String, Object> content;
     /**
      * Path locating this content object within the overall content structure.
      */
@@ -256,7 +278,7 @@ public class InternalContent {
         if (content == null) {
             content = ImmutableMap.of();
         }
-        this.content = ImmutableMap.copyOf(content);
+        this.content = immutableCopy(content);
         this.updatedContent = Maps.newHashMap();
         this.path = path;
         updated = true;
@@ -264,6 +286,18 @@ public class InternalContent {
         readOnly = false;
     }
 
+    /**
+     * @return an immutable copy of the map, rows loaded from storage are
+     *         already immutable and are not copied so that their properties
+     *         are only decoded when used.
+     */
+    private static Map<String, Object> immutableCopy(Map<String, Object> map) {
+        if (map instanceof LazyRowMap) {
+            return map;
+        }
+        return ImmutableMap.copyOf(map);
+    }
+
     /**
      * Convert a new content object to an internal version.
      *
@@ -284,7 +318,7 @@ public class InternalContent {
      */
     public void reset(Map<String, Object> updatedMap) {
         if (!readOnly) {
-            this.content = ImmutableMap.copyOf(updatedMap);
+            this.content = immutableCopy(updatedMap);
             updatedContent.clear();
             updated = false;
             LOGGER.debug("Reset to {} ", updatedMap);
@@ -1,11 +1,58 @@
 package org.sakaiproject.nakamura.lite.storage.jdbc;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import org.apache.commons.lang.StringUtils;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageConstants;
+import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
+import org.sakaiproject.nakamura.lite.storage.spi.RowAggregator;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
 public abstract class AbstractIndexer implements Indexer {
+    /**
+     * Seek statement part, where clause for sorted queries; {0} is the sort column, {1} the
+     * comparison.
+     */
+    static final int SEEK_SORTED_PART = 0;
+    /**
+     * Seek statement part, where clause for unsorted queries; {0} is the comparison.
+     */
+    static final int SEEK_UNSORTED_PART = 1;
+    /**
+     * Seek statement part, sort element that orders rows with equal sort values; {0} is the
+     * order.
+     */
+    static final int SEEK_ORDER_PART = 2;
+    /**
+     * Statistics of a key/value index column, the parameter of both statements is the
+     * property; the number of rows with a value and the number of distinct values ; the
+     * values with the number of rows that have them, most frequent first.
+     */
+    static final String SQL_STATS_STRING_COLUMN = "stats-string-column";
+    /**
+     * 1 if the database compares index values exactly, so terms can be checked against
+     * the loaded rows instead. Databases that compare case insensitively, such as MySQL
+     * with a _ci collation, would match rows the loaded values don't.
+     */
+    static final String SQL_CASE_SENSITIVE_COMPARE = "case-sensitive-compare";
+    /**
+     * The largest number of rows an aggregate that can't be done in the database will load.
+     */
+    static final int MAX_AGGREGATE_ROWS = 10000;
     private static final Logger LOGGER = LoggerFactory.getLogger(AbstractIndexer.class);
     private Set<String> indexColumns;
     
@@ -33,4 +80,244 @@ public abstract class AbstractIndexer implements Indexer {
         }
     }
 
+    /**
+     * Plan a find with the query planner of the client.
+     * @see QueryPlanner#plan(AbstractIndexer, String, String, Map, Map)
+     */
+    Map<String, Object> plan(JDBCStorageClient client, String keySpace, String columnFamily,
+            Map<String, Object> properties, Map<String, Object> filters) {
+        QueryPlanner planner = client.getQueryPlanner();
+        if (planner == null) {
+            return properties;
+        }
+        if (!"1".equals(client.getSql(keySpace, columnFamily, SQL_CASE_SENSITIVE_COMPARE))) {
+            filters = null;
+        }
+        return planner.plan(this, keySpace, columnFamily, properties, filters);
+    }
+
+    /**
+     * @return the number of rows a find with terms checked against the loaded rows may
+     *         read, which is at least the rows up to the end of the page.
+     */
+    long getFilteredRowLimit(JDBCStorageClient client, long offset, long items) {
+        QueryPlanner planner = client.getQueryPlanner();
+        long limit = planner == null ? 0 : planner.getMaxFilteredRows();
+        return Math.max(limit, offset + items);
+    }
+
+    /**
+     * Count the values of a property in the rows matched by a find. The rows are loaded
+     * and counted in memory, indexers that can aggregate in the database override this.
+     * @throws StorageClientException if more than {@link #MAX_AGGREGATE_ROWS} rows match.
+     * @see StorageClient#countValues(String, String, Map, String, int)
+     */
+    Map<String, Long> countValues(JDBCStorageClient client, String keySpace,
+            String columnFamily, Map<String, Object> properties, String property, int limit)
+            throws StorageClientException {
+        return RowAggregator.countValues(
+                getAggregateRows(client, keySpace, columnFamily, properties), property, limit);
+    }
+
+    /**
+     * Find the smallest and largest value of a property in the rows matched by a find.
+     * The rows are loaded and compared in memory, indexers that can aggregate in the
+     * database override this.
+     * @throws StorageClientException if more than {@link #MAX_AGGREGATE_ROWS} rows match.
+     * @see StorageClient#range(String, String, Map, String)
+     */
+    Object[] range(JDBCStorageClient client, String keySpace, String columnFamily,
+            Map<String, Object> properties, String property) throws StorageClientException {
+        return RowAggregator.range(getAggregateRows(client, keySpace, columnFamily, properties),
+                property);
+    }
+
+    private DisposableIterator<Map<String, Object>> getAggregateRows(JDBCStorageClient client,
+            String keySpace, String columnFamily, Map<String, Object> properties)
+            throws StorageClientException {
+        long rows = client.count(keySpace, columnFamily, properties);
+        if (rows > MAX_AGGREGATE_ROWS) {
+            throw new StorageClientException("Aggregate on " + columnFamily + " would load "
+                    + rows + " rows, more than " + MAX_AGGREGATE_ROWS
+                    + ", index the property or narrow the search ");
+        }
+        if (!RowAggregator.hasTerms(properties)) {
+            return RowAggregator.properties(client.listAll(keySpace, columnFamily));
+        }
+        LOGGER.debug("Aggregating {}:{} in memory ", columnFamily, properties);
+        return find(keySpace, columnFamily, getAggregateFind(properties), null);
+    }
+
+    /**
+     * @return the find of an aggregate, with all the rows that may be aggregated on one
+     *         page.
+     */
+    Map<String, Object> getAggregateFind(Map<String, Object> properties) {
+        Map<String, Object> aggregateFind = Maps.newLinkedHashMap(properties);
+        aggregateFind.remove(StorageConstants.PAGE);
+        aggregateFind.remove(StorageConstants.SORT);
+        aggregateFind.remove(StorageConstants.CONTINUATION);
+        aggregateFind.remove(StorageConstants.RAWRESULTS);
+        aggregateFind.put(StorageConstants.ITEMS, MAX_AGGREGATE_ROWS);
+        return aggregateFind;
+    }
+
+    /**
+     * Run an aggregate query.
+     * @return the rows of the result, no more than maxRows.
+     */
+    List<Object[]> aggregate(JDBCStorageClient client, String sql, List<Object> parameters,
+            int maxRows) throws StorageClientException {
+        PreparedStatement pst = null;
+        ResultSet rs = null;
+        try {
+            LOGGER.debug("Preparing {} ", sql);
+            pst = client.getConnection().prepareStatement(sql);
+            client.inc("iterator");
+            pst.setMaxRows(maxRows);
+            int i = 1;
+            for (Object params : parameters) {
+                pst.setObject(i, params);
+                i++;
+            }
+            long qtime = System.currentTimeMillis();
+            rs = pst.executeQuery();
+            qtime = System.currentTimeMillis() - qtime;
+            if ( qtime > client.getSlowQueryThreshold() && qtime < client.getVerySlowQueryThreshold()) {
+                JDBCStorageClient.SQL_LOGGER.warn("Slow Query {}ms {} params:[{}]",new Object[]{qtime,sql,Arrays.toString(parameters.toArray())});
+            } else if ( qtime > client.getVerySlowQueryThreshold() ) {
+                JDBCStorageClient.SQL_LOGGER.error("Very Slow Query {}ms {} params:[{}]",new Object[]{qtime,sql,Arrays.toString(parameters.toArray())});
+            }
+            client.inc("iterator r");
+            int ncolumns = rs.getMetaData().getColumnCount();
+            List<Object[]> rows = Lists.newArrayList();
+            while (rs.next()) {
+                Object[] row = new Object[ncolumns];
+                for (int c = 0; c < ncolumns; c++) {
+                    row[c] = rs.getObject(c + 1);
+                }
+                rows.add(row);
+            }
+            return rows;
+        } catch (SQLException e) {
+            LOGGER.error(e.getMessage(), e);
+            throw new StorageClientException(e.getMessage() + " SQL Statement was " + sql, e);
+        } finally {
+            try {
+                if (rs != null) {
+                    rs.close();
+                    client.dec("iterator r");
+                }
+            } catch (SQLException e) {
+                LOGGER.warn(e.getMessage(), e);
+            }
+            try {
+                if (pst != null) {
+                    pst.close();
+                    client.dec("iterator");
+                }
+            } catch (SQLException e) {
+                LOGGER.warn(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Sample the statistics of the index columns and the number of rows in their column
+     * families.
+     */
+    void sampleStatistics(JDBCStorageClient client, String keySpace,
+            ColumnStatistics statistics) throws StorageClientException, SQLException {
+        Set<String> columnFamilies = Sets.newHashSet();
+        for (String column : indexColumns) {
+            if (JDBCStorageClient.AUTO_INDEX_COLUMNS.contains(column)) {
+                // only used by the driver, never found.
+                continue;
+            }
+            String[] cf = StringUtils.split(column, ":", 2);
+            if (columnFamilies.add(cf[0])) {
+                statistics.update(cf[0], client.allCount(keySpace, cf[0]));
+            }
+            sampleColumn(client, keySpace, cf[0], cf[1], statistics);
+        }
+    }
+
+    /**
+     * Sample the statistics of one index column, from the key/value index.
+     */
+    void sampleColumn(JDBCStorageClient client, String keySpace, String columnFamily,
+            String property, ColumnStatistics statistics) throws SQLException {
+        String sql = client.getSql(keySpace, columnFamily, SQL_STATS_STRING_COLUMN);
+        if (sql != null) {
+            client.sampleColumn(StringUtils.split(sql, ';'), property, columnFamily, property,
+                    statistics);
+        }
+    }
+
+    /**
+     * Resolve the continuation of a query into the row id and sort value of the last row of
+     * the previous page. If only the key of the last row is given, the sort value is read
+     * from the stored row.
+     * @param sortProperty the property the query is sorted on, null if not sorted.
+     * @return {rid, sort value} where the sort value is null if the query is not sorted, or
+     *         null if the query has no continuation.
+     * @throws StorageClientException if the sort value can't be determined.
+     */
+    String[] getContinuation(JDBCStorageClient client, String keySpace, String columnFamily,
+            Map<String, Object> properties, String sortProperty) throws StorageClientException {
+        Object continuation = properties.get(StorageConstants.CONTINUATION);
+        if (continuation == null) {
+            return null;
+        }
+        String key = null;
+        Object sortValue = null;
+        if (continuation instanceof Object[]) {
+            Object[] c = (Object[]) continuation;
+            key = String.valueOf(c[0]);
+            if (c.length > 1) {
+                sortValue = c[1];
+            }
+        } else {
+            key = String.valueOf(continuation);
+            if (sortProperty != null) {
+                Map<String, Object> row = client.get(keySpace, columnFamily, key);
+                if (row != null) {
+                    sortValue = row.get(sortProperty);
+                }
+            }
+        }
+        if (sortProperty != null && (sortValue == null || sortValue instanceof Object[])) {
+            throw new StorageClientException("Unable to continue after " + key
+                    + ", it has no single value for " + sortProperty);
+        }
+        return new String[] { client.rowHash(keySpace, columnFamily, key),
+                sortValue == null ? null : sortValue.toString() };
+    }
+
+    /**
+     * Build the where clause that seeks past the row identified by the continuation, adding
+     * its parameters. All but the last parameter are the sort value, the last is the rid.
+     */
+    String getSeekClause(String[] seekParts, String[] continuation, String sortColumn,
+            String order, List<Object> parameters) {
+        String comparison = "desc".equalsIgnoreCase(order) ? "<" : ">";
+        String seekClause = null;
+        if (continuation[1] != null) {
+            seekClause = MessageFormat.format(seekParts[SEEK_SORTED_PART], sortColumn, comparison);
+        } else {
+            seekClause = MessageFormat.format(seekParts[SEEK_UNSORTED_PART], comparison);
+        }
+        int nparams = 0;
+        for (int i = 0; i < seekClause.length(); i++) {
+            if (seekClause.charAt(i) == '?') {
+                nparams++;
+            }
+        }
+        for (int i = 1; i < nparams; i++) {
+            parameters.add(continuation[1]);
+        }
+        parameters.add(continuation[0]);
+        return seekClause;
+    }
+
 }
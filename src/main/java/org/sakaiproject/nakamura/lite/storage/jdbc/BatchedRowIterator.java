@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
+import org.sakaiproject.nakamura.lite.storage.spi.DirectCacheAccess;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Lists;
+
+/**
+ * Iterates over the results of an index query where the first column of the
+ * result set is the row id. Rather than loading each row as it is reached,
+ * row ids are read from the result set in batches and all the rows of a batch
+ * are loaded in one operation, after consulting the cache. If raw results are
+ * requested the columns of the result set are returned as they are. Loaded rows may be
+ * filtered on property values that were not checked by the query, in which case the
+ * iterator pages through the filtered rows itself.
+ */
+class BatchedRowIterator extends PreemptiveIterator<Map<String, Object>> {
+
+    /**
+     * The largest number of rows that will be loaded in one operation.
+     */
+    static final int MAX_BATCH_SIZE = 100;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchedRowIterator.class);
+    private final JDBCStorageClient client;
+    private final String keySpace;
+    private final String columnFamily;
+    private final PreparedStatement pst;
+    private final ResultSet rs;
+    private final ResultSetMetaData rsmd;
+    private final boolean rawResults;
+    private final int batchSize;
+    private final DirectCacheAccess cachingManager;
+    private final Map<String, Object> filters;
+    private long skip;
+    private long remaining;
+    private final long rowLimit;
+    private final Thread holder;
+    private long rowsRead;
+    private Iterator<Map<String, Object>> batch;
+    private Map<String, Object> nextValue;
+    private boolean open = true;
+
+    BatchedRowIterator(JDBCStorageClient client, String keySpace, String columnFamily,
+            PreparedStatement pst, ResultSet rs, boolean rawResults, long pageSize,
+            DirectCacheAccess cachingManager) throws SQLException {
+        this(client, keySpace, columnFamily, pst, rs, rawResults, pageSize, cachingManager,
+                ImmutableMap.<String, Object> of(), 0, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param filters
+     *            property values that a loaded row must have to be returned.
+     * @param skip
+     *            the number of matching rows to skip.
+     * @param limit
+     *            the maximum number of matching rows to return.
+     * @param rowLimit
+     *            the number of rows the query was limited to, reported if reached before
+     *            enough rows have matched.
+     */
+    BatchedRowIterator(JDBCStorageClient client, String keySpace, String columnFamily,
+            PreparedStatement pst, ResultSet rs, boolean rawResults, long pageSize,
+            DirectCacheAccess cachingManager, Map<String, Object> filters, long skip,
+            long limit, long rowLimit) throws SQLException {
+        this.client = client;
+        this.keySpace = keySpace;
+        this.columnFamily = columnFamily;
+        this.pst = pst;
+        this.rs = rs;
+        this.rsmd = rs.getMetaData();
+        this.rawResults = rawResults;
+        this.batchSize = (int) Math.max(1, Math.min(pageSize, MAX_BATCH_SIZE));
+        this.cachingManager = cachingManager;
+        this.filters = filters;
+        this.skip = skip;
+        this.remaining = limit;
+        this.rowLimit = rowLimit;
+        // the connection is in use until the result set is closed.
+        this.holder = client.holdConnection();
+    }
+
+    @Override
+    protected Map<String, Object> internalNext() {
+        return nextValue;
+    }
+
+    @Override
+    protected boolean internalHasNext() {
+        try {
+            if (rawResults) {
+                if (open && rs.next()) {
+                    Builder<String, Object> b = ImmutableMap.builder();
+                    for (int i = 1; i <= rsmd.getColumnCount(); i++) {
+                        b.put(String.valueOf(i), rs.getObject(i));
+                    }
+                    nextValue = b.build();
+                    return true;
+                }
+            } else {
+                while (remaining > 0) {
+                    if (batch == null || !batch.hasNext()) {
+                        batch = loadBatch();
+                        if (!batch.hasNext()) {
+                            if (!filters.isEmpty() && rowsRead >= rowLimit) {
+                                LOGGER.warn("Find on {} stopped after reading {} rows, the "
+                                        + "column statistics may be out of date, filtered by {} ",
+                                        new Object[] { columnFamily, rowsRead, filters });
+                            }
+                            break;
+                        }
+                    }
+                    Map<String, Object> row = batch.next();
+                    if (matches(row)) {
+                        if (skip > 0) {
+                            skip--;
+                            continue;
+                        }
+                        remaining--;
+                        nextValue = row;
+                        return true;
+                    }
+                }
+            }
+            close();
+            nextValue = null;
+            LOGGER.debug("End of Set ");
+            return false;
+        } catch (SQLException e) {
+            LOGGER.error(e.getMessage(), e);
+            close();
+            nextValue = null;
+            return false;
+        } catch (StorageClientException e) {
+            LOGGER.error(e.getMessage(), e);
+            close();
+            nextValue = null;
+            return false;
+        }
+    }
+
+    private Iterator<Map<String, Object>> loadBatch() throws SQLException,
+            StorageClientException {
+        List<String> rids = Lists.newArrayList();
+        List<Map<String, Object>> ordered = Lists.newArrayList();
+        while (open && rids.size() < batchSize && rs.next()) {
+            rids.add(rs.getString(1));
+            rowsRead++;
+        }
+        if (rids.size() == 0) {
+            return ordered.iterator();
+        }
+        Map<String, Map<String, Object>> rows = client.internalGetAll(keySpace, columnFamily,
+                rids, cachingManager);
+        // the same row may be returned more than once by the query.
+        for (String rid : rids) {
+            Map<String, Object> row = rows.get(rid);
+            LOGGER.debug("Got Row ID {} {} ", rid, row);
+            ordered.add(row);
+        }
+        return ordered.iterator();
+    }
+
+    private boolean matches(Map<String, Object> row) {
+        for (Entry<String, Object> filter : filters.entrySet()) {
+            if (row == null) {
+                return false;
+            }
+            Object v = row.get(filter.getKey());
+            String value = String.valueOf(filter.getValue());
+            if (v instanceof Object[]) {
+                boolean found = false;
+                for (Object o : (Object[]) v) {
+                    if (o != null && value.equals(o.toString())) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
+            } else if (v == null || !value.equals(v.toString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (open) {
+            open = false;
+            try {
+                if (rs != null) {
+                    rs.close();
+                    client.dec("iterator r");
+                }
+            } catch (SQLException e) {
+                LOGGER.warn(e.getMessage(), e);
+            }
+            try {
+                if (pst != null) {
+                    pst.close();
+                    client.dec("iterator");
+                }
+            } catch (SQLException e) {
+                LOGGER.warn(e.getMessage(), e);
+            }
+            client.unholdConnection(holder);
+            super.close();
+        }
+    }
+}
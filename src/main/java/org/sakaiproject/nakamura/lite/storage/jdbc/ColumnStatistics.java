@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Value statistics of index columns, used to plan finds. For each column the number of
+ * rows with a value, the number of distinct values and the most frequent values with
+ * their row counts are kept, together with the number of rows in each column family. The
+ * statistics are sampled from time to time and are only estimates, columns that have not
+ * been sampled have no statistics.
+ */
+class ColumnStatistics {
+
+    /**
+     * Selectivity of a value in a column that has not been sampled.
+     */
+    static final double UNKNOWN = -1.0;
+
+    /**
+     * The number of most frequent values kept for each column.
+     */
+    static final int HEAVY_HITTERS = 20;
+
+    private static final class Column {
+        private final long rows;
+        private final long distinct;
+        private final Map<String, Long> heavyHitters;
+        private final long heavyHitterRows;
+
+        public Column(long rows, long distinct, Map<String, Long> heavyHitters) {
+            this.rows = rows;
+            this.distinct = distinct;
+            this.heavyHitters = ImmutableMap.copyOf(heavyHitters);
+            long n = 0;
+            for (Long count : heavyHitters.values()) {
+                n += count;
+            }
+            this.heavyHitterRows = n;
+        }
+    }
+
+    private final ConcurrentMap<String, Column> columns = new ConcurrentHashMap<String, Column>();
+    private final ConcurrentMap<String, Long> columnFamilyRows = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * @param columnFamily
+     * @param rows
+     *            the number of rows in the column family.
+     */
+    void update(String columnFamily, long rows) {
+        columnFamilyRows.put(columnFamily, rows);
+    }
+
+    /**
+     * @param columnFamily
+     * @param property
+     * @param rows
+     *            the number of rows with a value for the property.
+     * @param distinct
+     *            the number of distinct values of the property.
+     * @param heavyHitters
+     *            the most frequent values with the number of rows that have each value.
+     */
+    void update(String columnFamily, String property, long rows, long distinct,
+            Map<String, Long> heavyHitters) {
+        columns.put(columnFamily + ":" + property, new Column(rows, distinct, heavyHitters));
+    }
+
+    /**
+     * @return true if anything is known about the column family.
+     */
+    boolean hasStatistics(String columnFamily) {
+        return columnFamilyRows.containsKey(columnFamily);
+    }
+
+    /**
+     * @return the number of rows in the column family when it was sampled, 0 if unknown.
+     */
+    long getRows(String columnFamily) {
+        Long rows = columnFamilyRows.get(columnFamily);
+        return rows == null ? 0 : rows;
+    }
+
+    /**
+     * Estimate the fraction of the rows in the column family that have a value for a
+     * property. Frequent values are looked up, other values are assumed to share the
+     * remaining rows equally.
+     * 
+     * @return the estimated fraction between 0 and 1, or {@link #UNKNOWN} if the column
+     *         has not been sampled.
+     */
+    double getSelectivity(String columnFamily, String property, Object value) {
+        Column column = columns.get(columnFamily + ":" + property);
+        long rows = getRows(columnFamily);
+        if (column == null || rows == 0) {
+            return UNKNOWN;
+        }
+        Long n = column.heavyHitters.get(String.valueOf(value));
+        if (n != null) {
+            return Math.min(1.0, (double) n / rows);
+        }
+        long otherValues = column.distinct - column.heavyHitters.size();
+        if (otherValues <= 0) {
+            return 0.0;
+        }
+        return Math.min(1.0, (double) (column.rows - column.heavyHitterRows) / otherValues / rows);
+    }
+
+}
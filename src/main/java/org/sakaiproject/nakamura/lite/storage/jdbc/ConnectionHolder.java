@@ -21,25 +21,108 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 public class ConnectionHolder {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionHolder.class);
     private static final long TTL = 3600000L;
     private static final long validateWait = 120000L;
+    /**
+     * How long a connection that is given back when not in use may be idle before it is
+     * given back by the sweep.
+     */
+    private static final long IDLE = 10000L;
     private Connection connection;
     private long lastUsed;
     private long lastValidated;
     private JDBCStorageClientPool jdbcStorageClientPool;
+    /**
+     * Prepared statements on this connection by sql, least recently used first. The holder is
+     * only used by the thread that owns it so there is no need to synchronize.
+     */
+    private Map<String, PreparedStatement> statements;
+    private Set<PreparedStatement> cachedStatements = Collections
+            .newSetFromMap(new IdentityHashMap<PreparedStatement, Boolean>());
+
+    /**
+     * true if the connection is kept by the thread and has to be validated here, false if
+     * it came from a pooled DataSource that validates connections itself.
+     */
+    private boolean validate;
+    private long acquired;
+    private Exception acquiredAt;
+    private boolean leakReported;
+    /**
+     * Set by other threads when the connection should be given back by the owning thread.
+     */
+    private volatile boolean releaseRequested;
 
     public ConnectionHolder(Connection connection, JDBCStorageClientPool jdbcStorageClientPool) {
-        this.lastUsed = System.currentTimeMillis();
+        this(connection, jdbcStorageClientPool, true);
+    }
+
+    public ConnectionHolder(Connection connection, JDBCStorageClientPool jdbcStorageClientPool,
+            boolean validate) {
+        this.validate = validate;
+        this.acquired = System.currentTimeMillis();
+        this.lastUsed = acquired;
         this.lastValidated = 0L; // force the connection to get validated, even if its new.
         this.connection = connection;
         this.jdbcStorageClientPool = jdbcStorageClientPool;
+        final int maxStatements = jdbcStorageClientPool.getStatementCacheSize();
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > maxStatements) {
+                    cachedStatements.remove(eldest.getValue());
+                    closeStatement(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get a prepared statement for the sql, from the statement cache of this connection if
+     * it has already been prepared. Statements from the cache stay open for as long as the
+     * connection and must not be closed by the caller.
+     * @param sql
+     * @return the prepared statement.
+     * @throws SQLException
+     */
+    public PreparedStatement getStatement(String sql) throws SQLException {
+        PreparedStatement pst = statements.get(sql);
+        if (pst != null) {
+            jdbcStorageClientPool.recordStatementCache(true);
+            return pst;
+        }
+        jdbcStorageClientPool.recordStatementCache(false);
+        pst = connection.prepareStatement(sql);
+        if (jdbcStorageClientPool.getStatementCacheSize() > 0) {
+            cachedStatements.add(pst);
+            statements.put(sql, pst);
+        }
+        return pst;
+    }
+
+    /**
+     * @param pst
+     * @return true if the statement is held in the statement cache of this connection.
+     */
+    public boolean isCachedStatement(PreparedStatement pst) {
+        return cachedStatements.contains(pst);
     }
 
     public void ping() {
@@ -96,14 +179,73 @@ public class ConnectionHolder {
     }
 
     public Connection get() {
-        if (hasExpired()) return null;
+        if (validate && hasExpired()) return null;
 
         ping();
 
         return connection;
     }
 
+    /**
+     * @return the connection, without validating it.
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * @return true if the connection has not been used recently.
+     */
+    public boolean isIdle() {
+        return System.currentTimeMillis() > lastUsed + IDLE;
+    }
+
+    /**
+     * Ask the thread that owns this connection to give it back when it next uses it.
+     */
+    public void requestRelease() {
+        releaseRequested = true;
+    }
+
+    /**
+     * @return true if the connection should be given back once the owning thread has no
+     *         open clients.
+     */
+    public boolean isReleaseRequested() {
+        return releaseRequested;
+    }
+
+    /**
+     * @param acquiredAt the stack where the connection was acquired, reported if the
+     *            connection is held for too long.
+     */
+    public void setAcquiredAt(Exception acquiredAt) {
+        this.acquiredAt = acquiredAt;
+    }
+
+    public Exception getAcquiredAt() {
+        return acquiredAt;
+    }
+
+    /**
+     * @param threshold
+     * @return true the first time this is called after the connection has been held for
+     *         longer than threshold ms.
+     */
+    public boolean checkLeak(long threshold) {
+        if (!leakReported && System.currentTimeMillis() > acquired + threshold) {
+            leakReported = true;
+            return true;
+        }
+        return false;
+    }
+
     public void close() {
+        for (PreparedStatement pst : statements.values()) {
+            closeStatement(pst);
+        }
+        statements.clear();
+        cachedStatements.clear();
         if (connection != null) {
             try {
                 connection.close();
@@ -113,4 +255,12 @@ public class ConnectionHolder {
         }
     }
 
+    private void closeStatement(PreparedStatement pst) {
+        try {
+            pst.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Failed to close statement " + e.getMessage(), e);
+        }
+    }
+
 }
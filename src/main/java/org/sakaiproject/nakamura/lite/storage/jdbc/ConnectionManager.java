@@ -17,20 +17,63 @@
  */
 package org.sakaiproject.nakamura.lite.storage.jdbc;
 
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
 import java.util.Map;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ConnectionManager extends TimerTask {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionManager.class);
     private Map<Thread, ConnectionHolder> threadMap = new ConcurrentHashMap<Thread, ConnectionHolder>();
     private boolean closing = false;
     private JDBCStorageClientPool jdbcStorageClientPool;
+    /**
+     * If true connections come from a pooled DataSource and are given back at the end of
+     * each operation, or when the thread has no open clients, rather than being kept by the
+     * thread.
+     */
+    private boolean releaseConnections;
+    private long leakDetectionThreshold;
+    /**
+     * The number of open clients by the thread that borrowed them, guarded by itself.
+     */
+    private Map<Thread, AtomicInteger> openClients = new ConcurrentHashMap<Thread, AtomicInteger>();
+    /**
+     * The thread that borrowed each open client, since a client may be closed on another
+     * thread. Guarded by openClients.
+     */
+    private Map<StorageClient, Thread> borrowedClients = new ConcurrentHashMap<StorageClient, Thread>();
+    /**
+     * The number of operations in progress and cursors open on the connection of each
+     * thread, guarded by itself.
+     */
+    private Map<Thread, AtomicInteger> holds = new ConcurrentHashMap<Thread, AtomicInteger>();
     
 
     public ConnectionManager(JDBCStorageClientPool jdbcStorageClientPool) {
+        this(jdbcStorageClientPool, false, 0L);
+    }
+
+    /**
+     * @param jdbcStorageClientPool
+     * @param releaseConnections if true, release the connection of a thread once it has
+     *            closed all the clients it borrowed and has no open transaction.
+     * @param leakDetectionThreshold if &gt; 0, warn about connections held by a thread for
+     *            longer than this many ms.
+     */
+    public ConnectionManager(JDBCStorageClientPool jdbcStorageClientPool,
+            boolean releaseConnections, long leakDetectionThreshold) {
         this.jdbcStorageClientPool = jdbcStorageClientPool;
+        this.releaseConnections = releaseConnections;
+        this.leakDetectionThreshold = leakDetectionThreshold;
     }
 
     @Override
@@ -45,11 +88,25 @@ public class ConnectionManager extends TimerTask {
         Thread t = Thread.currentThread();
         ConnectionHolder ch = threadMap.get(t);
         if (ch != null) {
+            if (ch.isReleaseRequested() && !holds.containsKey(t) && release(t)) {
+                return null;
+            }
             return ch.get();
         }
         return null;
     }
 
+    /**
+     * @return the holder of the connection bound to the current thread, or null if there is
+     *         none.
+     */
+    public ConnectionHolder getConnectionHolder() {
+        if ( closing ) {
+            return null;
+        }
+        return threadMap.get(Thread.currentThread());
+    }
+
     public void set(Connection connection) {
         if ( closing ) {
             throw new IllegalStateException("ConnectionManager is closing ");
@@ -61,10 +118,151 @@ public class ConnectionManager extends TimerTask {
             c.close();
             threadMap.remove(t);
         }
-        ConnectionHolder ch = new ConnectionHolder(connection, jdbcStorageClientPool);
+        ConnectionHolder ch = new ConnectionHolder(connection, jdbcStorageClientPool,
+                !releaseConnections);
+        if (releaseConnections && leakDetectionThreshold > 0) {
+            ch.setAcquiredAt(new Exception("Connection acquired by " + t.getName()));
+        }
         threadMap.put(t, ch);
     }
 
+    /**
+     * @return true if connections are given back when a thread has closed its clients.
+     */
+    public boolean isReleasingConnections() {
+        return releaseConnections;
+    }
+
+    /**
+     * Record that the current thread has started an operation or opened a cursor that uses
+     * its connection, so the connection is not given back until it ends.
+     * @return the thread, to be passed to {@link #unhold(Thread)}.
+     */
+    public Thread hold() {
+        Thread t = Thread.currentThread();
+        if ( !releaseConnections || closing ) {
+            return t;
+        }
+        synchronized (holds) {
+            AtomicInteger count = holds.get(t);
+            if (count == null) {
+                count = new AtomicInteger();
+                holds.put(t, count);
+            }
+            count.incrementAndGet();
+        }
+        return t;
+    }
+
+    /**
+     * Record that an operation or cursor of a thread has ended, giving back the connection
+     * of the thread if nothing else holds it and no transaction is open, so that a pooled
+     * DataSource can share connections between threads. If the cursor is closed on another
+     * thread, the connection is given back by its own thread when next used.
+     * @param t the thread returned by {@link #hold()}.
+     */
+    public void unhold(Thread t) {
+        if ( !releaseConnections || closing ) {
+            return;
+        }
+        synchronized (holds) {
+            AtomicInteger count = holds.get(t);
+            if (count == null || count.decrementAndGet() > 0) {
+                return;
+            }
+            holds.remove(t);
+        }
+        if (t == Thread.currentThread()) {
+            release(t);
+        } else {
+            ConnectionHolder ch = threadMap.get(t);
+            if (ch != null) {
+                ch.requestRelease();
+            }
+        }
+    }
+
+    /**
+     * Record that the current thread has borrowed a client.
+     * @param client the client borrowed.
+     */
+    public void clientBorrowed(StorageClient client) {
+        if ( !releaseConnections || closing ) {
+            return;
+        }
+        Thread t = Thread.currentThread();
+        synchronized (openClients) {
+            borrowedClients.put(client, t);
+            AtomicInteger count = openClients.get(t);
+            if (count == null) {
+                count = new AtomicInteger();
+                openClients.put(t, count);
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record that a client has been closed, giving back the connection of the thread that
+     * borrowed it if that was the last client of the thread. If the client is closed on
+     * another thread, the connection is given back by its own thread when next used, since
+     * it may be in use.
+     * @param client the client closed.
+     */
+    public void clientClosed(StorageClient client) {
+        if ( !releaseConnections || closing ) {
+            return;
+        }
+        Thread t;
+        synchronized (openClients) {
+            t = borrowedClients.remove(client);
+            if (t == null) {
+                return;
+            }
+            AtomicInteger count = openClients.get(t);
+            if (count != null && count.decrementAndGet() > 0) {
+                return;
+            }
+            openClients.remove(t);
+        }
+        if (holds.containsKey(t)) {
+            // given back when the last operation or cursor ends.
+            return;
+        }
+        if (t == Thread.currentThread()) {
+            release(t);
+        } else {
+            ConnectionHolder ch = threadMap.get(t);
+            if (ch != null) {
+                ch.requestRelease();
+            }
+        }
+    }
+
+    /**
+     * Give back the connection bound to the thread unless a transaction is open on it.
+     * Must only be called on the thread, or once the thread has died.
+     * @return true if the connection was given back.
+     */
+    private boolean release(Thread t) {
+        ConnectionHolder ch = threadMap.get(t);
+        if (ch == null) {
+            return false;
+        }
+        try {
+            if (!ch.getConnection().getAutoCommit()) {
+                return false;
+            }
+        } catch (SQLException e) {
+            LOGGER.debug("Unable to check the connection, giving it back {} ", e.getMessage());
+        }
+        if (threadMap.remove(t) != null) {
+            ch.close();
+            return true;
+        }
+        return false;
+    }
+
     private void cleanThreadMap() {
         if ( closing ) {
             return;
@@ -72,10 +270,29 @@ public class ConnectionManager extends TimerTask {
         Thread[] copy = threadMap.keySet().toArray(new Thread[threadMap.size()]);
         for (Thread t : copy) {
             if (!t.isAlive()) {
+                synchronized (openClients) {
+                    openClients.remove(t);
+                    borrowedClients.values().removeAll(Collections.singleton(t));
+                }
+                holds.remove(t);
                 ConnectionHolder ch = threadMap.remove(t);
                 if (ch != null) {
                     ch.close();
                 }
+            } else if (releaseConnections) {
+                ConnectionHolder ch = threadMap.get(t);
+                if (ch == null) {
+                    continue;
+                }
+                if (leakDetectionThreshold > 0 && ch.checkLeak(leakDetectionThreshold)) {
+                    LOGGER.warn("Connection held by " + t.getName() + " for more than "
+                            + leakDetectionThreshold + " ms, acquired at ", ch.getAcquiredAt());
+                }
+                if (!openClients.containsKey(t) && !holds.containsKey(t) && ch.isIdle()) {
+                    // used without borrowing a client on this thread, eg by an async task.
+                    // The thread may still be using it, so it gives it back when next used.
+                    ch.requestRelease();
+                }
             } else {
                 ConnectionHolder ch = threadMap.get(t);
                 if (ch != null && ch.hasExpired()) {
@@ -102,6 +319,9 @@ public class ConnectionManager extends TimerTask {
             }
         }
         threadMap.clear();
+        openClients.clear();
+        borrowedClients.clear();
+        holds.clear();
         threadMap = null;
     }
 
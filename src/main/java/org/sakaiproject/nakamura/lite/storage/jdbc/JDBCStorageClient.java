@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.lite.storage.jdbc;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -32,6 +33,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.MessageFormat;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -49,10 +51,12 @@ import org.sakaiproject.nakamura.api.lite.StorageConstants;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
+import org.sakaiproject.nakamura.lite.storage.spi.DeltaWriter;
 import org.sakaiproject.nakamura.lite.storage.spi.DirectCacheAccess;
 import org.sakaiproject.nakamura.lite.storage.spi.Disposable;
 import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.spi.Disposer;
+import org.sakaiproject.nakamura.lite.storage.spi.RowAggregator;
 import org.sakaiproject.nakamura.lite.storage.spi.RowHasher;
 import org.sakaiproject.nakamura.lite.storage.spi.SparseMapRow;
 import org.sakaiproject.nakamura.lite.storage.spi.SparseRow;
@@ -70,8 +74,9 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 
-public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
+public class JDBCStorageClient implements StorageClient, RowHasher, Disposer, DeltaWriter {
 
 
 
@@ -98,10 +103,44 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
 
     static final String SQL_BLOCK_DELETE_ROW = "block-delete-row";
     static final String SQL_BLOCK_SELECT_ROW = "block-select-row";
+    static final String SQL_BLOCK_SELECT_ROWS = "block-select-rows";
     static final String SQL_BLOCK_INSERT_ROW = "block-insert-row";
     static final String SQL_BLOCK_UPDATE_ROW = "block-update-row";
+    /**
+     * Selects the block of a row and locks the row until the end of the transaction.
+     */
+    static final String SQL_BLOCK_LOCK_ROW = "block-lock-row";
+    /**
+     * Optional single statement that inserts or replaces a block row, parameters are rid
+     * then the block. When present for a column family it is used in place of the insert
+     * and update pair.
+     */
+    static final String SQL_BLOCK_UPSERT_ROW = "block-upsert-row";
+    static final String SQL_LIST_ALL_AFTER = "list-all-after";
+    /**
+     * Column family of the rows that record the progress of index backfills, keyed by
+     * columnFamily:property.
+     */
+    static final String INDEX_BACKFILL_COLUMN_FAMILY = "ib";
+    private static final String INDEX_BACKFILL_STATUS = "status";
+    private static final String INDEX_BACKFILL_PENDING = "pending";
+    private static final String INDEX_BACKFILL_COMPLETE = "complete";
+    private static final String INDEX_BACKFILL_LAST = "last";
+    private static final String INDEX_BACKFILL_ROWS = "rows";
+    /**
+     * Sorts before all row ids, an empty string is null in Oracle.
+     */
+    private static final String FIRST_RID = " ";
 
     private static final String PROP_HASH_ALG = "rowid-hash";
+    /**
+     * Row hash digests by algorithm, per thread since a MessageDigest is not thread safe.
+     */
+    private static final ThreadLocal<Map<String, MessageDigest>> DIGESTS = new ThreadLocal<Map<String, MessageDigest>>() {
+        protected Map<String, MessageDigest> initialValue() {
+            return Maps.newHashMap();
+        }
+    };
     private static final String USE_BATCH_INSERTS = "use-batch-inserts";
     private static final String JDBC_SUPPORT_LEVEL = "jdbc-support-level";
     private static final String SQL_STATEMENT_SEQUENCE = "sql-statement-sequence";
@@ -109,17 +148,22 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     private static final Object SLOW_QUERY_THRESHOLD = "slow-query-time";
     private static final Object VERY_SLOW_QUERY_THRESHOLD = "very-slow-query-time";
     /**
-     * A set of columns that are indexed to allow operations within the driver.
+     * A set of columns that are indexed to allow operations within the driver. The
+     * ancestors of content are multi valued and held in the key/value index.
      */
     static final Set<String> AUTO_INDEX_COLUMNS_TYPES = ImmutableSet.of(
             "cn:_:parenthash=String",
             "au:_:parenthash=String",
-            "ac:_:parenthash=String");
+            "ac:_:parenthash=String",
+            "cn:_:ancestors=String[]",
+            "cn:_:parent=String");
     static final Set<String> AUTO_INDEX_COLUMNS = ImmutableSet.of(
             "cn:_:parenthash",
             "au:_:parenthash",
-            "ac:_:parenthash");
-    private static final Map<String, String> COLUMN_NAME_MAPPING = ImmutableMap.of("_:parenthash","parenthash");
+            "ac:_:parenthash",
+            "cn:_:ancestors",
+            "cn:_:parent");
+    private static final Map<String, String> COLUMN_NAME_MAPPING = ImmutableMap.of("_:parenthash","parenthash", "_:ancestors", "ancestors", "_:parent", "parent");
 
     private JDBCStorageClientPool jcbcStorageClientConnection;
     private Map<String, Object> sqlConfig;
@@ -131,7 +175,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     private String rowidHash;
     private Map<String, AtomicInteger> counters = Maps.newConcurrentMap();
     private Set<String> indexColumns;
-    private Indexer indexer;
+    private AbstractIndexer indexer;
     private long slowQueryThreshold;
     private long verySlowQueryThreshold;
     private Object desponseLock = new Object();
@@ -188,10 +232,22 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     public Map<String, Object> get(String keySpace, String columnFamily, String key)
             throws StorageClientException {
         checkClosed();
-        String rid = rowHash(keySpace, columnFamily, key);
-        return internalGet(keySpace, columnFamily, rid, null); // gets through this route should have already consulted the cache.
+        Thread holder = holdConnection();
+        try {
+            String rid = rowHash(keySpace, columnFamily, key);
+            return internalGet(keySpace, columnFamily, rid, null); // gets through this route should have already consulted the cache.
+        } finally {
+            unholdConnection(holder);
+        }
     }
     Map<String, Object> internalGet(String keySpace, String columnFamily, String rid, DirectCacheAccess cachingManager) throws StorageClientException {
+        WriteBehindQueue writeBehind = jcbcStorageClientConnection.getWriteBehindQueue();
+        if ( writeBehind != null ) {
+            Map<String, Object> pending = writeBehind.getPending(rid);
+            if ( pending != null ) {
+                return pending;
+            }
+        }
         if ( cachingManager != null ) {
             CacheHolder ch = cachingManager.getFromCache(rid);
             if ( ch != null ) {
@@ -215,7 +271,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             body = selectStringRow.executeQuery();
             inc("B");
             if (body.next()) {
-                Types.loadFromStream(rid, result, body.getBinaryStream(1), columnFamily);
+                result = loadRow(rid, body.getBinaryStream(1), columnFamily);
             }
         } catch (SQLException e) {
             LOGGER.warn("Failed to perform get operation on  " + keySpace + ":" + columnFamily
@@ -246,12 +302,158 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         }
         return result;
     }
-    
+
+    /**
+     * Load a row from the stream of its body. The row is read fully and, if
+     * it is in the compact format, its properties are decoded as they are
+     * used, so the map returned must not be modified.
+     */
+    private Map<String, Object> loadRow(String rid, InputStream in, String columnFamily)
+            throws IOException {
+        try {
+            return Types.loadRow(rid, ByteStreams.toByteArray(in), columnFamily);
+        } finally {
+            in.close();
+        }
+    }
+
+    public Map<String, Map<String, Object>> getAll(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        checkClosed();
+        Thread holder = holdConnection();
+        try {
+            Map<String, String> ridToKey = Maps.newLinkedHashMap();
+            for (String key : keys) {
+                ridToKey.put(rowHash(keySpace, columnFamily, key), key);
+            }
+            Map<String, Map<String, Object>> rows = internalGetAll(keySpace, columnFamily,
+                    Lists.newArrayList(ridToKey.keySet()), null);
+            Map<String, Map<String, Object>> result = Maps.newLinkedHashMap();
+            for (Entry<String, String> e : ridToKey.entrySet()) {
+                result.put(e.getValue(), rows.get(e.getKey()));
+            }
+            return result;
+        } finally {
+            unholdConnection(holder);
+        }
+    }
+
+    /**
+     * Load a number of rows by row id, consulting the cache first and loading
+     * all the rows not in the cache with a single query, if the dialect
+     * provides one. Rows that are not found are returned as empty maps.
+     *
+     * @param keySpace
+     * @param columnFamily
+     * @param rids
+     * @param cachingManager
+     * @return a map of rid to row, in the order of the rids supplied.
+     * @throws StorageClientException
+     */
+    Map<String, Map<String, Object>> internalGetAll(String keySpace, String columnFamily,
+            List<String> rids, DirectCacheAccess cachingManager) throws StorageClientException {
+        Map<String, Map<String, Object>> result = Maps.newLinkedHashMap();
+        Set<String> toLoad = Sets.newLinkedHashSet();
+        WriteBehindQueue writeBehind = jcbcStorageClientConnection.getWriteBehindQueue();
+        for (String rid : rids) {
+            if (writeBehind != null) {
+                Map<String, Object> pending = writeBehind.getPending(rid);
+                if (pending != null) {
+                    result.put(rid, pending);
+                    continue;
+                }
+            }
+            if (cachingManager != null) {
+                CacheHolder ch = cachingManager.getFromCache(rid);
+                if (ch != null) {
+                    Map<String, Object> cached = ch.get();
+                    if (cached == null) {
+                        // the cache was an empty object, we respond with empty.
+                        cached = Maps.newHashMap();
+                    }
+                    result.put(rid, cached);
+                    continue;
+                }
+            }
+            result.put(rid, null);
+            toLoad.add(rid);
+        }
+        if (toLoad.size() == 0) {
+            return result;
+        }
+        String sql = getSql(keySpace, columnFamily, SQL_BLOCK_SELECT_ROWS);
+        if (sql == null || toLoad.size() == 1) {
+            // no multi row select for this dialect, or not worth it.
+            for (String rid : toLoad) {
+                result.put(rid, internalGet(keySpace, columnFamily, rid, cachingManager));
+            }
+            return result;
+        }
+        StringBuilder params = new StringBuilder();
+        for (int i = 0; i < toLoad.size(); i++) {
+            if (i > 0) {
+                params.append(",");
+            }
+            params.append("?");
+        }
+        String selectSql = MessageFormat.format(sql, params.toString());
+        ResultSet body = null;
+        PreparedStatement selectRows = null;
+        try {
+            // the statement differs with the number of rows, so it is not cached.
+            selectRows = getConnection().prepareStatement(selectSql);
+            inc("A");
+            selectRows.clearWarnings();
+            selectRows.clearParameters();
+            int i = 1;
+            for (String rid : toLoad) {
+                selectRows.setString(i, rid);
+                i++;
+            }
+            long t = System.currentTimeMillis();
+            body = selectRows.executeQuery();
+            checkSlow(t, selectSql);
+            inc("B");
+            while (body.next()) {
+                String rid = body.getString(1);
+                result.put(rid, loadRow(rid, body.getBinaryStream(2), columnFamily));
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("Failed to perform get operation on  " + keySpace + ":" + columnFamily
+                    + ":" + toLoad, e);
+            if (passivate != null) {
+                LOGGER.warn("Was Pasivated ", passivate);
+            }
+            if (closed != null) {
+                LOGGER.warn("Was Closed ", closed);
+            }
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to perform get operation on  " + keySpace + ":" + columnFamily
+                    + ":" + toLoad, e);
+            throw new StorageClientException(e.getMessage(), e);
+        } finally {
+            close(body, "B");
+            close(selectRows, "A");
+        }
+        for (String rid : toLoad) {
+            Map<String, Object> row = result.get(rid);
+            if (row == null) {
+                row = Maps.newHashMap();
+                result.put(rid, row);
+            }
+            if (cachingManager != null) {
+                cachingManager.putToCache(rid, new CacheHolder(row), true);
+            }
+        }
+        return result;
+    }
+
     public String rowHash(String keySpace, String columnFamily, String key)
             throws StorageClientException {
         MessageDigest hasher;
         try {
-            hasher = MessageDigest.getInstance(rowidHash);
+            hasher = getDigest(rowidHash);
         } catch (NoSuchAlgorithmException e1) {
             throw new StorageClientException("Unable to get hash algorithm " + e1.getMessage(), e1);
         }
@@ -265,47 +467,114 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         return StorageClientUtils.encode(hasher.digest(ridkey));
     }
 
+    /**
+     * @param algorithm
+     * @return a digest for the current thread, reused between calls since looking up
+     *         the provider on every row access is expensive.
+     * @throws NoSuchAlgorithmException
+     */
+    private static MessageDigest getDigest(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, MessageDigest> digests = DIGESTS.get();
+        MessageDigest digest = digests.get(algorithm);
+        if (digest == null) {
+            digest = MessageDigest.getInstance(algorithm);
+            digests.put(algorithm, digest);
+        } else {
+            digest.reset();
+        }
+        return digest;
+    }
+
     public void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew)
             throws StorageClientException {
+        insert(keySpace, columnFamily, key, values, probablyNew, null);
+    }
+
+    public void insert(String keySpace, String columnFamily, String key,
+            Map<String, Object> values, boolean probablyNew, Map<String, Object> currentRow)
+            throws StorageClientException {
+        Thread holder = holdConnection();
+        try {
+            internalInsert(keySpace, columnFamily, key, values, probablyNew, currentRow);
+        } finally {
+            unholdConnection(holder);
+        }
+    }
+
+    private void internalInsert(String keySpace, String columnFamily, String key,
+            Map<String, Object> values, boolean probablyNew, Map<String, Object> currentRow)
+            throws StorageClientException {
         checkClosed();
 
+        WriteBehindQueue writeBehind = jcbcStorageClientConnection.getWriteBehindQueue();
+        if (writeBehind != null && storageClientListener == null && !writeBehind.isFlusher()) {
+            try {
+                // only writes outside a transaction of the caller can be grouped.
+                if (getConnection().getAutoCommit()) {
+                    String rid = rowHash(keySpace, columnFamily, key);
+                    checkValues(values);
+                    Map<String, Object> m = currentRow;
+                    if (m == null) {
+                        m = get(keySpace, columnFamily, key);
+                    }
+                    jcbcStorageClientConnection.recordWrite(currentRow != null);
+                    writeBehind.write(keySpace, columnFamily, key, rid, values, probablyNew, m);
+                    return;
+                }
+            } catch (SQLException e) {
+                throw new StorageClientException(e.getMessage(), e);
+            }
+        }
+
         Map<String, PreparedStatement> statementCache = Maps.newHashMap();
         boolean autoCommit = true;
         try {
             autoCommit = startBlock();
             String rid = rowHash(keySpace, columnFamily, key);
-            for (Entry<String, Object> e : values.entrySet()) {
-                String k = e.getKey();
-                Object o = e.getValue();
-                if (o instanceof byte[]) {
-                    throw new RuntimeException("Invalid content in " + k
-                            + ", storing byte[] rather than streaming it");
-                }
-            }
+            checkValues(values);
 
-            Map<String, Object> m = get(keySpace, columnFamily, key);
-            if ( storageClientListener != null ) {
-                storageClientListener.before(keySpace,columnFamily,key,m);
+            Map<String, Object> m = null;
+            if ( currentRow != null ) {
+                // the caller has a current copy of the row, no need to read it again.
+                m = Maps.newHashMap(currentRow);
+            } else {
+                m = Maps.newHashMap(get(keySpace, columnFamily, key));
             }
-            if ( TRUE.equals(m.get(DELETED_FIELD)) ) {
-                // if the map was previously deleted, delete all content since we don't want the old map becoming part of the new map.
-                m.clear();
+            // queued writes were recorded when they were queued.
+            if (writeBehind == null || !writeBehind.isFlusher()) {
+                jcbcStorageClientConnection.recordWrite(currentRow != null);
             }
-            for (Entry<String, Object> e : values.entrySet()) {
-                String k = e.getKey();
-                Object o = e.getValue();
-
-                if (o instanceof RemoveProperty || o == null) {
-                    m.remove(k);
-                } else {
-                    m.put(k, o);
-                }
+            if ( storageClientListener != null ) {
+                storageClientListener.before(keySpace,columnFamily,key,m);
             }
+            mergeRow(m, values);
             if ( storageClientListener != null ) {
                 storageClientListener.after(keySpace,columnFamily,key,m);
             }
             LOGGER.debug("Saving {} {} {} ", new Object[]{key, rid, m});
-            if ( probablyNew && !UPDATE_FIRST_SEQUENCE.equals(getSql(SQL_STATEMENT_SEQUENCE))) {
+            PreparedStatement upsertBlockRow = getStatement(keySpace, columnFamily,
+                    SQL_BLOCK_UPSERT_ROW, rid, statementCache);
+            if ( upsertBlockRow != null ) {
+                upsertBlockRow.clearWarnings();
+                upsertBlockRow.clearParameters();
+                upsertBlockRow.setString(1, rid);
+                InputStream upsertStream = null;
+                try {
+                    upsertStream = Types.storeMapToStream(rid, m, columnFamily);
+                } catch (UTFDataFormatException e) {
+                    throw new DataFormatException(INVALID_DATA_ERROR, e);
+                }
+                if ("1.5".equals(getSql(JDBC_SUPPORT_LEVEL))) {
+                    upsertBlockRow.setBinaryStream(2, upsertStream, upsertStream.available());
+                } else {
+                    upsertBlockRow.setBinaryStream(2, upsertStream);
+                }
+                long t = System.currentTimeMillis();
+                // the count is not checked, MySQL reports 0 when the row is unchanged.
+                upsertBlockRow.executeUpdate();
+                checkSlow(t, getSql(keySpace, columnFamily, SQL_BLOCK_UPSERT_ROW));
+                LOGGER.debug("Upserted {} ", rid);
+            } else if ( probablyNew && !UPDATE_FIRST_SEQUENCE.equals(getSql(SQL_STATEMENT_SEQUENCE))) {
                 PreparedStatement insertBlockRow = getStatement(keySpace, columnFamily,
                         SQL_BLOCK_INSERT_ROW, rid, statementCache);
                 insertBlockRow.clearWarnings();
@@ -426,6 +695,39 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         }
     }
 
+    private void checkValues(Map<String, Object> values) {
+        for (Entry<String, Object> e : values.entrySet()) {
+            String k = e.getKey();
+            Object o = e.getValue();
+            if (o instanceof byte[]) {
+                throw new RuntimeException("Invalid content in " + k
+                        + ", storing byte[] rather than streaming it");
+            }
+        }
+    }
+
+    /**
+     * Apply the values of a write to a copy of the row.
+     * @param m the row, modified in place.
+     * @param values the values of the write, null or {@link RemoveProperty} removing a property.
+     */
+    static void mergeRow(Map<String, Object> m, Map<String, Object> values) {
+        if ( TRUE.equals(m.get(DELETED_FIELD)) ) {
+            // if the map was previously deleted, delete all content since we don't want the old map becoming part of the new map.
+            m.clear();
+        }
+        for (Entry<String, Object> e : values.entrySet()) {
+            String k = e.getKey();
+            Object o = e.getValue();
+
+            if (o instanceof RemoveProperty || o == null) {
+                m.remove(k);
+            } else {
+                m.put(k, o);
+            }
+        }
+    }
+
     private void checkSlow(long t, String sql) {
         t = System.currentTimeMillis() - t;
         if ( t > 100 ) {
@@ -478,16 +780,43 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
       }
 
 
+    /**
+     * Hold the connection of this thread until {@link #unholdConnection(Thread)}, so that a
+     * pooled DataSource connection is given back only when the operation ends.
+     */
+    Thread holdConnection() {
+        return jcbcStorageClientConnection.holdConnection();
+    }
+
+    void unholdConnection(Thread holder) {
+        jcbcStorageClientConnection.unholdConnection(holder);
+    }
+
     String getDebugRowId(String keySpace, String columnFamily, String key) {
         return keySpace + ":" + columnFamily + ":" + key;
     }
 
     public void remove(String keySpace, String columnFamily, String key)
             throws StorageClientException {
+        Thread holder = holdConnection();
+        try {
+            internalRemove(keySpace, columnFamily, key);
+        } finally {
+            unholdConnection(holder);
+        }
+    }
+
+    private void internalRemove(String keySpace, String columnFamily, String key)
+            throws StorageClientException {
         checkClosed();
         PreparedStatement deleteStringRow = null;
         PreparedStatement deleteBlockRow = null;
         String rid = rowHash(keySpace, columnFamily, key);
+        WriteBehindQueue writeBehind = jcbcStorageClientConnection.getWriteBehindQueue();
+        if ( writeBehind != null && !writeBehind.isFlusher() ) {
+            // a queued write must not bring the row back after it has been removed.
+            writeBehind.waitFor(rid);
+        }
         boolean autoCommit = false;
         try {
             autoCommit = startBlock();
@@ -519,11 +848,153 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         }
     }
 
+    public void insertChild(String keySpace, String columnFamily, String key,
+            Map<String, Object> values, boolean probablyNew, String countProperty)
+            throws StorageClientException {
+        checkClosed();
+        if (StorageClientUtils.isRoot(key)) {
+            insert(keySpace, columnFamily, key, values, probablyNew);
+            return;
+        }
+        String parent = StorageClientUtils.getParentObjectPath(key);
+        String rid = rowHash(keySpace, columnFamily, key);
+        String parentRid = rowHash(keySpace, columnFamily, parent);
+        WriteBehindQueue writeBehind = jcbcStorageClientConnection.getWriteBehindQueue();
+        if ( writeBehind != null && !writeBehind.isFlusher() ) {
+            // the rows are read in the block, queued writes must be in the store first.
+            writeBehind.waitFor(rid);
+            writeBehind.waitFor(parentRid);
+        }
+        Thread holder = holdConnection();
+        Map<String, PreparedStatement> statementCache = Maps.newHashMap();
+        ResultSet lock = null;
+        boolean autoCommit = true;
+        try {
+            autoCommit = startBlock();
+            // children of the parent are written one at a time from here until the commit.
+            lock = lockRow(keySpace, columnFamily, parentRid, statementCache);
+            Map<String, Object> parentRow = loadLockedRow(lock, parentRid, columnFamily);
+            Map<String, Object> m = Maps.newHashMap(internalGet(keySpace, columnFamily, rid,
+                    null));
+            boolean existed = RowAggregator.exists(m);
+            insert(keySpace, columnFamily, key, values, probablyNew, m);
+            mergeRow(m, values);
+            boolean exists = RowAggregator.exists(m);
+            // writing to a deleted parent would bring it back.
+            Object count = RowAggregator.exists(parentRow) ? parentRow.get(countProperty) : null;
+            if (existed != exists && count instanceof Number) {
+                long childCount = Math.max(0L, ((Number) count).longValue()
+                        + (exists ? 1 : -1));
+                insert(keySpace, columnFamily, parent,
+                        ImmutableMap.of(countProperty, (Object) childCount), false, parentRow);
+            }
+            endBlock(autoCommit);
+        } catch (SQLException e) {
+            abandonBlock(autoCommit);
+            LOGGER.warn("Failed to perform insert operation on {}:{}:{} ", new Object[] {
+                    keySpace, columnFamily, key }, e);
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (StorageClientException e) {
+            abandonBlock(autoCommit);
+            throw e;
+        } finally {
+            close(lock, "B");
+            closeStatementCache(statementCache);
+            unholdConnection(holder);
+        }
+    }
+
+    public long recountChildren(String keySpace, String columnFamily, String key,
+            String countProperty) throws StorageClientException {
+        checkClosed();
+        String rid = rowHash(keySpace, columnFamily, key);
+        WriteBehindQueue writeBehind = jcbcStorageClientConnection.getWriteBehindQueue();
+        if ( writeBehind != null && !writeBehind.isFlusher() ) {
+            writeBehind.waitFor(rid);
+        }
+        Thread holder = holdConnection();
+        Map<String, PreparedStatement> statementCache = Maps.newHashMap();
+        ResultSet lock = null;
+        boolean autoCommit = true;
+        try {
+            autoCommit = startBlock();
+            // a child written from here waits for the count to be committed.
+            lock = lockRow(keySpace, columnFamily, rid, statementCache);
+            Map<String, Object> row = loadLockedRow(lock, rid, columnFamily);
+            if (!RowAggregator.exists(row)) {
+                endBlock(autoCommit);
+                return 0;
+            }
+            long childCount = RowAggregator.countExisting(listChildren(keySpace, columnFamily,
+                    key, null));
+            insert(keySpace, columnFamily, key,
+                    ImmutableMap.of(countProperty, (Object) childCount), false, row);
+            endBlock(autoCommit);
+            return childCount;
+        } catch (SQLException e) {
+            abandonBlock(autoCommit);
+            LOGGER.warn("Failed to count the children of {}:{}:{} ", new Object[] {
+                    keySpace, columnFamily, key }, e);
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (StorageClientException e) {
+            abandonBlock(autoCommit);
+            throw e;
+        } finally {
+            close(lock, "B");
+            closeStatementCache(statementCache);
+            unholdConnection(holder);
+        }
+    }
+
+    /**
+     * Lock a row until the end of the block. Derby gives the lock of a select for update up
+     * when the cursor moves off the row, so the cursor is left on the row, to be closed
+     * after the block.
+     * 
+     * @return the cursor, on the row if there is one.
+     */
+    private ResultSet lockRow(String keySpace, String columnFamily, String rid,
+            Map<String, PreparedStatement> statementCache) throws SQLException,
+            StorageClientException {
+        PreparedStatement lockRow = getStatement(keySpace, columnFamily, SQL_BLOCK_LOCK_ROW,
+                rid, statementCache);
+        if (lockRow == null) {
+            throw new StorageClientException("Cant find sql statement " + SQL_BLOCK_LOCK_ROW
+                    + " for " + keySpace + ":" + columnFamily);
+        }
+        inc("lockRow");
+        lockRow.clearWarnings();
+        lockRow.clearParameters();
+        lockRow.setString(1, rid);
+        ResultSet rs = lockRow.executeQuery();
+        inc("B");
+        return rs;
+    }
+
+    /**
+     * @return the row under a cursor from {@link #lockRow(String, String, String, Map)},
+     *         null if there is no row.
+     */
+    private Map<String, Object> loadLockedRow(ResultSet lock, String rid, String columnFamily)
+            throws SQLException, StorageClientException {
+        if (!lock.next()) {
+            return null;
+        }
+        try {
+            return Maps.newHashMap(loadRow(rid, lock.getBinaryStream(1), columnFamily));
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read row {} {} ", rid, e.getMessage());
+            throw new StorageClientException(e.getMessage(), e);
+        }
+    }
+
     public void close() {
         if (closed == null) {
             try {
                 closed = new Exception("Connection Closed Traceback");
                 shutdownConnection();
+                // before the client goes back to the pool, where it may be borrowed again.
+                jcbcStorageClientConnection.clientClosed(this);
                 jcbcStorageClientConnection.releaseClient(this);
             } catch (Throwable t) {
                 LOGGER.error("Failed to close connection ", t);
@@ -567,9 +1038,8 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                 if (statementCache != null && statementCache.containsKey(k)) {
                     return statementCache.get(k);
                 } else {
-                    
-                    PreparedStatement pst = jcbcStorageClientConnection.getConnection()
-                            .prepareStatement((String) sqlConfig.get(k));
+                    PreparedStatement pst = jcbcStorageClientConnection
+                            .getStatement((String) sqlConfig.get(k));
                     if (statementCache != null) {
                         inc("cachedStatement");
                         statementCache.put(k, pst);
@@ -587,12 +1057,12 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             if ( statementCache.containsKey(sql)) {
                 pst =  statementCache.get(sql);
             } else {
-                pst = jcbcStorageClientConnection.getConnection().prepareStatement(sql);
+                pst = jcbcStorageClientConnection.getStatement(sql);
                 inc("cachedStatement");
                 statementCache.put(sql, pst);
             }
         } else {
-            pst = jcbcStorageClientConnection.getConnection().prepareStatement(sql);            
+            pst = jcbcStorageClientConnection.getStatement(sql);
         }
         return pst;
     }
@@ -800,13 +1270,25 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     public DisposableIterator<Map<String,Object>> find(final String keySpace, final String columnFamily,
             Map<String, Object> properties, DirectCacheAccess cachingManager) throws StorageClientException {
         checkClosed();
-        return indexer.find(keySpace, columnFamily, properties, cachingManager);
-        
-
+        Thread holder = holdConnection();
+        try {
+            return indexer.find(keySpace, columnFamily, properties, cachingManager);
+        } finally {
+            unholdConnection(holder);
+        }
     }
 
     
     public DisposableIterator<SparseRow> listAll(String keySpace, final String columnFamily) throws StorageClientException {
+        Thread holder = holdConnection();
+        try {
+            return internalListAll(keySpace, columnFamily);
+        } finally {
+            unholdConnection(holder);
+        }
+    }
+
+    private DisposableIterator<SparseRow> internalListAll(String keySpace, final String columnFamily) throws StorageClientException {
         String[] keys = new String[] { "list-all." + keySpace + "." + columnFamily,
                 "list-all." + columnFamily, "list-all" };     
         String sql = null;
@@ -841,6 +1323,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             // pass control to the iterator.
             final PreparedStatement pst = tpst;
             final ResultSet rs = trs;
+            final Thread holder = holdConnection();
             tpst = null;
             trs = null;
             return registerDisposable(new PreemptiveIterator<SparseRow>() {
@@ -900,6 +1383,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                         } catch (SQLException e) {
                             LOGGER.warn(e.getMessage(), e);
                         }
+                        unholdConnection(holder);
                         super.close();
                     }
 
@@ -969,7 +1453,10 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     private void close(PreparedStatement pst, String name) {
         try {
             if (pst != null) {
-                pst.close();
+                // statements from the connection statement cache are closed with the connection.
+                if (!jcbcStorageClientConnection.isCachedStatement(pst)) {
+                    pst.close();
+                }
                 dec(name);
             }
         } catch (Throwable e) {
@@ -981,7 +1468,12 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         for (PreparedStatement pst : statementCache.values()) {
             if (pst != null) {
                 try {
-                    pst.close();
+                    if (jcbcStorageClientConnection.isCachedStatement(pst)) {
+                        // discard anything left from a failed batch.
+                        pst.clearBatch();
+                    } else {
+                        pst.close();
+                    }
                     dec("cachedStatement");
                 } catch (SQLException e) {
                     LOGGER.debug(e.getMessage(), e);
@@ -990,7 +1482,15 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
         }
     }
 
-    public Map<String, String> syncIndexColumns() throws StorageClientException, SQLException {
+    /**
+     * Add columns to the wide index tables for index properties that don't have one. A
+     * column added to a table that already holds rows is not used by queries until its
+     * backfill is complete, see {@link #backfillIndexBatch(String, String, int)}.
+     * @param keySpace the key space holding the backfill state.
+     * @return a map of columnFamily:property to index column name, null if the
+     *         configuration has no wide index tables.
+     */
+    public Map<String, String> syncIndexColumns(String keySpace) throws StorageClientException, SQLException {
         checkClosed();
         String selectColumns = getSql(SQL_INDEX_COLUMN_NAME_SELECT);
         String insertColumns = getSql(SQL_INDEX_COLUMN_NAME_INSERT);
@@ -1014,6 +1514,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             rs = selectColumnsPst.executeQuery();
             Map<String, String> cnames = Maps.newHashMap();  
             Set<String> usedColumns = Sets.newHashSet();  
+            Set<String> addedColumns = Sets.newHashSet();
             while(rs.next()) {
                 String columnFamily = rs.getString(1);
                 String column = rs.getString(2);
@@ -1042,6 +1543,7 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                     insertColumnsPst.executeUpdate();
                     cnames.put(k, cv);
                     usedColumns.add(cf[0]+":"+cv);
+                    addedColumns.add(k);
                     try {
                         statement.executeUpdate(MessageFormat.format(updateTable, cf[0], cv));
                         LOGGER.info("Added Index Column OK    {}   Table:{} Column:{} ",
@@ -1066,6 +1568,29 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
                     }
                 }
             }
+            // columns added to tables that already hold rows, or still being backfilled,
+            // are written but not queried.
+            Set<String> backfillColumns = Sets.newHashSet();
+            for (String k : cnames.keySet()) {
+                String cf = StringUtils.split(k, ":", 2)[0];
+                if (addedColumns.contains(k)) {
+                    if (hasRowsAfter(keySpace, cf, FIRST_RID)) {
+                        Map<String, Object> state = Maps.newHashMap();
+                        state.put(INDEX_BACKFILL_STATUS, INDEX_BACKFILL_PENDING);
+                        state.put(INDEX_BACKFILL_LAST, FIRST_RID);
+                        state.put(INDEX_BACKFILL_ROWS, 0L);
+                        saveIndexBackfillState(keySpace, k, state);
+                        backfillColumns.add(k);
+                    }
+                } else if (INDEX_BACKFILL_PENDING.equals(get(keySpace,
+                        INDEX_BACKFILL_COLUMN_FAMILY, k).get(INDEX_BACKFILL_STATUS))) {
+                    backfillColumns.add(k);
+                }
+            }
+            for (String k : backfillColumns) {
+                LOGGER.info("Index Column {} will be used once backfilled ", k);
+            }
+            jcbcStorageClientConnection.setIndexBackfillColumns(backfillColumns);
             // sync done, now create a quick lookup table to extract the storage column for any column name, 
             Builder<String, String> b = ImmutableMap.builder();
             for (Entry<String,String> e : cnames.entrySet()) {
@@ -1150,6 +1675,15 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
     }
 
     public long allCount(String keySpace, String columnFamily) throws StorageClientException {
+        Thread holder = holdConnection();
+        try {
+            return internalAllCount(keySpace, columnFamily);
+        } finally {
+            unholdConnection(holder);
+        }
+    }
+
+    private long internalAllCount(String keySpace, String columnFamily) throws StorageClientException {
         
         String[] keys = new String[] { "list-all-count." + keySpace + "." + columnFamily,
                 "list-all-count." + columnFamily, "list-all-count" };     
@@ -1208,8 +1742,528 @@ public class JDBCStorageClient implements StorageClient, RowHasher, Disposer {
             }
         }
     }
-    
-    
+
+    public long count(String keySpace, String columnFamily, Map<String, Object> properties)
+            throws StorageClientException {
+        checkClosed();
+        Thread holder = holdConnection();
+        try {
+            if (!RowAggregator.hasTerms(properties)) {
+                return allCount(keySpace, columnFamily);
+            }
+            Map<String, Object> countSearch = Maps.newLinkedHashMap(properties);
+            countSearch.remove(StorageConstants.PAGE);
+            countSearch.remove(StorageConstants.ITEMS);
+            countSearch.remove(StorageConstants.SORT);
+            countSearch.remove(StorageConstants.CONTINUATION);
+            countSearch.put(StorageConstants.CUSTOM_STATEMENT_SET, "countestimate");
+            countSearch.put(StorageConstants.RAWRESULTS, true);
+            DisposableIterator<Map<String, Object>> counts = find(keySpace, columnFamily,
+                    countSearch, null);
+            try {
+                if (counts.hasNext()) {
+                    return Long.parseLong(String.valueOf(counts.next().get("1")));
+                }
+                return 0;
+            } finally {
+                counts.close();
+            }
+        } finally {
+            unholdConnection(holder);
+        }
+    }
+
+    public Map<String, Long> countValues(String keySpace, String columnFamily,
+            Map<String, Object> properties, String property, int limit)
+            throws StorageClientException {
+        checkClosed();
+        Thread holder = holdConnection();
+        try {
+            return indexer.countValues(this, keySpace, columnFamily, properties, property, limit);
+        } finally {
+            unholdConnection(holder);
+        }
+    }
+
+    public Object[] range(String keySpace, String columnFamily, Map<String, Object> properties,
+            String property) throws StorageClientException {
+        checkClosed();
+        Thread holder = holdConnection();
+        try {
+            return indexer.range(this, keySpace, columnFamily, properties, property);
+        } finally {
+            unholdConnection(holder);
+        }
+    }
+
+    /**
+     * Rewrite all the rows in a column family that are not in the current row
+     * format. The contents of the rows do not change so indexes and caches are
+     * not touched. Each row is read again and rewritten under a row lock in its
+     * own transaction, so a concurrent write is never overwritten and this may be
+     * run against a live store.
+     * 
+     * @param keySpace
+     * @param columnFamily
+     * @param pause
+     *            milliseconds to pause after every 100 rows rewritten, to
+     *            limit the load on the database.
+     * @return the number of rows rewritten.
+     * @throws StorageClientException
+     */
+    public long reencodeRows(String keySpace, String columnFamily, long pause)
+            throws StorageClientException {
+        Thread holder = holdConnection();
+        try {
+            return internalReencodeRows(keySpace, columnFamily, pause);
+        } finally {
+            unholdConnection(holder);
+        }
+    }
+
+    private long internalReencodeRows(String keySpace, String columnFamily, long pause)
+            throws StorageClientException {
+        checkClosed();
+        String[] keys = new String[] { "list-all." + keySpace + "." + columnFamily,
+                "list-all." + columnFamily, "list-all" };
+        String sql = getSql(keys);
+        if ( sql == null ) {
+            throw new StorageClientException("Cant find sql statement for one of "+Arrays.toString(keys));
+        }
+        if (getSql(keySpace, columnFamily, SQL_BLOCK_LOCK_ROW) == null) {
+            throw new StorageClientException("Cant find sql statement " + SQL_BLOCK_LOCK_ROW
+                    + " for " + keySpace + ":" + columnFamily);
+        }
+        int format = Types.getRowFormat();
+        // the scan only finds the rows to rewrite, so no transaction is held open across it.
+        List<String> rids = Lists.newArrayList();
+        PreparedStatement pst = null;
+        ResultSet rs = null;
+        try {
+            pst = jcbcStorageClientConnection.getConnection().prepareStatement(sql);
+            inc("iterator");
+            rs = pst.executeQuery();
+            inc("iterator r");
+            while (rs.next()) {
+                String rid = rs.getString(1);
+                InputStream in = rs.getBinaryStream(2);
+                byte[] row = ByteStreams.toByteArray(in);
+                in.close();
+                if (!Types.isRowFormat(row, format)) {
+                    rids.add(rid);
+                }
+            }
+        } catch (SQLException e) {
+            LOGGER.error(e.getMessage(), e);
+            throw new StorageClientException(e.getMessage() + " SQL Statement was " + sql, e);
+        } catch (IOException e) {
+            LOGGER.error(e.getMessage(), e);
+            throw new StorageClientException(e.getMessage(), e);
+        } finally {
+            close(rs, "iterator r");
+            close(pst, "iterator");
+        }
+
+        Map<String, PreparedStatement> statementCache = Maps.newHashMap();
+        long rewritten = 0;
+        try {
+            for (String rid : rids) {
+                if (reencodeRow(keySpace, columnFamily, rid, format, statementCache)) {
+                    rewritten++;
+                    if (pause > 0 && rewritten % 100 == 0) {
+                        LOGGER.debug("Re-encoded {} rows in {} ", rewritten, columnFamily);
+                        Thread.sleep(pause);
+                    }
+                }
+            }
+            LOGGER.info("Re-encoded {} rows in {} ", rewritten, columnFamily);
+            return rewritten;
+        } catch (InterruptedException e) {
+            LOGGER.info("Re-encoding of {} interrupted after {} rows ", columnFamily, rewritten);
+            Thread.currentThread().interrupt();
+            return rewritten;
+        } finally {
+            closeStatementCache(statementCache);
+        }
+    }
+
+    /**
+     * Lock a row, read it again and rewrite it in the format if it is still in another
+     * format. A row written since it was scanned is already in the current format, a row
+     * removed since is not found.
+     * 
+     * @return true if the row was rewritten.
+     */
+    private boolean reencodeRow(String keySpace, String columnFamily, String rid, int format,
+            Map<String, PreparedStatement> statementCache) throws StorageClientException {
+        boolean autoCommit = true;
+        ResultSet rs = null;
+        try {
+            autoCommit = startBlock();
+            PreparedStatement lockRow = getStatement(keySpace, columnFamily,
+                    SQL_BLOCK_LOCK_ROW, rid, statementCache);
+            lockRow.clearWarnings();
+            lockRow.clearParameters();
+            lockRow.setString(1, rid);
+            rs = lockRow.executeQuery();
+            inc("B");
+            byte[] row = null;
+            if (rs.next()) {
+                InputStream in = rs.getBinaryStream(1);
+                row = ByteStreams.toByteArray(in);
+                in.close();
+            }
+            close(rs, "B");
+            rs = null;
+            if (row == null || Types.isRowFormat(row, format)) {
+                endBlock(autoCommit);
+                return false;
+            }
+            Map<String, Object> values = Maps.newHashMap();
+            try {
+                Types.loadFromStream(rid, values, new ByteArrayInputStream(row), columnFamily);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to read row {}, not re-encoded {} ", rid, e.getMessage());
+                endBlock(autoCommit);
+                return false;
+            }
+            byte[] b = Types.toRowBytes(rid, values, columnFamily, format);
+            PreparedStatement updateBlockRow = getStatement(keySpace, columnFamily,
+                    SQL_BLOCK_UPDATE_ROW, rid, statementCache);
+            updateBlockRow.clearWarnings();
+            updateBlockRow.clearParameters();
+            updateBlockRow.setBinaryStream(1, new ByteArrayInputStream(b), b.length);
+            updateBlockRow.setString(2, rid);
+            long t = System.currentTimeMillis();
+            updateBlockRow.executeUpdate();
+            checkSlow(t, getSql(keySpace, columnFamily, SQL_BLOCK_UPDATE_ROW));
+            endBlock(autoCommit);
+            return true;
+        } catch (SQLException e) {
+            abandonBlock(autoCommit);
+            LOGGER.error(e.getMessage(), e);
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (IOException e) {
+            abandonBlock(autoCommit);
+            LOGGER.error(e.getMessage(), e);
+            throw new StorageClientException(e.getMessage(), e);
+        } finally {
+            close(rs, "B");
+        }
+    }
+
+    boolean isIndexBackfilling(String columnFamily, String property) {
+        return jcbcStorageClientConnection.isIndexBackfilling(columnFamily + ":" + property);
+    }
+
+    /**
+     * @return the index columns, as columnFamily:property, that are being written but not
+     *         yet queried because their backfill is not complete.
+     */
+    public Set<String> getIndexBackfillColumns() {
+        return jcbcStorageClientConnection.getIndexBackfillColumns();
+    }
+
+    /**
+     * Drop the index columns whose backfill has been completed, possibly by another
+     * server, from those that are not queried.
+     * 
+     * @param keySpace
+     * @throws StorageClientException
+     */
+    public void refreshIndexBackfillColumns(String keySpace) throws StorageClientException {
+        checkClosed();
+        Thread holder = holdConnection();
+        try {
+            for (String column : jcbcStorageClientConnection.getIndexBackfillColumns()) {
+                if (!INDEX_BACKFILL_PENDING.equals(get(keySpace, INDEX_BACKFILL_COLUMN_FAMILY,
+                        column).get(INDEX_BACKFILL_STATUS))) {
+                    jcbcStorageClientConnection.indexBackfillComplete(column);
+                    LOGGER.info("Index Column {} has been backfilled ", column);
+                }
+            }
+        } finally {
+            unholdConnection(holder);
+        }
+    }
+
+    /**
+     * Index the next batch of rows for an index column that is being backfilled. Progress
+     * is saved after each batch so the backfill resumes where it stopped, on this or any
+     * other server. When the last batch has been indexed, queries start to use the
+     * column. Each row is locked and read again before it is indexed, so a write made
+     * since the batch was listed is not overwritten in the index by an older value.
+     * 
+     * @param keySpace
+     * @param column
+     *            the index column as columnFamily:property.
+     * @param batchSize
+     *            the maximum number of rows to index.
+     * @return the number of rows read, 0 once the backfill is complete.
+     * @throws StorageClientException
+     */
+    public int backfillIndexBatch(String keySpace, String column, int batchSize)
+            throws StorageClientException {
+        Thread holder = holdConnection();
+        try {
+            return internalBackfillIndexBatch(keySpace, column, batchSize);
+        } finally {
+            unholdConnection(holder);
+        }
+    }
+
+    private int internalBackfillIndexBatch(String keySpace, String column, int batchSize)
+            throws StorageClientException {
+        checkClosed();
+        Map<String, Object> state = Maps.newHashMap(get(keySpace, INDEX_BACKFILL_COLUMN_FAMILY,
+                column));
+        if (!INDEX_BACKFILL_PENDING.equals(state.get(INDEX_BACKFILL_STATUS))) {
+            jcbcStorageClientConnection.indexBackfillComplete(column);
+            return 0;
+        }
+        String[] cf = StringUtils.split(column, ":", 2);
+        String sql = getSql(keySpace, cf[0], SQL_LIST_ALL_AFTER);
+        if (sql == null) {
+            throw new StorageClientException("Cant find sql statement for "
+                    + SQL_LIST_ALL_AFTER);
+        }
+        if (getSql(keySpace, cf[0], SQL_BLOCK_LOCK_ROW) == null) {
+            throw new StorageClientException("Cant find sql statement " + SQL_BLOCK_LOCK_ROW
+                    + " for " + keySpace + ":" + cf[0]);
+        }
+        String last = StorageClientUtils.getSetting(state.get(INDEX_BACKFILL_LAST), FIRST_RID);
+        long rows = StorageClientUtils.getSetting(state.get(INDEX_BACKFILL_ROWS), 0L);
+        // the scan only finds the rows to index, so no transaction is held open across it.
+        List<String> rids = Lists.newArrayList();
+        PreparedStatement pst = null;
+        ResultSet rs = null;
+        try {
+            pst = jcbcStorageClientConnection.getConnection().prepareStatement(sql);
+            inc("iterator");
+            pst.setMaxRows(batchSize);
+            pst.setString(1, last);
+            rs = pst.executeQuery();
+            inc("iterator r");
+            while (rs.next()) {
+                rids.add(rs.getString(1));
+            }
+        } catch (SQLException e) {
+            LOGGER.error(e.getMessage(), e);
+            throw new StorageClientException(e.getMessage() + " SQL Statement was " + sql, e);
+        } finally {
+            close(rs, "iterator r");
+            close(pst, "iterator");
+        }
+
+        Map<String, PreparedStatement> statementCache = Maps.newHashMap();
+        try {
+            for (String rid : rids) {
+                indexRow(keySpace, cf[0], cf[1], rid, statementCache);
+                last = rid;
+            }
+            int n = rids.size();
+            state.put(INDEX_BACKFILL_LAST, last);
+            state.put(INDEX_BACKFILL_ROWS, rows + n);
+            if (n < batchSize) {
+                state.put(INDEX_BACKFILL_STATUS, INDEX_BACKFILL_COMPLETE);
+            }
+            saveIndexBackfillState(keySpace, column, state);
+            if (n < batchSize) {
+                jcbcStorageClientConnection.indexBackfillComplete(column);
+                LOGGER.info("Backfilled Index Column {} from {} rows ", column, rows + n);
+            }
+            return n;
+        } catch (SQLException e) {
+            LOGGER.error(e.getMessage(), e);
+            throw new StorageClientException(e.getMessage(), e);
+        } finally {
+            closeStatementCache(statementCache);
+        }
+    }
+
+    /**
+     * Lock a row, read it again and index the property from it. A row removed since it
+     * was listed is not found.
+     */
+    private void indexRow(String keySpace, String columnFamily, String property, String rid,
+            Map<String, PreparedStatement> statementCache) throws StorageClientException {
+        boolean autoCommit = true;
+        ResultSet rs = null;
+        try {
+            autoCommit = startBlock();
+            PreparedStatement lockRow = getStatement(keySpace, columnFamily,
+                    SQL_BLOCK_LOCK_ROW, rid, statementCache);
+            lockRow.clearWarnings();
+            lockRow.clearParameters();
+            lockRow.setString(1, rid);
+            rs = lockRow.executeQuery();
+            inc("B");
+            byte[] row = null;
+            if (rs.next()) {
+                InputStream in = rs.getBinaryStream(1);
+                row = ByteStreams.toByteArray(in);
+                in.close();
+            }
+            close(rs, "B");
+            rs = null;
+            if (row == null) {
+                endBlock(autoCommit);
+                return;
+            }
+            Map<String, Object> values = Maps.newHashMap();
+            try {
+                Types.loadFromStream(rid, values, new ByteArrayInputStream(row), columnFamily);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to read row {}, not indexed {} ", rid, e.getMessage());
+                endBlock(autoCommit);
+                return;
+            }
+            Object value = values.get(property);
+            if (value != null) {
+                indexer.index(statementCache, keySpace, columnFamily, null, rid,
+                        ImmutableMap.of(property, value));
+            }
+            endBlock(autoCommit);
+        } catch (SQLException e) {
+            abandonBlock(autoCommit);
+            LOGGER.error(e.getMessage(), e);
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (IOException e) {
+            abandonBlock(autoCommit);
+            LOGGER.error(e.getMessage(), e);
+            throw new StorageClientException(e.getMessage(), e);
+        } catch (StorageClientException e) {
+            abandonBlock(autoCommit);
+            throw e;
+        } finally {
+            close(rs, "B");
+        }
+    }
+
+    private boolean hasRowsAfter(String keySpace, String columnFamily, String rid)
+            throws SQLException {
+        String sql = getSql(keySpace, columnFamily, SQL_LIST_ALL_AFTER);
+        if (sql == null) {
+            // no backfill, the column is used as soon as it is added.
+            return false;
+        }
+        PreparedStatement pst = null;
+        ResultSet rs = null;
+        try {
+            pst = jcbcStorageClientConnection.getConnection().prepareStatement(sql);
+            inc("iterator");
+            pst.setMaxRows(1);
+            pst.setString(1, rid);
+            rs = pst.executeQuery();
+            inc("iterator r");
+            return rs.next();
+        } finally {
+            close(rs, "iterator r");
+            close(pst, "iterator");
+        }
+    }
+
+    private void saveIndexBackfillState(String keySpace, String column,
+            Map<String, Object> state) throws StorageClientException, SQLException {
+        // written in a block so the state is never queued behind other writes.
+        boolean autoCommit = startBlock();
+        try {
+            insert(keySpace, INDEX_BACKFILL_COLUMN_FAMILY, column, state, false);
+            endBlock(autoCommit);
+        } catch (StorageClientException e) {
+            abandonBlock(autoCommit);
+            throw e;
+        }
+    }
+
+    QueryPlanner getQueryPlanner() {
+        return jcbcStorageClientConnection.getQueryPlanner();
+    }
+
+    /**
+     * Sample the value statistics of the index columns, used to plan finds. Each column is
+     * read in full, so this should be run from time to time in the background rather than
+     * with every find.
+     * 
+     * @param keySpace
+     * @throws StorageClientException
+     */
+    public void sampleColumnStatistics(String keySpace) throws StorageClientException {
+        checkClosed();
+        Thread holder = holdConnection();
+        try {
+            QueryPlanner planner = getQueryPlanner();
+            if (planner == null) {
+                return;
+            }
+            long t = System.currentTimeMillis();
+            try {
+                indexer.sampleStatistics(this, keySpace, planner.getStatistics());
+            } catch (SQLException e) {
+                LOGGER.error(e.getMessage(), e);
+                throw new StorageClientException(e.getMessage(), e);
+            }
+            LOGGER.debug("Sampled Column Statistics in {} ms ", System.currentTimeMillis() - t);
+        } finally {
+            unholdConnection(holder);
+        }
+    }
+
+    /**
+     * Sample the statistics of one column.
+     * 
+     * @param sql
+     *            the statement for the number of rows with a value and the number of
+     *            distinct values, and the statement for the values with their row counts,
+     *            most frequent first.
+     * @param parameter
+     *            the parameter of both statements, null if they have none.
+     */
+    void sampleColumn(String[] sql, String parameter, String columnFamily, String property,
+            ColumnStatistics statistics) throws SQLException {
+        PreparedStatement pst = null;
+        ResultSet rs = null;
+        long rows = 0;
+        long distinct = 0;
+        Map<String, Long> heavyHitters = Maps.newHashMap();
+        try {
+            pst = jcbcStorageClientConnection.getConnection().prepareStatement(sql[0]);
+            inc("iterator");
+            if (parameter != null) {
+                pst.setString(1, parameter);
+            }
+            rs = pst.executeQuery();
+            inc("iterator r");
+            if (rs.next()) {
+                rows = rs.getLong(1);
+                distinct = rs.getLong(2);
+            }
+            close(rs, "iterator r");
+            rs = null;
+            close(pst, "iterator");
+            pst = null;
+
+            pst = jcbcStorageClientConnection.getConnection().prepareStatement(sql[1]);
+            inc("iterator");
+            pst.setMaxRows(ColumnStatistics.HEAVY_HITTERS);
+            if (parameter != null) {
+                pst.setString(1, parameter);
+            }
+            rs = pst.executeQuery();
+            inc("iterator r");
+            while (rs.next()) {
+                String value = rs.getString(1);
+                if (value != null) {
+                    heavyHitters.put(value, rs.getLong(2));
+                }
+            }
+        } finally {
+            close(rs, "iterator r");
+            close(pst, "iterator");
+        }
+        statistics.update(columnFamily, property, rows, distinct, heavyHitters);
+    }
+
     public void setStorageClientListener(StorageClientListener storageClientListener) {
         this.storageClientListener = storageClientListener;
     }
@@ -24,12 +24,21 @@ import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.Driver;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
 import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.pool.PoolableObjectFactory;
@@ -48,12 +57,16 @@ import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.lite.storage.spi.AbstractClientConnectionPool;
-import org.sakaiproject.nakamura.lite.storage.spi.ConcurrentLRUMap;
+import org.sakaiproject.nakamura.lite.storage.spi.CacheHolderWeigher;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.spi.WeightedLRUMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
@@ -73,10 +86,118 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
     public static final String USERNAME = "username";
     @Property(value = { "" })
     public static final String PASSWORD = "password";
+
+    private static final long DEFAULT_CONTENT_CACHE_SIZE = 32L * 1024L * 1024L;
+    private static final long DEFAULT_AUTHORIZABLE_CACHE_SIZE = 8L * 1024L * 1024L;
+    private static final long DEFAULT_ACL_CACHE_SIZE = 8L * 1024L * 1024L;
+    private static final long DEFAULT_CACHE_SIZE = 4L * 1024L * 1024L;
+
+    /**
+     * Estimated bytes used by the default cache for each column family, where
+     * no StorageCacheManager is provided.
+     */
+    @Property(longValue = DEFAULT_CONTENT_CACHE_SIZE)
+    public static final String CONTENT_CACHE_SIZE = "content-cache-size";
+    @Property(longValue = DEFAULT_AUTHORIZABLE_CACHE_SIZE)
+    public static final String AUTHORIZABLE_CACHE_SIZE = "authorizable-cache-size";
+    @Property(longValue = DEFAULT_ACL_CACHE_SIZE)
+    public static final String ACL_CACHE_SIZE = "acl-cache-size";
+    /**
+     * for all other column families.
+     */
+    @Property(longValue = DEFAULT_CACHE_SIZE)
+    public static final String CACHE_SIZE = "cache-size";
+
+    private static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+    /**
+     * The maximum number of prepared statements kept open on each connection, 0 disables
+     * the statement cache.
+     */
+    @Property(intValue = DEFAULT_STATEMENT_CACHE_SIZE)
+    public static final String STATEMENT_CACHE_SIZE = "statement-cache-size";
+
+    /**
+     * If true, writes made outside a transaction are queued and saved together in one
+     * transaction. A write returns once it has been committed.
+     */
+    @Property(boolValue = false)
+    public static final String WRITE_BEHIND = "write-behind";
+
+    private static final int DEFAULT_WRITE_BEHIND_MAX_ROWS = 100;
+
+    /**
+     * The maximum number of writes saved in one transaction when write behind is enabled.
+     */
+    @Property(intValue = DEFAULT_WRITE_BEHIND_MAX_ROWS)
+    public static final String WRITE_BEHIND_MAX_ROWS = "write-behind-max-rows";
+
+    private static final long DEFAULT_WRITE_BEHIND_MAX_DELAY = 5L;
+
+    /**
+     * The maximum time in ms a write is held waiting for others to be saved with it.
+     */
+    @Property(longValue = DEFAULT_WRITE_BEHIND_MAX_DELAY)
+    public static final String WRITE_BEHIND_MAX_DELAY = "write-behind-max-delay";
  
+    public static final String CONNECTION_PROVIDER_THREAD = "thread";
+    public static final String CONNECTION_PROVIDER_DATASOURCE = "datasource";
+
+    /**
+     * How connections are provided. With "thread", the default, each thread opens a
+     * connection with the jdbc-url and keeps it. With "datasource", connections are taken
+     * from the pooled DataSource bound to this component and given back at the end of
+     * each storage operation, once no transaction or result set is open on them.
+     */
+    @Property(value = CONNECTION_PROVIDER_THREAD)
+    public static final String CONNECTION_PROVIDER = "connection-provider";
+
+    private static final long DEFAULT_LEAK_DETECTION_THRESHOLD = 60000L;
+
+    /**
+     * With the datasource connection provider, warn about connections held by a thread for
+     * longer than this many ms, 0 to disable.
+     */
+    @Property(longValue = DEFAULT_LEAK_DETECTION_THRESHOLD)
+    public static final String LEAK_DETECTION_THRESHOLD = "leak-detection-threshold";
+
+    /**
+     * How often in ms the columns waiting for a backfill, possibly on another server, are
+     * checked for completion.
+     */
+    private static final long INDEX_BACKFILL_REFRESH = 60000L;
+
+    private static final long DEFAULT_STATISTICS_INTERVAL = 0L;
+
+    /**
+     * How often in ms the value statistics of the index columns used to plan finds are
+     * sampled, 0 (the default) to plan finds without statistics. Sampling reads each index
+     * column in full.
+     */
+    @Property(longValue = DEFAULT_STATISTICS_INTERVAL)
+    public static final String STATISTICS_INTERVAL = "statistics-interval";
+
+    private static final long DEFAULT_FILTER_ROWS = 1000L;
+
+    /**
+     * Where the selective terms of a find are estimated to match no more than this many
+     * rows, terms that match most rows are checked against the loaded rows rather than
+     * in SQL, 0 to check all terms in SQL.
+     */
+    @Property(longValue = DEFAULT_FILTER_ROWS)
+    public static final String FILTER_ROWS = "filter-rows";
+
     @Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
     private StorageCacheManager storageManagerCache;
 
+    /**
+     * The pooled DataSource used by the datasource connection provider. The DataSource is
+     * responsible for bounding the number of connections, validating them and retiring
+     * them.
+     */
+    @Reference(cardinality=ReferenceCardinality.OPTIONAL_UNARY, policy=ReferencePolicy.DYNAMIC)
+    private DataSource dataSource;
+
 
     private static final String BASESQLPATH = "org/sakaiproject/nakamura/lite/storage/jdbc/config/client";
 
@@ -136,10 +257,31 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
 
     private ColumnFamilyCacheManager defaultStorageManagerCache;
 
-    private Map<String, CacheHolder> sharedCache;
+    private ConcurrentMap<String, WeightedLRUMap<String, CacheHolder>> sharedCaches;
+
+    private Map<String, Long> cacheSizes;
 
     private Map<String, String> indexColumnsMap;
 
+    private Set<String> indexBackfillColumns = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private AtomicLong fullWrites = new AtomicLong();
+
+    private AtomicLong deltaWrites = new AtomicLong();
+
+    private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+
+    private AtomicLong statementCacheHits = new AtomicLong();
+
+    private AtomicLong statementCacheMisses = new AtomicLong();
+
+    private WriteBehindQueue writeBehindQueue;
+
+    private QueryPlanner queryPlanner;
+
+    private Timer statisticsTimer;
+
     @Override
     @Activate
     @SuppressWarnings(value={"NP_CLOSING_NULL"},justification="Invalid report, if this was the case then nothing would work")
@@ -147,16 +289,50 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
         this.properties = properties;
         super.activate(properties);
 
-        connectionManager = new ConnectionManager(this);
+        statementCacheSize = StorageClientUtils.getSetting(properties.get(STATEMENT_CACHE_SIZE),
+                DEFAULT_STATEMENT_CACHE_SIZE);
+        boolean useDataSource = CONNECTION_PROVIDER_DATASOURCE.equals(StorageClientUtils
+                .getSetting(properties.get(CONNECTION_PROVIDER), CONNECTION_PROVIDER_THREAD));
+        if (useDataSource) {
+            // for testing purposes
+            if (dataSource == null) {
+                dataSource = (DataSource) properties.get(DataSource.class.getName());
+            }
+            if (dataSource == null) {
+                LOGGER.warn("No DataSource bound, connections will be opened with the jdbc-url for each unit of work");
+            }
+        }
+        connectionManager = new ConnectionManager(this, useDataSource,
+                StorageClientUtils.getSetting(properties.get(LEAK_DETECTION_THRESHOLD),
+                        DEFAULT_LEAK_DETECTION_THRESHOLD));
         timer = new Timer();
         timer.schedule(connectionManager, 30000L, 30000L);
 
-        sharedCache = new ConcurrentLRUMap<String, CacheHolder>(10000);
+        sharedCaches = new ConcurrentHashMap<String, WeightedLRUMap<String, CacheHolder>>();
+        Configuration configuration = getConfiguration();
+        cacheSizes = Maps.newHashMap();
+        cacheSizes.put(configuration.getContentColumnFamily(),
+                StorageClientUtils.getSetting(properties.get(CONTENT_CACHE_SIZE), DEFAULT_CONTENT_CACHE_SIZE));
+        cacheSizes.put(configuration.getAuthorizableColumnFamily(),
+                StorageClientUtils.getSetting(properties.get(AUTHORIZABLE_CACHE_SIZE), DEFAULT_AUTHORIZABLE_CACHE_SIZE));
+        cacheSizes.put(configuration.getAclColumnFamily(),
+                StorageClientUtils.getSetting(properties.get(ACL_CACHE_SIZE), DEFAULT_ACL_CACHE_SIZE));
+        final long defaultCacheSize = StorageClientUtils.getSetting(properties.get(CACHE_SIZE), DEFAULT_CACHE_SIZE);
         // this is a default cache used where none has been provided.
         defaultStorageManagerCache = new BaseColumnFamilyCacheManager() {
             
             public Map<String, CacheHolder> getCache(String columnFamily) {
-                return sharedCache;
+                WeightedLRUMap<String, CacheHolder> cache = sharedCaches.get(columnFamily);
+                if ( cache == null ) {
+                    Long size = cacheSizes.get(columnFamily);
+                    cache = new WeightedLRUMap<String, CacheHolder>(size == null ? defaultCacheSize
+                            : size, new CacheHolderWeigher());
+                    WeightedLRUMap<String, CacheHolder> existing = sharedCaches.putIfAbsent(columnFamily, cache);
+                    if ( existing != null ) {
+                        cache = existing;
+                    }
+                }
+                return cache;
             }
         };
         if ( LOGGER.isDebugEnabled()) {
@@ -207,6 +383,37 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
           }
         }
 
+        if (StorageClientUtils.getSetting(properties.get(WRITE_BEHIND), false)) {
+            writeBehindQueue = new WriteBehindQueue(this, StorageClientUtils.getSetting(
+                    properties.get(WRITE_BEHIND_MAX_ROWS), DEFAULT_WRITE_BEHIND_MAX_ROWS),
+                    StorageClientUtils.getSetting(properties.get(WRITE_BEHIND_MAX_DELAY),
+                            DEFAULT_WRITE_BEHIND_MAX_DELAY));
+            writeBehindQueue.start();
+            LOGGER.info("Write behind enabled ");
+        }
+
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                refreshIndexBackfillColumns();
+            }
+        }, INDEX_BACKFILL_REFRESH, INDEX_BACKFILL_REFRESH);
+
+        long statisticsInterval = StorageClientUtils.getSetting(
+                properties.get(STATISTICS_INTERVAL), DEFAULT_STATISTICS_INTERVAL);
+        if (statisticsInterval > 0) {
+            queryPlanner = new QueryPlanner(new ColumnStatistics(),
+                    StorageClientUtils.getSetting(properties.get(FILTER_ROWS), DEFAULT_FILTER_ROWS));
+            // sampling reads whole columns, so it has its own thread.
+            statisticsTimer = new Timer("ColumnStatisticsSampler", true);
+            statisticsTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    sampleColumnStatistics();
+                }
+            }, 60000L, statisticsInterval);
+        }
+
     }
 
 
@@ -216,10 +423,78 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
         return indexColumnsMap;
     }
 
+    /**
+     * @return the planner for finds, null if finds are not planned.
+     */
+    QueryPlanner getQueryPlanner() {
+        return queryPlanner;
+    }
+
+    void sampleColumnStatistics() {
+        JDBCStorageClient client = null;
+        try {
+            client = (JDBCStorageClient) getClient();
+            client.sampleColumnStatistics(getConfiguration().getKeySpace());
+        } catch (ClientPoolException e) {
+            LOGGER.warn("Failed to sample column statistics {} ", e.getMessage());
+        } catch (StorageClientException e) {
+            LOGGER.warn("Failed to sample column statistics {} ", e.getMessage());
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    void refreshIndexBackfillColumns() {
+        if (indexBackfillColumns.isEmpty()) {
+            return;
+        }
+        JDBCStorageClient client = null;
+        try {
+            client = (JDBCStorageClient) getClient();
+            client.refreshIndexBackfillColumns(getConfiguration().getKeySpace());
+        } catch (ClientPoolException e) {
+            LOGGER.warn("Failed to check the index backfill {} ", e.getMessage());
+        } catch (StorageClientException e) {
+            LOGGER.warn("Failed to check the index backfill {} ", e.getMessage());
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    void setIndexBackfillColumns(Set<String> columns) {
+        indexBackfillColumns.clear();
+        indexBackfillColumns.addAll(columns);
+    }
+
+    Set<String> getIndexBackfillColumns() {
+        return ImmutableSet.copyOf(indexBackfillColumns);
+    }
+
+    boolean isIndexBackfilling(String column) {
+        return indexBackfillColumns.contains(column);
+    }
+
+    void indexBackfillComplete(String column) {
+        indexBackfillColumns.remove(column);
+    }
+
 
     @Override
     @Deactivate
     public void deactivate(Map<String, Object> properties) {
+        if (writeBehindQueue != null) {
+            // flush the queue while the pool can still provide clients.
+            writeBehindQueue.stop();
+            writeBehindQueue = null;
+        }
+        if (statisticsTimer != null) {
+            statisticsTimer.cancel();
+            statisticsTimer = null;
+        }
         super.deactivate(properties);
 
         timer.cancel();
@@ -267,7 +542,7 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
                     LOGGER.info("   Database URL   : {} ", properties.get(CONNECTION_URL));
                     client.checkSchema(getClientConfigLocations(client.getConnection()));
                     schemaHasBeenChecked = true;
-                    indexColumnsMap = client.syncIndexColumns();
+                    indexColumnsMap = client.syncIndexColumns(getConfiguration().getKeySpace());
                 } catch (Throwable e) {
                     LOGGER.warn("Failed to check Schema", e);
                 }
@@ -349,8 +624,11 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
 
     public StorageCacheManager getStorageCacheManager() {
         if ( storageManagerCache != null ) {
-            if ( sharedCache.size() > 0 ) {
-                sharedCache.clear(); // dump any memory consumed by the default cache.
+            if ( sharedCaches.size() > 0 ) {
+                // dump any memory consumed by the default caches.
+                for ( Map<String, CacheHolder> cache : sharedCaches.values() ) {
+                    cache.clear();
+                }
             }
             return storageManagerCache ;
         }
@@ -360,7 +638,10 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
     public Connection getConnection() throws SQLException {
         Connection connection = connectionManager.get();
         if (connection == null) {
-            if ("".equals(username)) {
+            DataSource ds = dataSource;
+            if (ds != null && connectionManager.isReleasingConnections()) {
+                connection = ds.getConnection();
+            } else if ("".equals(username)) {
                 connection = DriverManager.getConnection(url, connectionProperties);
             } else {
                 connection = DriverManager.getConnection(url, username, password);
@@ -374,6 +655,102 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
 
 
 
+    @Override
+    public StorageClient getClient() throws ClientPoolException {
+        StorageClient client = super.getClient();
+        connectionManager.clientBorrowed(client);
+        return client;
+    }
+
+    /**
+     * Hold the connection of the current thread for an operation or cursor.
+     * @return the thread, to be passed to {@link #unholdConnection(Thread)}.
+     * @see ConnectionManager#hold()
+     */
+    Thread holdConnection() {
+        return connectionManager.hold();
+    }
+
+    /**
+     * End a hold on the connection of a thread, giving it back to a pooled DataSource if
+     * nothing else holds it.
+     * @param t the thread returned by {@link #holdConnection()}.
+     * @see ConnectionManager#unhold(Thread)
+     */
+    void unholdConnection(Thread t) {
+        connectionManager.unhold(t);
+    }
+
+    /**
+     * Called when a client is closed, on any thread.
+     * @param client the client closed.
+     */
+    void clientClosed(StorageClient client) {
+        connectionManager.clientClosed(client);
+    }
+
+    /**
+     * Get a prepared statement for the sql on the connection bound to the current thread,
+     * from the statement cache of the connection where possible.
+     * @param sql
+     * @return the statement, which must only be closed if it is not a cached statement.
+     * @throws SQLException
+     * @see #isCachedStatement(PreparedStatement)
+     */
+    public PreparedStatement getStatement(String sql) throws SQLException {
+        Connection connection = getConnection();
+        ConnectionHolder connectionHolder = connectionManager.getConnectionHolder();
+        if (connectionHolder == null) {
+            return connection.prepareStatement(sql);
+        }
+        return connectionHolder.getStatement(sql);
+    }
+
+    /**
+     * @param pst
+     * @return true if the statement is held in the statement cache of the connection bound
+     *         to the current thread, in which case it will be closed with the connection.
+     */
+    public boolean isCachedStatement(PreparedStatement pst) {
+        ConnectionHolder connectionHolder = connectionManager.getConnectionHolder();
+        return connectionHolder != null && connectionHolder.isCachedStatement(pst);
+    }
+
+    /**
+     * @return the queue of writes waiting to be saved together, null if write behind is
+     *         not enabled.
+     */
+    WriteBehindQueue getWriteBehindQueue() {
+        return writeBehindQueue;
+    }
+
+    int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    void recordStatementCache(boolean hit) {
+        long h = hit ? statementCacheHits.incrementAndGet() : statementCacheHits.get();
+        long m = hit ? statementCacheMisses.get() : statementCacheMisses.incrementAndGet();
+        if (((h + m) % 10000) == 0) {
+            LOGGER.info("Statement Cache Stats Hits {} Misses {} hit% {}",
+                    new Object[] { h, m, ((100 * h) / (h + m)) });
+        }
+    }
+
+    /**
+     * @return the number of statements served from the statement caches of connections.
+     */
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    /**
+     * @return the number of statements that had to be prepared.
+     */
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
     public String getValidationSql() {
         if ( sqlConfig != null ) {
             return (String) sqlConfig.get("validate");
@@ -381,4 +758,33 @@ public class JDBCStorageClientPool extends AbstractClientConnectionPool {
         return null;
     }
 
+    /**
+     * Record a row write made by a client of this pool.
+     * @param delta true if the write was applied to a current copy of the row
+     *            supplied by the caller, saving a read of the row.
+     */
+    void recordWrite(boolean delta) {
+        long d = delta ? deltaWrites.incrementAndGet() : deltaWrites.get();
+        long f = delta ? fullWrites.get() : fullWrites.incrementAndGet();
+        if (((d + f) % 10000) == 0) {
+            LOGGER.info("Write Stats Delta Writes {} Full Writes {}  reads saved% {}",
+                    new Object[] { d, f, ((100 * d) / (d + f)) });
+        }
+    }
+
+    /**
+     * @return the number of row reads saved by writes that were applied to a
+     *         current copy of the row.
+     */
+    public long getReadsSaved() {
+        return deltaWrites.get();
+    }
+
+    /**
+     * @return the number of writes that had to read the row before writing it.
+     */
+    public long getFullWrites() {
+        return fullWrites.get();
+    }
+
 }
@@ -2,7 +2,6 @@ package org.sakaiproject.nakamura.lite.storage.jdbc;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.text.MessageFormat;
 import java.util.Arrays;
@@ -15,15 +14,14 @@ import java.util.Set;
 import org.apache.commons.lang.StringUtils;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageConstants;
-import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.sakaiproject.nakamura.lite.storage.spi.DirectCacheAccess;
 import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.spi.Disposer;
+import org.sakaiproject.nakamura.lite.storage.spi.RowAggregator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -35,6 +33,18 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
     private static final int STMT_WHERE_SORT = 3;
     private static final int STMT_ORDER = 4;
     private static final int STMT_EXTRA_COLUMNS = 5;
+    /**
+     * Seek statement part, order clause for unsorted queries; {0} is the order.
+     */
+    private static final int SEEK_ORDER_CLAUSE_PART = 3;
+    /**
+     * Counts the values of a key/value index column, the first parameter is the property;
+     * for all rows ; for the rows matched by a find, {0} is the table join and {1} the where
+     * clause of block-find.
+     */
+    private static final String SQL_AGGREGATE = "block-aggregate";
+    private static final int SQL_AGGREGATE_ALL_PART = 0;
+    private static final int SQL_AGGREGATE_FIND_PART = 1;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(KeyValueIndexer.class);
     protected JDBCStorageClient client;
@@ -47,7 +57,9 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
     public DisposableIterator<Map<String, Object>> find(final String keySpace, final String columnFamily,
             Map<String, Object> properties, final DirectCacheAccess cacheManager) throws StorageClientException {
         String[] keys = null;
-        if ( properties != null  && properties.containsKey(StorageConstants.CUSTOM_STATEMENT_SET)) {
+        final boolean custom = properties != null
+                && properties.containsKey(StorageConstants.CUSTOM_STATEMENT_SET);
+        if ( custom ) {
             String customStatement = (String) properties.get(StorageConstants.CUSTOM_STATEMENT_SET);
             keys = new String[] { 
                     customStatement+ "." + keySpace + "." + columnFamily,
@@ -92,8 +104,14 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
         }
         long offset = page * items;
 
-        // collect information on sorting
-        String[] sorts = new String[] { null, "asc" };
+        // terms that match most rows are checked against the loaded rows.
+        Map<String, Object> filters = Maps.newHashMap();
+        properties = plan(client, keySpace, columnFamily, properties, rawResults ? null
+                : filters);
+
+        // collect information on sorting, the table alias of the sort column is recorded in the
+        // third element once known.
+        String[] sorts = new String[] { null, "asc", null };
         String _sortProp = (String) properties.get(StorageConstants.SORT);
         if (_sortProp != null) {
           String[] _sorts = StringUtils.split(_sortProp);
@@ -106,56 +124,8 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
         }
 
         List<Object> parameters = Lists.newArrayList();
-        int set = 0;
-        for (Entry<String, Object> e : properties.entrySet()) {
-            Object v = e.getValue();
-            String k = e.getKey();
-            if ( shouldFind(keySpace, columnFamily, k) || (v instanceof Map)) {
-                if (v != null) {
-                  // check for a value map and treat sub terms as for OR terms.
-                  // Only go 1 level deep; don't recurse. That's just silly.
-                  if (v instanceof Map) {
-                    // start the OR grouping
-                    where.append(" (");
-                    @SuppressWarnings("unchecked")
-                    Set<Entry<String, Object>> subterms = ((Map<String, Object>) v).entrySet();
-                    for(Iterator<Entry<String, Object>> subtermsIter = subterms.iterator(); subtermsIter.hasNext();) {
-                      Entry<String, Object> subterm = subtermsIter.next();
-                      String subk = subterm.getKey();
-                      Object subv = subterm.getValue();
-                      // check that each subterm should be indexed
-                      if (shouldFind(keySpace, columnFamily, subk)) {
-                        set = processEntry(statementParts, tables, where, order, extraColumns, parameters, subk, subv, sorts, set);
-                        // as long as there are more add OR
-                        if (subtermsIter.hasNext()) {
-                          where.append(" OR");
-                        }
-                      }
-                    }
-                    // end the OR grouping
-                    where.append(") AND");
-                  } else {
-                    // process a first level non-map value as an AND term
-
-                      if (v instanceof Iterable<?>) {
-                          for (Object vo : (Iterable<?>)v) {
-                              set = processEntry(statementParts, tables, where, order, extraColumns, parameters, k, vo, sorts, set);
-                              where.append(" AND");
-                          }
-                      } else {
-                          set = processEntry(statementParts, tables, where, order, extraColumns, parameters, k, v, sorts, set);
-                          where.append(" AND");
-                      }
-                  }
-                } else if (!k.startsWith("_")) {
-                  LOGGER.debug("Search on {}:{} filter dropped due to null value.", columnFamily, k);
-                }
-            } else {
-              if (!k.startsWith("_")) {
-                  LOGGER.warn("Search on {}:{} is not supported, filter dropped ",columnFamily,k);
-              }
-            }
-        }
+        int set = processTerms(statementParts, keySpace, columnFamily, properties, tables, where,
+                order, extraColumns, parameters, sorts);
         if (where.length() == 0) {
             return new DisposableIterator<Map<String,Object>>() {
 
@@ -193,15 +163,52 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
             parameters.add(sorts[0]);
             where.append(MessageFormat.format(statementParts[STMT_WHERE_SORT], t)).append(" AND");
             order.append(MessageFormat.format(statementParts[STMT_ORDER], t, sorts[1]));
+            sorts[2] = t;
           } else {
             LOGGER.warn("Sort on {}:{} is not supported, sort dropped", columnFamily,
                 sorts[0]);
           }
         }
 
+        // continue after the last row of the previous page by seeking rather than skipping rows.
+        // Sorted finds and every page of a continued find, including the first, are ordered by
+        // rid after the sort so that the continuation of one page is the position of the next.
+        // Custom statements, which may aggregate, are only ordered when they seek.
+        boolean continuing = properties.containsKey(StorageConstants.CONTINUATION);
+        String seek = client.getSql(new String[] {
+                "block-seek." + keySpace + "." + columnFamily,
+                "block-seek." + columnFamily, "block-seek" });
+        if (seek != null && (continuing || (!custom && order.length() > 0))) {
+            String[] seekParts = StringUtils.split(seek, ';');
+            String[] continuation = continuing ? getContinuation(client, keySpace,
+                    columnFamily, properties, sorts[2] == null ? null : sorts[0]) : null;
+            // without a continuation this is the first page.
+            if (continuation != null) {
+                where.append(" ").append(
+                        getSeekClause(seekParts, continuation, sorts[2], sorts[1], parameters))
+                        .append(" AND");
+                offset = 0;
+            }
+            // rows with equal sort values are ordered by rid so the seek position is unique.
+            if (order.length() > 0) {
+                order.append(", ").append(
+                        MessageFormat.format(seekParts[SEEK_ORDER_PART], sorts[1]));
+            } else {
+                order.append(MessageFormat.format(seekParts[SEEK_ORDER_CLAUSE_PART], sorts[1]));
+            }
+        } else if (continuing) {
+            LOGGER.warn("Seek on {}:{} is not supported, paging by offset", keySpace,
+                    columnFamily);
+        }
 
+        // when rows are filtered the iterator pages through the filtered rows, reading no
+        // more than the planner allows.
+        final long rowLimit = filters.isEmpty() ? items : getFilteredRowLimit(client, offset,
+                items);
         final String sqlStatement = MessageFormat.format(statementParts[STMT_BASE],
-            tables.toString(), where.toString(), order.toString(), items, offset, extraColumns.toString());
+            tables.toString(), where.toString(), order.toString(),
+            rowLimit, filters.isEmpty() ? offset : 0,
+            extraColumns.toString());
 
         PreparedStatement tpst = null;
         ResultSet trs = null;
@@ -230,80 +237,13 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
             LOGGER.debug("Executed ");
 
             // pass control to the iterator.
-            final PreparedStatement pst = tpst;
-            final ResultSet rs = trs;
-            final ResultSetMetaData rsmd = rs.getMetaData();
+            BatchedRowIterator iterator = new BatchedRowIterator(client, keySpace,
+                    columnFamily, tpst, trs, rawResults, items, cacheManager, filters,
+                    filters.isEmpty() ? 0 : offset, filters.isEmpty() ? Long.MAX_VALUE : items,
+                    rowLimit);
             tpst = null;
             trs = null;
-            return client.registerDisposable(new PreemptiveIterator<Map<String, Object>>() {
-
-                private Map<String, Object> nextValue = Maps.newHashMap();
-                private boolean open = true;
-
-                @Override
-                protected Map<String, Object> internalNext() {
-                    return nextValue;
-                }
-
-                @Override
-                protected boolean internalHasNext() {
-                    try {
-                        if (open && rs.next()) {
-                            if ( rawResults ) {
-                                Builder<String, Object> b = ImmutableMap.builder();
-                                for  (int i = 1; i <= rsmd.getColumnCount(); i++ ) {
-                                    b.put(String.valueOf(i), rs.getObject(i));
-                                }
-                                nextValue = b.build();
-                            } else {
-                               String id = rs.getString(1);
-                               nextValue = client.internalGet(keySpace, columnFamily, id, cacheManager);
-                               LOGGER.debug("Got Row ID {} {} ", id, nextValue);
-                            }
-                            return true;
-                        }
-                        close();
-                        nextValue = null;
-                        LOGGER.debug("End of Set ");
-                        return false;
-                    } catch (SQLException e) {
-                        LOGGER.error(e.getMessage(), e);
-                        close();
-                        nextValue = null;
-                        return false;
-                    } catch (StorageClientException e) {
-                        LOGGER.error(e.getMessage(), e);
-                        close();
-                        nextValue = null;
-                        return false;
-                    }
-                }
-
-                @Override
-                public void close() {
-                    if (open) {
-                        open = false;
-                        try {
-                            if (rs != null) {
-                                rs.close();
-                                client.dec("iterator r");
-                            }
-                        } catch (SQLException e) {
-                            LOGGER.warn(e.getMessage(), e);
-                        }
-                        try {
-                            if (pst != null) {
-                                pst.close();
-                                client.dec("iterator");
-                            }
-                        } catch (SQLException e) {
-                            LOGGER.warn(e.getMessage(), e);
-                        }
-                        super.close();
-                    }
-
-                }
-            });
+            return client.registerDisposable(iterator);
         } catch (SQLException e) {
             LOGGER.error(e.getMessage(), e);
             throw new StorageClientException(e.getMessage() + " SQL Statement was " + sqlStatement,
@@ -331,6 +271,107 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
     }
 
 
+    /**
+     * Counts the values of an indexed property with a group by query on the index table.
+     */
+    @Override
+    Map<String, Long> countValues(JDBCStorageClient client, String keySpace,
+            String columnFamily, Map<String, Object> properties, String property, int limit)
+            throws StorageClientException {
+        String aggregate = client.getSql(keySpace, columnFamily, SQL_AGGREGATE);
+        String find = client.getSql(new String[] { "block-find." + keySpace + "." + columnFamily,
+                "block-find." + columnFamily, "block-find" });
+        if (aggregate == null || find == null
+                || !shouldFind(keySpace, columnFamily, property)) {
+            return super.countValues(client, keySpace, columnFamily, properties, property, limit);
+        }
+        String[] aggregateParts = StringUtils.split(aggregate, ';');
+        List<Object> parameters = Lists.newArrayList();
+        parameters.add(property);
+        String sql = aggregateParts[SQL_AGGREGATE_ALL_PART];
+        if (RowAggregator.hasTerms(properties)) {
+            StringBuilder tables = new StringBuilder();
+            StringBuilder where = new StringBuilder();
+            processTerms(StringUtils.split(find, ';'), keySpace, columnFamily, properties,
+                    tables, where, new StringBuilder(), new StringBuilder(), parameters,
+                    new String[] { null, "asc", null });
+            if (where.length() == 0) {
+                // as with find, a search with no supported terms matches nothing.
+                return Maps.newLinkedHashMap();
+            }
+            sql = MessageFormat.format(aggregateParts[SQL_AGGREGATE_FIND_PART],
+                    tables.toString(), where.toString());
+        }
+        Map<String, Long> counts = Maps.newLinkedHashMap();
+        for (Object[] row : aggregate(client, sql, parameters, limit + 1)) {
+            if (row[0] != null && counts.size() < limit) {
+                counts.put(row[0].toString(), ((Number) row[1]).longValue());
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Add the join and where clause of each term of a find to a statement.
+     * @return the number of index tables joined.
+     */
+    private int processTerms(String[] statementParts, String keySpace, String columnFamily,
+            Map<String, Object> properties, StringBuilder tables, StringBuilder where,
+            StringBuilder order, StringBuilder extraColumns, List<Object> parameters,
+            String[] sorts) {
+        int set = 0;
+        for (Entry<String, Object> e : properties.entrySet()) {
+            Object v = e.getValue();
+            String k = e.getKey();
+            if ( shouldFind(keySpace, columnFamily, k) || (v instanceof Map)) {
+                if (v != null) {
+                  // check for a value map and treat sub terms as for OR terms.
+                  // Only go 1 level deep; don't recurse. That's just silly.
+                  if (v instanceof Map) {
+                    // start the OR grouping
+                    where.append(" (");
+                    @SuppressWarnings("unchecked")
+                    Set<Entry<String, Object>> subterms = ((Map<String, Object>) v).entrySet();
+                    for(Iterator<Entry<String, Object>> subtermsIter = subterms.iterator(); subtermsIter.hasNext();) {
+                      Entry<String, Object> subterm = subtermsIter.next();
+                      String subk = subterm.getKey();
+                      Object subv = subterm.getValue();
+                      // check that each subterm should be indexed
+                      if (shouldFind(keySpace, columnFamily, subk)) {
+                        set = processEntry(statementParts, tables, where, order, extraColumns, parameters, subk, subv, sorts, set);
+                        // as long as there are more add OR
+                        if (subtermsIter.hasNext()) {
+                          where.append(" OR");
+                        }
+                      }
+                    }
+                    // end the OR grouping
+                    where.append(") AND");
+                  } else {
+                    // process a first level non-map value as an AND term
+
+                      if (v instanceof Iterable<?>) {
+                          for (Object vo : (Iterable<?>)v) {
+                              set = processEntry(statementParts, tables, where, order, extraColumns, parameters, k, vo, sorts, set);
+                              where.append(" AND");
+                          }
+                      } else {
+                          set = processEntry(statementParts, tables, where, order, extraColumns, parameters, k, v, sorts, set);
+                          where.append(" AND");
+                      }
+                  }
+                } else if (!k.startsWith("_")) {
+                  LOGGER.debug("Search on {}:{} filter dropped due to null value.", columnFamily, k);
+                }
+            } else {
+              if (!k.startsWith("_")) {
+                  LOGGER.warn("Search on {}:{} is not supported, filter dropped ",columnFamily,k);
+              }
+            }
+        }
+        return set;
+    }
+
     /**
      * @param statementParts
      * @param where
@@ -368,6 +409,7 @@ public abstract class KeyValueIndexer extends AbstractIndexer {
       // add in sorting based on the table ref and value
       if (k.equals(sorts[0])) {
         order.append(MessageFormat.format(statementParts[STMT_ORDER], t, sorts[1]));
+        sorts[2] = t;
         if ( statementParts.length > STMT_EXTRA_COLUMNS ) {
             extraColumns.append(MessageFormat.format(statementParts[STMT_EXTRA_COLUMNS], t));
         }
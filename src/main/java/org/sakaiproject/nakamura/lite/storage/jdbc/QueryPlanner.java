@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Plans a find using the sampled {@link ColumnStatistics}. The terms of the find are
+ * ordered most selective first, so the most selective term drives the joins of the
+ * key/value index. Where a selective term limits the query to a few rows, terms that
+ * match most rows are taken out of the SQL and checked against the loaded rows instead.
+ * Terms on columns without statistics are left to the database.
+ */
+class QueryPlanner {
+
+    /**
+     * Selectivity assumed for a term on a column that has not been sampled.
+     */
+    static final double DEFAULT_SELECTIVITY = 0.1;
+
+    /**
+     * Terms matching at least this fraction of the rows are checked in memory.
+     */
+    static final double FILTER_SELECTIVITY = 0.5;
+
+    /**
+     * How many times more rows than estimated a find with filtered terms may read before it
+     * stops, in case the statistics are out of date.
+     */
+    static final long FILTER_ROWS_SLACK = 10;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryPlanner.class);
+
+    private final ColumnStatistics statistics;
+    private final long maxFilterRows;
+
+    /**
+     * @param statistics
+     * @param maxFilterRows
+     *            the largest estimated number of rows the selective terms of a find may
+     *            match for other terms to be checked in memory, 0 to check all terms in
+     *            SQL.
+     */
+    QueryPlanner(ColumnStatistics statistics, long maxFilterRows) {
+        this.statistics = statistics;
+        this.maxFilterRows = maxFilterRows;
+    }
+
+    ColumnStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return the largest number of rows a find with terms moved to filters reads.
+     */
+    long getMaxFilteredRows() {
+        return maxFilterRows * FILTER_ROWS_SLACK;
+    }
+
+    /**
+     * @param indexer
+     *            the indexer that will run the find.
+     * @param keySpace
+     * @param columnFamily
+     * @param properties
+     *            the find, which is not modified.
+     * @param filters
+     *            if not null, receives the terms that should be checked against the loaded
+     *            rows rather than in SQL.
+     * @return the find with its terms in the order they should be queried, without the
+     *         terms moved to filters.
+     */
+    Map<String, Object> plan(AbstractIndexer indexer, String keySpace, String columnFamily,
+            Map<String, Object> properties, Map<String, Object> filters) {
+        if (properties == null || !statistics.hasStatistics(columnFamily)) {
+            return properties;
+        }
+        Map<String, Object> planned = Maps.newLinkedHashMap();
+        final Map<String, Double> selectivity = Maps.newHashMap();
+        List<String> terms = Lists.newArrayList();
+        for (Entry<String, Object> e : properties.entrySet()) {
+            String k = e.getKey();
+            Object v = e.getValue();
+            if (v == null || !(indexer.shouldFind(keySpace, columnFamily, k) || v instanceof Map)) {
+                // not a term, the indexer deals with these.
+                planned.put(k, v);
+            } else {
+                terms.add(k);
+                selectivity.put(k, getSelectivity(indexer, keySpace, columnFamily, k, v));
+            }
+        }
+        // stable, so terms with the same estimate keep their order.
+        Collections.sort(terms, new Comparator<String>() {
+            public int compare(String o1, String o2) {
+                return Double.compare(Math.abs(selectivity.get(o1)),
+                        Math.abs(selectivity.get(o2)));
+            }
+        });
+
+        // a driving term is only trusted if its column was sampled.
+        boolean filter = filters != null && maxFilterRows > 0 && terms.size() > 1
+                && selectivity.get(terms.get(0)) >= 0
+                && selectivity.get(terms.get(0)) * statistics.getRows(columnFamily) <= maxFilterRows;
+        for (int i = 0; i < terms.size(); i++) {
+            String k = terms.get(i);
+            Object v = properties.get(k);
+            if (filter && i > 0 && selectivity.get(k) >= FILTER_SELECTIVITY
+                    && !(v instanceof Map) && !(v instanceof Iterable<?>)) {
+                filters.put(k, v);
+            } else {
+                planned.put(k, v);
+            }
+        }
+        LOGGER.debug("Planned {} as {} filtered by {} ", new Object[] { properties, planned,
+                filters });
+        return planned;
+    }
+
+    /**
+     * @return the estimated selectivity of a term, negative if estimated without
+     *         statistics.
+     */
+    private double getSelectivity(AbstractIndexer indexer, String keySpace,
+            String columnFamily, String k, Object v) {
+        if (v instanceof Map) {
+            // OR terms, the selectivities add up.
+            double s = 0.0;
+            boolean known = true;
+            for (Object o : ((Map<?, ?>) v).entrySet()) {
+                Entry<?, ?> subterm = (Entry<?, ?>) o;
+                String subk = String.valueOf(subterm.getKey());
+                if (indexer.shouldFind(keySpace, columnFamily, subk)) {
+                    double subs = getSelectivity(indexer, keySpace, columnFamily, subk,
+                            subterm.getValue());
+                    known = known && subs >= 0;
+                    s += Math.abs(subs);
+                }
+            }
+            s = Math.min(1.0, s);
+            return known ? s : -s;
+        } else if (v instanceof Iterable<?>) {
+            // AND terms, the most selective limits the rest.
+            double s = 1.0;
+            boolean known = false;
+            for (Object o : (Iterable<?>) v) {
+                double vs = getSelectivity(indexer, keySpace, columnFamily, k, o);
+                if (Math.abs(vs) <= s) {
+                    s = Math.abs(vs);
+                    known = vs >= 0;
+                }
+            }
+            return known ? s : -s;
+        }
+        double s = statistics.getSelectivity(columnFamily, k, v);
+        return s == ColumnStatistics.UNKNOWN ? -DEFAULT_SELECTIVITY : s;
+    }
+
+}
@@ -2,7 +2,6 @@ package org.sakaiproject.nakamura.lite.storage.jdbc;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.text.MessageFormat;
@@ -19,10 +18,10 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.StorageConstants;
 import org.sakaiproject.nakamura.api.lite.content.Content;
-import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.sakaiproject.nakamura.lite.storage.spi.DirectCacheAccess;
 import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
 import org.sakaiproject.nakamura.lite.storage.spi.Disposer;
+import org.sakaiproject.nakamura.lite.storage.spi.RowAggregator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +37,22 @@ public class WideColumnIndexer extends AbstractIndexer {
     private static final String SQL_UPDATE_WIDESTRING_ROW = "update-widestring-row";
     private static final String SQL_DELETE_WIDESTRING_ROW = "delete-widestring-row";
     private static final String SQL_EXISTS_WIDESTRING_ROW = "exists-widestring-row";
+    private static final String SQL_UPSERT_WIDESTRING_ROW = "upsert-widestring-row";
+    /**
+     * Statistics of a wide index column, {0} is the column name; the number of rows with a
+     * value and the number of distinct values ; the values with the number of rows that
+     * have them, most frequent first.
+     */
+    private static final String SQL_STATS_WIDESTRING_COLUMN = "stats-widestring-column";
+    private static final String SQL_AGGREGATE = "wide-block-aggregate";
+    private static final int SQL_AGGREGATE_TEMPLATE_PART = 0;
+    private static final int SQL_AGGREGATE_VALUES_PART = 1;
+    private static final int SQL_AGGREGATE_GROUP_PART = 2;
+    private static final int SQL_AGGREGATE_RANGE_PART = 3;
+    private static final int SQL_AGGREGATE_ARRAY_VALUES_PART = 4;
+    private static final int SQL_UPSERT_SET_PART = 1;
+    private static final int SQL_UPSERT_PARAM_PART = 2;
+    private static final int SQL_UPSERT_SOURCE_PART = 3;
     private static final int SQL_QUERY_TEMPLATE_PART = 0;
     private static final int SQL_WHERE_PART = 1;
     private static final int SQL_WHERE_ARRAY_PART = 2;
@@ -96,7 +111,8 @@ public class WideColumnIndexer extends AbstractIndexer {
                 }
             }
             
-            if (!StorageClientUtils.isRoot(key) 
+            // there is no key when backfilling, the parent hash is already indexed.
+            if (key != null && !StorageClientUtils.isRoot(key) 
                     && getColumnName(keySpace, columnFamily, Content.PARENT_HASH_FIELD) != null) {
                 String parent = StorageClientUtils.getParentObjectPath(key);
                 String hash = client.rowHash(keySpace, columnFamily, parent);
@@ -156,6 +172,7 @@ public class WideColumnIndexer extends AbstractIndexer {
                 return; // nothing to add or remove, do nothing.
             }
 
+            String upsertSql = client.getSql(keySpace, columnFamily, SQL_UPSERT_WIDESTRING_ROW);
             if (removeColumns.size() > 0 && updateColumns.size() == 0) {
                 // exists, columns to remove, none to update, therefore
                 // delete row this assumes that the starting point is a
@@ -168,6 +185,9 @@ public class WideColumnIndexer extends AbstractIndexer {
                 deleteWideStringColumn.execute();
                 checkSlow(t, client.getSql(keySpace, columnFamily, SQL_DELETE_WIDESTRING_ROW));
                 LOGGER.debug("Executed {} with {} ",deleteWideStringColumn, rid);
+            } else if ( upsertSql != null ) {
+                upsert(statementCache, upsertSql, keySpace, columnFamily, rid, updateColumns,
+                        removeColumns);
             } else if ( updateColumns.size() > 0 || removeColumns.size() > 0) {
                 //
                 // build an update query, record does not exists, but there
@@ -241,6 +261,62 @@ public class WideColumnIndexer extends AbstractIndexer {
 
     }
 
+    /**
+     * Insert or update the index row in one statement. The statement is in parts separated
+     * by ;. Part 0 is the statement, {0} is the column list, {1} the parameter list, {2}
+     * the set list and {3} the source value list. Part 1 is the set element for column {0},
+     * the optional parts 2 and 3 the parameter and source value for column {0}, both
+     * default to ?. Parameters are bound as rid, then the values of the columns.
+     */
+    private void upsert(Map<String, PreparedStatement> statementCache, String upsertSql,
+            String keySpace, String columnFamily, String rid, Map<String, Object> updateColumns,
+            Set<String> removeColumns) throws SQLException {
+        String[] sqlParts = StringUtils.split(upsertSql, ";");
+        List<String> columns = Lists.newArrayList();
+        for (String k : updateColumns.keySet()) {
+            columns.add(getColumnName(keySpace, columnFamily, k));
+        }
+        for (String k : removeColumns) {
+            columns.add(getColumnName(keySpace, columnFamily, k));
+        }
+        StringBuilder columnNames = new StringBuilder();
+        StringBuilder paramHolders = new StringBuilder();
+        StringBuilder setOperations = new StringBuilder();
+        StringBuilder sourceValues = new StringBuilder();
+        for (String column : columns) {
+            columnNames.append(" ,").append(column);
+            paramHolders.append(" ,").append(
+                    sqlParts.length > SQL_UPSERT_PARAM_PART ? MessageFormat.format(
+                            sqlParts[SQL_UPSERT_PARAM_PART].trim(), column) : "?");
+            join(setOperations, " ,").append(
+                    MessageFormat.format(sqlParts[SQL_UPSERT_SET_PART].trim(), column));
+            sourceValues.append(" ,").append(
+                    sqlParts.length > SQL_UPSERT_SOURCE_PART ? MessageFormat.format(
+                            sqlParts[SQL_UPSERT_SOURCE_PART].trim(), column) : "?");
+        }
+        String finalSql = MessageFormat.format(sqlParts[0], columnNames.toString(),
+                paramHolders.toString(), setOperations.toString(), sourceValues.toString());
+        LOGGER.debug("Upsert SQL {} ", finalSql);
+        PreparedStatement upsertColumnPst = client.getStatement(finalSql, statementCache);
+        upsertColumnPst.clearWarnings();
+        upsertColumnPst.clearParameters();
+        upsertColumnPst.setString(1, rid);
+        int i = 2;
+        for (Entry<String, Object> e : updateColumns.entrySet()) {
+            LOGGER.debug("   Param {} {} ", i, e.getValue().toString());
+            upsertColumnPst.setString(i, e.getValue().toString());
+            i++;
+        }
+        for (String toRemove : removeColumns) {
+            upsertColumnPst.setNull(i, toSqlType(columnFamily, toRemove));
+            LOGGER.debug("   Param {} NULL ", i);
+            i++;
+        }
+        long t = System.currentTimeMillis();
+        upsertColumnPst.executeUpdate();
+        checkSlow(t, finalSql);
+    }
+
     private void checkSlow(long t, String sql) {
         t = System.currentTimeMillis() - t;
         if ( t > 100 ) {
@@ -248,6 +324,35 @@ public class WideColumnIndexer extends AbstractIndexer {
         }        
     }
 
+    /**
+     * Columns that are being backfilled are written but can't be queried until every row
+     * has been indexed.
+     */
+    @Override
+    boolean shouldFind(String keySpace, String columnFamily, String k) {
+        return super.shouldFind(keySpace, columnFamily, k)
+                && !client.isIndexBackfilling(columnFamily, k);
+    }
+
+    /**
+     * Array columns are held in the key/value index, other columns are sampled from the
+     * wide index.
+     */
+    @Override
+    void sampleColumn(JDBCStorageClient client, String keySpace, String columnFamily,
+            String property, ColumnStatistics statistics) throws SQLException {
+        if (isColumnArray(keySpace, columnFamily, property)) {
+            super.sampleColumn(client, keySpace, columnFamily, property, statistics);
+            return;
+        }
+        String sql = client.getSql(keySpace, columnFamily, SQL_STATS_WIDESTRING_COLUMN);
+        String column = getColumnName(keySpace, columnFamily, property);
+        if (sql != null && column != null) {
+            client.sampleColumn(StringUtils.split(MessageFormat.format(sql, column), ';'), null,
+                    columnFamily, property, statistics);
+        }
+    }
+
     private String getColumnName(String keySpace, String columnFamily, String key) {
         return indexColumnsNames.get(columnFamily + ":" + key); 
    }
@@ -277,7 +382,9 @@ public class WideColumnIndexer extends AbstractIndexer {
     public DisposableIterator<Map<String, Object>> find(final String keySpace, final String columnFamily,
             Map<String, Object> properties, final DirectCacheAccess cachingManager) throws StorageClientException {
         String[] keys = null;
-        if ( properties != null  && properties.containsKey(StorageConstants.CUSTOM_STATEMENT_SET)) {
+        final boolean custom = properties != null
+                && properties.containsKey(StorageConstants.CUSTOM_STATEMENT_SET);
+        if ( custom ) {
             String customStatement = (String) properties.get(StorageConstants.CUSTOM_STATEMENT_SET);
             keys = new String[] { 
                     "wide-"+ customStatement+ "." + keySpace + "." + columnFamily,
@@ -316,19 +423,24 @@ public class WideColumnIndexer extends AbstractIndexer {
         }
         long offset = page * items;
 
+        // terms that match most rows are checked against the loaded rows.
+        Map<String, Object> filters = Maps.newHashMap();
+        properties = plan(client, keySpace, columnFamily, properties, rawResults ? null
+                : filters);
+
         // collect information on sorting
         List<String> sortingList = Lists.newArrayList();
         if (sortProp != null) {
           String[] sorts = StringUtils.split(sortProp);
           if (sorts.length == 1) {
-              if ( shouldIndex(keySpace, columnFamily, sorts[0]) && !isColumnArray(keySpace, columnFamily, sorts[0]) ) {
+              if ( shouldFind(keySpace, columnFamily, sorts[0]) && !isColumnArray(keySpace, columnFamily, sorts[0]) ) {
                   sortingList.add(getColumnName(keySpace, columnFamily, sorts[0]));
                   sortingList.add("asc");
               }
           } else if (sorts.length > 1) {
               for ( int i = 0; i < sorts.length; i+=2) {
-                  if ( shouldIndex(keySpace, columnFamily, sorts[0]) && !isColumnArray(keySpace, columnFamily, sorts[i]) ) {
-                      sortingList.add(getColumnName(keySpace, columnFamily, sorts[0]));
+                  if ( shouldFind(keySpace, columnFamily, sorts[i]) && !isColumnArray(keySpace, columnFamily, sorts[i]) ) {
+                      sortingList.add(getColumnName(keySpace, columnFamily, sorts[i]));
                       sortingList.add(sorts[i+1]);
                   }
               }
@@ -336,6 +448,33 @@ public class WideColumnIndexer extends AbstractIndexer {
         }
         String[] sorts = sortingList.toArray(new String[sortingList.size()]);
         String[] statementParts = StringUtils.split(sql, ';');
+
+        // continue after the last row of the previous page by seeking rather than skipping rows.
+        // Sorted finds and every page of a continued find, including the first, are ordered by
+        // rid after the sort so that the continuation of one page is the position of the next.
+        // Custom statements, which may aggregate, are only ordered when they seek.
+        boolean continuing = properties != null
+                && properties.containsKey(StorageConstants.CONTINUATION);
+        String[] seekParts = null;
+        boolean seeking = false;
+        String seek = client.getSql(new String[] {
+                "wide-block-seek." + keySpace + "." + columnFamily,
+                "wide-block-seek." + columnFamily, "wide-block-seek" });
+        if (seek != null && sorts.length <= 2
+                && (continuing || (!custom && sorts.length > 0))) {
+            seekParts = StringUtils.split(seek, ';');
+        }
+        if (continuing) {
+            if (seek == null) {
+                LOGGER.warn("Seek on {}:{} is not supported, paging by offset", keySpace,
+                        columnFamily);
+            } else if (seekParts == null) {
+                LOGGER.warn("Seek on {}:{} with more than one sort is not supported, paging by offset",
+                        keySpace, columnFamily);
+            } else {
+                seeking = true;
+            }
+        }
         /*
          * Part 0 basic SQL template; {0} is the where clause {1} is the sort clause {2} is the from {3} is the to record
          *   eg select rid from css where {0} {1} LIMIT {2} ROWS {3}
@@ -352,53 +491,9 @@ public class WideColumnIndexer extends AbstractIndexer {
          * Dont include , AND or OR, the code will add those as appropriate. 
          */
 
-        StringBuilder whereClause = new StringBuilder();
         List<Object> parameters = Lists.newArrayList();
-        int set = 0;
-        for (Entry<String, Object> e : properties.entrySet()) {
-            Object v = e.getValue();
-            String k = e.getKey();
-            if ( shouldFind(keySpace, columnFamily, k) || (v instanceof Map)) {
-                if (v != null) {
-                  // check for a value map and treat sub terms as for OR terms.
-                  // Only go 1 level deep; don't recurse. That's just silly.
-                  if (v instanceof Map) {
-                      // start the OR grouping
-                      @SuppressWarnings("unchecked")
-                      Set<Entry<String, Object>> subterms = ((Map<String, Object>) v).entrySet();
-                      StringBuilder subQuery = new StringBuilder();
-                      for(Iterator<Entry<String, Object>> subtermsIter = subterms.iterator(); subtermsIter.hasNext();) {
-                        Entry<String, Object> subterm = subtermsIter.next();
-                        String subk = subterm.getKey();
-                        Object subv = subterm.getValue();
-                        // check that each subterm should be indexed
-                        if (shouldFind(keySpace, columnFamily, subk)) {
-                          set = processEntry(statementParts, keySpace, columnFamily, subQuery, parameters, subk, subv, sorts, set, " OR ");
-                        }
-                      }
-                      if ( subQuery.length() > 0 ) {
-                          join(whereClause," AND ").append("( ").append(subQuery.toString()).append(" ) ");
-                      }
-                  } else {
-                    // process a first level non-map value as an AND term
-
-                      if (v instanceof Iterable<?>) {
-                          for (Object vo : (Iterable<?>)v) {
-                              set = processEntry(statementParts, keySpace, columnFamily, whereClause, parameters, k, vo, sorts, set, " AND ");
-                          }
-                      } else {
-                          set = processEntry(statementParts, keySpace, columnFamily, whereClause, parameters, k, v, sorts, set, " AND ");
-                      }
-                  }
-                } else if (!k.startsWith("_")) {
-                  LOGGER.debug("Search on {}:{} filter dropped due to null value.", columnFamily, k);
-                }
-            } else {
-              if (!k.startsWith("_")) {
-                  LOGGER.warn("Search on {}:{} is not supported, filter dropped ",columnFamily,k);
-              }
-            }
-        }
+        StringBuilder whereClause = getWhereClause(statementParts, keySpace, columnFamily,
+                properties, sorts, parameters);
         // there was no where clause generated
         // to avoid returneing everything, we wont return anything.
         if (whereClause.length() == 0) {
@@ -428,21 +523,43 @@ public class WideColumnIndexer extends AbstractIndexer {
             };
         }
 
+        if (seeking) {
+            String sortProperty = sorts.length > 0 ? StringUtils.split(sortProp)[0] : null;
+            String[] continuation = getContinuation(client, keySpace, columnFamily, properties,
+                    sortProperty);
+            // without a continuation this is the first page.
+            if (continuation != null) {
+                join(whereClause, " AND ").append(
+                        getSeekClause(seekParts, continuation, sortProperty == null ? null
+                                : sorts[0], sorts.length > 0 ? sorts[1] : "asc", parameters));
+                offset = 0;
+            }
+        }
+
         StringBuilder sortClause = new StringBuilder();
         if ( statementParts.length > SQL_SORT_CLAUSE_PART ) {
             StringBuilder sortList = new StringBuilder();
+            // sorts holds the columns of the sort properties that can be found.
             for ( int i = 0; i < sorts.length; i+= 2) {
-                if (shouldFind(keySpace, columnFamily, sorts[0])) {
-                    join(sortList, ", ").append(MessageFormat.format(statementParts[SQL_SORT_LIST_PART], sorts[i], sorts[i+1]));
-                }
+                join(sortList, ", ").append(MessageFormat.format(statementParts[SQL_SORT_LIST_PART], sorts[i], sorts[i+1]));
+            }
+            if (seekParts != null) {
+                // rows with equal sort values are ordered by rid so the seek position is unique.
+                join(sortList, ", ").append(MessageFormat.format(seekParts[SEEK_ORDER_PART],
+                        sorts.length > 0 ? sorts[1] : "asc"));
             }
             if ( sortList.length() > 0 ) {
                 sortClause.append(MessageFormat.format(statementParts[SQL_SORT_CLAUSE_PART], sortList.toString()));
             }
         }
 
+        // when rows are filtered the iterator pages through the filtered rows, reading no
+        // more than the planner allows.
+        final long rowLimit = filters.isEmpty() ? items : getFilteredRowLimit(client, offset,
+                items);
         final String sqlStatement = MessageFormat.format(statementParts[SQL_QUERY_TEMPLATE_PART],
-            whereClause.toString(), sortClause.toString(), items, offset);
+            whereClause.toString(), sortClause.toString(),
+            rowLimit, filters.isEmpty() ? offset : 0);
 
         PreparedStatement tpst = null;
         ResultSet trs = null;
@@ -471,80 +588,13 @@ public class WideColumnIndexer extends AbstractIndexer {
             LOGGER.debug("Executed ");
 
             // pass control to the iterator.
-            final PreparedStatement pst = tpst;
-            final ResultSet rs = trs;
-            final ResultSetMetaData rsmd = rs.getMetaData();
+            BatchedRowIterator iterator = new BatchedRowIterator(client, keySpace,
+                    columnFamily, tpst, trs, rawResults, items, cachingManager, filters,
+                    filters.isEmpty() ? 0 : offset, filters.isEmpty() ? Long.MAX_VALUE : items,
+                    rowLimit);
             tpst = null;
             trs = null;
-            return client.registerDisposable(new PreemptiveIterator<Map<String, Object>>() {
-
-                private Map<String, Object> nextValue = Maps.newHashMap();
-                private boolean open = true;
-
-                @Override
-                protected Map<String, Object> internalNext() {
-                    return nextValue;
-                }
-
-                @Override
-                protected boolean internalHasNext() {
-                    try {
-                        if (open && rs.next()) {
-                            if ( rawResults ) {
-                                Builder<String, Object> b = ImmutableMap.builder();
-                                for  (int i = 1; i <= rsmd.getColumnCount(); i++ ) {
-                                    b.put(String.valueOf(i), rs.getObject(i));
-                                }
-                                nextValue = b.build();
-                            } else {
-                               String id = rs.getString(1);
-                               nextValue = client.internalGet(keySpace, columnFamily, id, cachingManager);
-                               LOGGER.debug("Got Row ID {} {} ", id, nextValue);
-                            }
-                            return true;
-                        }
-                        close();
-                        nextValue = null;
-                        LOGGER.debug("End of Set ");
-                        return false;
-                    } catch (SQLException e) {
-                        LOGGER.error(e.getMessage(), e);
-                        close();
-                        nextValue = null;
-                        return false;
-                    } catch (StorageClientException e) {
-                        LOGGER.error(e.getMessage(), e);
-                        close();
-                        nextValue = null;
-                        return false;
-                    }
-                }
-
-                @Override
-                public void close() {
-                    if (open) {
-                        open = false;
-                        try {
-                            if (rs != null) {
-                                rs.close();
-                                client.dec("iterator r");
-                            }
-                        } catch (SQLException e) {
-                            LOGGER.warn(e.getMessage(), e);
-                        }
-                        try {
-                            if (pst != null) {
-                                pst.close();
-                                client.dec("iterator");
-                            }
-                        } catch (SQLException e) {
-                            LOGGER.warn(e.getMessage(), e);
-                        }
-                        super.close();
-                    }
-
-                }
-            });
+            return client.registerDisposable(iterator);
         } catch (SQLException e) {
             LOGGER.error(e.getMessage(), e);
             throw new StorageClientException(e.getMessage() + " SQL Statement was " + sqlStatement,
@@ -573,6 +623,156 @@ public class WideColumnIndexer extends AbstractIndexer {
 
 
 
+    /**
+     * Build the where clause of a find from its terms, adding the parameters of the
+     * clause.
+     */
+    private StringBuilder getWhereClause(String[] statementParts, String keySpace,
+            String columnFamily, Map<String, Object> properties, String[] sorts,
+            List<Object> parameters) {
+        StringBuilder whereClause = new StringBuilder();
+        int set = 0;
+        for (Entry<String, Object> e : properties.entrySet()) {
+            Object v = e.getValue();
+            String k = e.getKey();
+            if ( shouldFind(keySpace, columnFamily, k) || (v instanceof Map)) {
+                if (v != null) {
+                  // check for a value map and treat sub terms as for OR terms.
+                  // Only go 1 level deep; don't recurse. That's just silly.
+                  if (v instanceof Map) {
+                      // start the OR grouping
+                      @SuppressWarnings("unchecked")
+                      Set<Entry<String, Object>> subterms = ((Map<String, Object>) v).entrySet();
+                      StringBuilder subQuery = new StringBuilder();
+                      for(Iterator<Entry<String, Object>> subtermsIter = subterms.iterator(); subtermsIter.hasNext();) {
+                        Entry<String, Object> subterm = subtermsIter.next();
+                        String subk = subterm.getKey();
+                        Object subv = subterm.getValue();
+                        // check that each subterm should be indexed
+                        if (shouldFind(keySpace, columnFamily, subk)) {
+                          set = processEntry(statementParts, keySpace, columnFamily, subQuery, parameters, subk, subv, sorts, set, " OR ");
+                        }
+                      }
+                      if ( subQuery.length() > 0 ) {
+                          join(whereClause," AND ").append("( ").append(subQuery.toString()).append(" ) ");
+                      }
+                  } else {
+                    // process a first level non-map value as an AND term
+
+                      if (v instanceof Iterable<?>) {
+                          for (Object vo : (Iterable<?>)v) {
+                              set = processEntry(statementParts, keySpace, columnFamily, whereClause, parameters, k, vo, sorts, set, " AND ");
+                          }
+                      } else {
+                          set = processEntry(statementParts, keySpace, columnFamily, whereClause, parameters, k, v, sorts, set, " AND ");
+                      }
+                  }
+                } else if (!k.startsWith("_")) {
+                  LOGGER.debug("Search on {}:{} filter dropped due to null value.", columnFamily, k);
+                }
+            } else {
+              if (!k.startsWith("_")) {
+                  LOGGER.warn("Search on {}:{} is not supported, filter dropped ",columnFamily,k);
+              }
+            }
+        }
+        return whereClause;
+    }
+
+    /**
+     * Counts the values of properties held in the index with a group by query, array
+     * properties are counted in the key/value index.
+     */
+    @Override
+    Map<String, Long> countValues(JDBCStorageClient client, String keySpace,
+            String columnFamily, Map<String, Object> properties, String property, int limit)
+            throws StorageClientException {
+        String[] aggregateParts = getAggregateParts(keySpace, columnFamily, property);
+        if (aggregateParts == null) {
+            return super.countValues(client, keySpace, columnFamily, properties, property, limit);
+        }
+        List<Object> parameters = Lists.newArrayList();
+        String whereClause = getAggregateWhereClause(keySpace, columnFamily, properties,
+                parameters);
+        String sql = null;
+        if (isColumnArray(keySpace, columnFamily, property)) {
+            parameters.add(0, property);
+            sql = MessageFormat.format(aggregateParts[SQL_AGGREGATE_ARRAY_VALUES_PART],
+                    whereClause);
+        } else {
+            String column = getColumnName(keySpace, columnFamily, property);
+            sql = MessageFormat.format(aggregateParts[SQL_AGGREGATE_TEMPLATE_PART],
+                    MessageFormat.format(aggregateParts[SQL_AGGREGATE_VALUES_PART], column),
+                    whereClause,
+                    MessageFormat.format(aggregateParts[SQL_AGGREGATE_GROUP_PART], column));
+        }
+        Map<String, Long> counts = Maps.newLinkedHashMap();
+        // rows without a value are grouped together and skipped.
+        for (Object[] row : aggregate(client, sql, parameters, limit + 1)) {
+            if (row[0] != null && counts.size() < limit) {
+                counts.put(row[0].toString(), ((Number) row[1]).longValue());
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    Object[] range(JDBCStorageClient client, String keySpace, String columnFamily,
+            Map<String, Object> properties, String property) throws StorageClientException {
+        String[] aggregateParts = getAggregateParts(keySpace, columnFamily, property);
+        if (aggregateParts == null || isColumnArray(keySpace, columnFamily, property)) {
+            return super.range(client, keySpace, columnFamily, properties, property);
+        }
+        List<Object> parameters = Lists.newArrayList();
+        String whereClause = getAggregateWhereClause(keySpace, columnFamily, properties,
+                parameters);
+        String sql = MessageFormat.format(aggregateParts[SQL_AGGREGATE_TEMPLATE_PART],
+                MessageFormat.format(aggregateParts[SQL_AGGREGATE_RANGE_PART],
+                        getColumnName(keySpace, columnFamily, property)), whereClause, "");
+        List<Object[]> rows = aggregate(client, sql, parameters, 1);
+        return rows.size() == 0 ? new Object[2] : rows.get(0);
+    }
+
+    /**
+     * @return the parts of the aggregate statement, null if the property can't be
+     *         aggregated in the database.
+     */
+    private String[] getAggregateParts(String keySpace, String columnFamily, String property) {
+        String sql = client.getSql(keySpace, columnFamily, SQL_AGGREGATE);
+        if (sql == null || !shouldFind(keySpace, columnFamily, property)) {
+            LOGGER.warn("Aggregate on {}:{} is not supported by the index, rows will be loaded",
+                    columnFamily, property);
+            return null;
+        }
+        return StringUtils.split(sql, ';');
+    }
+
+    /**
+     * @return the where clause of an aggregate, built with the parts of the find
+     *         statement. Where there are no terms all rows are aggregated.
+     */
+    private String getAggregateWhereClause(String keySpace, String columnFamily,
+            Map<String, Object> properties, List<Object> parameters)
+            throws StorageClientException {
+        String[] keys = new String[] { "wide-block-find." + keySpace + "." + columnFamily,
+                "wide-block-find." + columnFamily, "wide-block-find" };
+        String sql = client.getSql(keys);
+        if (sql == null) {
+            throw new StorageClientException("Failed to locate SQL statement for any of  "
+                    + Arrays.toString(keys));
+        }
+        if (!RowAggregator.hasTerms(properties)) {
+            return "1 = 1";
+        }
+        StringBuilder whereClause = getWhereClause(StringUtils.split(sql, ';'), keySpace,
+                columnFamily, properties, new String[0], parameters);
+        if (whereClause.length() == 0) {
+            // none of the terms can be found, as with find nothing matches.
+            return "1 = 0";
+        }
+        return whereClause.toString();
+    }
+
     private StringBuilder join(StringBuilder sb, String joinWord) {
         if ( sb.length() > 0 ) {
             sb.append(joinWord);
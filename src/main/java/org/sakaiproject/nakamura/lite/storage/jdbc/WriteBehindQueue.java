@@ -0,0 +1,383 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues row writes from many threads and flushes them as a group inside a single
+ * transaction, once the oldest write has waited maxDelay ms or maxRows writes are
+ * queued. A writer is only released once its write has been committed, and until then
+ * reads of the row are answered from the queue. A write that fails or is cancelled
+ * fails the writes to the same row queued after it.
+ */
+class WriteBehindQueue implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindQueue.class);
+    /**
+     * How long a writer waits for the flush of its write before giving up.
+     */
+    private static final long WRITE_TIMEOUT = 60000L;
+
+    private final JDBCStorageClientPool pool;
+    private final int maxRows;
+    private final long maxDelay;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<PendingWrite>();
+    private final ConcurrentMap<String, PendingWrite> pending = new ConcurrentHashMap<String, PendingWrite>();
+    private volatile boolean running;
+    private Thread flusher;
+
+    private static class PendingWrite {
+        private final String keySpace;
+        private final String columnFamily;
+        private final String key;
+        private final String rid;
+        private final Map<String, Object> values;
+        private final boolean probablyNew;
+        private final Map<String, Object> currentRow;
+        private final Map<String, Object> row;
+        private final CountDownLatch flushed = new CountDownLatch(1);
+        private volatile StorageClientException error;
+        // the write to the same row pending when this one was queued, its changes are in currentRow.
+        private volatile PendingWrite previous;
+        // guarded by this
+        private boolean started;
+        // guarded by this
+        private boolean cancelled;
+
+        public PendingWrite(String keySpace, String columnFamily, String key, String rid,
+                Map<String, Object> values, boolean probablyNew, Map<String, Object> currentRow) {
+            this.keySpace = keySpace;
+            this.columnFamily = columnFamily;
+            this.key = key;
+            this.rid = rid;
+            this.values = values;
+            this.probablyNew = probablyNew;
+            this.currentRow = currentRow;
+            this.row = Maps.newHashMap(currentRow);
+            JDBCStorageClient.mergeRow(row, values);
+        }
+
+        /**
+         * @return true if the write was flushed in time.
+         */
+        public boolean await() throws StorageClientException {
+            try {
+                return flushed.await(WRITE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageClientException("Interrupted waiting for the write of " + rid, e);
+            }
+        }
+
+        /**
+         * Mark the write as being flushed.
+         * @return false if the write has been cancelled and must not be flushed.
+         */
+        public synchronized boolean start() {
+            if (cancelled) {
+                return false;
+            }
+            started = true;
+            return true;
+        }
+
+        /**
+         * Cancel the write, if it is not already being flushed.
+         * @return true if the write was cancelled and will never be committed.
+         */
+        public synchronized boolean cancel() {
+            if (started) {
+                return false;
+            }
+            cancelled = true;
+            return true;
+        }
+
+        /**
+         * @return true if the write failed or was cancelled.
+         */
+        public synchronized boolean failed() {
+            return cancelled || error != null;
+        }
+    }
+
+    public WriteBehindQueue(JDBCStorageClientPool pool, int maxRows, long maxDelay) {
+        this.pool = pool;
+        this.maxRows = Math.max(1, maxRows);
+        this.maxDelay = Math.max(0L, maxDelay);
+    }
+
+    public synchronized void start() {
+        running = true;
+        flusher = new Thread(this, "SparseWriteBehind");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Stop accepting writes, flush everything queued and wait for the flusher to exit.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (flusher != null) {
+            try {
+                flusher.join(WRITE_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flusher = null;
+        }
+    }
+
+    /**
+     * @return true if the current thread is the one flushing the queue, writes on that
+     *         thread must go straight to the database.
+     */
+    public boolean isFlusher() {
+        return Thread.currentThread() == flusher;
+    }
+
+    /**
+     * Queue a write and wait until it has been committed.
+     * @param currentRow the row as it is before this write, which must take account of
+     *            any write still pending for the row.
+     * @throws StorageClientException if the write failed or was not flushed in time.
+     */
+    public void write(String keySpace, String columnFamily, String key, String rid,
+            Map<String, Object> values, boolean probablyNew, Map<String, Object> currentRow)
+            throws StorageClientException {
+        if (!running) {
+            throw new StorageClientException("Write behind has been stopped, unable to save "
+                    + rid);
+        }
+        PendingWrite write = new PendingWrite(keySpace, columnFamily, key, rid, values,
+                probablyNew, currentRow);
+        write.previous = pending.put(rid, write);
+        queue.add(write);
+        boolean flushed;
+        try {
+            flushed = write.await();
+        } catch (StorageClientException e) {
+            abandon(write, e.getMessage());
+            throw e;
+        }
+        if (!flushed) {
+            abandon(write, "Timed out waiting for the write of " + rid);
+        }
+        if (write.error != null) {
+            throw write.error;
+        }
+    }
+
+    /**
+     * Cancel a write the writer has stopped waiting for, if it has not been flushed.
+     * @throws StorageClientException reporting the outcome of the write.
+     */
+    private void abandon(PendingWrite write, String message) throws StorageClientException {
+        if (write.cancel()) {
+            pending.remove(write.rid, write);
+            throw new StorageClientException(message + ", the write has been cancelled");
+        } else if (write.flushed.getCount() > 0) {
+            throw new StorageClientException(message
+                    + ", the write is being flushed and may still be committed");
+        }
+    }
+
+    /**
+     * @param rid
+     * @return a copy of the row as it will be once the pending writes to it have been
+     *         flushed, or null if there are no pending writes to the row.
+     */
+    public Map<String, Object> getPending(String rid) {
+        PendingWrite write = pending.get(rid);
+        if (write == null) {
+            return null;
+        }
+        return Maps.newHashMap(write.row);
+    }
+
+    /**
+     * Wait until any pending write to the row has been flushed.
+     * @param rid
+     * @throws StorageClientException
+     */
+    public void waitFor(String rid) throws StorageClientException {
+        PendingWrite write = pending.get(rid);
+        if (write != null && !write.await()) {
+            throw new StorageClientException("Timed out waiting for the write of " + rid);
+        }
+    }
+
+    public void run() {
+        List<PendingWrite> batch = Lists.newArrayList();
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(1000L, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + maxDelay;
+                while (batch.size() < maxRows) {
+                    long wait = deadline - System.currentTimeMillis();
+                    PendingWrite next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS)
+                            : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                LOGGER.debug("Interrupted waiting for writes ");
+            }
+            if (batch.size() > 0) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<PendingWrite> batch) {
+        JDBCStorageClient client = null;
+        try {
+            List<PendingWrite> writes = Lists.newArrayList();
+            for (PendingWrite write : batch) {
+                if (write.start() && !failedBefore(write)) {
+                    writes.add(write);
+                }
+            }
+            if (writes.size() > 0) {
+                client = (JDBCStorageClient) pool.getClient();
+                if (!flushTogether(client, writes)) {
+                    flushEach(client, writes);
+                }
+            }
+        } catch (ClientPoolException e) {
+            LOGGER.warn("Failed to flush {} writes: {} ", batch.size(), e.getMessage());
+            for (PendingWrite write : batch) {
+                write.error = new StorageClientException(e.getMessage(), e);
+            }
+        } finally {
+            for (PendingWrite write : batch) {
+                pending.remove(write.rid, write);
+                write.previous = null;
+                write.flushed.countDown();
+            }
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * A write is made against the row as it would be after the write pending before it,
+     * so if that write failed or was cancelled this one fails too.
+     * @return true if the write failed because the write before it did.
+     */
+    private boolean failedBefore(PendingWrite write) {
+        PendingWrite previous = write.previous;
+        if (previous != null && previous.failed()) {
+            write.error = new StorageClientException("An earlier write of " + write.rid
+                    + " was not saved, unable to save");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Save all the writes in one transaction.
+     * @return true if the writes were committed.
+     */
+    private boolean flushTogether(JDBCStorageClient client, List<PendingWrite> batch) {
+        Connection connection = null;
+        boolean autoCommit = true;
+        try {
+            connection = client.getConnection();
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            for (PendingWrite write : batch) {
+                // update first, a failed insert aborts the whole transaction on some databases.
+                client.insert(write.keySpace, write.columnFamily, write.key, write.values,
+                        false, write.currentRow);
+            }
+            connection.commit();
+            LOGGER.debug("Flushed {} writes ", batch.size());
+            return true;
+        } catch (StorageClientException e) {
+            LOGGER.info("Failed to flush {} writes together, saving separately: {} ",
+                    batch.size(), e.getMessage());
+        } catch (SQLException e) {
+            LOGGER.info("Failed to flush {} writes together, saving separately: {} ",
+                    batch.size(), e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.info("Failed to flush {} writes together, saving separately: {} ",
+                    batch.size(), e.getMessage());
+        } finally {
+            if (connection != null) {
+                try {
+                    if (!connection.getAutoCommit()) {
+                        connection.rollback();
+                    }
+                    connection.setAutoCommit(autoCommit);
+                } catch (SQLException e) {
+                    LOGGER.warn(e.getMessage(), e);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Save each write in its own transaction so that one bad write does not fail the
+     * others.
+     */
+    private void flushEach(JDBCStorageClient client, List<PendingWrite> batch) {
+        for (PendingWrite write : batch) {
+            if (failedBefore(write)) {
+                continue;
+            }
+            try {
+                client.insert(write.keySpace, write.columnFamily, write.key, write.values,
+                        write.probablyNew, write.currentRow);
+            } catch (StorageClientException e) {
+                write.error = e;
+            } catch (RuntimeException e) {
+                write.error = new StorageClientException(e.getMessage(), e);
+            }
+        }
+    }
+
+}
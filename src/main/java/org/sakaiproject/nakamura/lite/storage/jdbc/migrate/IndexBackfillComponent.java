@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc.migrate;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.SessionImpl;
+import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClient;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Backfills index columns that were added to tables already holding rows, in the
+ * background. Rows are indexed in batches with a pause between batches, and progress is
+ * saved after every batch so a backfill that is stopped resumes where it stopped. Queries
+ * don't use a column until its backfill is complete. Progress is available over JMX as
+ * org.sakaiproject.nakamura.lite:type=IndexBackfill. The backfill is disabled by default
+ * and should be enabled on one server of a cluster; the others start to use a column
+ * once they see its backfill is complete.
+ */
+@Component(immediate = true, enabled = true, metatype = true)
+public class IndexBackfillComponent implements Runnable, IndexBackfillComponentMBean {
+
+    /**
+     * true to run the backfill on this server.
+     */
+    @Property(boolValue = false)
+    private static final String PROP_ENABLED = "enabled";
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * the number of rows indexed per batch.
+     */
+    @Property(intValue = DEFAULT_BATCH_SIZE)
+    private static final String PROP_BATCH_SIZE = "batch-size";
+
+    private static final long DEFAULT_PAUSE = 100;
+
+    /**
+     * milliseconds to pause after every batch.
+     */
+    @Property(longValue = DEFAULT_PAUSE)
+    private static final String PROP_PAUSE = "pause";
+
+    private static final String OBJECT_NAME = "org.sakaiproject.nakamura.lite:type=IndexBackfill";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexBackfillComponent.class);
+
+    @Reference
+    private Repository repository;
+
+    @Reference
+    private Configuration configuration;
+
+    private int batchSize;
+
+    private long pause;
+
+    private Thread backfillThread;
+
+    private volatile boolean running;
+
+    private volatile String[] pendingColumns = new String[0];
+
+    private volatile String currentColumn;
+
+    private volatile long rowsProcessed;
+
+    private volatile int columnsCompleted;
+
+    private volatile long lastBatchTime;
+
+    private ObjectName objectName;
+
+    @Activate
+    public synchronized void activate(Map<String, Object> properties) {
+        batchSize = StorageClientUtils.getSetting(properties.get(PROP_BATCH_SIZE),
+                DEFAULT_BATCH_SIZE);
+        pause = StorageClientUtils.getSetting(properties.get(PROP_PAUSE), DEFAULT_PAUSE);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+                objectName = name;
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Unable to register index backfill progress with JMX {} ", e.getMessage());
+        }
+        if (StorageClientUtils.getSetting(properties.get(PROP_ENABLED), false)) {
+            backfillThread = new Thread(this, "Sparse Index Backfill");
+            backfillThread.setDaemon(true);
+            backfillThread.start();
+        }
+    }
+
+    @Deactivate
+    public synchronized void deactivate(Map<String, Object> properties) {
+        if (backfillThread != null) {
+            backfillThread.interrupt();
+            backfillThread = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOGGER.debug(e.getMessage(), e);
+            }
+            objectName = null;
+        }
+    }
+
+    public void run() {
+        SessionImpl session = null;
+        running = true;
+        rowsProcessed = 0;
+        columnsCompleted = 0;
+        try {
+            session = (SessionImpl) repository.loginAdministrative();
+            StorageClient client = session.getClient();
+            if (client instanceof JDBCStorageClient) {
+                JDBCStorageClient jdbcClient = (JDBCStorageClient) client;
+                String keySpace = configuration.getKeySpace();
+                Set<String> columns = jdbcClient.getIndexBackfillColumns();
+                pendingColumns = columns.toArray(new String[columns.size()]);
+                for (String column : columns) {
+                    currentColumn = column;
+                    LOGGER.info("Backfilling Index Column {} ", column);
+                    int n = batchSize;
+                    while (n == batchSize) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            LOGGER.info("Index backfill interrupted, it will be resumed when next started ");
+                            return;
+                        }
+                        long t = System.currentTimeMillis();
+                        n = jdbcClient.backfillIndexBatch(keySpace, column, batchSize);
+                        lastBatchTime = System.currentTimeMillis() - t;
+                        rowsProcessed += n;
+                        if (pause > 0 && n == batchSize) {
+                            Thread.sleep(pause);
+                        }
+                    }
+                    columnsCompleted++;
+                    columns = jdbcClient.getIndexBackfillColumns();
+                    pendingColumns = columns.toArray(new String[columns.size()]);
+                }
+            } else {
+                LOGGER.warn("This class will only backfill indexes for the JDBCStorageClients");
+            }
+        } catch (InterruptedException e) {
+            LOGGER.info("Index backfill interrupted, it will be resumed when next started ");
+        } catch (Exception e) {
+            LOGGER.error("Index backfill failed, it will be resumed when next started ", e);
+        } finally {
+            running = false;
+            currentColumn = null;
+            if (session != null) {
+                try {
+                    session.logout();
+                } catch (Exception e) {
+                    LOGGER.debug(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public String[] getPendingColumns() {
+        return pendingColumns;
+    }
+
+    public String getCurrentColumn() {
+        return currentColumn;
+    }
+
+    public long getRowsProcessed() {
+        return rowsProcessed;
+    }
+
+    public int getColumnsCompleted() {
+        return columnsCompleted;
+    }
+
+    public long getLastBatchTime() {
+        return lastBatchTime;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc.migrate;
+
+/**
+ * Progress of the index backfill, exposed over JMX.
+ */
+public interface IndexBackfillComponentMBean {
+
+    /**
+     * @return true while a backfill is running.
+     */
+    boolean isRunning();
+
+    /**
+     * @return the index columns, as columnFamily:property, waiting to be backfilled.
+     */
+    String[] getPendingColumns();
+
+    /**
+     * @return the index column being backfilled, null if none.
+     */
+    String getCurrentColumn();
+
+    /**
+     * @return the number of rows read by the current run.
+     */
+    long getRowsProcessed();
+
+    /**
+     * @return the number of index columns backfilled by the current run.
+     */
+    int getColumnsCompleted();
+
+    /**
+     * @return the time in ms of the last batch, 0 if none.
+     */
+    long getLastBatchTime();
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc.migrate;
+
+import java.util.Map;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.lite.SessionImpl;
+import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClient;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rewrites rows that are not in the current row format, in the background. The
+ * store reads rows in any format, so this is only needed to recover the space
+ * used by older rows. Disabled by default, and should not be enabled until all
+ * servers sharing the store are able to read the current format.
+ */
+@Component(immediate = true, enabled = true, metatype = true)
+public class RowFormatUpgradeComponent implements Runnable {
+
+    @Property(boolValue = false)
+    private static final String PROP_ENABLED = "enabled";
+
+    private static final long DEFAULT_PAUSE = 100;
+
+    /**
+     * milliseconds to pause after every 100 rows rewritten.
+     */
+    @Property(longValue = DEFAULT_PAUSE)
+    private static final String PROP_PAUSE = "pause";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RowFormatUpgradeComponent.class);
+
+    @Reference
+    private Repository repository;
+
+    @Reference
+    private Configuration configuration;
+
+    private long pause;
+
+    private Thread upgradeThread;
+
+    @Activate
+    public synchronized void activate(Map<String, Object> properties) {
+        pause = StorageClientUtils.getSetting(properties.get(PROP_PAUSE), DEFAULT_PAUSE);
+        if (StorageClientUtils.getSetting(properties.get(PROP_ENABLED), false)) {
+            upgradeThread = new Thread(this, "Sparse Row Format Upgrade");
+            upgradeThread.setDaemon(true);
+            upgradeThread.start();
+        }
+    }
+
+    @Deactivate
+    public synchronized void deactivate(Map<String, Object> properties) {
+        if (upgradeThread != null) {
+            upgradeThread.interrupt();
+            upgradeThread = null;
+        }
+    }
+
+    public void run() {
+        SessionImpl session = null;
+        try {
+            session = (SessionImpl) repository.loginAdministrative();
+            StorageClient client = session.getClient();
+            if (client instanceof JDBCStorageClient) {
+                JDBCStorageClient jdbcClient = (JDBCStorageClient) client;
+                String keySpace = configuration.getKeySpace();
+                for (String columnFamily : new String[] {
+                        configuration.getAuthorizableColumnFamily(),
+                        configuration.getContentColumnFamily(),
+                        configuration.getAclColumnFamily() }) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                    jdbcClient.reencodeRows(keySpace, columnFamily, pause);
+                }
+            } else {
+                LOGGER.warn("This class will only upgrade rows for the JDBCStorageClients");
+            }
+        } catch (Exception e) {
+            LOGGER.error("Row format upgrade failed, it will be resumed when next enabled ", e);
+        } finally {
+            if (session != null) {
+                try {
+                    session.logout();
+                } catch (Exception e) {
+                    LOGGER.debug(e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
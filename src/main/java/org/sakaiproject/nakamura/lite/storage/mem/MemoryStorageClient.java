@@ -32,6 +32,7 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
 import org.sakaiproject.nakamura.lite.storage.spi.DirectCacheAccess;
 import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
+import org.sakaiproject.nakamura.lite.storage.spi.RowAggregator;
 import org.sakaiproject.nakamura.lite.storage.spi.SparseMapRow;
 import org.sakaiproject.nakamura.lite.storage.spi.SparseRow;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
@@ -43,6 +44,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -61,7 +63,9 @@ public class MemoryStorageClient implements StorageClient {
     private static final Set<String> AUTO_INDEX_COLUMNS = ImmutableSet.of(
             "cn:_:parenthash",
             "au:_:parenthash",
-            "ac:_:parenthash");
+            "ac:_:parenthash",
+            "cn:_:ancestors",
+            "cn:_:parent");
 
     Map<String, Object> store;
     private int blockSize;
@@ -95,6 +99,15 @@ public class MemoryStorageClient implements StorageClient {
         return (Map<String, Object>) getOrCreateRow(keySpace, columnFamily, key);
     }
 
+    public Map<String, Map<String, Object>> getAll(String keySpace, String columnFamily,
+            Collection<String> keys) throws StorageClientException {
+        Map<String, Map<String, Object>> rows = Maps.newLinkedHashMap();
+        for (String key : keys) {
+            rows.put(key, get(keySpace, columnFamily, key));
+        }
+        return rows;
+    }
+
     private Map<String, Object> getOrCreateRow(String keySpace, String columnFamily, String key) {
         String keyName = rowHash(keySpace, columnFamily, key);
 
@@ -145,8 +158,15 @@ public class MemoryStorageClient implements StorageClient {
 
     private void addIndex(String keySpace, String columnFamily, String key, String columnKey,
             Object value) {
-        if ( INDEX_COLUMNS.contains(columnFamily+":"+columnKey)) {
-            addIndexValue(keySpace, columnFamily, key, columnKey, value);
+        if ( shouldIndex(keySpace, columnFamily, columnKey)) {
+            if ( value instanceof Object[] ) {
+                // multi valued properties are found by any of their values.
+                for ( Object v : (Object[]) value ) {
+                    addIndexValue(keySpace, columnFamily, key, columnKey, v);
+                }
+            } else {
+                addIndexValue(keySpace, columnFamily, key, columnKey, value);
+            }
         }
         if ( !StorageClientUtils.isRoot(key) ) {
             addIndexValue(keySpace, columnFamily, key, Content.PARENT_HASH_FIELD, (rowHash(keySpace, columnFamily,StorageClientUtils.getParentObjectPath(key))));
@@ -167,6 +187,12 @@ public class MemoryStorageClient implements StorageClient {
     }
 
     private void removeIndex(String keySpace, String columnFamily, String key, String columnKey, Object columnValue) {
+        if ( columnValue instanceof Object[] ) {
+            for ( Object v : (Object[]) columnValue ) {
+                removeIndex(keySpace, columnFamily, key, columnKey, v);
+            }
+            return;
+        }
         @SuppressWarnings("unchecked")
         Set<String> index = (Set<String>) store.get(keyHash(keySpace,columnFamily, columnKey, columnValue));
         if ( index != null ) {
@@ -174,6 +200,44 @@ public class MemoryStorageClient implements StorageClient {
         }
     }
 
+    public void insertChild(String keySpace, String columnFamily, String key,
+            Map<String, Object> values, boolean probablyNew, String countProperty)
+            throws StorageClientException {
+        // the store is shared by all clients, so it stands in for the lock on the parent.
+        synchronized (store) {
+            boolean existed = RowAggregator.exists(get(keySpace, columnFamily, key));
+            insert(keySpace, columnFamily, key, values, probablyNew);
+            boolean exists = RowAggregator.exists(get(keySpace, columnFamily, key));
+            if (existed == exists || StorageClientUtils.isRoot(key)) {
+                return;
+            }
+            String parent = StorageClientUtils.getParentObjectPath(key);
+            Map<String, Object> parentRow = get(keySpace, columnFamily, parent);
+            Object count = parentRow.get(countProperty);
+            // writing to a deleted parent would bring it back.
+            if (RowAggregator.exists(parentRow) && count instanceof Number) {
+                long childCount = Math.max(0L, ((Number) count).longValue()
+                        + (exists ? 1 : -1));
+                insert(keySpace, columnFamily, parent,
+                        ImmutableMap.of(countProperty, (Object) childCount), false);
+            }
+        }
+    }
+
+    public long recountChildren(String keySpace, String columnFamily, String key,
+            String countProperty) throws StorageClientException {
+        synchronized (store) {
+            if (!RowAggregator.exists(get(keySpace, columnFamily, key))) {
+                return 0;
+            }
+            long childCount = RowAggregator.countExisting(listChildren(keySpace, columnFamily,
+                    key, null));
+            insert(keySpace, columnFamily, key,
+                    ImmutableMap.of(countProperty, (Object) childCount), false);
+            return childCount;
+        }
+    }
+
     public void remove(String keySpace, String columnFamily, String key)
             throws StorageClientException {
         String keyName = rowHash(keySpace, columnFamily, key);
@@ -331,6 +395,34 @@ public class MemoryStorageClient implements StorageClient {
         return count;
     }
 
+    public long count(String keySpace, String columnFamily, Map<String, Object> properties) {
+        return RowAggregator.count(aggregateRows(keySpace, columnFamily, properties));
+    }
+
+    public Map<String, Long> countValues(String keySpace, String columnFamily,
+            Map<String, Object> properties, String property, int limit) {
+        return RowAggregator.countValues(aggregateRows(keySpace, columnFamily, properties),
+                property, limit);
+    }
+
+    public Object[] range(String keySpace, String columnFamily, Map<String, Object> properties,
+            String property) {
+        return RowAggregator.range(aggregateRows(keySpace, columnFamily, properties), property);
+    }
+
+    private DisposableIterator<Map<String, Object>> aggregateRows(String keySpace,
+            String columnFamily, Map<String, Object> properties) {
+        if (RowAggregator.hasTerms(properties)) {
+            return find(keySpace, columnFamily, properties, null);
+        }
+        return RowAggregator.properties(listAll(keySpace, columnFamily));
+    }
+
+    public Set<String> getIndexBackfillColumns() {
+        // index values are added as rows are written.
+        return ImmutableSet.of();
+    }
+
     public void setStorageClientListener(StorageClientListener storageClientListener) {
         // TODO Auto-generated method stub
         
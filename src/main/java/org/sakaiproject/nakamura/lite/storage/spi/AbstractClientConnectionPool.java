@@ -20,7 +20,6 @@ package org.sakaiproject.nakamura.lite.storage.spi;
 import com.google.common.collect.ImmutableSet;
 
 import org.apache.commons.pool.PoolableObjectFactory;
-import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
@@ -31,12 +30,17 @@ import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.lite.storage.spi.types.LongString;
 import org.sakaiproject.nakamura.lite.storage.spi.types.StringType;
+import org.sakaiproject.nakamura.lite.storage.spi.types.Types;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.util.Map;
 import java.util.Set;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 @Component(componentAbstract = true)
 public abstract class AbstractClientConnectionPool implements StorageClientPool {
 
@@ -47,6 +51,9 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
     private static final String MAX_ACTIVE = "max-active";
     @Property(longValue = 10)
     private static final String MAX_WAIT = "max-wait";
+    /**
+     * The maximum number of idle clients kept by the pool, &lt; 0 for no limit.
+     */
     @Property(intValue = 5)
     private static final String MAX_IDLE = "max-idle";
     @Property(boolValue = true)
@@ -63,11 +70,39 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
     private static final String TEST_WHILE_IDLE = "test-while-idle";
     @Property(value = "grow")
     private static final String WHEN_EHAUSTED = "when-exhausted-action";
+    /**
+     * Clients held for longer than this many ms are logged with the stack that borrowed
+     * them, 0 disables the check.
+     */
+    @Property(longValue = 0)
+    private static final String LEAK_THRESHOLD = "client-leak-threshold";
 
     private static final int DEFAULT_LONG_STRING_SIZE = 16*1024;
     @Property(intValue = DEFAULT_LONG_STRING_SIZE)
     private static final String LONG_STRING_SIZE = "long-string-size";
 
+    /**
+     * The format rows are written in, 2 is compact. Set to 1 while servers that
+     * can only read the original format share the store.
+     */
+    @Property(intValue = Types.ROW_FORMAT_V2)
+    private static final String ROW_FORMAT = "row-format";
+
+    private static final int DEFAULT_ASYNC_THREADS = 10;
+    /**
+     * The number of threads used to run asynchronous operations.
+     */
+    @Property(intValue = DEFAULT_ASYNC_THREADS)
+    private static final String ASYNC_THREADS = "async-threads";
+
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 1000;
+    /**
+     * The number of asynchronous operations that may wait for a thread, beyond which
+     * operations run on the calling thread.
+     */
+    @Property(intValue = DEFAULT_ASYNC_QUEUE_SIZE)
+    private static final String ASYNC_QUEUE_SIZE = "async-queue-size";
+
     public  static final String DEFAULT_FILE_STORE = "store";
     @Property(value = DEFAULT_FILE_STORE)
     public static final String FS_STORE_BASE_DIR = "store-base-dir";
@@ -80,6 +115,11 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
     @Property(value = DEFAULT_FILE_STORE)
     private static final String LONG_STRING_STORE_BASE = "long-string-base-dir";
 
+    /**
+     * The JMX name of the client pool metrics, followed by the simple name of the pool class.
+     */
+    private static final String OBJECT_NAME_PREFIX = "org.sakaiproject.nakamura.lite:type=StorageClientPool,name=";
+
 
     @Reference
     private Configuration configuration;
@@ -88,10 +128,14 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
 
 
 
-    private GenericObjectPool pool;
+    private StorageClientObjectPool pool;
 
     private Set<String> indexColumnsTypes;
 
+    private AsyncStorageClientAdapter asyncClient;
+
+    private ObjectName objectName;
+
 
     public AbstractClientConnectionPool() {
     }
@@ -105,14 +149,14 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
         indexColumns = ImmutableSet.copyOf(configuration.getIndexColumnNames());
         indexColumnsTypes = ImmutableSet.copyOf(configuration.getIndexColumnTypes());
         int maxActive = StorageClientUtils.getSetting(properties.get(MAX_ACTIVE), 200);
-        byte whenExhaustedAction = GenericObjectPool.DEFAULT_WHEN_EXHAUSTED_ACTION;
+        byte whenExhaustedAction = StorageClientObjectPool.WHEN_EXHAUSTED_BLOCK;
         String whenExhausted = (String) properties.get(WHEN_EHAUSTED);
         if ("fail".equals(whenExhausted)) {
-            whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_FAIL;
+            whenExhaustedAction = StorageClientObjectPool.WHEN_EXHAUSTED_FAIL;
         } else if ("grow".equals(whenExhausted)) {
-            whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_GROW;
+            whenExhaustedAction = StorageClientObjectPool.WHEN_EXHAUSTED_GROW;
         } else if ("block".equals(whenExhausted)) {
-            whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_BLOCK;
+            whenExhaustedAction = StorageClientObjectPool.WHEN_EXHAUSTED_BLOCK;
         }
         long maxWait = StorageClientUtils.getSetting(properties.get(MAX_WAIT), 10L);
         int maxIdle = StorageClientUtils.getSetting(properties.get(MAX_IDLE), 5);
@@ -124,13 +168,30 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
         long minEvictableIdleTimeMillis = StorageClientUtils.getSetting(
                 properties.get(MIN_EVICTABLE_IDLE_TIME_MILLIS), 10000L);
         boolean testWhileIdle = StorageClientUtils.getSetting(properties.get(TEST_WHILE_IDLE), false);
+        long leakThreshold = StorageClientUtils.getSetting(properties.get(LEAK_THRESHOLD), 0L);
 
-        pool = new GenericObjectPool(getConnectionPoolFactory(), maxActive, whenExhaustedAction,
-                maxWait, maxIdle, testOnBorrow, testOnReturn, timeBetweenEvictionRunsMillis,
-                numTestsPerEvictionRun, minEvictableIdleTimeMillis, testWhileIdle);
+        pool = new StorageClientObjectPool(getConnectionPoolFactory(), maxActive,
+                whenExhaustedAction, maxWait, maxIdle, testOnBorrow, testOnReturn,
+                timeBetweenEvictionRunsMillis, numTestsPerEvictionRun,
+                minEvictableIdleTimeMillis, testWhileIdle, leakThreshold);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME_PREFIX + getClass().getSimpleName());
+            if (!server.isRegistered(name)) {
+                server.registerMBean(pool, name);
+                objectName = name;
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Unable to register client pool metrics with JMX {} ", e.getMessage());
+        }
+        asyncClient = new AsyncStorageClientAdapter(this, StorageClientUtils.getSetting(
+                properties.get(ASYNC_THREADS), DEFAULT_ASYNC_THREADS),
+                StorageClientUtils.getSetting(properties.get(ASYNC_QUEUE_SIZE),
+                        DEFAULT_ASYNC_QUEUE_SIZE));
         
         // set the maximum size of a string, if this is not 0, strings over this size will become files.
         StringType.setLengthLimit(StorageClientUtils.getSetting(properties.get(LONG_STRING_SIZE),DEFAULT_LONG_STRING_SIZE));
+        Types.setRowFormat(StorageClientUtils.getSetting(properties.get(ROW_FORMAT), Types.ROW_FORMAT_V2));
         // location of the long string store.
         LongString
                 .setBase(StorageClientUtils.getSetting(properties.get(LONG_STRING_STORE_BASE),
@@ -144,15 +205,30 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
 
     @Deactivate
     public void deactivate(Map<String, Object> properties) {
+        if (asyncClient != null) {
+            asyncClient.shutdown();
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                LOGGER.debug(e.getMessage(), e);
+            }
+            objectName = null;
+        }
         try {
             pool.clear();
             pool.close();
-            LOGGER.debug("Sparse Map Content client pool closed ");
+            LOGGER.info("Sparse Map Content client pool closed {} ", pool);
         } catch (Exception e) {
             LOGGER.error("Failed to close pool ", e);
         }
     }
 
+    protected Configuration getConfiguration() {
+        return configuration;
+    }
+
     public Set<String> getIndexColumns() {
         return indexColumns;
     }
@@ -161,6 +237,14 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
         return indexColumnsTypes;
     }
 
+    /**
+     * @return the client pool, giving access to active and idle counts, creation and
+     *         destruction counts and the borrow wait histogram.
+     */
+    public StorageClientObjectPool getClientObjectPool() {
+        return pool;
+    }
+
 
     /*
      * (non-Javadoc)
@@ -179,6 +263,10 @@ public abstract class AbstractClientConnectionPool implements StorageClientPool
         }
     }
 
+    public AsyncStorageClient getAsyncClient() {
+        return asyncClient;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous access to the store, so that independent reads can be issued together
+ * and overlap their round trips to the store. Operations run on a bounded executor
+ * owned by the {@link StorageClientPool}, each with its own {@link StorageClient}.
+ * Failures are reported by {@link Future#get()} as an ExecutionException caused by the
+ * StorageClientException.
+ * 
+ * @since 1.5
+ */
+public interface AsyncStorageClient {
+
+    /**
+     * @see StorageClient#get(String, String, String)
+     */
+    Future<Map<String, Object>> getAsync(String keySpace, String columnFamily, String key);
+
+    /**
+     * @see StorageClient#insert(String, String, String, Map, boolean)
+     */
+    Future<Void> insertAsync(String keySpace, String columnFamily, String key,
+            Map<String, Object> values, boolean probablyNew);
+
+    /**
+     * Perform a find, reading all the results before the Future completes, so the
+     * properties should limit the number of results.
+     * @see StorageClient#find(String, String, Map, DirectCacheAccess)
+     */
+    Future<List<Map<String, Object>>> findAsync(String keySpace, String columnFamily,
+            Map<String, Object> properties, DirectCacheAccess cachingManager);
+
+    /**
+     * Run a task on the executor used by this client, to make other blocking operations
+     * against the store asynchronous.
+     * @param task
+     * @return the Future result of the task.
+     */
+    <T> Future<T> submit(Callable<T> task);
+
+    /**
+     * Run a task on the executor used by this client with a {@link StorageClient} borrowed
+     * from the pool for the task, so that several operations can be made with one client.
+     * @param task
+     * @return the Future result of the task.
+     */
+    <T> Future<T> submit(ClientTask<T> task);
+
+    /**
+     * A task that is given a client of its own to use, which it must not close.
+     */
+    public interface ClientTask<T> {
+        T call(StorageClient client) throws Exception;
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes the synchronous {@link StorageClient} of any driver asynchronous by running
+ * each operation on a bounded executor with a client borrowed from the pool. When all
+ * threads are busy and the queue is full, the operation runs on the calling thread.
+ * 
+ * @since 1.5
+ */
+public class AsyncStorageClientAdapter implements AsyncStorageClient {
+
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+    private StorageClientPool pool;
+    private ExecutorService executor;
+
+    public AsyncStorageClientAdapter(StorageClientPool pool, int threads, int queueSize) {
+        this.pool = pool;
+        final String prefix = "SparseAsync-" + POOL_NUMBER.incrementAndGet() + "-";
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(threads, threads, 60L,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                new ThreadFactory() {
+                    private AtomicInteger threadNumber = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, prefix + threadNumber.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        threadPool.allowCoreThreadTimeOut(true);
+        this.executor = threadPool;
+    }
+
+    public Future<Map<String, Object>> getAsync(final String keySpace,
+            final String columnFamily, final String key) {
+        return executor.submit(new Callable<Map<String, Object>>() {
+            public Map<String, Object> call() throws Exception {
+                StorageClient client = pool.getClient();
+                try {
+                    return client.get(keySpace, columnFamily, key);
+                } finally {
+                    client.close();
+                }
+            }
+        });
+    }
+
+    public Future<Void> insertAsync(final String keySpace, final String columnFamily,
+            final String key, final Map<String, Object> values, final boolean probablyNew) {
+        return executor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                StorageClient client = pool.getClient();
+                try {
+                    client.insert(keySpace, columnFamily, key, values, probablyNew);
+                    return null;
+                } finally {
+                    client.close();
+                }
+            }
+        });
+    }
+
+    public Future<List<Map<String, Object>>> findAsync(final String keySpace,
+            final String columnFamily, final Map<String, Object> properties,
+            final DirectCacheAccess cachingManager) {
+        return executor.submit(new Callable<List<Map<String, Object>>>() {
+            public List<Map<String, Object>> call() throws Exception {
+                StorageClient client = pool.getClient();
+                DisposableIterator<Map<String, Object>> results = null;
+                try {
+                    results = client.find(keySpace, columnFamily, properties, cachingManager);
+                    return Lists.newArrayList(results);
+                } finally {
+                    if (results != null) {
+                        results.close();
+                    }
+                    client.close();
+                }
+            }
+        });
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    public <T> Future<T> submit(final ClientTask<T> task) {
+        return executor.submit(new Callable<T>() {
+            public T call() throws Exception {
+                StorageClient client = pool.getClient();
+                try {
+                    return task.call(client);
+                } finally {
+                    client.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the executor, operations already submitted are completed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.lite.storage.spi.types.LazyRowMap;
+
+/**
+ * Estimates the number of bytes of heap used by a cached row. The estimate
+ * only needs to be good enough to size caches, it does not follow every
+ * reference.
+ */
+public class CacheHolderWeigher implements WeightedLRUMap.Weigher<String, CacheHolder> {
+
+    private static final int HOLDER_OVERHEAD = 96;
+    private static final int ENTRY_OVERHEAD = 48;
+    private static final int STRING_OVERHEAD = 40;
+    private static final int OBJECT_OVERHEAD = 24;
+
+    public int weigh(String key, CacheHolder value) {
+        long weight = HOLDER_OVERHEAD + stringWeight(key);
+        Map<String, Object> row = value == null ? null : value.get();
+        if (row instanceof LazyRowMap) {
+            // the serialized row plus the offset table, decoded values are not counted.
+            weight += ((LazyRowMap) row).getRowSize() + row.size() * 16;
+        } else if (row != null) {
+            for (Entry<String, Object> e : row.entrySet()) {
+                weight += ENTRY_OVERHEAD + stringWeight(e.getKey()) + valueWeight(e.getValue());
+            }
+        }
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    private long valueWeight(Object o) {
+        if (o instanceof String) {
+            return stringWeight((String) o);
+        } else if (o instanceof Object[]) {
+            long w = OBJECT_OVERHEAD;
+            for (Object v : (Object[]) o) {
+                w += 8 + valueWeight(v);
+            }
+            return w;
+        }
+        return OBJECT_OVERHEAD;
+    }
+
+    private long stringWeight(String s) {
+        return s == null ? 0 : STRING_OVERHEAD + 2 * s.length();
+    }
+}
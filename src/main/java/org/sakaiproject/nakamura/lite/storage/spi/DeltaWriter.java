@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import java.util.Map;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+
+/**
+ * Things that implement DeltaWriter can apply a set of changes to a row when
+ * the caller already holds a current copy of that row, avoiding the read of
+ * the row that would otherwise be needed to merge the changes.
+ */
+public interface DeltaWriter {
+
+    /**
+     * Insert or update a row in the store, applying the values to a copy of
+     * the row that the caller knows to be current.
+     * @param keySpace the keyspace to search
+     * @param columnFamily the group of columns we're considering
+     * @param key the key of the row
+     * @param values the Map of column values to associate with this key
+     * @param probablyNew whether or not the row is probably new
+     * @param currentRow the current content of the row, which will not be
+     *            modified. If null the row will be read from storage.
+     * @throws StorageClientException
+     */
+    void insert(String keySpace, String columnFamily, String key, Map<String, Object> values,
+            boolean probablyNew, Map<String, Object> currentRow) throws StorageClientException;
+
+}
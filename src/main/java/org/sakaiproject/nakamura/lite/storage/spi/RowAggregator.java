@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Aggregates rows in memory, for drivers that can't aggregate in the store. Each method
+ * consumes and closes the iterator of rows it is given.
+ */
+public class RowAggregator {
+
+    /**
+     * The prefix of internal fields, which unlike the other _ properties of a search are
+     * not settings.
+     */
+    private static final String INTERNAL_FIELD_PREFIX = "_:";
+
+    private RowAggregator() {
+    }
+
+    /**
+     * @return true if the search has terms, rather than only settings such as paging, in
+     *         which case all the rows of the column family are aggregated. Internal
+     *         fields, such as the ancestors of content, are terms.
+     */
+    public static boolean hasTerms(Map<String, Object> properties) {
+        if (properties != null) {
+            for (String k : properties.keySet()) {
+                if (!k.startsWith("_") || k.startsWith(INTERNAL_FIELD_PREFIX)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the row is present and not marked deleted, as a child is listed.
+     */
+    public static boolean exists(Map<String, Object> row) {
+        return row != null && row.size() > 0
+                && !StorageClient.TRUE.equals(row.get(StorageClient.DELETED_FIELD));
+    }
+
+    /**
+     * @return the number of rows that exist.
+     * @see #exists(Map)
+     */
+    public static long countExisting(DisposableIterator<Map<String, Object>> rows) {
+        try {
+            long count = 0;
+            while (rows.hasNext()) {
+                if (exists(rows.next())) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            rows.close();
+        }
+    }
+
+    /**
+     * @return the properties of each row.
+     */
+    public static DisposableIterator<Map<String, Object>> properties(
+            final DisposableIterator<SparseRow> rows) {
+        return new PreemptiveIterator<Map<String, Object>>() {
+
+            private Map<String, Object> nextValue;
+
+            @Override
+            protected boolean internalHasNext() {
+                if (rows.hasNext()) {
+                    nextValue = rows.next().getProperties();
+                    return true;
+                }
+                close();
+                return false;
+            }
+
+            @Override
+            protected Map<String, Object> internalNext() {
+                return nextValue;
+            }
+
+            @Override
+            public void close() {
+                rows.close();
+                super.close();
+            }
+        };
+    }
+
+    /**
+     * @return the number of rows.
+     */
+    public static long count(DisposableIterator<Map<String, Object>> rows) {
+        try {
+            long n = 0;
+            while (rows.hasNext()) {
+                if (rows.next() != null) {
+                    n++;
+                }
+            }
+            return n;
+        } finally {
+            rows.close();
+        }
+    }
+
+    /**
+     * Count the rows that have each value of a property. Each value of a multi valued
+     * property is counted.
+     * 
+     * @param limit
+     *            the maximum number of values to return.
+     * @return the values with the number of rows that have them, most frequent first.
+     */
+    public static Map<String, Long> countValues(DisposableIterator<Map<String, Object>> rows,
+            String property, int limit) {
+        Map<String, Long> counts = Maps.newHashMap();
+        try {
+            while (rows.hasNext()) {
+                Map<String, Object> row = rows.next();
+                Object v = row == null ? null : row.get(property);
+                if (v instanceof Object[]) {
+                    for (Object o : (Object[]) v) {
+                        increment(counts, o);
+                    }
+                } else {
+                    increment(counts, v);
+                }
+            }
+        } finally {
+            rows.close();
+        }
+        return top(counts, limit);
+    }
+
+    /**
+     * @return the smallest and the largest value of a property, both null if no row has
+     *         a value.
+     */
+    public static Object[] range(DisposableIterator<Map<String, Object>> rows, String property) {
+        Object[] range = new Object[2];
+        try {
+            while (rows.hasNext()) {
+                Map<String, Object> row = rows.next();
+                Object v = row == null ? null : row.get(property);
+                if (v instanceof Object[]) {
+                    for (Object o : (Object[]) v) {
+                        extend(range, o);
+                    }
+                } else {
+                    extend(range, v);
+                }
+            }
+        } finally {
+            rows.close();
+        }
+        return range;
+    }
+
+    /**
+     * @return the most frequent values, most frequent first.
+     */
+    public static Map<String, Long> top(Map<String, Long> counts, int limit) {
+        List<Entry<String, Long>> entries = Lists.newArrayList(counts.entrySet());
+        Collections.sort(entries, new Comparator<Entry<String, Long>>() {
+            public int compare(Entry<String, Long> o1, Entry<String, Long> o2) {
+                int c = o2.getValue().compareTo(o1.getValue());
+                return c != 0 ? c : o1.getKey().compareTo(o2.getKey());
+            }
+        });
+        Map<String, Long> top = Maps.newLinkedHashMap();
+        for (Iterator<Entry<String, Long>> i = entries.iterator(); i.hasNext()
+                && top.size() < limit;) {
+            Entry<String, Long> e = i.next();
+            top.put(e.getKey(), e.getValue());
+        }
+        return top;
+    }
+
+    private static void increment(Map<String, Long> counts, Object value) {
+        if (value != null) {
+            String k = value.toString();
+            Long n = counts.get(k);
+            counts.put(k, n == null ? 1L : n + 1L);
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static int compare(Object o1, Object o2) {
+        if (o1 instanceof Comparable && o1.getClass().equals(o2.getClass())) {
+            return ((Comparable) o1).compareTo(o2);
+        }
+        return o1.toString().compareTo(o2.toString());
+    }
+
+    private static void extend(Object[] range, Object value) {
+        if (value == null) {
+            return;
+        }
+        if (range[0] == null || compare(value, range[0]) < 0) {
+            range[0] = value;
+        }
+        if (range[1] == null || compare(value, range[1]) > 0) {
+            range[1] = value;
+        }
+    }
+}
@@ -19,7 +19,9 @@ package org.sakaiproject.nakamura.lite.storage.spi;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
 
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -57,6 +59,20 @@ public interface StorageClient {
     Map<String, Object> get(String keySpace, String columnFamily, String key)
             throws StorageClientException;
 
+    /**
+     * Lookup a number of objects by key, where the driver supports it in a
+     * single operation against the store.
+     * @param keySpace the keyspace to search
+     * @param columnFamily the group of columns we're considering
+     * @param keys the keys of the rows
+     * @return a map of key to the key value pairs in the row, in the order of
+     *         the keys supplied. Rows that don't exist are present as empty maps.
+     * @throws StorageClientException
+     * @since 1.5
+     */
+    Map<String, Map<String, Object>> getAll(String keySpace, String columnFamily, Collection<String> keys)
+            throws StorageClientException;
+
     /**
      * Insert or update a row in the store.
      * @param keySpace the keyspace to search
@@ -69,6 +85,46 @@ public interface StorageClient {
     void insert(String keySpace, String columnFamily, String key, Map<String, Object> values, boolean probablyNew)
             throws StorageClientException;
 
+    /**
+     * Insert or update a row in the store and keep the child count held on its parent, the
+     * row whose key is the parent path of the key. The parent row is locked and, if the write
+     * makes the row exist when it did not, or marks it deleted when it existed, the count
+     * property of the parent is adjusted by one in the same atomic operation. A parent with no
+     * count is left without one, see
+     * {@link #recountChildren(String, String, String, String)}.
+     * @param keySpace the keyspace to search
+     * @param columnFamily the group of columns we're considering
+     * @param key the key of the row, a path
+     * @param values the Map of column values to associate with this key
+     * @param probablyNew whether or not the row is probably new
+     * @param countProperty the property of the parent that holds the count
+     * @throws StorageClientException
+     * @since 1.5
+     */
+    void insertChild(String keySpace, String columnFamily, String key,
+            Map<String, Object> values, boolean probablyNew, String countProperty)
+            throws StorageClientException;
+
+    /**
+     * Count the children of a row that exist, the rows listed by
+     * {@link #listChildren(String, String, String, DirectCacheAccess)} that are not marked
+     * deleted, and hold the count in a property of the row. The row is locked while the
+     * children are counted, so the count is kept from then on by
+     * {@link #insertChild(String, String, String, Map, boolean, String)}. This sets the
+     * count of a row that has none and rebuilds the count of one that has. Drivers that
+     * can't lock a row hold no count and count the children on every call.
+     * @param keySpace the keyspace to search
+     * @param columnFamily the group of columns we're considering
+     * @param key the key of the row, a path
+     * @param countProperty the property of the row that holds the count
+     * @return the number of children, 0 if the row does not exist, in which case no count
+     *         is held
+     * @throws StorageClientException
+     * @since 1.5
+     */
+    long recountChildren(String keySpace, String columnFamily, String key, String countProperty)
+            throws StorageClientException;
+
     /**
      * Remove a row in the store.
      * @param keySpace the keyspace to search
@@ -131,6 +187,77 @@ public interface StorageClient {
     DisposableIterator<Map<String, Object>> find(String keySpace, String authorizableColumnFamily,
             Map<String, Object> properties, DirectCacheAccess cachingManager) throws StorageClientException;
 
+    /**
+     * Count the rows matched by a search, in the store where the driver supports it.
+     * 
+     * @param keySpace
+     *            the keyspace to search
+     * @param columnFamily
+     *            the id of the column family
+     * @param properties
+     *            column and values to search, as for find. If there are none, all the
+     *            rows of the column family are counted.
+     * @return the number of rows matched
+     * @throws StorageClientException
+     * @since 1.5
+     */
+    long count(String keySpace, String columnFamily, Map<String, Object> properties)
+            throws StorageClientException;
+
+    /**
+     * Count the rows matched by a search that have each value of a property, in the store
+     * where the driver supports it. Each value of a multi valued property is counted.
+     * 
+     * @param keySpace
+     *            the keyspace to search
+     * @param columnFamily
+     *            the id of the column family
+     * @param properties
+     *            column and values to search, as for find. If there are none, all the
+     *            rows of the column family are counted.
+     * @param property
+     *            the property whose values are counted
+     * @param limit
+     *            the maximum number of values to return
+     * @return the most frequent values with the number of rows that have them, most
+     *         frequent first
+     * @throws StorageClientException
+     * @since 1.5
+     */
+    Map<String, Long> countValues(String keySpace, String columnFamily,
+            Map<String, Object> properties, String property, int limit)
+            throws StorageClientException;
+
+    /**
+     * Find the smallest and largest value of a property in the rows matched by a search,
+     * in the store where the driver supports it.
+     * 
+     * @param keySpace
+     *            the keyspace to search
+     * @param columnFamily
+     *            the id of the column family
+     * @param properties
+     *            column and values to search, as for find. If there are none, all the
+     *            rows of the column family are used.
+     * @param property
+     *            a property that can be sorted on
+     * @return an array of the smallest and the largest value, both null if no row has a
+     *         value
+     * @throws StorageClientException
+     * @since 1.5
+     */
+    Object[] range(String keySpace, String columnFamily, Map<String, Object> properties,
+            String property) throws StorageClientException;
+
+    /**
+     * @return the index columns, as columnFamily:property, that are written but can't be
+     *         found yet because their backfill is not complete. Empty for drivers that
+     *         don't backfill index columns.
+     * @throws StorageClientException
+     * @since 1.5
+     */
+    Set<String> getIndexBackfillColumns() throws StorageClientException;
+
     /**
      * Close this client.
      */
@@ -0,0 +1,426 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import com.google.common.collect.MapMaker;
+
+import org.apache.commons.pool.ObjectPool;
+import org.apache.commons.pool.PoolableObjectFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A pool of storage clients where borrowing and returning an idle client does not take a
+ * lock. Idle clients are held in a lock free queue; when the pool is bounded, a fair
+ * semaphore limits the number of active clients so that waiting threads are served in
+ * order. The pool records how long borrowers waited, how many clients are active, idle,
+ * created and destroyed, and where clients held beyond a threshold were borrowed. The
+ * metrics are exposed over JMX by the {@link AbstractClientConnectionPool}.
+ */
+public class StorageClientObjectPool implements ObjectPool, StorageClientObjectPoolMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StorageClientObjectPool.class);
+
+    /**
+     * Upper bounds in ms of the borrow wait histogram buckets, the last bucket holds all
+     * longer waits.
+     */
+    public static final long[] WAIT_BUCKETS = new long[] { 1L, 10L, 100L, 1000L, 10000L };
+
+    public static final byte WHEN_EXHAUSTED_FAIL = 0;
+    public static final byte WHEN_EXHAUSTED_BLOCK = 1;
+    public static final byte WHEN_EXHAUSTED_GROW = 2;
+
+    private PoolableObjectFactory factory;
+    private final byte whenExhaustedAction;
+    private final long maxWait;
+    private final int maxIdle;
+    private final boolean testOnBorrow;
+    private final boolean testOnReturn;
+    private final long minEvictableIdleTimeMillis;
+    private final int numTestsPerEvictionRun;
+    private final boolean testWhileIdle;
+    private final long leakThreshold;
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<IdleClient> idle = new ConcurrentLinkedQueue<IdleClient>();
+    private final AtomicInteger numIdle = new AtomicInteger();
+    private final AtomicInteger numActive = new AtomicInteger();
+    private final ConcurrentMap<Object, Borrowed> borrowed = new MapMaker().weakKeys().makeMap();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLongArray waits = new AtomicLongArray(WAIT_BUCKETS.length + 1);
+    private final AtomicLong leaks = new AtomicLong();
+    private Timer evictor;
+    private volatile boolean closed;
+
+    private static class IdleClient {
+        private final Object client;
+        private final long since;
+
+        public IdleClient(Object client) {
+            this.client = client;
+            this.since = System.currentTimeMillis();
+        }
+    }
+
+    private static class Borrowed {
+        private final long at;
+        private final Exception trace;
+        private boolean reported;
+
+        public Borrowed(boolean trace) {
+            this.at = System.currentTimeMillis();
+            this.trace = trace ? new Exception("Client borrowed by "
+                    + Thread.currentThread().getName()) : null;
+        }
+    }
+
+    /**
+     * @param factory creates, validates and destroys the clients.
+     * @param maxActive the maximum number of active clients, unless the pool grows when
+     *            exhausted.
+     * @param whenExhaustedAction what to do when maxActive clients are active.
+     * @param maxWait the longest time in ms to wait for a client when blocking, &lt;= 0 to
+     *            wait indefinitely.
+     * @param maxIdle the maximum number of idle clients kept, &lt; 0 for no limit.
+     * @param testOnBorrow
+     * @param testOnReturn
+     * @param timeBetweenEvictionRunsMillis how often idle clients are evicted and held
+     *            clients checked, &lt;= 0 to disable.
+     * @param numTestsPerEvictionRun the maximum number of idle clients examined per run.
+     * @param minEvictableIdleTimeMillis idle clients older than this are destroyed.
+     * @param testWhileIdle validate idle clients during eviction.
+     * @param leakThreshold warn about clients held for longer than this many ms, 0 to
+     *            disable.
+     */
+    public StorageClientObjectPool(PoolableObjectFactory factory, int maxActive,
+            byte whenExhaustedAction, long maxWait, int maxIdle, boolean testOnBorrow,
+            boolean testOnReturn, long timeBetweenEvictionRunsMillis,
+            int numTestsPerEvictionRun, long minEvictableIdleTimeMillis,
+            boolean testWhileIdle, long leakThreshold) {
+        this.factory = factory;
+        this.whenExhaustedAction = whenExhaustedAction;
+        this.maxWait = maxWait;
+        this.maxIdle = maxIdle;
+        this.testOnBorrow = testOnBorrow;
+        this.testOnReturn = testOnReturn;
+        this.numTestsPerEvictionRun = numTestsPerEvictionRun;
+        this.minEvictableIdleTimeMillis = minEvictableIdleTimeMillis;
+        this.testWhileIdle = testWhileIdle;
+        this.leakThreshold = leakThreshold;
+        if (whenExhaustedAction == WHEN_EXHAUSTED_GROW || maxActive <= 0) {
+            permits = null;
+        } else {
+            permits = new Semaphore(maxActive, true);
+        }
+        if (timeBetweenEvictionRunsMillis > 0) {
+            evictor = new Timer("StorageClientPoolEvictor", true);
+            evictor.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    evict();
+                }
+            }, timeBetweenEvictionRunsMillis, timeBetweenEvictionRunsMillis);
+        }
+    }
+
+    public Object borrowObject() throws Exception {
+        if (closed) {
+            throw new IllegalStateException("Pool has been closed");
+        }
+        long start = System.currentTimeMillis();
+        acquire();
+        recordWait(System.currentTimeMillis() - start);
+        try {
+            Object client = null;
+            while (client == null) {
+                IdleClient idleClient = idle.poll();
+                boolean newClient = idleClient == null;
+                if (newClient) {
+                    client = factory.makeObject();
+                    created.incrementAndGet();
+                } else {
+                    numIdle.decrementAndGet();
+                    client = idleClient.client;
+                }
+                try {
+                    factory.activateObject(client);
+                    if (testOnBorrow && !factory.validateObject(client)) {
+                        throw new Exception("Validation failed");
+                    }
+                } catch (Exception e) {
+                    destroy(client);
+                    client = null;
+                    if (newClient) {
+                        throw new NoSuchElementException("Could not create a validated client: "
+                                + e.getMessage());
+                    }
+                }
+            }
+            borrowed.put(client, new Borrowed(leakThreshold > 0));
+            numActive.incrementAndGet();
+            long b = borrows.incrementAndGet();
+            if ((b % 10000) == 0) {
+                LOGGER.info("Client Pool Stats {} ", this);
+            }
+            return client;
+        } catch (Exception e) {
+            release();
+            throw e;
+        }
+    }
+
+    public void returnObject(Object client) throws Exception {
+        if (!checkIn(client)) {
+            return;
+        }
+        boolean keep = !closed;
+        if (keep && testOnReturn && !factory.validateObject(client)) {
+            keep = false;
+        }
+        if (keep) {
+            try {
+                factory.passivateObject(client);
+            } catch (Exception e) {
+                LOGGER.debug("Failed to passivate client {} ", e.getMessage());
+                keep = false;
+            }
+        }
+        if (keep && (numIdle.incrementAndGet() <= maxIdle || maxIdle < 0)) {
+            idle.offer(new IdleClient(client));
+        } else {
+            if (keep) {
+                numIdle.decrementAndGet();
+            }
+            destroy(client);
+        }
+        release();
+    }
+
+    public void invalidateObject(Object client) throws Exception {
+        if (checkIn(client)) {
+            destroy(client);
+            release();
+        }
+    }
+
+    public void addObject() throws Exception {
+        Object client = factory.makeObject();
+        created.incrementAndGet();
+        factory.passivateObject(client);
+        numIdle.incrementAndGet();
+        idle.offer(new IdleClient(client));
+    }
+
+    public int getNumIdle() {
+        return numIdle.get();
+    }
+
+    public int getNumActive() {
+        return numActive.get();
+    }
+
+    public void clear() {
+        IdleClient idleClient = idle.poll();
+        while (idleClient != null) {
+            numIdle.decrementAndGet();
+            destroy(idleClient.client);
+            idleClient = idle.poll();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        if (evictor != null) {
+            evictor.cancel();
+            evictor = null;
+        }
+        clear();
+    }
+
+    public void setFactory(PoolableObjectFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @return the number of clients created since the pool started.
+     */
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * @return the number of clients destroyed since the pool started.
+     */
+    public long getDestroyedCount() {
+        return destroyed.get();
+    }
+
+    /**
+     * @return the number of times a client has been borrowed.
+     */
+    public long getBorrowCount() {
+        return borrows.get();
+    }
+
+    /**
+     * @return the number of clients that have been held for longer than the leak
+     *         threshold.
+     */
+    public long getLeakCount() {
+        return leaks.get();
+    }
+
+    /**
+     * @return the number of borrows by wait time, bucketed by {@link #WAIT_BUCKETS}.
+     */
+    public long[] getWaitHistogram() {
+        long[] histogram = new long[waits.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = waits.get(i);
+        }
+        return histogram;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("active ").append(getNumActive()).append(" idle ").append(getNumIdle())
+                .append(" created ").append(getCreatedCount()).append(" destroyed ")
+                .append(getDestroyedCount()).append(" borrows ").append(getBorrowCount())
+                .append(" leaks ").append(getLeakCount()).append(" waits");
+        long[] histogram = getWaitHistogram();
+        for (int i = 0; i < histogram.length; i++) {
+            sb.append(i < WAIT_BUCKETS.length ? " <" + WAIT_BUCKETS[i] + "ms:" : " more:")
+                    .append(histogram[i]);
+        }
+        return sb.toString();
+    }
+
+    private void acquire() throws InterruptedException {
+        if (permits == null) {
+            return;
+        }
+        if (whenExhaustedAction == WHEN_EXHAUSTED_FAIL) {
+            if (!permits.tryAcquire()) {
+                throw new NoSuchElementException("Pool exhausted");
+            }
+        } else if (maxWait <= 0) {
+            permits.acquire();
+        } else if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+            throw new NoSuchElementException("Timeout waiting for idle client");
+        }
+    }
+
+    private void release() {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return true if the client was borrowed from this pool and has not been returned.
+     */
+    private boolean checkIn(Object client) {
+        if (borrowed.remove(client) == null) {
+            LOGGER.debug("Client {} was not borrowed from this pool or already returned ",
+                    client);
+            return false;
+        }
+        numActive.decrementAndGet();
+        return true;
+    }
+
+    private void recordWait(long t) {
+        int i = 0;
+        while (i < WAIT_BUCKETS.length && t >= WAIT_BUCKETS[i]) {
+            i++;
+        }
+        waits.incrementAndGet(i);
+    }
+
+    private void destroy(Object client) {
+        destroyed.incrementAndGet();
+        try {
+            factory.destroyObject(client);
+        } catch (Exception e) {
+            LOGGER.debug("Failed to destroy client {} ", e.getMessage());
+        }
+    }
+
+    /**
+     * Destroy idle clients that are too old or no longer valid and report clients held
+     * for too long.
+     */
+    void evict() {
+        long now = System.currentTimeMillis();
+        int tests = Math.min(numTestsPerEvictionRun, numIdle.get());
+        for (int i = 0; i < tests; i++) {
+            IdleClient idleClient = idle.poll();
+            if (idleClient == null) {
+                break;
+            }
+            numIdle.decrementAndGet();
+            boolean keep = !closed;
+            if (keep && minEvictableIdleTimeMillis > 0
+                    && now - idleClient.since > minEvictableIdleTimeMillis) {
+                keep = false;
+            }
+            if (keep && testWhileIdle) {
+                try {
+                    factory.activateObject(idleClient.client);
+                    keep = factory.validateObject(idleClient.client);
+                    factory.passivateObject(idleClient.client);
+                } catch (Exception e) {
+                    keep = false;
+                }
+            }
+            if (keep) {
+                numIdle.incrementAndGet();
+                idle.offer(idleClient);
+            } else {
+                destroy(idleClient.client);
+            }
+        }
+        if (leakThreshold > 0) {
+            for (Map.Entry<Object, Borrowed> e : borrowed.entrySet()) {
+                Borrowed b = e.getValue();
+                if (!b.reported && now - b.at > leakThreshold) {
+                    b.reported = true;
+                    leaks.incrementAndGet();
+                    LOGGER.warn("Storage client " + e.getKey() + " held for more than "
+                            + leakThreshold + " ms, borrowed at ", b.trace);
+                }
+            }
+        }
+    }
+
+}
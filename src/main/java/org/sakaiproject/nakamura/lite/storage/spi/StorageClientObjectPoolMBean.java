@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+/**
+ * Metrics of the storage client pool, exposed over JMX.
+ */
+public interface StorageClientObjectPoolMBean {
+
+    /**
+     * @return the number of clients currently borrowed.
+     */
+    int getNumActive();
+
+    /**
+     * @return the number of idle clients held by the pool.
+     */
+    int getNumIdle();
+
+    /**
+     * @return the number of clients created since the pool started.
+     */
+    long getCreatedCount();
+
+    /**
+     * @return the number of clients destroyed since the pool started.
+     */
+    long getDestroyedCount();
+
+    /**
+     * @return the number of times a client has been borrowed.
+     */
+    long getBorrowCount();
+
+    /**
+     * @return the number of clients that have been held for longer than the leak
+     *         threshold.
+     */
+    long getLeakCount();
+
+    /**
+     * @return the number of borrows by wait time, bucketed by
+     *         {@link StorageClientObjectPool#WAIT_BUCKETS}.
+     */
+    long[] getWaitHistogram();
+}
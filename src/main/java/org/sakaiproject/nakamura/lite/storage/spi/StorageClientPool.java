@@ -38,4 +38,10 @@ public interface StorageClientPool {
      */
     StorageCacheManager getStorageCacheManager();
 
+    /**
+     * @return an asynchronous client that runs operations on the executor of this pool.
+     * @since 1.5
+     */
+    AsyncStorageClient getAsyncClient();
+
 }
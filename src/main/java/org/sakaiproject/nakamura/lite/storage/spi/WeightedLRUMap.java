@@ -0,0 +1,327 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A concurrent LRU map bounded by the total weight of its entries rather than
+ * the number of entries. The map is split into segments, each with its own
+ * lock and an equal share of the weight. Each segment is a segmented LRU, new
+ * entries are placed in a probationary area and only move to the protected
+ * area when they are read again, so a scan of rows that are only used once
+ * (eg the results of a find) does not displace rows in regular use. Eviction
+ * removes the least recently used probationary entries first, and is O(1) per
+ * entry evicted.
+ * 
+ * The views returned by keySet, values and entrySet are copies.
+ * 
+ * @param <K>
+ * @param <V>
+ */
+public class WeightedLRUMap<K, V> implements Map<K, V> {
+
+    /**
+     * Estimates the weight of an entry, normally in bytes.
+     */
+    public interface Weigher<K, V> {
+        int weigh(K key, V value);
+    }
+
+    private static final int SEGMENTS = 16;
+
+    /**
+     * Percentage of the weight of a segment that may be used by protected
+     * entries.
+     */
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final List<Segment> segments;
+    private final Weigher<K, V> weigher;
+    private final long maxWeight;
+
+    public WeightedLRUMap(long maxWeight, Weigher<K, V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        List<Segment> s = Lists.newArrayListWithCapacity(SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            s.add(new Segment(Math.max(1, maxWeight / SEGMENTS)));
+        }
+        this.segments = s;
+    }
+
+    private static final class Node<V> {
+        private final V value;
+        private final int weight;
+
+        private Node(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final class Segment {
+        private final LinkedHashMap<K, Node<V>> probation = new LinkedHashMap<K, Node<V>>(16,
+                0.75f, true);
+        private final LinkedHashMap<K, Node<V>> protectedEntries = new LinkedHashMap<K, Node<V>>(
+                16, 0.75f, true);
+        private final long segmentMaxWeight;
+        private final long maxProtectedWeight;
+        private long probationWeight;
+        private long protectedWeight;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        private Segment(long segmentMaxWeight) {
+            this.segmentMaxWeight = segmentMaxWeight;
+            this.maxProtectedWeight = (segmentMaxWeight * PROTECTED_PERCENT) / 100;
+        }
+
+        private synchronized V get(Object key) {
+            Node<V> n = protectedEntries.get(key);
+            if (n != null) {
+                hits++;
+                return n.value;
+            }
+            n = probation.remove(key);
+            if (n == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            // second use, promote.
+            probationWeight -= n.weight;
+            @SuppressWarnings("unchecked")
+            K k = (K) key;
+            protectedEntries.put(k, n);
+            protectedWeight += n.weight;
+            while (protectedWeight > maxProtectedWeight && protectedEntries.size() > 1) {
+                // demote the least recently used protected entry back to probation.
+                Iterator<Entry<K, Node<V>>> i = protectedEntries.entrySet().iterator();
+                Entry<K, Node<V>> eldest = i.next();
+                i.remove();
+                protectedWeight -= eldest.getValue().weight;
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationWeight += eldest.getValue().weight;
+            }
+            return n.value;
+        }
+
+        private synchronized boolean containsKey(Object key) {
+            return protectedEntries.containsKey(key) || probation.containsKey(key);
+        }
+
+        private synchronized V put(K key, V value, int weight) {
+            Node<V> old = removeNode(key);
+            if (weight <= segmentMaxWeight) {
+                probation.put(key, new Node<V>(value, weight));
+                probationWeight += weight;
+                evict();
+            }
+            return old == null ? null : old.value;
+        }
+
+        private void evict() {
+            while (probationWeight + protectedWeight > segmentMaxWeight) {
+                LinkedHashMap<K, Node<V>> from = probation.size() > 0 ? probation
+                        : protectedEntries;
+                Iterator<Node<V>> i = from.values().iterator();
+                Node<V> eldest = i.next();
+                i.remove();
+                if (from == probation) {
+                    probationWeight -= eldest.weight;
+                } else {
+                    protectedWeight -= eldest.weight;
+                }
+                evictions++;
+            }
+        }
+
+        private synchronized V remove(Object key) {
+            Node<V> n = removeNode(key);
+            return n == null ? null : n.value;
+        }
+
+        private Node<V> removeNode(Object key) {
+            Node<V> n = probation.remove(key);
+            if (n != null) {
+                probationWeight -= n.weight;
+                return n;
+            }
+            n = protectedEntries.remove(key);
+            if (n != null) {
+                protectedWeight -= n.weight;
+            }
+            return n;
+        }
+
+        private synchronized int size() {
+            return probation.size() + protectedEntries.size();
+        }
+
+        private synchronized long weight() {
+            return probationWeight + protectedWeight;
+        }
+
+        private synchronized void clear() {
+            probation.clear();
+            protectedEntries.clear();
+            probationWeight = 0;
+            protectedWeight = 0;
+        }
+
+        private synchronized void copyTo(Map<K, V> m) {
+            for (Entry<K, Node<V>> e : probation.entrySet()) {
+                m.put(e.getKey(), e.getValue().value);
+            }
+            for (Entry<K, Node<V>> e : protectedEntries.entrySet()) {
+                m.put(e.getKey(), e.getValue().value);
+            }
+        }
+    }
+
+    private Segment segmentFor(Object key) {
+        int h = key.hashCode();
+        // spread the bits so that keys differing only in high bits are split.
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments.get(h & (SEGMENTS - 1));
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            size += s.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(Object key) {
+        return segmentFor(key).containsKey(key);
+    }
+
+    public boolean containsValue(Object value) {
+        return values().contains(value);
+    }
+
+    public V get(Object key) {
+        return segmentFor(key).get(key);
+    }
+
+    public V put(K key, V value) {
+        return segmentFor(key).put(key, value, weigher.weigh(key, value));
+    }
+
+    public V remove(Object key) {
+        return segmentFor(key).remove(key);
+    }
+
+    public void putAll(Map<? extends K, ? extends V> t) {
+        for (Entry<? extends K, ? extends V> e : t.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    public void clear() {
+        for (Segment s : segments) {
+            s.clear();
+        }
+    }
+
+    private Map<K, V> copy() {
+        Map<K, V> m = Maps.newHashMap();
+        for (Segment s : segments) {
+            s.copyTo(m);
+        }
+        return m;
+    }
+
+    public Set<K> keySet() {
+        return copy().keySet();
+    }
+
+    public Collection<V> values() {
+        return Lists.newArrayList(copy().values());
+    }
+
+    public Set<Entry<K, V>> entrySet() {
+        return copy().entrySet();
+    }
+
+    /**
+     * @return the current total weight of the entries in the map.
+     */
+    public long getWeight() {
+        long w = 0;
+        for (Segment s : segments) {
+            w += s.weight();
+        }
+        return w;
+    }
+
+    /**
+     * @return the maximum total weight of the map.
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public long getHitCount() {
+        long n = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                n += s.hits;
+            }
+        }
+        return n;
+    }
+
+    public long getMissCount() {
+        long n = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                n += s.misses;
+            }
+        }
+        return n;
+    }
+
+    public long getEvictionCount() {
+        long n = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                n += s.evictions;
+            }
+        }
+        return n;
+    }
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi.types;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMap.Builder;
+
+/**
+ * The version 2 row format. A row is written as
+ * <pre>
+ * byte   0xFF marker, never the first byte of a version 1 row
+ * byte   format version, 3
+ * int    hash code of the row key
+ * string column family
+ * varint number of properties
+ * for each property
+ *   varint index+1 into the name dictionary, or 0 followed by a string
+ *   varint type id
+ *   value, a string, a varint count of strings for string arrays, or a
+ *   varint byte length followed by Type.save for all other types.
+ * </pre>
+ * Strings are written as a varint byte length followed by UTF-8 bytes, so are
+ * not limited to 64K as they are with writeUTF. Every value can be skipped
+ * without decoding it, which allows {@link LazyRowMap} to index a row and only
+ * decode the properties that are used.
+ * <p>
+ * Rows written with format version 2 had no byte length before the values of
+ * types other than strings and string arrays. They are still read, but can't
+ * be indexed so are decoded in full.
+ */
+final class CompactRowFormat {
+
+    static final int MARKER = 0xFF;
+    static final int VERSION = 3;
+    /**
+     * Values of types other than strings and string arrays are not preceded by
+     * their length.
+     */
+    private static final int VERSION_UNSIZED_VALUES = 2;
+
+    /**
+     * Property names that are common enough to be written as an index. The
+     * index of a name is stored in rows, so names may be appended to this list
+     * but never removed or reordered.
+     */
+    private static final String[] NAME_DICTIONARY = new String[] {
+        "_id", "_path", "_:cid", "_:parenthash", "_:link", "_blockId",
+        "_previousVersion", "_previousBlockId", "_nextVersion", "_readOnly",
+        "_blocksize", "_length", "_nblocks", "_bodyLastModified",
+        "_bodyLastModifiedBy", "_bodyCreated", "_bodyCreatedBy", "_created",
+        "_createdBy", "_lastModified", "_lastModifiedBy", "_copiedFrom",
+        "_copiedFromId", "_copiedDeep", "_mimeType", "_encoding",
+        "_versionHistoryId", "_versionNumber", "_versionSavedBy", "_deleted",
+        "_bodyLocation", "_cblockId", "_numblocks", "_aclKey", "_aclPath",
+        "_aclType", "_secretKey", "sling:resourceType", "resourceType",
+        "id", "name", "type", "members", "principals", "pwd", "lastModified",
+        "lastModifiedBy", "created", "createdBy"
+    };
+
+    private static final Map<String, Integer> NAME_INDEX = getNameIndex();
+
+    private static final int STRING_TYPE_ID = new StringType().getTypeId();
+    private static final int STRING_ARRAY_TYPE_ID = new StringArrayType().getTypeId();
+
+    private CompactRowFormat() {
+    }
+
+    private static Map<String, Integer> getNameIndex() {
+        Builder<String, Integer> b = ImmutableMap.builder();
+        for (int i = 0; i < NAME_DICTIONARY.length; i++) {
+            b.put(NAME_DICTIONARY[i], i + 1);
+        }
+        return b.build();
+    }
+
+    static void write(String key, Map<String, Object> m, String columnFamily,
+            DataOutputStream dos) throws IOException {
+        dos.writeByte(MARKER);
+        dos.writeByte(VERSION);
+        dos.writeInt(key.hashCode());
+        writeString(dos, columnFamily);
+        int size = 0;
+        for (Entry<String, ?> e : m.entrySet()) {
+            Object o = e.getValue();
+            if (o != null && !(o instanceof RemoveProperty)) {
+                size++;
+            }
+        }
+        writeVarInt(dos, size);
+        for (Entry<String, ?> e : m.entrySet()) {
+            Object o = e.getValue();
+            if (o != null && !(o instanceof RemoveProperty)) {
+                writeName(dos, e.getKey());
+                Type<?> t = Types.getTypeOfObject(o);
+                writeVarInt(dos, t.getTypeId());
+                writeValue(dos, t, o);
+            }
+        }
+    }
+
+    /**
+     * Read a row, the marker byte has already been consumed.
+     */
+    static void read(String key, Map<String, Object> output, DataInputStream dis,
+            String columnFamily) throws IOException {
+        int version = dis.readUnsignedByte();
+        if (version != VERSION && version != VERSION_UNSIZED_VALUES) {
+            throw new IOException("Unknown row format version " + version + ", unable to read");
+        }
+        if (dis.readInt() != key.hashCode()) {
+            throw new IOException("Body Key does not match row key, unable to read");
+        }
+        String cftype = readString(dis);
+        if (!cftype.equals(columnFamily)) {
+            throw new IOException(
+                    "Object is not of expected column family, unable to read expected ["
+                            + columnFamily + "] was [" + cftype + "]");
+        }
+        int size = readVarInt(dis);
+        for (int i = 0; i < size; i++) {
+            String k = readName(dis);
+            output.put(k, readValue(dis, readVarInt(dis), version == VERSION));
+        }
+    }
+
+    static void writeValue(DataOutputStream dos, Type<?> t, Object o) throws IOException {
+        if (t.getTypeId() == STRING_TYPE_ID) {
+            writeString(dos, (String) o);
+        } else if (t.getTypeId() == STRING_ARRAY_TYPE_ID) {
+            String[] values = (String[]) o;
+            writeVarInt(dos, values.length);
+            for (String s : values) {
+                writeString(dos, s);
+            }
+        } else {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream vdos = new DataOutputStream(baos);
+            t.save(vdos, o);
+            vdos.flush();
+            writeVarInt(dos, baos.size());
+            baos.writeTo(dos);
+        }
+    }
+
+    static Object readValue(DataInputStream dis, int typeId, boolean sized) throws IOException {
+        if (typeId == STRING_TYPE_ID) {
+            return readString(dis);
+        } else if (typeId == STRING_ARRAY_TYPE_ID) {
+            String[] values = new String[readVarInt(dis)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readString(dis);
+            }
+            return values;
+        }
+        if (sized) {
+            readVarInt(dis);
+        }
+        return Types.lookupTypeById(typeId).load(dis);
+    }
+
+    static void skipValue(DataInputStream dis, int typeId) throws IOException {
+        if (typeId == STRING_ARRAY_TYPE_ID) {
+            int n = readVarInt(dis);
+            for (int i = 0; i < n; i++) {
+                skipFully(dis, readVarInt(dis));
+            }
+        } else {
+            // strings and all other types are a length followed by the bytes.
+            skipFully(dis, readVarInt(dis));
+        }
+    }
+
+    private static void skipFully(DataInputStream dis, int n) throws IOException {
+        if (dis.skipBytes(n) != n) {
+            throw new IOException("Row is truncated, unable to read");
+        }
+    }
+
+    /**
+     * @return true if the values of the row can be skipped, so it can be indexed.
+     */
+    static boolean canIndex(byte[] row) {
+        return row.length > 1 && (row[0] & 0xFF) == MARKER && (row[1] & 0xFF) == VERSION;
+    }
+
+    /**
+     * Index a row without decoding any of the values.
+     */
+    static LazyRowMap index(String key, byte[] row, String columnFamily) throws IOException {
+        ByteArrayInputStream bais = new ByteArrayInputStream(row);
+        DataInputStream dis = new DataInputStream(bais);
+        if (dis.readUnsignedByte() != MARKER) {
+            throw new IOException("Row is not in the compact format, unable to index");
+        }
+        int version = dis.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unknown row format version " + version + ", unable to read");
+        }
+        if (dis.readInt() != key.hashCode()) {
+            throw new IOException("Body Key does not match row key, unable to read");
+        }
+        String cftype = readString(dis);
+        if (!cftype.equals(columnFamily)) {
+            throw new IOException(
+                    "Object is not of expected column family, unable to read expected ["
+                            + columnFamily + "] was [" + cftype + "]");
+        }
+        int size = readVarInt(dis);
+        String[] names = new String[size];
+        int[] typeIds = new int[size];
+        int[] offsets = new int[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = readName(dis);
+            typeIds[i] = readVarInt(dis);
+            offsets[i] = row.length - bais.available();
+            skipValue(dis, typeIds[i]);
+        }
+        return new LazyRowMap(row, names, typeIds, offsets);
+    }
+
+    static Object readValue(byte[] row, int offset, int typeId) throws IOException {
+        return readValue(new DataInputStream(new ByteArrayInputStream(row, offset, row.length
+                - offset)), typeId, true);
+    }
+
+    static void writeName(DataOutput dos, String name) throws IOException {
+        Integer index = NAME_INDEX.get(name);
+        if (index != null) {
+            writeVarInt(dos, index);
+        } else {
+            writeVarInt(dos, 0);
+            writeString(dos, name);
+        }
+    }
+
+    static String readName(DataInput dis) throws IOException {
+        int index = readVarInt(dis);
+        if (index == 0) {
+            return readString(dis);
+        }
+        if (index > NAME_DICTIONARY.length) {
+            throw new IOException("Property name index " + index
+                    + " is not in the dictionary, unable to read");
+        }
+        return NAME_DICTIONARY[index - 1];
+    }
+
+    static void writeString(DataOutput dos, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        writeVarInt(dos, b.length);
+        dos.write(b);
+    }
+
+    static String readString(DataInput dis) throws IOException {
+        byte[] b = new byte[readVarInt(dis)];
+        dis.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    static void writeVarInt(DataOutput dos, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            dos.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        dos.writeByte(v);
+    }
+
+    static int readVarInt(DataInput dis) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = dis.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint in row");
+    }
+
+}
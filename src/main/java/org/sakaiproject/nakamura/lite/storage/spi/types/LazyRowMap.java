@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi.types;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An immutable Map over a row stored in the compact format. The serialized
+ * row is kept along with the offset of each property and a property is only
+ * decoded the first time it is accessed, after which the decoded value is
+ * kept. Iterating over the keys does not decode any values. Instances are safe
+ * to share between threads, and so may be held in a
+ * {@link org.sakaiproject.nakamura.api.lite.CacheHolder}.
+ */
+public final class LazyRowMap extends AbstractMap<String, Object> {
+
+    private final byte[] row;
+    private final String[] names;
+    private final int[] typeIds;
+    private final int[] offsets;
+    private final AtomicReferenceArray<Object> values;
+    private Set<Entry<String, Object>> entrySet;
+
+    LazyRowMap(byte[] row, final String[] names, int[] typeIds, int[] offsets) {
+        // properties are kept in name order so they can be found by a binary search.
+        Integer[] order = new Integer[names.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                return names[o1].compareTo(names[o2]);
+            }
+        });
+        this.row = row;
+        this.names = new String[names.length];
+        this.typeIds = new int[names.length];
+        this.offsets = new int[names.length];
+        for (int i = 0; i < order.length; i++) {
+            this.names[i] = names[order[i]];
+            this.typeIds[i] = typeIds[order[i]];
+            this.offsets[i] = offsets[order[i]];
+        }
+        this.values = new AtomicReferenceArray<Object>(names.length);
+    }
+
+    private int indexOf(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(names, (String) key);
+        return i < 0 ? -1 : i;
+    }
+
+    private Object getValue(int i) {
+        Object v = values.get(i);
+        if (v == null) {
+            try {
+                v = CompactRowFormat.readValue(row, offsets[i], typeIds[i]);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read property " + names[i]
+                        + " from row " + e.getMessage(), e);
+            }
+            // another thread may have decoded the same value, either may be used.
+            values.compareAndSet(i, null, v);
+        }
+        return v;
+    }
+
+    @Override
+    public int size() {
+        return names.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        return getValue(i);
+    }
+
+    /**
+     * @return the number of bytes of the serialized row held by this map.
+     */
+    public int getRowSize() {
+        return row.length;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<String, Object>>() {
+
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new Iterator<Entry<String, Object>>() {
+                        private int i = 0;
+
+                        public boolean hasNext() {
+                            return i < names.length;
+                        }
+
+                        public Entry<String, Object> next() {
+                            if (i >= names.length) {
+                                throw new NoSuchElementException();
+                            }
+                            return new LazyEntry(i++);
+                        }
+
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return names.length;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    private final class LazyEntry implements Entry<String, Object> {
+
+        private final int i;
+
+        LazyEntry(int i) {
+            this.i = i;
+        }
+
+        public String getKey() {
+            return names[i];
+        }
+
+        public Object getValue() {
+            return LazyRowMap.this.getValue(i);
+        }
+
+        public Object setValue(Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            Object v = getValue();
+            return names[i].equals(e.getKey())
+                    && (v == null ? e.getValue() == null : v.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object v = getValue();
+            return names[i].hashCode() ^ (v == null ? 0 : v.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return names[i] + "=" + getValue();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.sakaiproject.nakamura.lite.storage.spi.types;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import org.sakaiproject.nakamura.api.lite.RemoveProperty;
@@ -15,12 +16,23 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
 public class Types {
 
+    /**
+     * The original row format, keys and strings written with writeUTF.
+     */
+    public static final int ROW_FORMAT_V1 = 1;
+    /**
+     * The compact row format, see {@link CompactRowFormat}.
+     */
+    public static final int ROW_FORMAT_V2 = 2;
+
+    private static int rowFormat = ROW_FORMAT_V2;
     
     private static final Type<?>[] ALLTYPES = new Type<?>[]{
         new StringType(),
@@ -115,7 +127,21 @@ public class Types {
      */
     public static void loadFromStream(String key, Map<String, Object> output, InputStream binaryStream, String type)
             throws IOException {
-        DataInputStream dis = new DataInputStream(binaryStream);
+        // a v1 row starts with the length of the key, which can never start with
+        // the v2 marker.
+        PushbackInputStream pis = new PushbackInputStream(binaryStream, 1);
+        DataInputStream dis = new DataInputStream(pis);
+        int first = pis.read();
+        if (first == CompactRowFormat.MARKER) {
+            CompactRowFormat.read(key, output, dis, type);
+            LOGGER.debug("Finished Reading");
+            dis.close();
+            binaryStream.close();
+            return;
+        }
+        if (first >= 0) {
+            pis.unread(first);
+        }
         String ckey = dis.readUTF();
         if (!key.equals(ckey)) {
             throw new IOException("Body Key does not match row key, unable to read");
@@ -137,6 +163,28 @@ public class Types {
         binaryStream.close();
     }
 
+    /**
+     * Load a row from its stored bytes. Rows in the current version of the
+     * compact format are indexed and returned as an immutable {@link LazyRowMap}
+     * that decodes properties as they are accessed, other rows are decoded into
+     * a new HashMap.
+     * 
+     * @param key
+     * @param row
+     * @param type
+     * @return the row
+     * @throws IOException
+     */
+    public static Map<String, Object> loadRow(String key, byte[] row, String type)
+            throws IOException {
+        if (CompactRowFormat.canIndex(row)) {
+            return CompactRowFormat.index(key, row, type);
+        }
+        Map<String, Object> output = Maps.newHashMap();
+        loadFromStream(key, output, new ByteArrayInputStream(row), type);
+        return output;
+    }
+
     public static void readMapFromStream(Map<String, Object> output, DataInputStream dis) throws IOException {
         int size = dis.readInt();
         LOGGER.debug("Reading {} items", size);
@@ -165,18 +213,85 @@ public class Types {
     // the data isnt there. See the last writeUTF for an example.
     public static InputStream storeMapToStream(String key, Map<String, Object> m, String type)
             throws IOException {
+        return new ByteArrayInputStream(toRowBytes(key, m, type, rowFormat));
+    }
+
+    /**
+     * Save a map in the row format requested.
+     * 
+     * @param key
+     * @param m
+     * @param type
+     * @param format
+     *            {@link #ROW_FORMAT_V1} or {@link #ROW_FORMAT_V2}
+     * @return the row as bytes.
+     * @throws IOException
+     */
+    public static byte[] toRowBytes(String key, Map<String, Object> m, String type, int format)
+            throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(baos);
-        dos.writeUTF(key);
-        writeMapToStream(m, dos);
-        // add the type in
-        dos.writeUTF(type);
+        if (format == ROW_FORMAT_V2) {
+            CompactRowFormat.write(key, m, type, dos);
+        } else {
+            dos.writeUTF(key);
+            writeMapToStream(m, dos);
+            // add the type in
+            dos.writeUTF(type);
+        }
         dos.flush();
         baos.flush();
         byte[] b = baos.toByteArray();
         baos.close();
         dos.close();
-        return new ByteArrayInputStream(b);
+        return b;
+    }
+
+    /**
+     * @param row
+     *            the bytes of a stored row.
+     * @return the format the row was written in.
+     */
+    public static int getRowFormat(byte[] row) {
+        if (row != null && row.length > 0 && (row[0] & 0xFF) == CompactRowFormat.MARKER) {
+            return ROW_FORMAT_V2;
+        }
+        return ROW_FORMAT_V1;
+    }
+
+    /**
+     * @param row
+     *            the bytes of a stored row.
+     * @param format
+     * @return true if the row was written in the format as this version of the
+     *         code writes it, false if the row should be rewritten.
+     */
+    public static boolean isRowFormat(byte[] row, int format) {
+        if (format == ROW_FORMAT_V2) {
+            return CompactRowFormat.canIndex(row);
+        }
+        return getRowFormat(row) == format;
+    }
+
+    /**
+     * @return the format new rows are written in.
+     */
+    public static int getRowFormat() {
+        return rowFormat;
+    }
+
+    /**
+     * Set the format new rows are written in. Rows are read in either format,
+     * however, older versions of this code can only read {@link #ROW_FORMAT_V1}
+     * so that should be used until all servers sharing a store are upgraded.
+     * 
+     * @param format
+     */
+    public static void setRowFormat(int format) {
+        if (format != ROW_FORMAT_V1 && format != ROW_FORMAT_V2) {
+            throw new IllegalArgumentException("Unknown row format " + format);
+        }
+        rowFormat = format;
     }
     
     
@@ -213,7 +328,7 @@ public class Types {
 
     }    
     
-    private static Type<?> lookupTypeById(int typeId) {
+    static Type<?> lookupTypeById(int typeId) {
         Type<?> t = (Type<?>) typeByIdMap.get(typeId);
         if ( t == null ) {
             LOGGER.warn("Unknown Type ID {} found ",typeId);
@@ -223,7 +338,7 @@ public class Types {
     }
 
 
-    private static Type<?> getTypeOfObject(Object object) {
+    static Type<?> getTypeOfObject(Object object) {
         if ( object == null) {
             return (Type<?>) NULL_TYPE;
         }
@@ -24,6 +24,12 @@ remove-string-column = delete from css where rid = ? and cid = ?
 remove-string-column.n.au = delete from au_css where rid = ? and cid = ?
 remove-string-column.n.ac = delete from ac_css where rid = ? and cid = ?
 remove-string-column.n.cn = delete from cn_css where rid = ? and cid = ?
+
+# Value statistics of a key/value index column used to plan finds, the parameter is the property; rows with a value and distinct values ; values with their row counts, most frequent first
+stats-string-column = select count(*), count(distinct v) from css where cid = ? ; select v, count(*) from css where cid = ? group by v order by 2 desc
+stats-string-column.n.au = select count(*), count(distinct v) from au_css where cid = ? ; select v, count(*) from au_css where cid = ? group by v order by 2 desc
+stats-string-column.n.ac = select count(*), count(distinct v) from ac_css where cid = ? ; select v, count(*) from ac_css where cid = ? group by v order by 2 desc
+stats-string-column.n.cn = select count(*), count(distinct v) from cn_css where cid = ? ; select v, count(*) from cn_css where cid = ? group by v order by 2 desc
 check-schema = select count(*) from css
 
 # 0: select
@@ -42,28 +48,42 @@ select-index-columns = select cid from index_cols
 
 
 block-select-row = select b from css_b where rid = ?
+# Read a row and lock it until the transaction ends, used by maintenance that rewrites rows.
+block-lock-row = select b from css_b where rid = ? for update
+block-select-rows = select rid, b from css_b where rid in ({0})
 block-delete-row = delete from css_b where rid = ?
 block-insert-row = insert into css_b (rid,b) values (?, ?)
 block-update-row = update css_b set b = ? where rid = ?
 list-all = select rid, b from css_b
+# Rows after a row id in row id order, used to backfill new index columns in batches.
+list-all-after = select rid, b from css_b where rid > ? order by rid
 
 block-select-row.n.au = select b from au_css_b where rid = ?
+block-lock-row.n.au = select b from au_css_b where rid = ? for update
+block-select-rows.n.au = select rid, b from au_css_b where rid in ({0})
 block-delete-row.n.au = delete from au_css_b where rid = ?
 block-insert-row.n.au = insert into au_css_b (rid,b) values (?, ?)
 block-update-row.n.au = update au_css_b set b = ? where rid = ?
 list-all.n.au = select rid, b from au_css_b
+list-all-after.n.au = select rid, b from au_css_b where rid > ? order by rid
 
 block-select-row.n.ac = select b from ac_css_b where rid = ?
+block-lock-row.n.ac = select b from ac_css_b where rid = ? for update
+block-select-rows.n.ac = select rid, b from ac_css_b where rid in ({0})
 block-delete-row.n.ac = delete from ac_css_b where rid = ?
 block-insert-row.n.ac = insert into ac_css_b (rid,b) values (?, ?)
 block-update-row.n.ac = update ac_css_b set b = ? where rid = ?
 list-all.n.ac = select rid, b from ac_css_b
+list-all-after.n.ac = select rid, b from ac_css_b where rid > ? order by rid
 
 block-select-row.n.cn = select b from cn_css_b where rid = ?
+block-lock-row.n.cn = select b from cn_css_b where rid = ? for update
+block-select-rows.n.cn = select rid, b from cn_css_b where rid in ({0})
 block-delete-row.n.cn = delete from cn_css_b where rid = ?
 block-insert-row.n.cn = insert into cn_css_b (rid,b) values (?, ?)
 block-update-row.n.cn = update cn_css_b set b = ? where rid = ?
 list-all.n.cn = select rid, b from cn_css_b
+list-all-after.n.cn = select rid, b from cn_css_b where rid > ? order by rid
 
 # 0: base statement
 # 1: table join
@@ -75,8 +95,20 @@ block-find.n.au = select distinct a.rid from au_css a {0} where {1} 1 = 1;, au_c
 block-find.n.ac = select distinct a.rid from ac_css a {0} where {1} 1 = 1;, ac_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 block-find.n.cn = select distinct a.rid from cn_css a {0} where {1} 1 = 1;, cn_css {0} ; {0}.cid = ? and {0}.v = ? and {0}.rid = a.rid ; {0}.cid = ? and {0}.rid = a.rid ; order by {0}.v {1}
 
+# Seek past the last row of the previous page when a find is continued; where clause for sorted queries, {0} is the sort table, {1} the comparison ; where clause for unsorted queries, {0} is the comparison ; sort element for rows with equal sort values, {0} is the order ; order by clause for unsorted queries, {0} is the order
+block-seek = ( {0}.v {1} ? or ( {0}.v = ? and a.rid {1} ? ) ) ; a.rid {0} ? ; a.rid {0} ; order by a.rid {0}
+
+# Count the values of a key/value index column, the parameter is the property; for all rows ; for the rows matched by a find, {0} is the table join and {1} the where clause of block-find
+block-aggregate = select g.v, count(*) from css g where g.cid = ? group by g.v order by 2 desc ; select g.v, count(*) from css g where g.cid = ? and g.rid in ( select a.rid from css a {0} where {1} 1 = 1 ) group by g.v order by 2 desc
+block-aggregate.n.au = select g.v, count(*) from au_css g where g.cid = ? group by g.v order by 2 desc ; select g.v, count(*) from au_css g where g.cid = ? and g.rid in ( select a.rid from au_css a {0} where {1} 1 = 1 ) group by g.v order by 2 desc
+block-aggregate.n.ac = select g.v, count(*) from ac_css g where g.cid = ? group by g.v order by 2 desc ; select g.v, count(*) from ac_css g where g.cid = ? and g.rid in ( select a.rid from ac_css a {0} where {1} 1 = 1 ) group by g.v order by 2 desc
+block-aggregate.n.cn = select g.v, count(*) from cn_css g where g.cid = ? group by g.v order by 2 desc ; select g.v, count(*) from cn_css g where g.cid = ? and g.rid in ( select a.rid from cn_css a {0} where {1} 1 = 1 ) group by g.v order by 2 desc
+
 use-batch-inserts = 0
 
+# 1 if index values are compared case sensitively, so terms of a find that match most rows can be checked against the loaded rows rather than in SQL.
+case-sensitive-compare = 0
+
 # Queries that take longer than these times to execute will be logged with warn and error respectively.
 # Logging is performed against org.sakaiproject.nakamura.lite.storage.spi.jdbc.JDBCStorageClient.SlowQueryLogger
 slow-query-time = 50
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CachingManagerImplTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingManagerImplTest.class);
+
+    @Mock
+    private StorageClient client;
+
+    private static class TestCachingManager extends CachingManagerImpl {
+
+        public TestCachingManager(StorageClient client, Map<String, CacheHolder> sharedCache) {
+            super(client, sharedCache);
+        }
+
+        public Map<String, Object> get(String key) throws StorageClientException {
+            return getCached("ks", "cf", key);
+        }
+
+        public void put(String key, Map<String, Object> properties) throws StorageClientException {
+            putCached("ks", "cf", key, properties, false);
+        }
+
+        @Override
+        protected Logger getLogger() {
+            return LOGGER;
+        }
+    }
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Map<String, Object> row = ImmutableMap.of("a", (Object) "b");
+        when(client.get("ks", "cf", "key")).thenAnswer(new Answer<Map<String, Object>>() {
+            public Map<String, Object> answer(InvocationOnMock invocation) throws Throwable {
+                loading.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return row;
+            }
+        });
+        Map<String, CacheHolder> sharedCache = Maps.newConcurrentMap();
+        final TestCachingManager first = new TestCachingManager(client, sharedCache);
+        final TestCachingManager second = new TestCachingManager(client, sharedCache);
+        final Object[] results = new Object[2];
+        Thread t1 = new Thread() {
+            public void run() {
+                try {
+                    results[0] = first.get("key");
+                } catch (StorageClientException e) {
+                    LOGGER.error(e.getMessage(), e);
+                }
+            }
+        };
+        Thread t2 = new Thread() {
+            public void run() {
+                try {
+                    results[1] = second.get("key");
+                } catch (StorageClientException e) {
+                    LOGGER.error(e.getMessage(), e);
+                }
+            }
+        };
+        long coalesced = CachingManagerImpl.getTotalCoalescedLoads();
+        t1.start();
+        Assert.assertTrue(loading.await(10, TimeUnit.SECONDS));
+        t2.start();
+        // give the second thread time to find the load in progress.
+        Thread.sleep(200);
+        release.countDown();
+        t1.join(10000);
+        t2.join(10000);
+        Assert.assertSame(row, results[0]);
+        Assert.assertSame(row, results[1]);
+        Assert.assertEquals(coalesced + 1, CachingManagerImpl.getTotalCoalescedLoads());
+        verify(client, times(1)).get("ks", "cf", "key");
+    }
+
+    @Test
+    public void testWriteDuringLoadIsNotCached() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Map<String, Object> oldRow = ImmutableMap.of("a", (Object) "b");
+        when(client.get("ks", "cf", "key")).thenAnswer(new Answer<Map<String, Object>>() {
+            public Map<String, Object> answer(InvocationOnMock invocation) throws Throwable {
+                loading.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return oldRow;
+            }
+        });
+        Map<String, CacheHolder> sharedCache = Maps.newConcurrentMap();
+        final TestCachingManager reader = new TestCachingManager(client, sharedCache);
+        TestCachingManager writer = new TestCachingManager(client, sharedCache);
+        final Object[] results = new Object[1];
+        Thread t1 = new Thread() {
+            public void run() {
+                try {
+                    results[0] = reader.get("key");
+                } catch (StorageClientException e) {
+                    LOGGER.error(e.getMessage(), e);
+                }
+            }
+        };
+        t1.start();
+        Assert.assertTrue(loading.await(10, TimeUnit.SECONDS));
+        // the write completes while the old row is being read.
+        writer.put("key", ImmutableMap.of("a", (Object) "c"));
+        release.countDown();
+        t1.join(10000);
+        Assert.assertSame(oldRow, results[0]);
+        Assert.assertNull(sharedCache.get("ks:cf:key"));
+    }
+}
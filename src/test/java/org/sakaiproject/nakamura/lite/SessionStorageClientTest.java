@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.storage.spi.DeltaWriter;
+import org.sakaiproject.nakamura.lite.storage.spi.DirectCacheAccess;
+import org.sakaiproject.nakamura.lite.storage.spi.Disposer;
+import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
+import org.sakaiproject.nakamura.lite.storage.spi.RowHasher;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClientPool;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class SessionStorageClientTest {
+
+    private StorageClientPool clientPool;
+    private StorageClient client;
+    private SessionStorageClient sessionClient;
+
+    @Before
+    public void before() throws StorageClientException {
+        clientPool = mock(StorageClientPool.class);
+        client = mock(StorageClient.class);
+        when(clientPool.getClient()).thenReturn(client);
+        sessionClient = new SessionStorageClient(clientPool);
+    }
+
+    @Test
+    public void testBorrowedOnFirstUse() throws Exception {
+        Assert.assertFalse(sessionClient.isBound());
+        verify(clientPool, never()).getClient();
+        when(client.get("n", "cn", "key")).thenReturn(ImmutableMap.of("a", (Object) "b"));
+        Assert.assertEquals("b", sessionClient.get("n", "cn", "key").get("a"));
+        // given back as soon as the operation completes.
+        Assert.assertFalse(sessionClient.isBound());
+        verify(client, times(1)).close();
+        sessionClient.get("n", "cn", "key");
+        verify(clientPool, times(2)).getClient();
+        sessionClient.close();
+        verify(client, times(2)).close();
+    }
+
+    @Test
+    public void testHeldWhileIteratorOpen() throws Exception {
+        when(client.find("n", "cn", null, null)).thenReturn(
+                iterator(ImmutableList.of((Map<String, Object>) ImmutableMap.of("a", (Object) "b"))));
+        DisposableIterator<Map<String, Object>> found = sessionClient.find("n", "cn", null,
+                (DirectCacheAccess) null);
+        Assert.assertTrue(sessionClient.isBound());
+        // other operations share the client.
+        sessionClient.get("n", "cn", "key");
+        verify(clientPool, times(1)).getClient();
+        Assert.assertTrue(found.hasNext());
+        found.next();
+        Assert.assertTrue(sessionClient.isBound());
+        // given back once the iterator has been read.
+        Assert.assertFalse(found.hasNext());
+        Assert.assertFalse(sessionClient.isBound());
+        found.close();
+        verify(client, times(1)).close();
+    }
+
+    @Test
+    public void testHeldWhileStreamOpen() throws Exception {
+        when(client.streamBodyOut("n", "cn", "id", "block", "stream", null)).thenReturn(
+                new ByteArrayInputStream(new byte[] { 1 }));
+        InputStream in = sessionClient.streamBodyOut("n", "cn", "id", "block", "stream", null);
+        Assert.assertEquals(1, in.read());
+        Assert.assertTrue(sessionClient.isBound());
+        in.close();
+        Assert.assertFalse(sessionClient.isBound());
+        in.close();
+        verify(client, times(1)).close();
+    }
+
+    @Test
+    public void testPinned() throws Exception {
+        Assert.assertSame(client, sessionClient.pin());
+        sessionClient.get("n", "cn", "key");
+        Assert.assertTrue(sessionClient.isBound());
+        verify(client, never()).close();
+        sessionClient.close();
+        Assert.assertFalse(sessionClient.isBound());
+        verify(client, times(1)).close();
+        try {
+            sessionClient.get("n", "cn", "key");
+            Assert.fail();
+        } catch (StorageClientException e) {
+            // closed.
+        }
+    }
+
+    @Test
+    public void testRowHashAndDeltaWrite() throws Exception {
+        StorageClient hashingClient = mock(StorageClient.class, withSettings().extraInterfaces(
+                RowHasher.class, DeltaWriter.class));
+        when(clientPool.getClient()).thenReturn(hashingClient);
+        when(((RowHasher) hashingClient).rowHash("n", "cn", "key")).thenReturn("rid");
+        Assert.assertEquals("rid", sessionClient.rowHash("n", "cn", "key"));
+        Map<String, Object> values = ImmutableMap.of("a", (Object) "c");
+        Map<String, Object> current = ImmutableMap.of("a", (Object) "b");
+        sessionClient.insert("n", "cn", "key", values, false, current);
+        verify((DeltaWriter) hashingClient).insert("n", "cn", "key", values, false, current);
+        Assert.assertFalse(sessionClient.isBound());
+    }
+
+    @Test
+    public void testRowHashAndDeltaWriteFallBack() throws Exception {
+        Assert.assertEquals("n:cn:key", sessionClient.rowHash("n", "cn", "key"));
+        Map<String, Object> values = ImmutableMap.of("a", (Object) "c");
+        sessionClient.insert("n", "cn", "key", values, false, ImmutableMap.of("a", (Object) "b"));
+        verify(client).insert("n", "cn", "key", values, false);
+    }
+
+    private <T> DisposableIterator<T> iterator(final Iterable<T> values) {
+        final Iterator<T> iterator = values.iterator();
+        return new DisposableIterator<T>() {
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public T next() {
+                return iterator.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public void close() {
+            }
+
+            public void setDisposer(Disposer disposer) {
+            }
+        };
+    }
+}
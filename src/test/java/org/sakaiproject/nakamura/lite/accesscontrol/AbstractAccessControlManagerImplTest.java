@@ -28,6 +28,7 @@ import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Configuration;
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -63,6 +64,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -632,4 +634,85 @@ public abstract class AbstractAccessControlManagerImplTest {
                 "wrapper", Permissions.CAN_READ));
     }
 
+    @Test
+    public void testCheckAll() throws Exception {
+        Repository repository = (Repository) new BaseMemoryRepository().getRepository();
+        Session adminSession = repository.loginAdministrative();
+        AuthorizableManager adminAuthorizableManager = adminSession.getAuthorizableManager();
+        ContentManager adminContentManager = adminSession.getContentManager();
+        AccessControlManager adminAccessControlManager = adminSession.getAccessControlManager();
+        Assert.assertTrue(adminAuthorizableManager.createUser("bob", "bob", "secret",
+                ImmutableMap.of("firstName", (Object) "Bob")));
+        adminContentManager.update(new Content("a:parent", null));
+        List<String> children = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            String child = "a:parent/c" + i;
+            adminContentManager.update(new Content(child, null));
+            children.add(child);
+        }
+        adminAccessControlManager.setAcl(Security.ZONE_CONTENT, "a:parent/c2",
+                new AclModification[] { new AclModification(AclModification.denyKey("bob"),
+                        Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+        adminSession.logout();
+
+        Session bobSession = repository.loginAdministrative("bob");
+        Set<String> readable = bobSession.getAccessControlManager().checkAll(
+                Security.ZONE_CONTENT, children, Permissions.CAN_READ);
+        Assert.assertEquals(Lists.newArrayList("a:parent/c0", "a:parent/c1", "a:parent/c3",
+                "a:parent/c4"), Lists.newArrayList(readable));
+        Assert.assertTrue(bobSession.getAccessControlManager()
+                .checkAll(Security.ZONE_CONTENT, children, Permissions.CAN_WRITE).isEmpty());
+
+        Set<String> listed = Sets.newHashSet(bobSession.getContentManager().listChildPaths(
+                "a:parent"));
+        Assert.assertEquals(readable, listed);
+        int n = 0;
+        for (Iterator<Content> i = bobSession.getContentManager().listChildren("a:parent"); i
+                .hasNext();) {
+            Assert.assertTrue(readable.contains(i.next().getPath()));
+            n++;
+        }
+        Assert.assertEquals(4, n);
+        bobSession.logout();
+    }
+
+    @Test
+    public void testCompiledPermissionsShared() throws StorageClientException,
+            AccessDeniedException {
+        AuthenticatorImpl authenticator = new AuthenticatorImpl(client, configuration);
+        User currentUser = authenticator.authenticate("admin", "admin");
+        Map<String, CacheHolder> sharedCache = Maps.newConcurrentMap();
+        String u1 = "user1-" + System.currentTimeMillis();
+        String basepath = "sharedpath" + System.currentTimeMillis();
+        AccessControlManagerImpl first = new AccessControlManagerImpl(client, currentUser,
+                configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(currentUser,
+                null, client, configuration, first, null, new LoggingStorageListener());
+        authorizableManager.createUser(u1, "User 1", "test",
+                ImmutableMap.of("test", (Object) "test"));
+        Authorizable user1 = authorizableManager.findAuthorizable(u1);
+        first.setAcl(Security.ZONE_CONTENT, basepath, new AclModification[] { new AclModification(
+                AclModification.grantKey(u1), Permissions.CAN_WRITE.getPermission(),
+                Operation.OP_REPLACE) });
+        Assert.assertTrue(first.can(user1, Security.ZONE_CONTENT, basepath,
+                Permissions.CAN_WRITE));
+        // the ACL has a secret key but no proxy principals, so its permissions are shared.
+        CompiledPermissionCache compiled = CompiledPermissionCache.forAclCache(sharedCache);
+        int shared = compiled.size();
+        Assert.assertTrue(shared > 0);
+
+        first.setAcl(Security.ZONE_CONTENT, basepath, new AclModification[] { new AclModification(
+                AclModification.grantKey(AccessControlManager.DYNAMIC_PRINCIPAL_STEM + "token"),
+                Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+        Assert.assertEquals(shared - 1, compiled.size());
+        AccessControlManagerImpl second = new AccessControlManagerImpl(client, currentUser,
+                configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+        Assert.assertTrue(second.can(user1, Security.ZONE_CONTENT, basepath,
+                Permissions.CAN_WRITE));
+        // permissions that depend on proxy principals are not shared.
+        Assert.assertEquals(shared - 1, compiled.size());
+    }
+
 }
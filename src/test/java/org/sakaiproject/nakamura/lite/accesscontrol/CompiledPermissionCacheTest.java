@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.accesscontrol;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompiledPermissionCacheTest {
+
+    @Test
+    public void testInvalidateSubtree() {
+        CompiledPermissionCache cache = new CompiledPermissionCache(100);
+        long generation = cache.getGeneration();
+        cache.put("CO;a", "p1", new int[] { 1, 0 }, generation);
+        cache.put("CO;a/b", "p1", new int[] { 1, 0 }, generation);
+        cache.put("CO;a/b/c", "p2", new int[] { 3, 0 }, generation);
+        cache.put("CO;ab", "p1", new int[] { 1, 0 }, generation);
+        cache.put("AU;a/b", "p1", new int[] { 1, 0 }, generation);
+        Assert.assertArrayEquals(new int[] { 3, 0 }, cache.get("CO;a/b/c", "p2"));
+        Assert.assertNull(cache.get("CO;a/b/c", "p1"));
+
+        cache.invalidate("CO;a/b");
+        Assert.assertNotNull(cache.get("CO;a", "p1"));
+        Assert.assertNull(cache.get("CO;a/b", "p1"));
+        Assert.assertNull(cache.get("CO;a/b/c", "p2"));
+        Assert.assertNotNull(cache.get("CO;ab", "p1"));
+        Assert.assertNotNull(cache.get("AU;a/b", "p1"));
+    }
+
+    @Test
+    public void testStaleCompileNotCached() {
+        CompiledPermissionCache cache = new CompiledPermissionCache(100);
+        long generation = cache.getGeneration();
+        cache.invalidate("CO;x");
+        cache.put("CO;a", "p1", new int[] { 1, 0 }, generation);
+        Assert.assertNull(cache.get("CO;a", "p1"));
+    }
+
+    @Test
+    public void testBounded() {
+        CompiledPermissionCache cache = new CompiledPermissionCache(100);
+        cache.put("CO;hot", "p1", new int[] { 1, 0 }, cache.getGeneration());
+        for (int i = 0; i < 1000; i++) {
+            cache.put("CO;" + i, "p1", new int[] { 1, 0 }, cache.getGeneration());
+            cache.get("CO;hot", "p1");
+        }
+        Assert.assertTrue(cache.size() <= 100);
+        Assert.assertNotNull(cache.get("CO;hot", "p1"));
+    }
+}
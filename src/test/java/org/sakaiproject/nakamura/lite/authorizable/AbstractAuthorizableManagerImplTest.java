@@ -56,6 +56,8 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public abstract class AbstractAuthorizableManagerImplTest {
 
@@ -113,6 +115,39 @@ public abstract class AbstractAuthorizableManagerImplTest {
         Assert.assertEquals(currentUser, authorizableManager.getUser());
     }
 
+    @Test
+    public void testFindAuthorizableAsync() throws Exception {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManagerImpl = new AccessControlManagerImpl(client,
+                currentUser, configuration, sharedCache, new LoggingStorageListener(),
+                principalValidatorResolver);
+
+        AuthorizableManagerImpl authorizableManager = new AuthorizableManagerImpl(currentUser,
+                null, client, configuration, accessControlManagerImpl, sharedCache,
+                new LoggingStorageListener());
+        authorizableManager.setAsyncClient(clientPool.getAsyncClient());
+
+        Future<Authorizable> admin = authorizableManager.findAuthorizableAsync(User.ADMIN_USER);
+        Future<Authorizable> anon = authorizableManager.findAuthorizableAsync(User.ANON_USER);
+        Future<Authorizable> everyone = authorizableManager.findAuthorizableAsync(Group.EVERYONE);
+        Future<Authorizable> missing = authorizableManager.findAuthorizableAsync("missinguser");
+        Assert.assertEquals(User.ADMIN_USER, admin.get().getId());
+        Assert.assertEquals(User.ANON_USER, anon.get().getId());
+        Assert.assertFalse(admin.get() instanceof Group);
+        Assert.assertSame(Group.EVERYONE_GROUP, everyone.get());
+        Assert.assertNull(missing.get());
+
+        authorizableManager.close();
+        try {
+            authorizableManager.findAuthorizableAsync(User.ADMIN_USER).get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StorageClientException);
+        }
+    }
+
     @Test
     public void testAuthorizableManagerAccessDenied() throws StorageClientException,
             AccessDeniedException {
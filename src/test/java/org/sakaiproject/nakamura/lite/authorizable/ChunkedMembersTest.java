@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.authorizable;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+public class ChunkedMembersTest {
+
+    private Map<String, Map<String, Object>> rows = Maps.newHashMap();
+    private int writes;
+
+    private ChunkedMembers chunkedMembers = new ChunkedMembers() {
+        @Override
+        protected Map<String, Object> getChunk(String chunkId) {
+            return rows.get(chunkId);
+        }
+
+        @Override
+        protected void putChunk(String chunkId, Map<String, Object> chunk) {
+            writes++;
+            rows.put(chunkId, chunk);
+        }
+
+        @Override
+        protected void removeChunk(String chunkId) {
+            rows.remove(chunkId);
+        }
+    };
+
+    private Group loadGroup(int chunks) throws StorageClientException, AccessDeniedException {
+        return new GroupInternal(ImmutableMap.of(Authorizable.ID_FIELD, (Object) "large",
+                Authorizable.MEMBER_CHUNKS_FIELD, chunks), null, false, chunkedMembers);
+    }
+
+    @Test
+    public void testConvertAndUpdate() throws StorageClientException, AccessDeniedException {
+        Group group = new GroupInternal(ImmutableMap.of(Authorizable.ID_FIELD, (Object) "large"),
+                null, false, chunkedMembers);
+        for (int i = 0; i < ChunkedMembers.CHUNK_THRESHOLD; i++) {
+            group.addMember("user" + i);
+        }
+        Assert.assertEquals(0, chunkedMembers.update(group, 0));
+        group.addMember("user" + ChunkedMembers.CHUNK_THRESHOLD);
+        int chunks = chunkedMembers.update(group, 0);
+        Assert.assertEquals(4, chunks);
+        Assert.assertEquals(4, rows.size());
+
+        group = loadGroup(chunks);
+        Assert.assertTrue(group.isMembersChunked());
+        Assert.assertTrue(group.hasMember("user10"));
+        Assert.assertFalse(group.hasMember("nobody"));
+        Assert.assertEquals(100, group.getMembers(0, 100).length);
+        Assert.assertEquals(6, group.getMembers(995, 100).length);
+
+        // adding and removing one member rewrites the chunks of those members only.
+        writes = 0;
+        group.addMember("newuser");
+        group.removeMember("user10");
+        Assert.assertEquals(chunks, chunkedMembers.update(group, chunks));
+        Assert.assertTrue(writes <= 2);
+
+        group = loadGroup(chunks);
+        Assert.assertTrue(group.hasMember("newuser"));
+        Assert.assertFalse(group.hasMember("user10"));
+        Assert.assertEquals(ChunkedMembers.CHUNK_THRESHOLD + 1, group.getMembers().length);
+    }
+
+    @Test
+    public void testChunksDouble() throws StorageClientException, AccessDeniedException {
+        Group group = loadGroup(1);
+        for (int i = 0; i <= ChunkedMembers.MAX_CHUNK_SIZE; i++) {
+            group.addMember("user" + i);
+        }
+        int chunks = chunkedMembers.update(group, 1);
+        Assert.assertTrue(chunks > 1);
+        group = loadGroup(chunks);
+        Assert.assertEquals(ChunkedMembers.MAX_CHUNK_SIZE + 1, group.getMembers().length);
+        chunkedMembers.remove("large", chunks);
+        Assert.assertEquals(0, rows.size());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.authorizable;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GroupClosureCacheTest {
+
+    private GroupClosureCache.Closure closure(String... ids) {
+        List<String> l = Arrays.asList(ids);
+        return new GroupClosureCache.Closure(l, l);
+    }
+
+    @Test
+    public void testInvalidateDependents() {
+        GroupClosureCache cache = new GroupClosureCache(100);
+        long generation = cache.getGeneration();
+        // section -> course -> faculty
+        cache.put("faculty", closure("faculty"), generation);
+        cache.put("course", closure("course", "faculty"), generation);
+        cache.put("section", closure("section", "course", "faculty"), generation);
+        cache.put("other", closure("other"), generation);
+        Assert.assertEquals(4, cache.size());
+
+        // course was added to another group.
+        cache.invalidate("course");
+        Assert.assertNotNull(cache.get("faculty"));
+        Assert.assertNull(cache.get("course"));
+        Assert.assertNull(cache.get("section"));
+        Assert.assertNotNull(cache.get("other"));
+    }
+
+    @Test
+    public void testStaleClosureNotCached() {
+        GroupClosureCache cache = new GroupClosureCache(100);
+        long generation = cache.getGeneration();
+        cache.invalidate("unrelated");
+        cache.put("course", closure("course"), generation);
+        Assert.assertNull(cache.get("course"));
+    }
+
+    @Test
+    public void testBounded() {
+        GroupClosureCache cache = new GroupClosureCache(100);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("g" + i, closure("g" + i), cache.getGeneration());
+        }
+        Assert.assertTrue(cache.size() <= 100);
+    }
+}
@@ -42,8 +42,8 @@ import java.util.Set;
 public abstract class AbstractContentManagerFinderTest {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AbstractContentManagerTest.class);
-    private StorageClient client;
-    private ConfigurationImpl configuration;
+    protected StorageClient client;
+    protected ConfigurationImpl configuration;
     private StorageClientPool clientPool;
     private PrincipalValidatorResolver principalValidatorResolver = new PrincipalValidatorResolverImpl();
 
@@ -1229,4 +1229,32 @@ public abstract class AbstractContentManagerFinderTest {
 
   }
 
+  @Test
+  public void testCountValues() throws StorageClientException, AccessDeniedException {
+      AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+      User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+      AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+              currentUser, configuration, null, new LoggingStorageListener(),
+              principalValidatorResolver);
+
+      ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+              configuration, null, new LoggingStorageListener());
+      contentManager.update(new Content("/countValues/a", ImmutableMap.of("sakai:type",
+              (Object) "testCountValuesType", "sakai:marker", "testCountValuesA")));
+      contentManager.update(new Content("/countValues/b", ImmutableMap.of("sakai:type",
+              (Object) "testCountValuesType", "sakai:marker", "testCountValuesA")));
+      contentManager.update(new Content("/countValues/c", ImmutableMap.of("sakai:type",
+              (Object) "testCountValuesType", "sakai:marker", "testCountValuesB")));
+      contentManager.update(new Content("/countValues/d", ImmutableMap.of("sakai:type",
+              (Object) "testCountValuesOther", "sakai:marker", "testCountValuesB")));
+
+      Map<String, Long> counts = contentManager.countValues(
+              ImmutableMap.of("sakai:type", (Object) "testCountValuesType"), "sakai:marker", 10);
+      Assert.assertEquals(ImmutableMap.of("testCountValuesA", 2L, "testCountValuesB", 1L), counts);
+      counts = contentManager.countValues(
+              ImmutableMap.of("sakai:type", (Object) "testCountValuesType"), "sakai:marker", 1);
+      Assert.assertEquals(ImmutableMap.of("testCountValuesA", 2L), counts);
+  }
+
 }
@@ -21,11 +21,14 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -46,6 +49,7 @@ import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
 import org.sakaiproject.nakamura.lite.accesscontrol.PrincipalValidatorResolverImpl;
 import org.sakaiproject.nakamura.lite.authorizable.AuthorizableActivator;
+import org.sakaiproject.nakamura.lite.storage.spi.AsyncStorageClient;
 import org.sakaiproject.nakamura.lite.storage.spi.ConcurrentLRUMap;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClientPool;
@@ -53,7 +57,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -129,6 +135,85 @@ public abstract class AbstractContentManagerTest {
 
     }
 
+    @Test
+    public void testListAllPaths() throws StorageClientException, AccessDeniedException {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, null,  new LoggingStorageListener(), principalValidatorResolver);
+
+        ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+                configuration, null,  new LoggingStorageListener());
+        contentManager.update(new Content("/testListAllPaths", ImmutableMap.of("prop1", (Object) "value1")));
+        contentManager.update(new Content("/testListAllPaths/test", ImmutableMap.of("prop1", (Object) "value2")));
+
+        Set<String> paths = Sets.newHashSet();
+        Iterator<String> all = contentManager.listAllPaths();
+        while (all.hasNext()) {
+            paths.add(all.next());
+        }
+        Assert.assertTrue(paths.contains("/testListAllPaths"));
+        Assert.assertTrue(paths.contains("/testListAllPaths/test"));
+    }
+
+    @Test
+    public void testGetAsync() throws Exception {
+        String keySpace = configuration.getKeySpace();
+        String columnFamily = configuration.getContentColumnFamily();
+        client.insert(keySpace, columnFamily, "testGetAsync-a",
+                ImmutableMap.of("prop1", (Object) "value1"), true);
+        client.insert(keySpace, columnFamily, "testGetAsync-b",
+                ImmutableMap.of("prop1", (Object) "value2"), true);
+
+        AsyncStorageClient asyncClient = clientPool.getAsyncClient();
+        Future<Map<String, Object>> a = asyncClient.getAsync(keySpace, columnFamily, "testGetAsync-a");
+        Future<Map<String, Object>> b = asyncClient.getAsync(keySpace, columnFamily, "testGetAsync-b");
+        Future<Map<String, Object>> missing = asyncClient.getAsync(keySpace, columnFamily,
+                "testGetAsync-missing");
+        Assert.assertEquals("value1", a.get().get("prop1"));
+        Assert.assertEquals("value2", b.get().get("prop1"));
+        Assert.assertTrue(missing.get() == null || missing.get().isEmpty());
+    }
+
+    @Test
+    public void testContentManagerGetAsync() throws Exception {
+        AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+        User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, null,  new LoggingStorageListener(), principalValidatorResolver);
+
+        ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+                configuration, null,  new LoggingStorageListener());
+        contentManager.setAsyncClient(clientPool.getAsyncClient());
+        contentManager.update(new Content("/testContentManagerGetAsync/a", ImmutableMap.of("prop1", (Object) "value1")));
+        contentManager.update(new Content("/testContentManagerGetAsync/b", ImmutableMap.of("prop1", (Object) "value2")));
+
+        Future<Content> a = contentManager.getAsync("/testContentManagerGetAsync/a");
+        Future<Content> b = contentManager.getAsync("/testContentManagerGetAsync/b");
+        Future<Content> missing = contentManager.getAsync("/testContentManagerGetAsync/missing");
+        Assert.assertEquals("/testContentManagerGetAsync/a", a.get().getPath());
+        Assert.assertEquals("value1", a.get().getProperty("prop1"));
+        Assert.assertEquals("value2", b.get().getProperty("prop1"));
+        Assert.assertNull(missing.get());
+        // the content is usable on the calling thread.
+        Assert.assertFalse(a.get().listChildren().iterator().hasNext());
+
+        // without an async client the read is made on the calling thread.
+        contentManager.setAsyncClient(null);
+        Assert.assertEquals("value1", contentManager.getAsync("/testContentManagerGetAsync/a")
+                .get().getProperty("prop1"));
+
+        contentManager.close();
+        try {
+            contentManager.getAsync("/testContentManagerGetAsync/a").get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof StorageClientException);
+        }
+    }
+
     @Test
     public void testCreateContent2() throws StorageClientException, AccessDeniedException {
         AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
@@ -782,6 +867,156 @@ public abstract class AbstractContentManagerTest {
 
   }
 
+  @Test
+  public void testFindDescendants() throws StorageClientException, AccessDeniedException {
+    AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+    User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+    AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+        currentUser, configuration, null, new LoggingStorageListener(), principalValidatorResolver);
+
+    ContentManagerImpl contentManager = new ContentManagerImpl(client,
+        accessControlManager, configuration, null, new LoggingStorageListener());
+    Map<String, Object> noTerms = ImmutableMap.of();
+    contentManager.update(new Content("/testFindDescendants", ImmutableMap.of("prop1", (Object) "value1")));
+    contentManager.update(new Content("/testFindDescendants/a", ImmutableMap.of("prop1", (Object) "value2")));
+    contentManager.update(new Content("/testFindDescendants/a/b", ImmutableMap.of("prop1", (Object) "value3")));
+    contentManager.update(new Content("/testFindDescendants/a/b/c", ImmutableMap.of("prop1", (Object) "value4")));
+    contentManager.update(new Content("/testFindDescendants/d", ImmutableMap.of("prop1", (Object) "value5")));
+
+    Set<String> paths = Sets.newHashSet();
+    for (Content descendant : contentManager.findDescendants("/testFindDescendants", noTerms)) {
+      paths.add(descendant.getPath());
+    }
+    Assert.assertEquals(ImmutableSet.of("/testFindDescendants/a", "/testFindDescendants/a/b",
+        "/testFindDescendants/a/b/c", "/testFindDescendants/d"), paths);
+    Assert.assertEquals(4, contentManager.countDescendants("/testFindDescendants", noTerms));
+    Assert.assertEquals(2, contentManager.countDescendants("/testFindDescendants/a", noTerms));
+
+    // versions are not descendants, the current item still is.
+    contentManager.saveVersion("/testFindDescendants/a/b/c");
+    Assert.assertEquals(2, contentManager.countDescendants("/testFindDescendants/a", noTerms));
+
+    // the subtree moves with its items.
+    contentManager.moveWithChildren("/testFindDescendants/a", "/testFindDescendants/d/a");
+    Assert.assertEquals(0, contentManager.countDescendants("/testFindDescendants/a", noTerms));
+    Assert.assertEquals(3, contentManager.countDescendants("/testFindDescendants/d", noTerms));
+    paths.clear();
+    for (Content descendant : contentManager.findDescendants("/testFindDescendants/d/a", noTerms)) {
+      paths.add(descendant.getPath());
+    }
+    Assert.assertEquals(ImmutableSet.of("/testFindDescendants/d/a/b",
+        "/testFindDescendants/d/a/b/c"), paths);
+
+    // deleted items are not descendants.
+    contentManager.delete("/testFindDescendants/d/a/b/c");
+    Assert.assertEquals(1, contentManager.countDescendants("/testFindDescendants/d/a", noTerms));
+    Assert.assertEquals(3, contentManager.countDescendants("/testFindDescendants", noTerms));
+  }
+
+  @Test
+  public void testChildCount() throws StorageClientException, AccessDeniedException {
+    AuthenticatorImpl AuthenticatorImpl = new AuthenticatorImpl(client, configuration);
+    User currentUser = AuthenticatorImpl.authenticate("admin", "admin");
+
+    AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+        currentUser, configuration, null, new LoggingStorageListener(), principalValidatorResolver);
+
+    ContentManagerImpl contentManager = new ContentManagerImpl(client,
+        accessControlManager, configuration, null, new LoggingStorageListener());
+    contentManager.update(new Content("/testChildCount", ImmutableMap.of("prop1", (Object) "value1")));
+    contentManager.update(new Content("/testChildCount/a", ImmutableMap.of("prop1", (Object) "value2")));
+    contentManager.update(new Content("/testChildCount/b", ImmutableMap.of("prop1", (Object) "value3")));
+    contentManager.update(new Content("/testChildCount/c", ImmutableMap.of("prop1", (Object) "value4")));
+    // intermediate paths are created and counted.
+    contentManager.update(new Content("/testChildCount/a/x/y", ImmutableMap.of("prop1", (Object) "value5")));
+    Assert.assertEquals(3, contentManager.getChildCount("/testChildCount"));
+    Assert.assertEquals(1, contentManager.getChildCount("/testChildCount/a"));
+    Assert.assertEquals(1, contentManager.getChildCount("/testChildCount/a/x"));
+    Assert.assertEquals(0, contentManager.getChildCount("/testChildCount/b"));
+    Assert.assertEquals(0, contentManager.getChildCount("/testChildCount/missing"));
+
+    // updates don't change the count.
+    Content b = contentManager.get("/testChildCount/b");
+    b.setProperty("prop1", "value6");
+    contentManager.update(b);
+    Assert.assertEquals(3, contentManager.getChildCount("/testChildCount"));
+
+    contentManager.delete("/testChildCount/b");
+    Assert.assertEquals(2, contentManager.getChildCount("/testChildCount"));
+    contentManager.update(new Content("/testChildCount/b", ImmutableMap.of("prop1", (Object) "value7")));
+    Assert.assertEquals(3, contentManager.getChildCount("/testChildCount"));
+
+    contentManager.moveWithChildren("/testChildCount/a", "/testChildCount/c/a");
+    Assert.assertEquals(2, contentManager.getChildCount("/testChildCount"));
+    Assert.assertEquals(1, contentManager.getChildCount("/testChildCount/c"));
+    Assert.assertEquals(1, contentManager.getChildCount("/testChildCount/c/a"));
+    Assert.assertEquals(1, contentManager.getChildCount("/testChildCount/c/a/x"));
+
+    contentManager.move("/testChildCount/b", "/testChildCount/d");
+    Assert.assertEquals(2, contentManager.getChildCount("/testChildCount"));
+
+    // links are counted as they are listed.
+    contentManager.link("/testChildCount/e", "/testChildCount/d");
+    Assert.assertEquals(3, contentManager.getChildCount("/testChildCount"));
+    Assert.assertEquals(3, Iterators.size(contentManager.listChildPaths("/testChildCount")));
+  }
+
+  @Test
+  public void testChildCountConcurrentWrites() throws Exception {
+    final String parent = "/testChildCountConcurrent" + System.currentTimeMillis();
+    ContentManagerImpl contentManager = newAdminContentManager(client);
+    contentManager.update(new Content(parent, ImmutableMap.of("prop1", (Object) "value1")));
+    Assert.assertEquals(0, contentManager.getChildCount(parent));
+
+    final List<Throwable> failures = Collections.synchronizedList(Lists.<Throwable> newArrayList());
+    List<Thread> writers = Lists.newArrayList();
+    for (int t = 0; t < 4; t++) {
+      final int writer = t;
+      writers.add(new Thread() {
+        public void run() {
+          try {
+            StorageClient writerClient = clientPool.getClient();
+            try {
+              ContentManagerImpl writerManager = newAdminContentManager(writerClient);
+              for (int i = 0; i < 10; i++) {
+                String path = parent + "/item" + writer + "_" + i;
+                writerManager.update(new Content(path, ImmutableMap.of("prop1", (Object) "value")));
+                if (i % 2 == 0) {
+                  writerManager.delete(path);
+                }
+              }
+            } finally {
+              writerClient.close();
+            }
+          } catch (Throwable e) {
+            failures.add(e);
+          }
+        }
+      });
+    }
+    for (Thread writer : writers) {
+      writer.start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    Assert.assertEquals(Collections.emptyList(), failures);
+    Assert.assertEquals(20, contentManager.getChildCount(parent));
+    Assert.assertEquals(20, Iterators.size(contentManager.listChildPaths(parent)));
+  }
+
+  private ContentManagerImpl newAdminContentManager(StorageClient storageClient)
+      throws StorageClientException, AccessDeniedException {
+    User currentUser = new AuthenticatorImpl(storageClient, configuration).authenticate("admin",
+        "admin");
+    AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(storageClient,
+        currentUser, configuration, sharedCache, new LoggingStorageListener(),
+        principalValidatorResolver);
+    return new ContentManagerImpl(storageClient, accessControlManager, configuration,
+        sharedCache, new LoggingStorageListener());
+  }
+
   @Test
   public void testCanReuseAContentPath() throws Exception {
       String path = "/pathToReuse" + System.currentTimeMillis();
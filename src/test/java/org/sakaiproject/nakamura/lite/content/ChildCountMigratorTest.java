@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.content;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
+
+import com.google.common.collect.Maps;
+
+public class ChildCountMigratorTest {
+
+    @Test
+    public void testStoredCountRemoved() {
+        ChildCountMigrator migrator = new ChildCountMigrator();
+        Map<String, Object> structure = Maps.newHashMap();
+        structure.put(InternalContent.STRUCTURE_UUID_FIELD, "uuid");
+        structure.put(InternalContent.PATH_FIELD, "/a/b");
+        Assert.assertFalse(migrator.migrate("rid", structure));
+        structure.put(InternalContent.CHILD_COUNT_FIELD, 3L);
+        Assert.assertTrue(migrator.migrate("rid", structure));
+        Assert.assertTrue(structure.get(InternalContent.CHILD_COUNT_FIELD) instanceof RemoveProperty);
+    }
+
+    @Test
+    public void testOnlyStructure() {
+        ChildCountMigrator migrator = new ChildCountMigrator();
+        Map<String, Object> content = Maps.newHashMap();
+        content.put(InternalContent.UUID_FIELD, "uuid");
+        content.put(InternalContent.CHILD_COUNT_FIELD, 3L);
+        Assert.assertFalse(migrator.migrate("rid", content));
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.content;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+
+import com.google.common.collect.Maps;
+
+public class ParentPropertyMigratorTest {
+
+    private Map<String, Object> contentRow(String path) {
+        Map<String, Object> properties = Maps.newHashMap();
+        properties.put(InternalContent.PATH_FIELD, path);
+        properties.put(InternalContent.UUID_FIELD, "uuid");
+        return properties;
+    }
+
+    @Test
+    public void testParentAdded() {
+        ParentPropertyMigrator migrator = new ParentPropertyMigrator();
+        Map<String, Object> properties = contentRow("/a/b");
+        // the ancestors are already up to date.
+        properties.put(InternalContent.ANCESTORS_FIELD,
+                StorageClientUtils.getAncestorHashes("/a/b"));
+        Assert.assertTrue(migrator.migrate("rid", properties));
+        Assert.assertEquals(StorageClientUtils.insecureHash("/a"),
+                properties.get(InternalContent.PARENT_FIELD));
+        Assert.assertFalse(migrator.migrate("rid", properties));
+    }
+
+    @Test
+    public void testOnlyCurrentContent() {
+        ParentPropertyMigrator migrator = new ParentPropertyMigrator();
+        Assert.assertFalse(migrator.migrate("rid", contentRow("/")));
+        Map<String, Object> structure = contentRow("/a/b");
+        structure.put(InternalContent.STRUCTURE_UUID_FIELD, "uuid");
+        Assert.assertFalse(migrator.migrate("rid", structure));
+        Map<String, Object> version = contentRow("/a/b");
+        version.put(InternalContent.READONLY_FIELD, InternalContent.TRUE);
+        Assert.assertFalse(migrator.migrate("rid", version));
+    }
+
+    @Test
+    public void testAncestorsMigratorChecksParent() {
+        AncestorsPropertyMigrator migrator = new AncestorsPropertyMigrator();
+        Map<String, Object> properties = contentRow("/a/b");
+        properties.put(InternalContent.ANCESTORS_FIELD,
+                StorageClientUtils.getAncestorHashes("/a/b"));
+        Assert.assertTrue(migrator.migrate("rid", properties));
+        Assert.assertEquals(StorageClientUtils.insecureHash("/a"),
+                properties.get(InternalContent.PARENT_FIELD));
+        Assert.assertFalse(migrator.migrate("rid", properties));
+    }
+
+}
@@ -19,6 +19,8 @@ package org.sakaiproject.nakamura.lite.jdbc;
 
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -30,6 +32,7 @@ import java.util.Map;
 import java.util.Set;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import junit.framework.Assert;
 
 import org.apache.commons.lang.StringUtils;
@@ -79,6 +82,7 @@ public class JDBCStorageClientTest {
 
     // funnel in data when the indexed columns are looked up
     when(conn.prepareStatement(anyString())).thenReturn(ps2);
+    when(connPool.getStatement(anyString())).thenReturn(ps2);
     when(ps2.executeQuery()).thenReturn(rs2);
 
     // give back some bogus db vendor data
@@ -391,4 +395,38 @@ public class JDBCStorageClientTest {
     String sql = sqlCaptor.getValue();
     Assert.assertEquals(expectedSql, sql);
   }
+
+  @Test
+  @SuppressWarnings(value="ODR_OPEN_DATABASE_RESOURCE", justification="Mock objects")
+  public void testGetAllSingleQuery() throws Exception {
+
+    String keySpace = "n";
+    String columnFamily = "cn";
+    Map<String, Map<String, Object>> rows = client.getAll(keySpace, columnFamily,
+        ImmutableList.of("/a", "/b", "/c"));
+
+    ArgumentCaptor<String> sqlCaptor = ArgumentCaptor.forClass(String.class);
+    verify(conn, times(1)).prepareStatement(sqlCaptor.capture());
+    verify(ps2).setString(1, client.rowHash(keySpace, columnFamily, "/a"));
+    verify(ps2).setString(2, client.rowHash(keySpace, columnFamily, "/b"));
+    verify(ps2).setString(3, client.rowHash(keySpace, columnFamily, "/c"));
+
+    String expectedSql = MessageFormat.format(
+        (String) sqlConfig.get("block-select-rows.n.cn"), "?,?,?");
+    Assert.assertEquals(expectedSql, sqlCaptor.getValue());
+    Assert.assertEquals(ImmutableList.of("/a", "/b", "/c"), ImmutableList.copyOf(rows.keySet()));
+    Assert.assertTrue(rows.get("/b").isEmpty());
+  }
+
+  @Test
+  @SuppressWarnings(value="ODR_OPEN_DATABASE_RESOURCE", justification="Mock objects")
+  public void testInsertWithCurrentRowDoesNotRead() throws Exception {
+    when(ps2.executeUpdate()).thenReturn(1);
+
+    client.insert("n", "cn", "/a", ImmutableMap.of("prop2", (Object) "value2"), false,
+        ImmutableMap.of("prop1", (Object) "value1"));
+
+    verify(ps2, never()).executeQuery();
+    verify(ps2, atLeastOnce()).executeUpdate();
+  }
 }
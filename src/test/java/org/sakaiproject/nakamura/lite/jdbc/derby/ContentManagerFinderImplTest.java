@@ -17,10 +17,34 @@
  */
 package org.sakaiproject.nakamura.lite.jdbc.derby;
 
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
 import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageConstants;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.lite.LoggingStorageListener;
+import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
+import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
+import org.sakaiproject.nakamura.lite.accesscontrol.PrincipalValidatorResolverImpl;
 import org.sakaiproject.nakamura.lite.content.AbstractContentManagerFinderTest;
+import org.sakaiproject.nakamura.lite.content.ContentManagerImpl;
 import org.sakaiproject.nakamura.lite.storage.spi.StorageClientPool;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
 public class ContentManagerFinderImplTest extends AbstractContentManagerFinderTest {
 
     @Override
@@ -28,4 +52,112 @@ public class ContentManagerFinderImplTest extends AbstractContentManagerFinderTe
         return DerbySetup.getClientPool(configuration);
     }
 
+    @Test
+    public void testFindWithContinuation() throws StorageClientException, AccessDeniedException {
+        User currentUser = new AuthenticatorImpl(client, configuration).authenticate("admin",
+                "admin");
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, null, new LoggingStorageListener(),
+                new PrincipalValidatorResolverImpl());
+        ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+                configuration, null, new LoggingStorageListener());
+        Set<String> paths = Sets.newHashSet();
+        for (int i = 0; i < 12; i++) {
+            String path = "/continuationFind/item" + i;
+            contentManager.update(new Content(path, ImmutableMap.of("sakai:marker",
+                    (Object) "testContinuationvalue", "sakai:type", "type" + (i % 3))));
+            paths.add(path);
+        }
+
+        for (String sort : new String[] { null, "sakai:type", "sakai:type desc" }) {
+            List<String> found = Lists.newArrayList();
+            String last = null;
+            String lastType = null;
+            for (int page = 0; page < 10; page++) {
+                Map<String, Object> b = Maps.newHashMap();
+                b.put("sakai:marker", "testContinuationvalue");
+                b.put(StorageConstants.ITEMS, 5);
+                if (sort != null) {
+                    b.put(StorageConstants.SORT, sort);
+                }
+                // the first page has no continuation but is continued.
+                b.put(StorageConstants.CONTINUATION, last);
+                int n = 0;
+                for (Content c : contentManager.find(b)) {
+                    String type = (String) c.getProperty("sakai:type");
+                    if (sort != null && lastType != null) {
+                        int cmp = type.compareTo(lastType);
+                        Assert.assertTrue(sort.endsWith("desc") ? cmp <= 0 : cmp >= 0);
+                    }
+                    found.add(c.getPath());
+                    // content rows are keyed by id, not by path.
+                    last = c.getId();
+                    lastType = type;
+                    n++;
+                }
+                if (n == 0) {
+                    break;
+                }
+            }
+            Assert.assertEquals(paths.size(), found.size());
+            Assert.assertEquals(paths, Sets.newHashSet(found));
+        }
+    }
+
+    @Test
+    public void testListChildrenPaged() throws StorageClientException, AccessDeniedException {
+        User currentUser = new AuthenticatorImpl(client, configuration).authenticate("admin",
+                "admin");
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, null, new LoggingStorageListener(),
+                new PrincipalValidatorResolverImpl());
+        ContentManagerImpl contentManager = new ContentManagerImpl(client, accessControlManager,
+                configuration, null, new LoggingStorageListener());
+        Set<String> paths = Sets.newHashSet();
+        for (int i = 0; i < 12; i++) {
+            String path = "/pagedChildren/item" + i;
+            contentManager.update(new Content(path, ImmutableMap.of("sakai:type",
+                    (Object) ("type" + (i % 3)))));
+            paths.add(path);
+        }
+        // grandchildren are not listed.
+        contentManager.update(new Content("/pagedChildren/item0/child", ImmutableMap.of(
+                "sakai:type", (Object) "type0")));
+        Assert.assertEquals(12, contentManager.getChildCount("/pagedChildren"));
+
+        List<String> found = Lists.newArrayList();
+        for (int page = 0; page < 10; page++) {
+            int n = Iterators.size(contentManager.listChildren("/pagedChildren", null, page, 5));
+            Assert.assertTrue(n <= 5);
+            if (n == 0) {
+                break;
+            }
+            found.add(String.valueOf(n));
+        }
+        Assert.assertEquals(ImmutableList.of("5", "5", "2"), found);
+
+        found.clear();
+        String last = null;
+        String lastType = null;
+        for (int page = 0; page < 10; page++) {
+            Iterator<Content> children = contentManager.listChildren("/pagedChildren",
+                    "sakai:type", last, 5);
+            if (!children.hasNext()) {
+                break;
+            }
+            while (children.hasNext()) {
+                Content c = children.next();
+                String type = (String) c.getProperty("sakai:type");
+                if (lastType != null) {
+                    Assert.assertTrue(type.compareTo(lastType) >= 0);
+                }
+                found.add(c.getPath());
+                last = c.getId();
+                lastType = type;
+            }
+        }
+        Assert.assertEquals(paths.size(), found.size());
+        Assert.assertEquals(paths, Sets.newHashSet(found));
+    }
+
 }
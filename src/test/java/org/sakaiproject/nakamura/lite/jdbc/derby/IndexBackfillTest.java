@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jdbc.derby;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClient;
+import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClientPool;
+import org.sakaiproject.nakamura.lite.storage.spi.DisposableIterator;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+
+import java.io.IOException;
+import java.util.Map;
+
+public class IndexBackfillTest {
+
+    private JDBCStorageClientPool activate(String indexColumns) throws ClassNotFoundException,
+            IOException {
+        Map<String, Object> properties = Maps.newHashMap();
+        properties.put("keyspace", "n");
+        properties.put("acl-column-family", "ac");
+        properties.put("authorizable-column-family", "au");
+        properties.put("content-column-family", "cn");
+        if (indexColumns != null) {
+            properties.put("index-column-names", indexColumns);
+        }
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        configuration.activate(properties);
+
+        JDBCStorageClientPool clientPool = new JDBCStorageClientPool();
+        clientPool.activate(ImmutableMap.<String, Object> builder()
+                .put(JDBCStorageClientPool.CONNECTION_URL,
+                        "jdbc:derby:memory:IndexBackfillDB;create=true")
+                .put(JDBCStorageClientPool.JDBC_DRIVER, "org.apache.derby.jdbc.EmbeddedDriver")
+                .put("store-base-dir", "target/store")
+                .put(Configuration.class.getName(), configuration).build());
+        return clientPool;
+    }
+
+    @Test
+    public void testBackfill() throws Exception {
+        JDBCStorageClientPool clientPool = activate(null);
+        StorageClient client = clientPool.getClient();
+        try {
+            for (int i = 0; i < 25; i++) {
+                client.insert("n", "cn", "backfill/" + i,
+                        ImmutableMap.of("backfillcolour", (Object) (i % 5 == 0 ? "red" : "blue")),
+                        true);
+            }
+        } finally {
+            client.close();
+            clientPool.deactivate(ImmutableMap.<String, Object> of());
+        }
+
+        clientPool = activate("cn:sling:resourceType,cn:backfillcolour");
+        // the first client syncs the index columns, later clients use them.
+        clientPool.getClient().close();
+        client = clientPool.getClient();
+        try {
+            JDBCStorageClient jdbcClient = (JDBCStorageClient) client;
+            Assert.assertTrue(jdbcClient.getIndexBackfillColumns().contains("cn:backfillcolour"));
+            // written while the backfill is pending.
+            client.insert("n", "cn", "backfill/new",
+                    ImmutableMap.of("backfillcolour", (Object) "red"), true);
+
+            Assert.assertEquals(10, jdbcClient.backfillIndexBatch("n", "cn:backfillcolour", 10));
+            Assert.assertTrue(jdbcClient.getIndexBackfillColumns().contains("cn:backfillcolour"));
+            int n = 10;
+            while (n == 10) {
+                n = jdbcClient.backfillIndexBatch("n", "cn:backfillcolour", 10);
+            }
+            Assert.assertTrue(jdbcClient.getIndexBackfillColumns().isEmpty());
+            Assert.assertEquals(0, jdbcClient.backfillIndexBatch("n", "cn:backfillcolour", 10));
+
+            DisposableIterator<Map<String, Object>> found = client.find("n", "cn",
+                    ImmutableMap.of("backfillcolour", (Object) "red"), null);
+            int red = 0;
+            while (found.hasNext()) {
+                Assert.assertEquals("red", found.next().get("backfillcolour"));
+                red++;
+            }
+            found.close();
+            Assert.assertEquals(6, red);
+        } finally {
+            client.close();
+            clientPool.deactivate(ImmutableMap.<String, Object> of());
+        }
+    }
+
+    @Test
+    public void testBackfillSeenByOtherServers() throws Exception {
+        JDBCStorageClientPool clientPool = activate(null);
+        StorageClient client = clientPool.getClient();
+        try {
+            for (int i = 0; i < 5; i++) {
+                client.insert("n", "cn", "backfillother/" + i,
+                        ImmutableMap.of("backfillshape", (Object) "square"), true);
+            }
+        } finally {
+            client.close();
+            clientPool.deactivate(ImmutableMap.<String, Object> of());
+        }
+
+        clientPool = activate("cn:sling:resourceType,cn:backfillshape");
+        clientPool.getClient().close();
+        JDBCStorageClientPool otherPool = activate("cn:sling:resourceType,cn:backfillshape");
+        otherPool.getClient().close();
+        client = clientPool.getClient();
+        StorageClient otherClient = otherPool.getClient();
+        try {
+            JDBCStorageClient jdbcClient = (JDBCStorageClient) client;
+            JDBCStorageClient otherJdbcClient = (JDBCStorageClient) otherClient;
+            Assert.assertTrue(otherJdbcClient.getIndexBackfillColumns().contains(
+                    "cn:backfillshape"));
+            // other tests may have left rows in the column family.
+            int n = 10;
+            while (n == 10) {
+                n = jdbcClient.backfillIndexBatch("n", "cn:backfillshape", 10);
+            }
+            Assert.assertTrue(jdbcClient.getIndexBackfillColumns().isEmpty());
+
+            Assert.assertTrue(otherJdbcClient.getIndexBackfillColumns().contains(
+                    "cn:backfillshape"));
+            otherJdbcClient.refreshIndexBackfillColumns("n");
+            Assert.assertTrue(otherJdbcClient.getIndexBackfillColumns().isEmpty());
+        } finally {
+            otherClient.close();
+            client.close();
+            otherPool.deactivate(ImmutableMap.<String, Object> of());
+            clientPool.deactivate(ImmutableMap.<String, Object> of());
+        }
+    }
+
+}
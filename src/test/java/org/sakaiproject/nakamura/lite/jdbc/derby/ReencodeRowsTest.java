@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jdbc.derby;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClient;
+import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClientPool;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+import org.sakaiproject.nakamura.lite.storage.spi.types.Types;
+
+import java.util.Map;
+
+public class ReencodeRowsTest {
+
+    @Test
+    public void testReencodeRows() throws Exception {
+        Map<String, Object> properties = Maps.newHashMap();
+        properties.put("keyspace", "n");
+        properties.put("acl-column-family", "ac");
+        properties.put("authorizable-column-family", "au");
+        properties.put("content-column-family", "cn");
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        configuration.activate(properties);
+
+        JDBCStorageClientPool clientPool = new JDBCStorageClientPool();
+        clientPool.activate(ImmutableMap.<String, Object> builder()
+                .put(JDBCStorageClientPool.CONNECTION_URL,
+                        "jdbc:derby:memory:ReencodeRowsDB;create=true")
+                .put(JDBCStorageClientPool.JDBC_DRIVER, "org.apache.derby.jdbc.EmbeddedDriver")
+                .put("store-base-dir", "target/store")
+                .put(Configuration.class.getName(), configuration).build());
+        int format = Types.getRowFormat();
+        StorageClient client = clientPool.getClient();
+        try {
+            Types.setRowFormat(Types.ROW_FORMAT_V1);
+            for (int i = 0; i < 5; i++) {
+                client.insert("n", "cn", "reencode/" + i,
+                        ImmutableMap.of("item", (Object) i, "name", "reencode" + i), true);
+            }
+            Types.setRowFormat(Types.ROW_FORMAT_V2);
+            JDBCStorageClient jdbcClient = (JDBCStorageClient) client;
+            Assert.assertEquals(5, jdbcClient.reencodeRows("n", "cn", 0));
+            Assert.assertEquals(0, jdbcClient.reencodeRows("n", "cn", 0));
+            for (int i = 0; i < 5; i++) {
+                Map<String, Object> row = client.get("n", "cn", "reencode/" + i);
+                Assert.assertEquals(i, row.get("item"));
+                Assert.assertEquals("reencode" + i, row.get("name"));
+            }
+        } finally {
+            Types.setRowFormat(format);
+            client.close();
+            clientPool.deactivate(ImmutableMap.<String, Object> of());
+        }
+    }
+
+}
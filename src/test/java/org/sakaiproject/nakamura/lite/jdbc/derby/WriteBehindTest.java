@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jdbc.derby;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Configuration;
+import org.sakaiproject.nakamura.api.lite.RemoveProperty;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClient;
+import org.sakaiproject.nakamura.lite.storage.jdbc.JDBCStorageClientPool;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class WriteBehindTest {
+
+    private JDBCStorageClientPool clientPool;
+
+    @Before
+    public void before() throws ClassNotFoundException, IOException {
+        Map<String, Object> properties = Maps.newHashMap();
+        properties.put("keyspace", "n");
+        properties.put("acl-column-family", "ac");
+        properties.put("authorizable-column-family", "au");
+        properties.put("content-column-family", "cn");
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        configuration.activate(properties);
+
+        clientPool = new JDBCStorageClientPool();
+        clientPool.activate(ImmutableMap.<String, Object> builder()
+                .put(JDBCStorageClientPool.CONNECTION_URL,
+                        "jdbc:derby:memory:WriteBehindDB;create=true")
+                .put(JDBCStorageClientPool.JDBC_DRIVER, "org.apache.derby.jdbc.EmbeddedDriver")
+                .put(JDBCStorageClientPool.WRITE_BEHIND, "true")
+                .put(JDBCStorageClientPool.WRITE_BEHIND_MAX_ROWS, "10")
+                .put("store-base-dir", "target/store")
+                .put(Configuration.class.getName(), configuration).build());
+    }
+
+    @After
+    public void after() {
+        clientPool.deactivate(ImmutableMap.<String, Object> of());
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        final List<Exception> failures = new CopyOnWriteArrayList<Exception>();
+        Thread[] threads = new Thread[5];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    StorageClient client = null;
+                    try {
+                        client = clientPool.getClient();
+                        for (int i = 0; i < 20; i++) {
+                            client.insert("n", "cn", "writebehind/" + thread + "/" + i,
+                                    ImmutableMap.of("thread", (Object) thread, "item", i), true);
+                        }
+                    } catch (Exception e) {
+                        failures.add(e);
+                    } finally {
+                        if (client != null) {
+                            client.close();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, failures.size());
+
+        StorageClient client = clientPool.getClient();
+        try {
+            for (int t = 0; t < threads.length; t++) {
+                for (int i = 0; i < 20; i++) {
+                    Map<String, Object> row = client.get("n", "cn", "writebehind/" + t + "/" + i);
+                    Assert.assertEquals(t, row.get("thread"));
+                    Assert.assertEquals(i, row.get("item"));
+                }
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testQueuedWritesRecorded() throws Exception {
+        long readsSaved = clientPool.getReadsSaved();
+        long fullWrites = clientPool.getFullWrites();
+        StorageClient client = clientPool.getClient();
+        try {
+            client.insert("n", "cn", "writebehind/recorded", ImmutableMap.of("a", (Object) "1"),
+                    true);
+            Map<String, Object> current = client.get("n", "cn", "writebehind/recorded");
+            ((JDBCStorageClient) client).insert("n", "cn", "writebehind/recorded",
+                    ImmutableMap.of("a", (Object) "2"), false, current);
+        } finally {
+            client.close();
+        }
+        // each write is recorded once, when it is queued rather than when it is flushed.
+        Assert.assertEquals(fullWrites + 1, clientPool.getFullWrites());
+        Assert.assertEquals(readsSaved + 1, clientPool.getReadsSaved());
+    }
+
+    @Test
+    public void testUpdateAndRemove() throws StorageClientException, Exception {
+        StorageClient client = clientPool.getClient();
+        try {
+            client.insert("n", "cn", "writebehind/update",
+                    ImmutableMap.of("a", (Object) "1", "b", "2"), true);
+            client.insert("n", "cn", "writebehind/update",
+                    ImmutableMap.of("a", (Object) "3", "b", new RemoveProperty()), false);
+            Map<String, Object> row = client.get("n", "cn", "writebehind/update");
+            Assert.assertEquals("3", row.get("a"));
+            Assert.assertFalse(row.containsKey("b"));
+
+            client.remove("n", "cn", "writebehind/update");
+            Assert.assertEquals(0, client.get("n", "cn", "writebehind/update").size());
+        } finally {
+            client.close();
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ConnectionHolderTest {
+
+    @Mock
+    JDBCStorageClientPool pool;
+
+    @Mock
+    Connection connection;
+
+    private PreparedStatement ps1 = mock(PreparedStatement.class);
+    private PreparedStatement ps2 = mock(PreparedStatement.class);
+    private PreparedStatement ps3 = mock(PreparedStatement.class);
+
+    @Before
+    public void setUp() throws Exception {
+        when(pool.getStatementCacheSize()).thenReturn(2);
+        when(connection.prepareStatement("select 1")).thenReturn(ps1);
+        when(connection.prepareStatement("select 2")).thenReturn(ps2);
+        when(connection.prepareStatement("select 3")).thenReturn(ps3);
+    }
+
+    @Test
+    public void testStatementsReused() throws Exception {
+        ConnectionHolder holder = new ConnectionHolder(connection, pool);
+        Assert.assertSame(ps1, holder.getStatement("select 1"));
+        Assert.assertSame(ps1, holder.getStatement("select 1"));
+        Assert.assertTrue(holder.isCachedStatement(ps1));
+        verify(connection, times(1)).prepareStatement("select 1");
+        verify(pool, times(1)).recordStatementCache(true);
+        verify(pool, times(1)).recordStatementCache(false);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedClosed() throws Exception {
+        ConnectionHolder holder = new ConnectionHolder(connection, pool);
+        holder.getStatement("select 1");
+        holder.getStatement("select 2");
+        holder.getStatement("select 1");
+        holder.getStatement("select 3");
+        verify(ps2).close();
+        Assert.assertFalse(holder.isCachedStatement(ps2));
+        verify(ps1, never()).close();
+
+        holder.close();
+        verify(ps1).close();
+        verify(ps3).close();
+        verify(connection).close();
+    }
+
+    @Test
+    public void testCacheDisabled() throws Exception {
+        when(pool.getStatementCacheSize()).thenReturn(0);
+        ConnectionHolder holder = new ConnectionHolder(connection, pool);
+        holder.getStatement("select 1");
+        Assert.assertFalse(holder.isCachedStatement(ps1));
+        holder.getStatement("select 1");
+        verify(connection, times(2)).prepareStatement("select 1");
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ConnectionManagerTest {
+
+    @Mock
+    JDBCStorageClientPool pool;
+
+    @Mock
+    Connection connection;
+
+    @Mock
+    StorageClient client;
+
+    @Mock
+    StorageClient client2;
+
+    @Before
+    public void setUp() throws Exception {
+        when(pool.getStatementCacheSize()).thenReturn(2);
+        when(connection.getAutoCommit()).thenReturn(true);
+    }
+
+    @Test
+    public void testConnectionKeptByThread() throws Exception {
+        ConnectionManager connectionManager = new ConnectionManager(pool);
+        connectionManager.clientBorrowed(client);
+        connectionManager.set(connection);
+        connectionManager.clientClosed(client);
+        Assert.assertSame(connection, connectionManager.get());
+        verify(connection, never()).close();
+    }
+
+    @Test
+    public void testConnectionReleasedWithLastClient() throws Exception {
+        ConnectionManager connectionManager = new ConnectionManager(pool, true, 0L);
+        connectionManager.clientBorrowed(client);
+        connectionManager.clientBorrowed(client2);
+        connectionManager.set(connection);
+        connectionManager.clientClosed(client);
+        Assert.assertSame(connection, connectionManager.get());
+        verify(connection, never()).close();
+        connectionManager.clientClosed(client2);
+        Assert.assertNull(connectionManager.get());
+        verify(connection).close();
+    }
+
+    @Test
+    public void testConnectionKeptInTransaction() throws Exception {
+        when(connection.getAutoCommit()).thenReturn(false);
+        ConnectionManager connectionManager = new ConnectionManager(pool, true, 0L);
+        connectionManager.clientBorrowed(client);
+        connectionManager.set(connection);
+        connectionManager.clientClosed(client);
+        Assert.assertSame(connection, connectionManager.get());
+        verify(connection, never()).close();
+    }
+
+    @Test
+    public void testConnectionReleasedByOwnerWhenClosedElsewhere() throws Exception {
+        final ConnectionManager connectionManager = new ConnectionManager(pool, true, 0L);
+        connectionManager.clientBorrowed(client);
+        connectionManager.set(connection);
+        Thread other = new Thread() {
+            public void run() {
+                connectionManager.clientClosed(client);
+            }
+        };
+        other.start();
+        other.join();
+        // the owning thread might still be using the connection.
+        verify(connection, never()).close();
+        Assert.assertNull(connectionManager.get());
+        verify(connection).close();
+    }
+
+    @Test
+    public void testConnectionReleasedAfterOperation() throws Exception {
+        ConnectionManager connectionManager = new ConnectionManager(pool, true, 0L);
+        connectionManager.clientBorrowed(client);
+        Thread holder = connectionManager.hold();
+        connectionManager.set(connection);
+        connectionManager.unhold(holder);
+        // the client is still open, but its operation has ended.
+        verify(connection).close();
+        Assert.assertNull(connectionManager.get());
+    }
+
+    @Test
+    public void testConnectionHeldByOpenCursor() throws Exception {
+        ConnectionManager connectionManager = new ConnectionManager(pool, true, 0L);
+        connectionManager.clientBorrowed(client);
+        Thread operation = connectionManager.hold();
+        connectionManager.set(connection);
+        Thread cursor = connectionManager.hold();
+        connectionManager.unhold(operation);
+        connectionManager.clientClosed(client);
+        Assert.assertSame(connection, connectionManager.get());
+        verify(connection, never()).close();
+        connectionManager.unhold(cursor);
+        verify(connection).close();
+    }
+
+    @Test
+    public void testConnectionKeptInTransactionAfterOperation() throws Exception {
+        when(connection.getAutoCommit()).thenReturn(false);
+        ConnectionManager connectionManager = new ConnectionManager(pool, true, 0L);
+        connectionManager.clientBorrowed(client);
+        Thread holder = connectionManager.hold();
+        connectionManager.set(connection);
+        connectionManager.unhold(holder);
+        Assert.assertSame(connection, connectionManager.get());
+        verify(connection, never()).close();
+    }
+
+    @Test
+    public void testConnectionKeptByThreadAfterOperation() throws Exception {
+        ConnectionManager connectionManager = new ConnectionManager(pool);
+        connectionManager.clientBorrowed(client);
+        Thread holder = connectionManager.hold();
+        connectionManager.set(connection);
+        connectionManager.unhold(holder);
+        Assert.assertSame(connection, connectionManager.get());
+        verify(connection, never()).close();
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.lite.ConfigurationImpl;
+import org.sakaiproject.nakamura.lite.LoggingStorageListener;
+import org.sakaiproject.nakamura.lite.accesscontrol.AccessControlManagerImpl;
+import org.sakaiproject.nakamura.lite.accesscontrol.AuthenticatorImpl;
+import org.sakaiproject.nakamura.lite.accesscontrol.PrincipalValidatorResolverImpl;
+import org.sakaiproject.nakamura.lite.authorizable.AuthorizableActivator;
+import org.sakaiproject.nakamura.lite.content.ContentManagerImpl;
+import org.sakaiproject.nakamura.lite.jdbc.derby.DerbySetup;
+import org.sakaiproject.nakamura.lite.storage.spi.StorageClient;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The paged child listings find children by their indexed parent, which can't be found
+ * while that column is backfilled, so they list the structure rows instead.
+ */
+public class ListChildrenBackfillTest {
+
+    private JDBCStorageClientPool clientPool;
+    private StorageClient client;
+    private ContentManagerImpl contentManager;
+
+    @Before
+    public void before() throws Exception {
+        Map<String, Object> properties = Maps.newHashMap();
+        properties.put("keyspace", "n");
+        properties.put("acl-column-family", "ac");
+        properties.put("authorizable-column-family", "au");
+        properties.put("content-column-family", "cn");
+        ConfigurationImpl configuration = new ConfigurationImpl();
+        configuration.activate(properties);
+        clientPool = DerbySetup.getClientPool(configuration);
+        client = clientPool.getClient();
+        new AuthorizableActivator(client, configuration).setup();
+        User currentUser = new AuthenticatorImpl(client, configuration).authenticate("admin",
+                "admin");
+        AccessControlManagerImpl accessControlManager = new AccessControlManagerImpl(client,
+                currentUser, configuration, null, new LoggingStorageListener(),
+                new PrincipalValidatorResolverImpl());
+        contentManager = new ContentManagerImpl(client, accessControlManager, configuration,
+                null, new LoggingStorageListener());
+    }
+
+    @After
+    public void after() {
+        clientPool.setIndexBackfillColumns(ImmutableSet.<String> of());
+        client.close();
+    }
+
+    @Test
+    public void testListChildrenWhileParentBackfills() throws Exception {
+        String parent = "/backfillChildren" + System.currentTimeMillis();
+        for (int i = 0; i < 7; i++) {
+            contentManager.update(new Content(parent + "/item" + i, ImmutableMap.of(
+                    "sakai:type", (Object) ("type" + (i % 3)))));
+        }
+        // links are listed with the content they point to.
+        contentManager.update(new Content("/backfillOther/target", ImmutableMap.of(
+                "sakai:type", (Object) "type0")));
+        contentManager.link(parent + "/link", "/backfillOther/target");
+
+        List<String> indexed = listPages(parent, "sakai:type desc");
+        List<String> indexedContinued = listContinued(parent, "sakai:type desc");
+        clientPool.setIndexBackfillColumns(ImmutableSet.of("cn:_:parent"));
+        Assert.assertEquals(indexed, listPages(parent, "sakai:type desc"));
+        Assert.assertEquals(indexedContinued, listContinued(parent, "sakai:type desc"));
+        Assert.assertEquals(7, listPages(parent, null).size());
+        Assert.assertEquals(7, listContinued(parent, null).size());
+        Assert.assertEquals(8, contentManager.getChildCount(parent));
+    }
+
+    private List<String> listPages(String parent, String sort) throws Exception {
+        List<String> found = Lists.newArrayList();
+        for (int page = 0; page < 10; page++) {
+            Iterator<Content> children = contentManager.listChildren(parent, sort, page, 3);
+            if (!children.hasNext()) {
+                break;
+            }
+            while (children.hasNext()) {
+                found.add(children.next().getPath());
+            }
+        }
+        return found;
+    }
+
+    private List<String> listContinued(String parent, String sort) throws Exception {
+        List<String> found = Lists.newArrayList();
+        String last = null;
+        for (int page = 0; page < 10; page++) {
+            Iterator<Content> children = contentManager.listChildren(parent, sort, last, 3);
+            if (!children.hasNext()) {
+                break;
+            }
+            while (children.hasNext()) {
+                Content c = children.next();
+                found.add(c.getPath());
+                last = c.getId();
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.jdbc;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageConstants;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class QueryPlannerTest {
+
+    private ColumnStatistics statistics;
+    private AbstractIndexer indexer;
+
+    @Before
+    public void setUp() {
+        statistics = new ColumnStatistics();
+        statistics.update("cn", 10000L);
+        statistics.update("cn", "sakai:type", 10000L, 5L, ImmutableMap.of("file", 9000L));
+        statistics.update("cn", "sakai:pooled-content-manager", 10000L, 5000L,
+                ImmutableMap.of("admin", 100L));
+        indexer = new NonBatchInsertIndexer(null, ImmutableSet.of("cn:sakai:type",
+                "cn:sakai:pooled-content-manager", "cn:sakai:tags"),
+                ImmutableMap.<String, Object> of());
+    }
+
+    @Test
+    public void testSelectivity() {
+        Assert.assertEquals(0.9, statistics.getSelectivity("cn", "sakai:type", "file"), 0.0001);
+        // the other 4 values share the remaining 1000 rows.
+        Assert.assertEquals(0.025, statistics.getSelectivity("cn", "sakai:type", "folder"),
+                0.0001);
+        Assert.assertEquals(ColumnStatistics.UNKNOWN,
+                statistics.getSelectivity("cn", "sakai:tags", "x"), 0.0001);
+        Assert.assertEquals(ColumnStatistics.UNKNOWN,
+                statistics.getSelectivity("au", "sakai:type", "file"), 0.0001);
+    }
+
+    @Test
+    public void testMostSelectiveFirst() {
+        QueryPlanner planner = new QueryPlanner(statistics, 0L);
+        Map<String, Object> filters = Maps.newHashMap();
+        Map<String, Object> planned = planner.plan(indexer, "n", "cn", find(), filters);
+        Assert.assertEquals(ImmutableList.of(StorageConstants.ITEMS,
+                "sakai:pooled-content-manager", "sakai:type"), Lists.newArrayList(planned
+                .keySet()));
+        Assert.assertTrue(filters.isEmpty());
+    }
+
+    @Test
+    public void testUnselectiveTermFiltered() {
+        QueryPlanner planner = new QueryPlanner(statistics, 1000L);
+        Map<String, Object> filters = Maps.newHashMap();
+        Map<String, Object> planned = planner.plan(indexer, "n", "cn", find(), filters);
+        Assert.assertEquals(ImmutableList.of(StorageConstants.ITEMS,
+                "sakai:pooled-content-manager"), Lists.newArrayList(planned.keySet()));
+        Assert.assertEquals(ImmutableMap.of("sakai:type", "file"), filters);
+
+        // raw results can't be filtered.
+        planned = planner.plan(indexer, "n", "cn", find(), null);
+        Assert.assertEquals(3, planned.size());
+    }
+
+    @Test
+    public void testDrivingTermMustBeSelective() {
+        QueryPlanner planner = new QueryPlanner(statistics, 1000L);
+        Map<String, Object> find = Maps.newLinkedHashMap();
+        find.put("sakai:type", "file");
+        find.put("sakai:pooled-content-manager", "admin");
+        find.put("sakai:tags", "x");
+        Map<String, Object> filters = Maps.newHashMap();
+        Map<String, Object> planned = planner.plan(indexer, "n", "cn", find, filters);
+        // the unsampled column goes after the sampled selective column, the driving term
+        // matches 100 rows so the unselective term is filtered.
+        Assert.assertEquals(ImmutableList.of("sakai:pooled-content-manager", "sakai:tags"),
+                Lists.newArrayList(planned.keySet()));
+        Assert.assertEquals(ImmutableMap.of("sakai:type", "file"), filters);
+
+        find.remove("sakai:pooled-content-manager");
+        filters.clear();
+        planned = planner.plan(indexer, "n", "cn", find, filters);
+        // without statistics for the driving term nothing is filtered.
+        Assert.assertEquals(2, planned.size());
+        Assert.assertTrue(filters.isEmpty());
+    }
+
+    @Test
+    public void testNoStatistics() {
+        QueryPlanner planner = new QueryPlanner(statistics, 1000L);
+        Map<String, Object> find = find();
+        Assert.assertSame(find, planner.plan(indexer, "n", "au", find, Maps
+                .<String, Object> newHashMap()));
+    }
+
+    private Map<String, Object> find() {
+        Map<String, Object> find = Maps.newLinkedHashMap();
+        find.put("sakai:type", "file");
+        find.put(StorageConstants.ITEMS, 10);
+        find.put("sakai:pooled-content-manager", "someone");
+        return find;
+    }
+    @Test
+    public void testFilteredRowsCapped() {
+        QueryPlanner planner = new QueryPlanner(statistics, 1000L);
+        Assert.assertEquals(1000L * QueryPlanner.FILTER_ROWS_SLACK, planner.getMaxFilteredRows());
+    }
+
+}
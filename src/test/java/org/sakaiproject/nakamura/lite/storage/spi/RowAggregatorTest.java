@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.StorageConstants;
+import org.sakaiproject.nakamura.api.lite.util.PreemptiveIterator;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class RowAggregatorTest {
+
+    private static final List<Map<String, Object>> ROWS = ImmutableList.of(
+            row("mimeType", "text/plain", "tags", new String[] { "a", "b" }, "size", 10L),
+            row("mimeType", "text/html", "tags", new String[] { "b" }, "size", 3L),
+            row("mimeType", "text/plain", "tags", new String[] { "b", "c" }, "size", 42L),
+            ImmutableMap.of("other", (Object) "x"));
+
+    private static Map<String, Object> row(String k1, Object v1, String k2, Object v2,
+            String k3, Object v3) {
+        return ImmutableMap.of(k1, v1, k2, v2, k3, v3);
+    }
+
+    private DisposableIterator<Map<String, Object>> rows() {
+        final Iterator<Map<String, Object>> rows = ROWS.iterator();
+        return new PreemptiveIterator<Map<String, Object>>() {
+
+            private Map<String, Object> nextValue;
+
+            @Override
+            protected boolean internalHasNext() {
+                if (rows.hasNext()) {
+                    nextValue = rows.next();
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            protected Map<String, Object> internalNext() {
+                return nextValue;
+            }
+        };
+    }
+
+    @Test
+    public void testHasTerms() {
+        Assert.assertFalse(RowAggregator.hasTerms(null));
+        Assert.assertFalse(RowAggregator.hasTerms(ImmutableMap.of(StorageConstants.ITEMS,
+                (Object) 10)));
+        Assert.assertTrue(RowAggregator.hasTerms(ImmutableMap.of("mimeType",
+                (Object) "text/plain", StorageConstants.ITEMS, 10)));
+        Assert.assertTrue(RowAggregator.hasTerms(ImmutableMap.of("_:ancestors",
+                (Object) "hash", StorageConstants.ITEMS, 10)));
+    }
+
+    @Test
+    public void testCount() {
+        Assert.assertEquals(4, RowAggregator.count(rows()));
+    }
+
+    @Test
+    public void testCountValues() {
+        Map<String, Long> mimeTypes = RowAggregator.countValues(rows(), "mimeType", 10);
+        Assert.assertEquals(ImmutableList.of("text/plain", "text/html"),
+                ImmutableList.copyOf(mimeTypes.keySet()));
+        Assert.assertEquals(Long.valueOf(2), mimeTypes.get("text/plain"));
+
+        // each tag is counted, most frequent first then by value.
+        Map<String, Long> tags = RowAggregator.countValues(rows(), "tags", 2);
+        Assert.assertEquals(ImmutableList.of("b", "a"), ImmutableList.copyOf(tags.keySet()));
+        Assert.assertEquals(Long.valueOf(3), tags.get("b"));
+    }
+
+    @Test
+    public void testRange() {
+        Object[] range = RowAggregator.range(rows(), "size");
+        Assert.assertEquals(3L, range[0]);
+        Assert.assertEquals(42L, range[1]);
+        range = RowAggregator.range(rows(), "missing");
+        Assert.assertNull(range[0]);
+        Assert.assertNull(range[1]);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StorageClientObjectPoolTest {
+
+    private static class CountingFactory extends BasePoolableObjectFactory {
+        private AtomicInteger made = new AtomicInteger();
+        private boolean valid = true;
+
+        @Override
+        public Object makeObject() throws Exception {
+            return "client" + made.incrementAndGet();
+        }
+
+        @Override
+        public boolean validateObject(Object obj) {
+            return valid;
+        }
+    }
+
+    private StorageClientObjectPool newPool(CountingFactory factory, int maxActive,
+            byte whenExhausted, int maxIdle, long leakThreshold) {
+        return new StorageClientObjectPool(factory, maxActive, whenExhausted, 10L, maxIdle,
+                true, true, 0L, 1000, 10000L, false, leakThreshold);
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        CountingFactory factory = new CountingFactory();
+        StorageClientObjectPool pool = newPool(factory, 10,
+                StorageClientObjectPool.WHEN_EXHAUSTED_BLOCK, 5, 0L);
+        Object client = pool.borrowObject();
+        Assert.assertEquals(1, pool.getNumActive());
+        pool.returnObject(client);
+        Assert.assertEquals(0, pool.getNumActive());
+        Assert.assertEquals(1, pool.getNumIdle());
+        Assert.assertSame(client, pool.borrowObject());
+        Assert.assertEquals(1, pool.getCreatedCount());
+        Assert.assertEquals(2, pool.getBorrowCount());
+        long waits = 0;
+        for (long w : pool.getWaitHistogram()) {
+            waits += w;
+        }
+        Assert.assertEquals(2, waits);
+        pool.close();
+    }
+
+    @Test
+    public void testExhausted() throws Exception {
+        CountingFactory factory = new CountingFactory();
+        StorageClientObjectPool pool = newPool(factory, 1,
+                StorageClientObjectPool.WHEN_EXHAUSTED_BLOCK, 5, 0L);
+        Object client = pool.borrowObject();
+        try {
+            pool.borrowObject();
+            Assert.fail();
+        } catch (NoSuchElementException e) {
+            // expected, waited 10ms
+        }
+        // returning twice must not release two permits.
+        pool.returnObject(client);
+        pool.returnObject(client);
+        pool.borrowObject();
+        try {
+            pool.borrowObject();
+            Assert.fail();
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+        pool.close();
+    }
+
+    @Test
+    public void testNegativeMaxIdleUnbounded() throws Exception {
+        CountingFactory factory = new CountingFactory();
+        StorageClientObjectPool pool = newPool(factory, 10,
+                StorageClientObjectPool.WHEN_EXHAUSTED_BLOCK, -1, 0L);
+        Object client1 = pool.borrowObject();
+        Object client2 = pool.borrowObject();
+        pool.returnObject(client1);
+        pool.returnObject(client2);
+        Assert.assertEquals(2, pool.getNumIdle());
+        Assert.assertEquals(0, pool.getDestroyedCount());
+        pool.close();
+    }
+
+    @Test
+    public void testInvalidDestroyed() throws Exception {
+        CountingFactory factory = new CountingFactory();
+        StorageClientObjectPool pool = newPool(factory, 10,
+                StorageClientObjectPool.WHEN_EXHAUSTED_GROW, 1, 0L);
+        Object client1 = pool.borrowObject();
+        Object client2 = pool.borrowObject();
+        pool.returnObject(client1);
+        // over max idle
+        pool.returnObject(client2);
+        Assert.assertEquals(1, pool.getNumIdle());
+        Assert.assertEquals(1, pool.getDestroyedCount());
+        factory.valid = false;
+        try {
+            pool.borrowObject();
+            Assert.fail();
+        } catch (NoSuchElementException e) {
+            // the idle client and a new client both fail validation
+        }
+        Assert.assertEquals(0, pool.getNumIdle());
+        Assert.assertEquals(0, pool.getNumActive());
+        Assert.assertEquals(3, pool.getDestroyedCount());
+        pool.close();
+    }
+
+    @Test
+    public void testLeakReported() throws Exception {
+        CountingFactory factory = new CountingFactory();
+        StorageClientObjectPool pool = newPool(factory, 10,
+                StorageClientObjectPool.WHEN_EXHAUSTED_BLOCK, 5, 1L);
+        Object client = pool.borrowObject();
+        Thread.sleep(5);
+        pool.evict();
+        pool.evict();
+        Assert.assertEquals(1, pool.getLeakCount());
+        pool.returnObject(client);
+        pool.close();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.storage.spi;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WeightedLRUMapTest {
+
+    private static final WeightedLRUMap.Weigher<String, String> LENGTH = new WeightedLRUMap.Weigher<String, String>() {
+        public int weigh(String key, String value) {
+            return value.length();
+        }
+    };
+
+    @Test
+    public void testWeightBound() {
+        // 16 segments of 100.
+        WeightedLRUMap<String, String> map = new WeightedLRUMap<String, String>(1600, LENGTH);
+        for (int i = 0; i < 10000; i++) {
+            map.put("key" + i, "0123456789");
+        }
+        Assert.assertTrue(map.getWeight() <= 1600);
+        Assert.assertTrue(map.size() <= 160);
+        Assert.assertTrue(map.getEvictionCount() > 0);
+        Assert.assertEquals("0123456789", map.get("key9999"));
+    }
+
+    @Test
+    public void testOversizeNotCached() {
+        WeightedLRUMap<String, String> map = new WeightedLRUMap<String, String>(160, LENGTH);
+        map.put("big", "01234567890123456789");
+        Assert.assertNull(map.get("big"));
+        Assert.assertEquals(0, map.getWeight());
+    }
+
+    @Test
+    public void testScanResistance() {
+        WeightedLRUMap<String, String> map = new WeightedLRUMap<String, String>(16 * 100, LENGTH);
+        map.put("hot", "0123456789");
+        // a second use protects the entry.
+        Assert.assertNotNull(map.get("hot"));
+        for (int i = 0; i < 10000; i++) {
+            map.put("scan" + i, "0123456789");
+        }
+        Assert.assertEquals("0123456789", map.get("hot"));
+    }
+
+    @Test
+    public void testReplaceAndRemove() {
+        WeightedLRUMap<String, String> map = new WeightedLRUMap<String, String>(1600, LENGTH);
+        Assert.assertNull(map.put("a", "1"));
+        Assert.assertEquals("1", map.put("a", "22"));
+        Assert.assertEquals(2, map.getWeight());
+        Assert.assertTrue(map.containsKey("a"));
+        Assert.assertEquals("22", map.remove("a"));
+        Assert.assertFalse(map.containsKey("a"));
+        Assert.assertEquals(0, map.getWeight());
+        map.put("b", "1");
+        map.clear();
+        Assert.assertTrue(map.isEmpty());
+    }
+}
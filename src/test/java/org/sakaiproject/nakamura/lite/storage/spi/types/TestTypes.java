@@ -11,6 +11,9 @@ import org.sakaiproject.nakamura.lite.storage.spi.types.StringType;
 import org.sakaiproject.nakamura.lite.storage.spi.types.Type;
 import org.sakaiproject.nakamura.lite.storage.spi.types.Types;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
@@ -275,4 +278,133 @@ public class TestTypes {
 
     }
 
+    @Test
+    public void testReadBothRowFormats() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put("_path", "a/b/c");
+        map.put("notInDictionary", "value");
+        map.put("A", 1);
+        map.put("S", new String[] { "x", "y" });
+
+        byte[] v1 = Types.toRowBytes("testkey", map, "testcf", Types.ROW_FORMAT_V1);
+        byte[] v2 = Types.toRowBytes("testkey", map, "testcf", Types.ROW_FORMAT_V2);
+        Assert.assertEquals(Types.ROW_FORMAT_V1, Types.getRowFormat(v1));
+        Assert.assertEquals(Types.ROW_FORMAT_V2, Types.getRowFormat(v2));
+        Assert.assertTrue(v2.length < v1.length);
+
+        for (byte[] row : new byte[][] { v1, v2 }) {
+            Map<String, Object> output = Maps.newHashMap();
+            Types.loadFromStream("testkey", output, new ByteArrayInputStream(row), "testcf");
+            Assert.assertEquals(4, output.size());
+            Assert.assertEquals("a/b/c", output.get("_path"));
+            Assert.assertEquals("value", output.get("notInDictionary"));
+            Assert.assertEquals(1, output.get("A"));
+            Assert.assertArrayEquals(new String[] { "x", "y" }, (String[]) output.get("S"));
+        }
+    }
+
+    @Test
+    public void testRowFormatV2Checks() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put("A", 1);
+        byte[] v2 = Types.toRowBytes("testkey", map, "testcf", Types.ROW_FORMAT_V2);
+        try {
+            Types.loadFromStream("testkey", Maps.<String, Object>newHashMap(),
+                    new ByteArrayInputStream(v2), "not-testcf");
+            Assert.fail("Should have refused to load a row of the wrong column family");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            Types.loadFromStream("otherkey", Maps.<String, Object>newHashMap(),
+                    new ByteArrayInputStream(v2), "testcf");
+            Assert.fail("Should have refused to load a row with the wrong key");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRowFormatV2LongValues() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+        String longKey = sb.toString();
+        Map<String, Object> map = Maps.newHashMap();
+        map.put(longKey, longKey);
+        map.put("array", new String[] { longKey });
+
+        byte[] v2 = Types.toRowBytes(longKey, map, "testcf", Types.ROW_FORMAT_V2);
+        Map<String, Object> output = Maps.newHashMap();
+        Types.loadFromStream(longKey, output, new ByteArrayInputStream(v2), "testcf");
+        // long values may be held as a LongString, depending on the configured length limit.
+        Assert.assertEquals(longKey, String.valueOf(output.get(longKey)));
+        Object[] array = (Object[]) output.get("array");
+        Assert.assertEquals(1, array.length);
+        Assert.assertEquals(longKey, String.valueOf(array[0]));
+    }
+
+    @Test
+    public void testLoadRowLazily() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+        map.put("_path", "a/b/c");
+        map.put("A", 1);
+        map.put("B", Long.MAX_VALUE);
+        map.put("D", new BigDecimal("12345.12E23"));
+        map.put("S", new String[] { "x", "y" });
+
+        byte[] v2 = Types.toRowBytes("testkey", map, "testcf", Types.ROW_FORMAT_V2);
+        Map<String, Object> lazy = Types.loadRow("testkey", v2, "testcf");
+        Assert.assertTrue(lazy instanceof LazyRowMap);
+        Assert.assertEquals(map.keySet(), lazy.keySet());
+        Assert.assertEquals("a/b/c", lazy.get("_path"));
+        Assert.assertEquals(Long.MAX_VALUE, lazy.get("B"));
+        Assert.assertEquals(new BigDecimal("12345.12E23"), lazy.get("D"));
+        Assert.assertArrayEquals(new String[] { "x", "y" }, (String[]) lazy.get("S"));
+        Assert.assertEquals(1, Maps.newHashMap(lazy).get("A"));
+        Assert.assertNull(lazy.get("missing"));
+        try {
+            lazy.put("A", 2);
+            Assert.fail("Rows loaded lazily should be immutable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        byte[] v1 = Types.toRowBytes("testkey", map, "testcf", Types.ROW_FORMAT_V1);
+        Map<String, Object> eager = Types.loadRow("testkey", v1, "testcf");
+        Assert.assertFalse(eager instanceof LazyRowMap);
+        Assert.assertEquals("a/b/c", eager.get("_path"));
+    }
+
+    @Test
+    public void testReadRowFormatV2UnsizedValues() throws IOException {
+        // format version 2 rows have no length before values other than strings.
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(CompactRowFormat.MARKER);
+        dos.writeByte(2);
+        dos.writeInt("testkey".hashCode());
+        CompactRowFormat.writeString(dos, "testcf");
+        CompactRowFormat.writeVarInt(dos, 2);
+        CompactRowFormat.writeName(dos, "A");
+        IntegerType integerType = new IntegerType();
+        CompactRowFormat.writeVarInt(dos, integerType.getTypeId());
+        integerType.save(dos, 1);
+        CompactRowFormat.writeName(dos, "_path");
+        CompactRowFormat.writeVarInt(dos, new StringType().getTypeId());
+        CompactRowFormat.writeString(dos, "a/b/c");
+        dos.flush();
+        byte[] v2 = baos.toByteArray();
+
+        Assert.assertFalse(Types.isRowFormat(v2, Types.ROW_FORMAT_V2));
+        Map<String, Object> row = Types.loadRow("testkey", v2, "testcf");
+        Assert.assertFalse(row instanceof LazyRowMap);
+        Assert.assertEquals(1, row.get("A"));
+        Assert.assertEquals("a/b/c", row.get("_path"));
+        Assert.assertTrue(Types.isRowFormat(
+                Types.toRowBytes("testkey", row, "testcf", Types.ROW_FORMAT_V2),
+                Types.ROW_FORMAT_V2));
+    }
+
 }